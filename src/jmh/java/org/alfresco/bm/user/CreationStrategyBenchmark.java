@@ -0,0 +1,152 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Users created per second by each {@link UserCreationStrategy creation strategy} against a local
+ * {@link AlfrescoStandInServer}, for several group mixes.  The stand-in answers every call after
+ * <tt>latency</tt> and spends the same time on each membership, whether it is made with its own
+ * call or inline, so the difference between strategies comes from the round trips.
+ * <p/>
+ * The throughput is in users per second.  The requests answered by the stand-in and the users
+ * created are reported alongside as <tt>requests</tt> and <tt>users</tt> counts; their ratio is
+ * the number of round trips per user.
+ *
+ * @since 3.0.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(1)
+public class CreationStrategyBenchmark
+{
+    @Param({"V1", "LEGACY", "FEWEST_ROUND_TRIPS"})
+    public UserCreationStrategy strategy;
+
+    /** No groups, one user in four in a group, and every user in two groups */
+    @Param({"", "SITE_ADMINISTRATORS:0.25", "SITE_ADMINISTRATORS:1.0,DATA_ANALYSTS:1.0"})
+    public String groups;
+
+    @Param({"fixed:2"})
+    public String latency;
+
+    private AlfrescoStandInServer standIn;
+    private CreateUsersWithRestV1API createUser;
+    private final AtomicLong userCount = new AtomicLong();
+    /** The stand-in's request count when the requests were last handed to a thread's counters */
+    private final AtomicLong requestsCounted = new AtomicLong();
+
+    /**
+     * Requests and users counted by each thread during an iteration, added up by JMH
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class RoundTrips
+    {
+        public long requests;
+        public long users;
+
+        @Setup(Level.Iteration)
+        public void clear()
+        {
+            requests = 0L;
+            users = 0L;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        standIn = new AlfrescoStandInServer();
+        standIn.setPersonLatency(latency);
+        standIn.setMembershipLatency(latency);
+        standIn.start();
+
+        createUser = new CreateUsersWithRestV1API();
+        createUser.setUserGroups(groups);
+        createUser.setCreationStrategy(strategy);
+        createUser.setIgnoreExistingUsers(true);
+        createUser.setBaseUrl(standIn.getBaseUrl());
+        createUser.setAlfrescoAdminUsername("admin");
+        createUser.setAlfrescoAdminPassword("admin");
+        createUser.initialize();
+    }
+
+    @Setup(Level.Iteration)
+    public void startCounting()
+    {
+        requestsCounted.set(standIn.getRequestCount());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        standIn.stop();
+    }
+
+    @Benchmark
+    public boolean createUser(RoundTrips roundTrips) throws Exception
+    {
+        long index = userCount.incrementAndGet();
+        UserData user = new UserData();
+        user.setUsername("user-" + index + "@example.com");
+        user.setPassword("password");
+        user.setFirstName("user-" + index);
+        user.setLastName("Test");
+        user.setEmail("user-" + index + "@example.com");
+        boolean created = createUser.createUser(user);
+        if (created)
+        {
+            roundTrips.users++;
+        }
+        // Requests made by other threads may be counted here; only the totals are meaningful
+        long requests = standIn.getRequestCount();
+        roundTrips.requests += requests - requestsCounted.getAndSet(requests);
+        return created;
+    }
+}
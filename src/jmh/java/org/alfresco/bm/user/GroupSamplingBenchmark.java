@@ -0,0 +1,138 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of the <tt>user.groups</tt> description and picking of the groups of each user, alone
+ * and with many threads picking groups at the same time.
+ * <p/>
+ * The <tt>legacy</tt> benchmarks reproduce the former <tt>HashMap</tt> and <tt>Math.random()</tt>
+ * implementation as a baseline.
+ *
+ * @since 3.0.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GroupSamplingBenchmark
+{
+    private static final String USER_GROUPS =
+        "SITE_ADMINISTRATORS:0.05, DATA_ANALYSTS:0.25, ALFRESCO_ADMINISTRATORS:0.01, EMAIL_CONTRIBUTORS:0.5, "
+            + "ALFRESCO_SEARCH_ADMINISTRATORS:0.02, SALES:0.3, MARKETING:0.3, ENGINEERING:0.4, SUPPORT:0.2, FINANCE:0.1";
+
+    private GroupSampler groupSampler;
+    private Map<String, Double> legacyGroupsMap;
+
+    @Setup
+    public void setUp()
+    {
+        groupSampler = new GroupSampler(USER_GROUPS);
+        legacyGroupsMap = new HashMap<>(groupSampler.toMap());
+    }
+
+    @Benchmark
+    public GroupSampler parseGroups()
+    {
+        return new GroupSampler(USER_GROUPS);
+    }
+
+    @Benchmark
+    public Map<String, Double> initializeUserGroupsMap()
+    {
+        CreateUsersWithRestV1API createUser = new CreateUsersWithRestV1API();
+        createUser.setUserGroups(USER_GROUPS);
+        createUser.initializeUserGroupsMap();
+        return createUser.getUserGroupsMap();
+    }
+
+    @Benchmark
+    public List<String> randomGroups()
+    {
+        return groupSampler.randomGroups();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public List<String> randomGroupsContended()
+    {
+        return groupSampler.randomGroups();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public List<String> deterministicGroupsContended()
+    {
+        return groupSampler.groupsOf(42L, "user-" + ThreadLocalRandom.current().nextInt(100000));
+    }
+
+    @Benchmark
+    public List<String> legacyRandomGroups()
+    {
+        return legacyRandomGroups(legacyGroupsMap);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public List<String> legacyRandomGroupsContended()
+    {
+        return legacyRandomGroups(legacyGroupsMap);
+    }
+
+    private static List<String> legacyRandomGroups(Map<String, Double> userGroupsMap)
+    {
+        List<String> groups = new ArrayList<String>(5);
+        for (Map.Entry<String, Double> groupChance : userGroupsMap.entrySet())
+        {
+            if (Math.random() < groupChance.getValue())
+            {
+                groups.add(groupChance.getKey());
+            }
+        }
+        return groups;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.json.JSONUtil;
+import org.alfresco.rest.model.RestPersonModel;
+import org.apache.http.entity.StringEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building of the request bodies sent for each user: the legacy <tt>people</tt> web script body,
+ * the V1 person model and its JSON, the V1 person JSON written straight from the user data, and
+ * the group membership body.  Run with <tt>-prof gc</tt> to compare allocation rates.
+ *
+ * @since 3.0.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBodyBenchmark
+{
+    private UserData user;
+    private List<String> groups;
+    private CreateUsersWithRestV1API createUser;
+    private RestPersonModel personModel;
+
+    @Setup
+    public void setUp()
+    {
+        user = new UserData();
+        user.setUsername("firstname.lastname@00001.example.com");
+        user.setPassword("firstname.lastname@00001.example.com");
+        user.setFirstName("Firstname");
+        user.setLastName("Lastname");
+        user.setEmail("firstname.lastname@00001.example.com");
+        user.setDomain("00001.example.com");
+        groups = Arrays.asList("SITE_ADMINISTRATORS", "DATA_ANALYSTS");
+        createUser = new CreateUsersWithRestV1API();
+        personModel = createUser.newPersonModel(user);
+    }
+
+    @Benchmark
+    public StringEntity legacyPersonBody() throws Exception
+    {
+        return JSONUtil.setMessageBody(CreateUser.newPersonJson(user.getUsername(), user, groups));
+    }
+
+    @Benchmark
+    public RestPersonModel personModel()
+    {
+        return createUser.newPersonModel(user);
+    }
+
+    @Benchmark
+    public String personBody() throws Exception
+    {
+        return PeopleJson.person(personModel);
+    }
+
+    @Benchmark
+    public String randomPersonBody() throws Exception
+    {
+        return PeopleJson.person(createUser.newPersonModel(user));
+    }
+
+    @Benchmark
+    public byte[] directPersonBody()
+    {
+        return PersonJsonWriter.person(user);
+    }
+
+    @Benchmark
+    public String groupMemberBody()
+    {
+        return PeopleJson.groupMember(user.getUsername());
+    }
+}
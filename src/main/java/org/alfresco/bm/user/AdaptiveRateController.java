@@ -0,0 +1,504 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Additive-increase/multiplicative-decrease controller for the user creation rate.
+ * <p/>
+ * The creation processors {@link #recordSince(long, boolean) record} the latency and outcome of every
+ * person creation, without taking a lock.  Each time the scheduler {@link #adjust() adjusts} the rate, the samples recorded
+ * since the previous adjustment are examined: if the 95th percentile latency and the error rate are
+ * both within their targets, the rate is raised by a fixed amount; otherwise it is multiplied by a
+ * factor below 1.  The rate is held when there are too few samples to judge.
+ * <p/>
+ * Given a collection, the controller works across drivers, as the scheduler may run on any of them:
+ * <ul>
+ *   <li>each driver adds its samples to a document shared by all drivers for the current decision,
+ *       every {@link #setPublishInterval(long) publishInterval} milliseconds and before adjusting</li>
+ *   <li>the rate and the number of the current decision are kept in a single document, so that
+ *       whichever driver adjusts the rate starts from the last decision</li>
+ * </ul>
+ * A decision is then based on the samples of all drivers, as of their last publication.  Without a
+ * collection, only the samples of the local driver are used.
+ *
+ * @since 3.0.1
+ */
+public class AdaptiveRateController implements InitializingBean, DisposableBean
+{
+    public static final double DEFAULT_INITIAL_RATE = 20.0;
+    public static final double DEFAULT_MIN_RATE = 1.0;
+    public static final double DEFAULT_MAX_RATE = 1000.0;
+    public static final double DEFAULT_RATE_INCREASE = 5.0;
+    public static final double DEFAULT_RATE_DECREASE_FACTOR = 0.5;
+    public static final long DEFAULT_TARGET_P95_LATENCY = 2000L;
+    public static final double DEFAULT_TARGET_ERROR_RATE = 0.01;
+    public static final int DEFAULT_MIN_SAMPLES = 20;
+    public static final long DEFAULT_DECISION_INTERVAL = 5000L;
+    public static final long DEFAULT_PUBLISH_INTERVAL = 1000L;
+
+    public static final String DECISION_INCREASE = "increase";
+    public static final String DECISION_DECREASE = "decrease";
+    public static final String DECISION_HOLD = "hold";
+
+    private static final String STATE_ID = "state";
+    private static final String SAMPLES_ID_PREFIX = "samples-";
+    private static final String FIELD_RATE = "rate";
+    private static final String FIELD_EPOCH = "epoch";
+    private static final String FIELD_CALLS = "calls";
+    private static final String FIELD_ERRORS = "errors";
+    private static final String FIELD_BUCKETS = "buckets";
+
+    private static Log logger = LogFactory.getLog(AdaptiveRateController.class);
+
+    private final DBCollection collection;
+    private boolean adaptive = false;
+    private double initialRate = DEFAULT_INITIAL_RATE;
+    private double minRate = DEFAULT_MIN_RATE;
+    private double maxRate = DEFAULT_MAX_RATE;
+    private double rateIncrease = DEFAULT_RATE_INCREASE;
+    private double rateDecreaseFactor = DEFAULT_RATE_DECREASE_FACTOR;
+    private long targetP95Latency = DEFAULT_TARGET_P95_LATENCY;
+    private double targetErrorRate = DEFAULT_TARGET_ERROR_RATE;
+    private int minSamples = DEFAULT_MIN_SAMPLES;
+    private long decisionInterval = DEFAULT_DECISION_INTERVAL;
+    private long publishInterval = DEFAULT_PUBLISH_INTERVAL;
+    private ScheduledExecutorService publishScheduler;
+
+    /** Guarded by this */
+    private double rate = DEFAULT_INITIAL_RATE;
+    private long epoch;
+    /**
+     * Latencies (microseconds) recorded since the last decision, or the last publication when shared.
+     * Only replaced while holding this; a sample recorded as it is replaced may be left out.
+     */
+    private volatile LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicLong sampleCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+
+    /**
+     * Controller using the samples of the local driver only
+     */
+    public AdaptiveRateController()
+    {
+        this.collection = null;
+    }
+
+    /**
+     * @param db         the database holding the samples and the rate
+     * @param collection the name of the collection shared by the drivers
+     */
+    public AdaptiveRateController(DB db, String collection)
+    {
+        this.collection = db.getCollection(collection);
+    }
+
+    /**
+     * @param adaptive <tt>true</tt> to let this controller set the creation rate
+     */
+    public void setAdaptive(boolean adaptive)
+    {
+        this.adaptive = adaptive;
+    }
+
+    public boolean isAdaptive()
+    {
+        return adaptive;
+    }
+
+    /**
+     * @param initialRate the creation rate (users per second) to start with
+     */
+    public synchronized void setInitialRate(double initialRate)
+    {
+        this.initialRate = initialRate;
+        this.rate = initialRate;
+    }
+
+    /**
+     * @param minRate the lowest creation rate (users per second)
+     */
+    public void setMinRate(double minRate)
+    {
+        this.minRate = minRate;
+    }
+
+    /**
+     * @param maxRate the highest creation rate (users per second)
+     */
+    public void setMaxRate(double maxRate)
+    {
+        this.maxRate = maxRate;
+    }
+
+    /**
+     * @param rateIncrease the users per second added when the targets are met
+     */
+    public void setRateIncrease(double rateIncrease)
+    {
+        this.rateIncrease = rateIncrease;
+    }
+
+    /**
+     * @param rateDecreaseFactor the factor (between 0 and 1) applied to the rate when a target is missed
+     */
+    public void setRateDecreaseFactor(double rateDecreaseFactor)
+    {
+        if (rateDecreaseFactor <= 0.0 || rateDecreaseFactor >= 1.0)
+        {
+            throw new IllegalArgumentException("'rateDecreaseFactor' must be between 0 and 1.");
+        }
+        this.rateDecreaseFactor = rateDecreaseFactor;
+    }
+
+    /**
+     * @param targetP95Latency the highest acceptable 95th percentile latency (milliseconds), compared
+     *                         with the latencies recorded in microseconds
+     */
+    public void setTargetP95Latency(long targetP95Latency)
+    {
+        this.targetP95Latency = targetP95Latency;
+    }
+
+    /**
+     * @param targetErrorRate the highest acceptable ratio of failed calls (0 to 1)
+     */
+    public void setTargetErrorRate(double targetErrorRate)
+    {
+        this.targetErrorRate = targetErrorRate;
+    }
+
+    /**
+     * @param minSamples the number of samples required to change the rate
+     */
+    public void setMinSamples(int minSamples)
+    {
+        this.minSamples = minSamples;
+    }
+
+    /**
+     * @param decisionInterval the time between two rate decisions (milliseconds)
+     */
+    public void setDecisionInterval(long decisionInterval)
+    {
+        this.decisionInterval = decisionInterval;
+    }
+
+    public long getDecisionInterval()
+    {
+        return decisionInterval;
+    }
+
+    /**
+     * @param publishInterval the maximum time (milliseconds) a sample is only known to this driver
+     */
+    public void setPublishInterval(long publishInterval)
+    {
+        this.publishInterval = publishInterval;
+    }
+
+    @Override
+    public void afterPropertiesSet()
+    {
+        if (collection == null || !adaptive)
+        {
+            return;
+        }
+        publishScheduler = Executors.newSingleThreadScheduledExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "AdaptiveRateController");
+            thread.setDaemon(true);
+            return thread;
+        });
+        publishScheduler.scheduleWithFixedDelay(this::publishQuietly, publishInterval, publishInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy()
+    {
+        if (publishScheduler != null)
+        {
+            publishScheduler.shutdownNow();
+            publishQuietly();
+        }
+    }
+
+    /**
+     * Start a new run at the initial rate, forgetting the samples and decisions of earlier runs
+     */
+    public void reset()
+    {
+        synchronized (this)
+        {
+            rate = initialRate;
+            epoch = 0L;
+            latencies = new LatencyHistogram();
+            sampleCount.set(0L);
+            errorCount.set(0L);
+        }
+        if (collection != null)
+        {
+            collection.remove(new BasicDBObject());
+            collection.insert(new BasicDBObject("_id", STATE_ID).append(FIELD_RATE, initialRate).append(FIELD_EPOCH, 0L));
+        }
+    }
+
+    /**
+     * Record the outcome of a person creation
+     *
+     * @param micros the time taken by the call (microseconds)
+     * @param error  <tt>true</tt> if the call failed for reasons attributable to the server
+     */
+    public void record(long micros, boolean error)
+    {
+        latencies.record(micros);
+        sampleCount.incrementAndGet();
+        if (error)
+        {
+            errorCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record the outcome of a person creation that has just completed
+     *
+     * @param startNanos the {@link System#nanoTime()} at which the call was made
+     * @param error      <tt>true</tt> if the call failed for reasons attributable to the server
+     */
+    public void recordSince(long startNanos, boolean error)
+    {
+        record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos), error);
+    }
+
+    /**
+     * @return the current creation rate (users per second)
+     */
+    public synchronized double getRate()
+    {
+        return rate;
+    }
+
+    /**
+     * @return the time between two user creations at the current rate (milliseconds)
+     */
+    public double getCreationDelay()
+    {
+        return 1000.0 / getRate();
+    }
+
+    /**
+     * Decide on a new rate based on the samples recorded since the last decision and start a new
+     * set of samples.
+     *
+     * @return the decision, suitable for an event result
+     */
+    public DBObject adjust()
+    {
+        if (collection == null)
+        {
+            synchronized (this)
+            {
+                DBObject decisionObj = decide(latencies, sampleCount.get(), errorCount.get());
+                if (!DECISION_HOLD.equals(decisionObj.get("decision")))
+                {
+                    latencies = new LatencyHistogram();
+                    sampleCount.set(0L);
+                    errorCount.set(0L);
+                }
+                return decisionObj;
+            }
+        }
+
+        // Start from the last decision, whichever driver made it, with every driver's samples
+        publish();
+        long currentEpoch;
+        synchronized (this)
+        {
+            currentEpoch = epoch;
+        }
+        DBObject samplesObj = collection.findOne(new BasicDBObject("_id", SAMPLES_ID_PREFIX + currentEpoch));
+        LatencyHistogram merged = new LatencyHistogram();
+        long calls = 0L;
+        long errors = 0L;
+        if (samplesObj != null)
+        {
+            calls = getLong(samplesObj, FIELD_CALLS);
+            errors = getLong(samplesObj, FIELD_ERRORS);
+            DBObject bucketsObj = (DBObject) samplesObj.get(FIELD_BUCKETS);
+            if (bucketsObj != null)
+            {
+                long[] counts = new long[LatencyHistogram.BUCKET_COUNT];
+                for (String index : bucketsObj.keySet())
+                {
+                    counts[Integer.parseInt(index)] = getLong(bucketsObj, index);
+                }
+                merged.add(counts);
+            }
+        }
+        DBObject decisionObj;
+        synchronized (this)
+        {
+            decisionObj = decide(merged, calls, errors);
+        }
+        decisionObj.put("epoch", currentEpoch);
+        if (!DECISION_HOLD.equals(decisionObj.get("decision")))
+        {
+            // Later samples go to the next decision
+            DBObject queryObj = new BasicDBObject("_id", STATE_ID).append(FIELD_EPOCH, currentEpoch);
+            DBObject updateObj = new BasicDBObject("$set", new BasicDBObject(FIELD_RATE, decisionObj.get("rate")))
+                .append("$inc", new BasicDBObject(FIELD_EPOCH, 1L));
+            collection.update(queryObj, updateObj, false, false);
+            synchronized (this)
+            {
+                epoch = currentEpoch + 1L;
+            }
+        }
+        return decisionObj;
+    }
+
+    /**
+     * Apply the rules to a set of samples and set the new rate.  Guarded by this.
+     */
+    private DBObject decide(LatencyHistogram samples, long calls, long errors)
+    {
+        double errorRate = calls == 0L ? 0.0 : (double) errors / calls;
+        long p95Micros = samples.getValueAtPercentile(95.0);
+
+        double previousRate = rate;
+        String decision;
+        if (calls < minSamples)
+        {
+            decision = DECISION_HOLD;
+        }
+        else if (p95Micros <= TimeUnit.MILLISECONDS.toMicros(targetP95Latency) && errorRate <= targetErrorRate)
+        {
+            decision = DECISION_INCREASE;
+            rate = Math.min(maxRate, rate + rateIncrease);
+        }
+        else
+        {
+            decision = DECISION_DECREASE;
+            rate = Math.max(minRate, rate * rateDecreaseFactor);
+        }
+
+        return new BasicDBObject()
+            .append("decision", decision)
+            .append("previousRate", previousRate)
+            .append("rate", rate)
+            .append("samples", calls)
+            .append("p95LatencyMs", p95Micros / 1000.0)
+            .append("errorRate", errorRate);
+    }
+
+    /**
+     * Add the samples recorded since the last publication to the current decision's shared samples
+     * and take on the rate of the last decision
+     */
+    public void publish()
+    {
+        if (collection == null)
+        {
+            return;
+        }
+        DBObject stateObj = collection.findOne(new BasicDBObject("_id", STATE_ID));
+        LatencyHistogram toPublish;
+        long calls;
+        long errors;
+        long currentEpoch;
+        synchronized (this)
+        {
+            if (stateObj != null)
+            {
+                rate = ((Number) stateObj.get(FIELD_RATE)).doubleValue();
+                epoch = getLong(stateObj, FIELD_EPOCH);
+            }
+            currentEpoch = epoch;
+            toPublish = latencies;
+            latencies = new LatencyHistogram();
+            calls = sampleCount.getAndSet(0L);
+            errors = errorCount.getAndSet(0L);
+        }
+        if (calls == 0L)
+        {
+            return;
+        }
+        DBObject incObj = new BasicDBObject(FIELD_CALLS, calls).append(FIELD_ERRORS, errors);
+        long[] counts = toPublish.getCounts();
+        for (int i = 0; i < counts.length; i++)
+        {
+            if (counts[i] != 0L)
+            {
+                incObj.put(FIELD_BUCKETS + "." + i, counts[i]);
+            }
+        }
+        try
+        {
+            collection.update(new BasicDBObject("_id", SAMPLES_ID_PREFIX + currentEpoch), new BasicDBObject("$inc", incObj), true, false);
+        }
+        catch (RuntimeException e)
+        {
+            // Keep the samples for the next attempt
+            synchronized (this)
+            {
+                latencies.add(counts);
+                sampleCount.addAndGet(calls);
+                errorCount.addAndGet(errors);
+            }
+            throw e;
+        }
+    }
+
+    private void publishQuietly()
+    {
+        try
+        {
+            publish();
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Failed to publish creation rate samples: " + e.getMessage(), e);
+        }
+    }
+
+    private static long getLong(DBObject doc, String field)
+    {
+        Object value = doc.get(field);
+        return value == null ? 0L : ((Number) value).longValue();
+    }
+}
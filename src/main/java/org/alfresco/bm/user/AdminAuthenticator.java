@@ -0,0 +1,349 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.http.HttpStatus;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Supplies the credentials used by the REST clients to call Alfresco as the administrator.
+ * <p/>
+ * Rather than sending the administrator's password with every call, which makes Alfresco
+ * authenticate the administrator again each time, a ticket is obtained once per driver and shared
+ * by all threads.  The ticket is replaced when Alfresco rejects it, or proactively once it is
+ * {@link #setMaxTicketAge(long) old enough}.  If no ticket can be obtained, HTTP basic
+ * authentication is used until the next {@link #setTicketRetryInterval(long) attempt}.
+ * <p/>
+ * Switching tickets {@link #setUseTicket(boolean) off} restores basic authentication for every call,
+ * so that the authentication overhead can be compared between runs.
+ *
+ * @since 3.0.1
+ */
+public class AdminAuthenticator implements DisposableBean
+{
+    public static final String TICKETS_PATH = "alfresco/api/-default-/public/authentication/versions/1/tickets";
+
+    public static final long DEFAULT_MAX_TICKET_AGE = TimeUnit.MINUTES.toMillis(30);
+    public static final long DEFAULT_TICKET_RETRY_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private static Log logger = LogFactory.getLog(AdminAuthenticator.class);
+
+    private final String baseUrl;
+    private final String adminUsername;
+    private final String adminPassword;
+    private final String basicAuthorization;
+    private boolean useTicket = true;
+    private long maxTicketAge = DEFAULT_MAX_TICKET_AGE;
+    private long ticketRetryInterval = DEFAULT_TICKET_RETRY_INTERVAL;
+    private HttpConnectionPools connectionPools = new HttpConnectionPools();
+
+    private CloseableHttpClient httpClient;
+    private final Object ticketLock = new Object();
+    private volatile Credentials credentials;
+
+    private final AtomicLong ticketsIssued = new AtomicLong();
+    private final AtomicLong ticketFailures = new AtomicLong();
+    private final AtomicLong ticketTimeNanos = new AtomicLong();
+    private final AtomicLong ticketRequests = new AtomicLong();
+    private final AtomicLong basicRequests = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * The credentials currently handed out, with the time at which they should be replaced
+     */
+    private static final class Credentials
+    {
+        private final String ticket;
+        private final String authorization;
+        private final long expiresAt;
+
+        private Credentials(String ticket, String authorization, long expiresAt)
+        {
+            this.ticket = ticket;
+            this.authorization = authorization;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * @param baseUrl       the Alfresco URL e.g. <tt>http://localhost:8080/</tt>
+     * @param adminUsername the Alfresco administrator
+     * @param adminPassword the Alfresco administrator's password
+     */
+    public AdminAuthenticator(String baseUrl, String adminUsername, String adminPassword)
+    {
+        this.baseUrl = PeopleRestClient.normalizeBaseUrl(baseUrl);
+        this.adminUsername = adminUsername;
+        this.adminPassword = adminPassword;
+        this.basicAuthorization = PeopleRestClient.basicAuthorization(adminUsername, adminPassword);
+    }
+
+    /**
+     * @param useTicket <tt>false</tt> to send the administrator's password with every call
+     */
+    public void setUseTicket(boolean useTicket)
+    {
+        this.useTicket = useTicket;
+    }
+
+    public boolean isUseTicket()
+    {
+        return useTicket;
+    }
+
+    /**
+     * @param maxTicketAge the milliseconds after which a ticket is replaced even if it is still accepted
+     */
+    public void setMaxTicketAge(long maxTicketAge)
+    {
+        this.maxTicketAge = maxTicketAge;
+    }
+
+    /**
+     * @param ticketRetryInterval the milliseconds to wait before trying to get a ticket again after a failure
+     */
+    public void setTicketRetryInterval(long ticketRetryInterval)
+    {
+        this.ticketRetryInterval = ticketRetryInterval;
+    }
+
+    /**
+     * @param connectionPools optional timeouts of the ticket requests, shared with the REST clients;
+     *                        a ticket is requested while the other threads wait for it
+     */
+    public void setConnectionPools(HttpConnectionPools connectionPools)
+    {
+        this.connectionPools = connectionPools;
+    }
+
+    /**
+     * @return the value of the <tt>Authorization</tt> header for the next call
+     */
+    public String getAuthorization()
+    {
+        if (!useTicket)
+        {
+            basicRequests.incrementAndGet();
+            return basicAuthorization;
+        }
+        Credentials current = getCredentials();
+        if (current.ticket == null)
+        {
+            basicRequests.incrementAndGet();
+        }
+        else
+        {
+            ticketRequests.incrementAndGet();
+        }
+        return current.authorization;
+    }
+
+    /**
+     * @return the <tt>Authorization</tt> header sending the administrator's password
+     */
+    String getBasicAuthorization()
+    {
+        return basicAuthorization;
+    }
+
+    /**
+     * @return the ticket to pass as the <tt>alf_ticket</tt> parameter of Web Script calls, or
+     *         <tt>null</tt> if there is none and the call must be authenticated some other way
+     */
+    public String getTicket()
+    {
+        if (!useTicket)
+        {
+            basicRequests.incrementAndGet();
+            return null;
+        }
+        Credentials current = getCredentials();
+        if (current.ticket == null)
+        {
+            basicRequests.incrementAndGet();
+        }
+        else
+        {
+            ticketRequests.incrementAndGet();
+        }
+        return current.ticket;
+    }
+
+    /**
+     * Tell the authenticator that Alfresco rejected a call made with the given credentials.
+     * Only the first thread to report the rejection causes a new ticket to be requested.
+     *
+     * @param authorization the <tt>Authorization</tt> header or ticket that was rejected
+     * @return <tt>true</tt> if the call should be made again with fresh credentials
+     */
+    public boolean rejected(String authorization)
+    {
+        if (!useTicket || authorization == null || authorization.equals(basicAuthorization))
+        {
+            // Trying again with the same password will not help
+            return false;
+        }
+        synchronized (ticketLock)
+        {
+            Credentials current = credentials;
+            if (current != null && (authorization.equals(current.authorization) || authorization.equals(current.ticket)))
+            {
+                rejections.incrementAndGet();
+                credentials = null;
+            }
+            // Otherwise another thread has already replaced the ticket
+            return true;
+        }
+    }
+
+    private Credentials getCredentials()
+    {
+        Credentials current = credentials;
+        if (current != null && System.currentTimeMillis() < current.expiresAt)
+        {
+            return current;
+        }
+        synchronized (ticketLock)
+        {
+            current = credentials;
+            if (current == null || System.currentTimeMillis() >= current.expiresAt)
+            {
+                current = newCredentials();
+                credentials = current;
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Ask Alfresco for a new ticket, falling back to basic authentication for a while if that fails
+     */
+    private Credentials newCredentials()
+    {
+        long start = System.nanoTime();
+        try
+        {
+            String ticket = requestTicket();
+            ticketsIssued.incrementAndGet();
+            String authorization = "Basic " + Base64.getEncoder().encodeToString(ticket.getBytes(StandardCharsets.UTF_8));
+            return new Credentials(ticket, authorization, System.currentTimeMillis() + maxTicketAge);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            ticketFailures.incrementAndGet();
+            logger.warn("Failed to get a ticket for: " + adminUsername + "; using basic authentication. message: " + e.getMessage());
+            return new Credentials(null, basicAuthorization, System.currentTimeMillis() + ticketRetryInterval);
+        }
+        finally
+        {
+            ticketTimeNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private String requestTicket() throws IOException
+    {
+        if (httpClient == null)
+        {
+            httpClient = HttpClients.custom()
+                .setConnectionManager(connectionPools.newConnectionManager("adminAuthenticator", 1))
+                .setDefaultRequestConfig(connectionPools.getRequestConfig())
+                .setKeepAliveStrategy(connectionPools.getKeepAliveStrategy())
+                .build();
+        }
+        String body = Json.createObjectBuilder().add("userId", adminUsername).add("password", adminPassword).build().toString();
+        HttpPost post = new HttpPost(baseUrl + TICKETS_PATH);
+        post.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+        try (CloseableHttpResponse response = httpClient.execute(post))
+        {
+            int code = response.getStatusLine().getStatusCode();
+            String responseBody = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+            if (code != HttpStatus.CREATED.value())
+            {
+                throw new IOException("Ticket request returned status " + code);
+            }
+            try (JsonReader reader = Json.createReader(new StringReader(responseBody)))
+            {
+                JsonObject entry = reader.readObject().getJsonObject("entry");
+                if (entry == null || !entry.containsKey("id"))
+                {
+                    throw new IOException("Ticket response has no ticket: " + responseBody);
+                }
+                return entry.getString("id");
+            }
+        }
+    }
+
+    /**
+     * @return the number of tickets issued, the time spent getting them and the number of calls
+     *         made with each kind of credentials, suitable for an event result
+     */
+    public DBObject getMetrics()
+    {
+        long issued = ticketsIssued.get();
+        long attempts = issued + ticketFailures.get();
+        return new BasicDBObject()
+            .append("useTicket", useTicket)
+            .append("ticketsIssued", issued)
+            .append("ticketFailures", ticketFailures.get())
+            .append("ticketTimeAvgMs", attempts == 0L ? 0.0 : TimeUnit.NANOSECONDS.toMicros(ticketTimeNanos.get()) / 1000.0 / attempts)
+            .append("ticketRequests", ticketRequests.get())
+            .append("basicRequests", basicRequests.get())
+            .append("rejections", rejections.get());
+    }
+
+    @Override
+    public void destroy() throws Exception
+    {
+        synchronized (ticketLock)
+        {
+            if (httpClient != null)
+            {
+                httpClient.close();
+            }
+        }
+    }
+}
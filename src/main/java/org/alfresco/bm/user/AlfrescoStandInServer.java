@@ -0,0 +1,552 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A local stand-in for the parts of Alfresco used when provisioning users, so that the driver's own
+ * throughput can be measured without an Alfresco server.
+ * <p/>
+ * The following calls are answered:
+ * <ul>
+ *     <li>V1 <tt>POST people</tt>: 201, or 409 if the person was already created</li>
+ *     <li>V1 <tt>GET people</tt>: the IDs of the people created, in creation order, paged with <tt>skipCount</tt> and <tt>maxItems</tt></li>
+ *     <li>Legacy <tt>POST /alfresco/service/api/people</tt>: 200, or 409 if the person was already created;
+ *         each inline group takes the time of a membership call on top of the person creation</li>
+ *     <li>V1 <tt>GET groups/{id}</tt> and <tt>POST groups</tt>: every group exists unless {@link #setMissingGroups(Set) listed as missing}</li>
+ *     <li>V1 <tt>POST groups/{id}/members</tt>: 201, or 404 if the person or the group does not exist</li>
+ *     <li>V1 <tt>POST tickets</tt>: 201 with a new ticket</li>
+ * </ul>
+ * Credentials are not checked.  Person creation and membership calls wait for a delay drawn from
+ * their {@link LatencyDistribution latency distribution}, and a share of them can be answered with a
+ * conflict or a server error.  When the {@link #setMaxConcurrentRequests(int) capacity} is reached,
+ * further calls are answered straight away with 503, as an overloaded server would.
+ * <p/>
+ * Configure the server before {@link #start() starting} it.
+ *
+ * @since 3.0.1
+ */
+public class AlfrescoStandInServer
+{
+    private static final String V1_PREFIX = "/" + PeopleRestClient.V1_API_PATH + "/";
+    private static final String TICKETS = "/" + AdminAuthenticator.TICKETS_PATH;
+    private static final String LEGACY_PEOPLE = "/alfresco/service/api/people";
+    private static final String THREAD_NAME_PREFIX = "AlfrescoStandInServer-";
+    /** The name of the thread accepting connections for the JDK's HTTP server */
+    private static final String DISPATCHER_THREAD_NAME = "HTTP-Dispatcher";
+
+    private static Log logger = LogFactory.getLog(AlfrescoStandInServer.class);
+
+    private int port = 0;
+    private int threads = 200;
+    private int maxConcurrentRequests = 0;
+    private LatencyDistribution personLatency = LatencyDistribution.NONE;
+    private LatencyDistribution membershipLatency = LatencyDistribution.NONE;
+    private double conflictRatio = 0.0;
+    private double errorRatio = 0.0;
+    private Set<String> missingGroups = ConcurrentHashMap.newKeySet();
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private Semaphore capacity;
+
+    private final Set<String> people = ConcurrentHashMap.newKeySet();
+    /** The people in creation order, for paging; guarded by itself */
+    private final List<String> peopleOrder = new ArrayList<>();
+    private final Map<Integer, LongAdder> statusCounts = new ConcurrentHashMap<>();
+    private final LongAdder requests = new LongAdder();
+    private final AtomicInteger concurrentRequests = new AtomicInteger();
+    private final AtomicInteger concurrentRequestsMax = new AtomicInteger();
+
+    /**
+     * @param port the port to listen on, or <tt>0</tt> (the default) for any free port
+     */
+    public void setPort(int port)
+    {
+        this.port = port;
+    }
+
+    /**
+     * @param threads the number of threads answering calls
+     */
+    public void setThreads(int threads)
+    {
+        this.threads = threads;
+    }
+
+    /**
+     * @param maxConcurrentRequests the number of calls handled at the same time before calls are
+     *                              rejected with 503, or <tt>0</tt> (the default) for no limit
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests)
+    {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    /**
+     * @param personLatency the distribution of person creation times e.g. <tt>lognormal:20,0.5</tt>
+     */
+    public void setPersonLatency(String personLatency)
+    {
+        this.personLatency = LatencyDistribution.parse(personLatency);
+    }
+
+    /**
+     * @param membershipLatency the distribution of group membership creation times
+     */
+    public void setMembershipLatency(String membershipLatency)
+    {
+        this.membershipLatency = LatencyDistribution.parse(membershipLatency);
+    }
+
+    /**
+     * @param conflictRatio the share of new people reported as already existing (409)
+     */
+    public void setConflictRatio(double conflictRatio)
+    {
+        this.conflictRatio = conflictRatio;
+    }
+
+    /**
+     * @param errorRatio the share of person creation and membership calls that fail with 500
+     */
+    public void setErrorRatio(double errorRatio)
+    {
+        this.errorRatio = errorRatio;
+    }
+
+    /**
+     * @param missingGroups the groups, without the <b>GROUP_</b> prefix, that do not exist until created
+     */
+    public void setMissingGroups(Set<String> missingGroups)
+    {
+        this.missingGroups = ConcurrentHashMap.newKeySet();
+        this.missingGroups.addAll(missingGroups);
+    }
+
+    /**
+     * Start answering calls
+     */
+    public synchronized void start() throws IOException
+    {
+        if (server != null)
+        {
+            throw new IllegalStateException("The stand-in server is already started.");
+        }
+        capacity = maxConcurrentRequests > 0 ? new Semaphore(maxConcurrentRequests) : null;
+        AtomicInteger threadNumber = new AtomicInteger(1);
+        executor = Executors.newFixedThreadPool(threads, runnable ->
+        {
+            Thread thread = new Thread(runnable, THREAD_NAME_PREFIX + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 1024);
+        server.createContext("/alfresco/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+        logger.info("Alfresco stand-in server listening on " + getBaseUrl());
+    }
+
+    /**
+     * Stop answering calls, dropping the calls in progress
+     */
+    public synchronized void stop()
+    {
+        if (server != null)
+        {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    /**
+     * @return <tt>true</tt> if the thread with this name answers calls for a stand-in server
+     */
+    public static boolean isStandInThread(String threadName)
+    {
+        return threadName.startsWith(THREAD_NAME_PREFIX) || threadName.equals(DISPATCHER_THREAD_NAME);
+    }
+
+    /**
+     * @return the URL to use as <tt>alfresco.url</tt>
+     */
+    public String getBaseUrl()
+    {
+        return "http://localhost:" + getPort() + "/";
+    }
+
+    public int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return the number of people created so far
+     */
+    public int getPeopleCount()
+    {
+        return people.size();
+    }
+
+    /**
+     * @return the number of calls answered so far
+     */
+    public long getRequestCount()
+    {
+        return requests.sum();
+    }
+
+    /**
+     * @return the number of calls answered with the given status
+     */
+    public long getStatusCount(int status)
+    {
+        LongAdder count = statusCounts.get(status);
+        return count == null ? 0L : count.sum();
+    }
+
+    /**
+     * @return the calls answered by status, the people created and the peak concurrency, suitable for an event result
+     */
+    public DBObject getMetrics()
+    {
+        BasicDBObject statuses = new BasicDBObject();
+        for (Map.Entry<Integer, LongAdder> statusCount : statusCounts.entrySet())
+        {
+            statuses.append(String.valueOf(statusCount.getKey()), statusCount.getValue().sum());
+        }
+        return new BasicDBObject()
+            .append("requests", requests.sum())
+            .append("statuses", statuses)
+            .append("people", people.size())
+            .append("concurrentRequestsMax", concurrentRequestsMax.get());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        requests.increment();
+        if (capacity != null && !capacity.tryAcquire())
+        {
+            respond(exchange, 503, null);
+            return;
+        }
+        int concurrent = concurrentRequests.incrementAndGet();
+        concurrentRequestsMax.accumulateAndGet(concurrent, Math::max);
+        try
+        {
+            route(exchange);
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Stand-in server failed to answer: " + exchange.getRequestURI(), e);
+            respond(exchange, 500, null);
+        }
+        finally
+        {
+            concurrentRequests.decrementAndGet();
+            if (capacity != null)
+            {
+                capacity.release();
+            }
+        }
+    }
+
+    private void route(HttpExchange exchange) throws IOException
+    {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        if (path.equals(LEGACY_PEOPLE) && method.equals("POST"))
+        {
+            JsonObject body = readObject(exchange);
+            JsonArray groups = body == null || !(body.get(CreateUser.PEOPLE_JSON_GROUPS) instanceof JsonArray)
+                ? null
+                : body.getJsonArray(CreateUser.PEOPLE_JSON_GROUPS);
+            for (int i = 0; groups != null && i < groups.size(); i++)
+            {
+                // The memberships are created by the same call
+                pause(membershipLatency);
+            }
+            createPerson(exchange, body == null ? null : readString(body, CreateUser.PEOPLE_JSON_USERNAME), 200);
+        }
+        else if (path.equals(TICKETS) && method.equals("POST"))
+        {
+            respond(exchange, 201, "{\"entry\":{\"id\":\"TICKET_" + UUID.randomUUID() + "\",\"userId\":\"" + readString(exchange, "userId") + "\"}}");
+        }
+        else if (path.startsWith(V1_PREFIX))
+        {
+            String[] segments = path.substring(V1_PREFIX.length()).split("/");
+            if (segments.length == 1 && segments[0].equals("people") && method.equals("POST"))
+            {
+                createPerson(exchange, readString(exchange, "id"), 201);
+            }
+            else if (segments.length == 1 && segments[0].equals("people") && method.equals("GET"))
+            {
+                listPeople(exchange);
+            }
+            else if (segments.length == 1 && segments[0].equals("groups") && method.equals("POST"))
+            {
+                String group = groupName(readString(exchange, "id"));
+                respond(exchange, missingGroups.remove(group) ? 201 : 409, null);
+            }
+            else if (segments.length == 2 && segments[0].equals("groups") && method.equals("GET"))
+            {
+                String group = groupName(URLDecoder.decode(segments[1], "UTF-8"));
+                respond(exchange, missingGroups.contains(group) ? 404 : 200, "{\"entry\":{\"id\":\"GROUP_" + group + "\"}}");
+            }
+            else if (segments.length == 3 && segments[0].equals("groups") && segments[2].equals("members") && method.equals("POST"))
+            {
+                String group = groupName(URLDecoder.decode(segments[1], "UTF-8"));
+                String username = readString(exchange, "id");
+                pause(membershipLatency);
+                if (injectError())
+                {
+                    respond(exchange, 500, null);
+                }
+                else
+                {
+                    respond(exchange, missingGroups.contains(group) || !people.contains(username) ? 404 : 201, null);
+                }
+            }
+            else
+            {
+                respond(exchange, 404, null);
+            }
+        }
+        else
+        {
+            respond(exchange, 404, null);
+        }
+    }
+
+    private void createPerson(HttpExchange exchange, String username, int createdStatus) throws IOException
+    {
+        pause(personLatency);
+        if (injectError())
+        {
+            respond(exchange, 500, null);
+        }
+        else if (username == null)
+        {
+            respond(exchange, 400, null);
+        }
+        else if (!addPerson(username) || ThreadLocalRandom.current().nextDouble() < conflictRatio)
+        {
+            respond(exchange, 409, null);
+        }
+        else
+        {
+            respond(exchange, createdStatus, "{\"entry\":{\"id\":\"" + username + "\"}}");
+        }
+    }
+
+    /**
+     * @return <tt>true</tt> if the person did not exist yet
+     */
+    private boolean addPerson(String username)
+    {
+        synchronized (peopleOrder)
+        {
+            if (!people.add(username))
+            {
+                return false;
+            }
+            peopleOrder.add(username);
+            return true;
+        }
+    }
+
+    private void listPeople(HttpExchange exchange) throws IOException
+    {
+        int skipCount = readQueryInt(exchange, "skipCount", 0);
+        int maxItems = readQueryInt(exchange, "maxItems", 100);
+        List<String> page;
+        boolean hasMoreItems;
+        synchronized (peopleOrder)
+        {
+            int from = Math.min(skipCount, peopleOrder.size());
+            int to = Math.min(from + maxItems, peopleOrder.size());
+            page = new ArrayList<>(peopleOrder.subList(from, to));
+            hasMoreItems = to < peopleOrder.size();
+        }
+        JsonArrayBuilder entries = Json.createArrayBuilder();
+        for (String username : page)
+        {
+            entries.add(Json.createObjectBuilder().add("entry", Json.createObjectBuilder().add("id", username)));
+        }
+        JsonObject pagination = Json.createObjectBuilder()
+            .add("count", page.size())
+            .add("hasMoreItems", hasMoreItems)
+            .add("skipCount", skipCount)
+            .add("maxItems", maxItems)
+            .build();
+        JsonObject body = Json.createObjectBuilder()
+            .add("list", Json.createObjectBuilder().add("pagination", pagination).add("entries", entries))
+            .build();
+        respond(exchange, 200, body.toString());
+    }
+
+    private boolean injectError()
+    {
+        return errorRatio > 0.0 && ThreadLocalRandom.current().nextDouble() < errorRatio;
+    }
+
+    private static String groupName(String groupId)
+    {
+        return groupId != null && groupId.startsWith("GROUP_") ? groupId.substring("GROUP_".length()) : groupId;
+    }
+
+    private static void pause(LatencyDistribution latency)
+    {
+        long millis = latency.nextMillis();
+        if (millis > 0L)
+        {
+            try
+            {
+                TimeUnit.MILLISECONDS.sleep(millis);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return an integer parameter of the query string, or the default value if it is missing
+     */
+    private static int readQueryInt(HttpExchange exchange, String name, int defaultValue)
+    {
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null)
+        {
+            for (String parameter : query.split("&"))
+            {
+                if (parameter.startsWith(name + "="))
+                {
+                    return Integer.parseInt(parameter.substring(name.length() + 1));
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * @return a string property of the JSON request body, or <tt>null</tt> if it is missing
+     */
+    private static String readString(HttpExchange exchange, String name)
+    {
+        JsonObject body = readObject(exchange);
+        return body == null ? null : readString(body, name);
+    }
+
+    private static String readString(JsonObject body, String name)
+    {
+        try
+        {
+            JsonString value = body.getJsonString(name);
+            return value == null ? null : value.getString();
+        }
+        catch (ClassCastException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @return the JSON request body, or <tt>null</tt> if it is not a JSON object
+     */
+    private static JsonObject readObject(HttpExchange exchange)
+    {
+        try (InputStream is = exchange.getRequestBody(); JsonReader reader = Json.createReader(is))
+        {
+            return reader.readObject();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            return null;
+        }
+    }
+
+    private void respond(HttpExchange exchange, int status, String body) throws IOException
+    {
+        statusCounts.computeIfAbsent(status, key -> new LongAdder()).increment();
+        try
+        {
+            if (body == null)
+            {
+                exchange.sendResponseHeaders(status, -1);
+            }
+            else
+            {
+                byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(status, bytes.length);
+                try (OutputStream os = exchange.getResponseBody())
+                {
+                    os.write(bytes);
+                }
+            }
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+}
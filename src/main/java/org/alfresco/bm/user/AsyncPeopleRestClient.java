@@ -0,0 +1,227 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import org.alfresco.rest.model.RestPersonModel;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking counterpart of the {@link PeopleRestClient}.
+ * <p/>
+ * Requests are multiplexed over a handful of I/O threads and each call completes through a
+ * callback that receives the HTTP status of that call, so no thread waits for Alfresco.
+ * Callbacks run on the I/O threads and must hand any blocking work over to another thread.
+ *
+ * @since 3.0.1
+ */
+public class AsyncPeopleRestClient implements Closeable
+{
+    private final String baseUrl;
+    private final AdminAuthenticator adminAuthenticator;
+    private final CloseableHttpAsyncClient httpClient;
+
+    /**
+     * Create a client that sends the administrator's password with every call
+     *
+     * @param baseUrl        the Alfresco URL e.g. <tt>http://localhost:8080/</tt>
+     * @param adminUsername  the Alfresco administrator
+     * @param adminPassword  the Alfresco administrator's password
+     * @param ioThreads      the number of I/O threads
+     * @param maxConnections the maximum number of connections to Alfresco
+     */
+    public AsyncPeopleRestClient(String baseUrl, String adminUsername, String adminPassword, int ioThreads, int maxConnections)
+    {
+        this(baseUrl, PeopleRestClient.basicAuthenticator(baseUrl, adminUsername, adminPassword), ioThreads, maxConnections);
+    }
+
+    /**
+     * @param baseUrl            the Alfresco URL e.g. <tt>http://localhost:8080/</tt>
+     * @param adminAuthenticator supplies the administrator's credentials, shared with other clients
+     * @param ioThreads          the number of I/O threads
+     * @param maxConnections     the maximum number of connections to Alfresco
+     */
+    public AsyncPeopleRestClient(String baseUrl, AdminAuthenticator adminAuthenticator, int ioThreads, int maxConnections)
+    {
+        this(baseUrl, adminAuthenticator, ioThreads, autoSized(), "peopleAsync", maxConnections);
+    }
+
+    /**
+     * @param baseUrl            the Alfresco URL e.g. <tt>http://localhost:8080/</tt>
+     * @param adminAuthenticator supplies the administrator's credentials, shared with other clients
+     * @param ioThreads          the number of I/O threads
+     * @param connectionPools    sizes the connection pool and sets the timeouts of this client
+     * @param poolName           the name under which the connection pool is reported
+     * @param concurrency        the maximum number of calls in flight
+     */
+    public AsyncPeopleRestClient(String baseUrl, AdminAuthenticator adminAuthenticator, int ioThreads,
+        HttpConnectionPools connectionPools, String poolName, int concurrency)
+    {
+        this.baseUrl = PeopleRestClient.normalizeBaseUrl(baseUrl);
+        this.adminAuthenticator = adminAuthenticator;
+
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom().setIoThreadCount(ioThreads).build();
+        AtomicInteger threadNumber = new AtomicInteger(1);
+        DefaultConnectingIOReactor ioReactor;
+        try
+        {
+            ioReactor = new DefaultConnectingIOReactor(ioReactorConfig, runnable ->
+            {
+                Thread thread = new Thread(runnable, "AsyncPeopleRestClient-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        catch (IOReactorException e)
+        {
+            throw new IllegalStateException("Failed to start the HTTP I/O reactor.", e);
+        }
+        PoolingNHttpClientConnectionManager connectionManager = connectionPools.newAsyncConnectionManager(poolName, ioReactor, concurrency);
+        this.httpClient = HttpAsyncClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(connectionPools.getRequestConfig())
+            .setKeepAliveStrategy(connectionPools.getKeepAliveStrategy())
+            .build();
+        this.httpClient.start();
+    }
+
+    /**
+     * @return pools giving each client one connection per call in flight
+     */
+    private static HttpConnectionPools autoSized()
+    {
+        HttpConnectionPools connectionPools = new HttpConnectionPools();
+        connectionPools.setAutoSize(true);
+        return connectionPools;
+    }
+
+    /**
+     * Create a person as the administrator
+     *
+     * @param callback receives the HTTP status of the call
+     */
+    public void createPerson(RestPersonModel person, FutureCallback<Integer> callback) throws IOException
+    {
+        post(PeopleRestClient.PEOPLE_PATH, PeopleJson.person(person), callback);
+    }
+
+    /**
+     * Create a person as the administrator, writing the body straight from the user data
+     *
+     * @param callback receives the HTTP status of the call
+     */
+    public void createPerson(UserData user, FutureCallback<Integer> callback)
+    {
+        post(PeopleRestClient.PEOPLE_PATH, new ByteArrayEntity(PersonJsonWriter.person(user), ContentType.APPLICATION_JSON), callback);
+    }
+
+    /**
+     * Add a person to a group as the administrator
+     *
+     * @param groupId  the full group ID, including the <b>GROUP_</b> prefix
+     * @param username the person to add
+     * @param callback receives the HTTP status of the call
+     */
+    public void createGroupMembership(String groupId, String username, FutureCallback<Integer> callback) throws IOException
+    {
+        post(PeopleRestClient.groupMembersPath(groupId), PeopleJson.groupMember(username), callback);
+    }
+
+    private void post(String path, String body, FutureCallback<Integer> callback)
+    {
+        post(path, new StringEntity(body, ContentType.APPLICATION_JSON), callback);
+    }
+
+    private void post(String path, HttpEntity entity, FutureCallback<Integer> callback)
+    {
+        HttpPost post = new HttpPost(baseUrl + path);
+        post.setEntity(entity);
+        execute(post, true, callback);
+    }
+
+    /**
+     * Send a request, sending it once more with fresh credentials if Alfresco rejects a ticket.
+     * <p/>
+     * Getting a new ticket blocks, so the first request made after a ticket expires waits for it
+     * on an I/O thread; that happens once per ticket.
+     */
+    private void execute(final HttpPost post, final boolean retry, final FutureCallback<Integer> callback)
+    {
+        final String authorization = adminAuthenticator.getAuthorization();
+        post.setHeader(HttpHeaders.AUTHORIZATION, authorization);
+        httpClient.execute(post, new FutureCallback<HttpResponse>()
+        {
+            @Override
+            public void completed(HttpResponse response)
+            {
+                int code = response.getStatusLine().getStatusCode();
+                if (code == HttpStatus.SC_UNAUTHORIZED && retry && adminAuthenticator.rejected(authorization))
+                {
+                    execute(post, false, callback);
+                }
+                else
+                {
+                    callback.completed(code);
+                }
+            }
+
+            @Override
+            public void failed(Exception e)
+            {
+                callback.failed(e);
+            }
+
+            @Override
+            public void cancelled()
+            {
+                callback.cancelled();
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        httpClient.close();
+    }
+}
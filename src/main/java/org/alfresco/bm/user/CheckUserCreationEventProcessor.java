@@ -0,0 +1,355 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.driver.event.AbstractEventProcessor;
+import org.alfresco.bm.driver.event.Event;
+
+import java.util.Collections;
+
+/**
+ * Checks the number of created users once all user creation states recorded on this driver have
+ * been written to the users mirror.
+ * <ul>
+ *   <li>With a {@link UserCreationTracker completion tracker}, the tracker's totals are read instead of
+ *       counting the mirror, and the check fails as soon as the run is
+ *       {@link UserCreationTracker.Counters#isSettled() settled}.  It neither passes nor fails while
+ *       any driver holds creation states that are not {@link UserCreationTracker.Counters#isFlushed() written}.</li>
+ *   <li>Without a tracker, the created users are counted, like the {@link CheckUserCountEventProcessor} does.</li>
+ *   <li>When {@link #setGroupMembershipsDeferred(boolean) group memberships are deferred}, the
+ *       {@link #setEventNameGroupMemberships(String) eventNameGroupMemberships} event is raised instead of
+ *       <tt>eventNameUsersReady</tt>, and also when too few users are created, so that the users created
+ *       still get their memberships.</li>
+ *   <li>Otherwise, when too few users are created, the {@link #setEventNameUsersFailed(String) eventNameUsersFailed}
+ *       event, if any, is raised.</li>
+ * </ul>
+ * The event result reports:
+ * <ul>
+ *   <li>the flush figures of the writer and the query figures of the users mirror</li>
+ *   <li>the tracker's totals</li>
+ *   <li>the figures of the {@link AdminAuthenticator}, {@link RetryPolicy}, {@link CircuitBreaker},
+ *       {@link HttpConnectionPools} and {@link UserDataCache}</li>
+ *   <li>the progress of each of the {@link UserShards}</li>
+ *   <li>the latency percentiles of each provisioning phase, merged across drivers</li>
+ *   <li>the {@link DriverCalibration calibration} rate and cost per user, while calibrating</li>
+ *   <li>the target and actual rates of the {@link LoadShape load shape}, when enabled</li>
+ * </ul>
+ * All but the first item are only reported when the beans involved are set.
+ *
+ * @since 3.0.1
+ */
+public class CheckUserCreationEventProcessor extends AbstractEventProcessor
+{
+    public static final String DEFAULT_EVENT_NAME_USERS_READY = "usersReady";
+    public static final String DEFAULT_EVENT_NAME_SELF = "checkUsers";
+    public static final String DEFAULT_EVENT_NAME_GROUP_MEMBERSHIPS = CreateGroupMemberships.EVENT_NAME_CREATE_GROUP_MEMBERSHIPS;
+    public static final long DEFAULT_DELAY_RESCHEDULE_SELF = 1000L;
+
+    private final UserDataBulkService userDataBulkService;
+    private final long userCount;
+    private final UserCreationStateWriter creationStateWriter;
+    private String eventNameUsersReady = DEFAULT_EVENT_NAME_USERS_READY;
+    private String eventNameSelf = DEFAULT_EVENT_NAME_SELF;
+    private String eventNameUsersFailed;
+    private String eventNameGroupMemberships = DEFAULT_EVENT_NAME_GROUP_MEMBERSHIPS;
+    private boolean groupMembershipsDeferred = false;
+    private long delayRescheduleSelf = DEFAULT_DELAY_RESCHEDULE_SELF;
+    private boolean rescheduleSelf = true;
+    private UserCreationTracker completionTracker;
+    private AdminAuthenticator adminAuthenticator;
+    private RetryPolicy retryPolicy;
+    private CircuitBreaker circuitBreaker;
+    private HttpConnectionPools connectionPools;
+    private UserShards userShards;
+    private UserDataCache userDataCache;
+    private ProvisioningLatencies latencies;
+    private DriverCalibration calibration;
+    private LoadShape loadShape;
+
+    /**
+     * @param userDataBulkService the service to count the users when there is no tracker
+     * @param userCount           the minimum number of users that must be created
+     * @param creationStateWriter the writer that may still hold user creation states
+     */
+    public CheckUserCreationEventProcessor(UserDataBulkService userDataBulkService, long userCount, UserCreationStateWriter creationStateWriter)
+    {
+        this.userDataBulkService = userDataBulkService;
+        this.userCount = userCount;
+        this.creationStateWriter = creationStateWriter;
+    }
+
+    /**
+     * @param eventNameUsersReady the event raised once enough users are created
+     */
+    public void setEventNameUsersReady(String eventNameUsersReady)
+    {
+        this.eventNameUsersReady = eventNameUsersReady;
+    }
+
+    /**
+     * @param eventNameUsersFailed optional event raised when too few users are created, such as the
+     *                             phase creating the memberships of the users that were created
+     */
+    public void setEventNameUsersFailed(String eventNameUsersFailed)
+    {
+        this.eventNameUsersFailed = eventNameUsersFailed;
+    }
+
+    /**
+     * @param eventNameGroupMemberships the event raised, whatever the outcome, when group memberships are deferred
+     */
+    public void setEventNameGroupMemberships(String eventNameGroupMemberships)
+    {
+        this.eventNameGroupMemberships = eventNameGroupMemberships;
+    }
+
+    /**
+     * @param groupMembershipsDeferred <tt>true</tt> if the users were created without their group memberships
+     */
+    public void setGroupMembershipsDeferred(boolean groupMembershipsDeferred)
+    {
+        this.groupMembershipsDeferred = groupMembershipsDeferred;
+    }
+
+    /**
+     * @param eventNameSelf the event raised to check again
+     */
+    public void setEventNameSelf(String eventNameSelf)
+    {
+        this.eventNameSelf = eventNameSelf;
+    }
+
+    /**
+     * @param delayRescheduleSelf the time (milliseconds) between two checks
+     */
+    public void setDelayRescheduleSelf(long delayRescheduleSelf)
+    {
+        this.delayRescheduleSelf = delayRescheduleSelf;
+    }
+
+    /**
+     * @param rescheduleSelf <tt>true</tt> to check again while users are missing, <tt>false</tt> to fail.
+     *                       Without a tracker and in write-behind mode, only a check that is rescheduled
+     *                       sees the creation states still buffered by other drivers.
+     */
+    public void setRescheduleSelf(boolean rescheduleSelf)
+    {
+        this.rescheduleSelf = rescheduleSelf;
+    }
+
+    /**
+     * @param completionTracker optional tracker giving the number of created users without counting them
+     */
+    public void setCompletionTracker(UserCreationTracker completionTracker)
+    {
+        this.completionTracker = completionTracker;
+    }
+
+    /**
+     * @param adminAuthenticator optional authenticator whose figures are reported
+     */
+    public void setAdminAuthenticator(AdminAuthenticator adminAuthenticator)
+    {
+        this.adminAuthenticator = adminAuthenticator;
+    }
+
+    /**
+     * @param retryPolicy optional retry policy whose figures are reported
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy)
+    {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * @param circuitBreaker optional circuit breaker whose figures are reported
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker)
+    {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @param connectionPools optional connection pools whose use is reported
+     */
+    public void setConnectionPools(HttpConnectionPools connectionPools)
+    {
+        this.connectionPools = connectionPools;
+    }
+
+    /**
+     * @param userDataCache optional cache whose hits and misses are reported
+     */
+    public void setUserDataCache(UserDataCache userDataCache)
+    {
+        this.userDataCache = userDataCache;
+    }
+
+    /**
+     * @param userShards optional shards whose progress is reported
+     */
+    public void setUserShards(UserShards userShards)
+    {
+        this.userShards = userShards;
+    }
+
+    /**
+     * @param latencies optional histograms whose merged percentiles are reported
+     */
+    public void setLatencies(ProvisioningLatencies latencies)
+    {
+        this.latencies = latencies;
+    }
+
+    /**
+     * @param calibration optional calibration whose measurements are reported
+     */
+    public void setCalibration(DriverCalibration calibration)
+    {
+        this.calibration = calibration;
+    }
+
+    /**
+     * @param loadShape optional load shape whose target and actual rates are reported
+     */
+    public void setLoadShape(LoadShape loadShape)
+    {
+        this.loadShape = loadShape;
+    }
+
+    @Override
+    protected EventResult processEvent(Event event) throws Exception
+    {
+        creationStateWriter.flush();
+
+        long created;
+        long createdDuringRun;
+        boolean settled = false;
+        long unwritten = 0L;
+        if (completionTracker != null)
+        {
+            UserCreationTracker.Counters counters = completionTracker.publish();
+            created = counters.getTotalCreated();
+            createdDuringRun = counters.getCreated();
+            settled = counters.isSettled();
+            unwritten = counters.getUnwritten();
+        }
+        else
+        {
+            // Short by whatever other drivers have not flushed yet; a later check will see it
+            created = userDataBulkService.countUsersByCreationState(DataCreationState.Created);
+            createdDuringRun = created;
+        }
+
+        long now = System.currentTimeMillis();
+        Event nextEvent = null;
+        boolean success = true;
+        String msg;
+        if (unwritten > 0L)
+        {
+            // Neither pass nor fail on counts that miss the states other drivers still hold
+            msg = "Found " + created + " created users.  Waiting for " + unwritten + " creation states to be written.";
+            nextEvent = new Event(eventNameSelf, now + delayRescheduleSelf, null);
+        }
+        else if (created >= userCount)
+        {
+            msg = "Found " + created + " created users.  Minimum was " + userCount + ".";
+            nextEvent = new Event(groupMembershipsDeferred ? eventNameGroupMemberships : eventNameUsersReady, now, null);
+        }
+        else if (rescheduleSelf && !settled)
+        {
+            msg = "Found " + created + " created users.  Minimum is " + userCount + ".  Checking again.";
+            nextEvent = new Event(eventNameSelf, now + delayRescheduleSelf, null);
+        }
+        else
+        {
+            msg = "Found " + created + " created users.  Minimum is " + userCount + ".";
+            success = false;
+            String eventNameFailed = groupMembershipsDeferred ? eventNameGroupMemberships : eventNameUsersFailed;
+            if (eventNameFailed != null)
+            {
+                // The run has failed, but what was created is still finished off
+                msg += "  Moving on to '" + eventNameFailed + "'.";
+                nextEvent = new Event(eventNameFailed, now, null);
+            }
+        }
+
+        BasicDBObject resultObj = new BasicDBObject()
+            .append("msg", msg)
+            .append("creationStateWriter", creationStateWriter.getMetrics())
+            .append("usersMirror", userDataBulkService.getMetrics());
+        if (completionTracker != null)
+        {
+            resultObj.append("completionTracker", completionTracker.getMetrics());
+        }
+        if (adminAuthenticator != null)
+        {
+            resultObj.append("adminAuthenticator", adminAuthenticator.getMetrics());
+        }
+        if (retryPolicy != null)
+        {
+            resultObj.append("retryPolicy", retryPolicy.getMetrics());
+        }
+        if (circuitBreaker != null)
+        {
+            resultObj.append("circuitBreaker", circuitBreaker.getMetrics());
+        }
+        if (connectionPools != null)
+        {
+            resultObj.append("connectionPools", connectionPools.getMetrics());
+        }
+        if (userDataCache != null)
+        {
+            resultObj.append("userDataCache", userDataCache.getMetrics());
+        }
+        if (userShards != null)
+        {
+            resultObj.append("userShards", userShards.getReport());
+        }
+        if (latencies != null)
+        {
+            resultObj.append("latencies", latencies.getMergedReport());
+        }
+        DBObject calibrationObj = calibration == null ? null : calibration.getMetrics(createdDuringRun);
+        if (calibrationObj != null)
+        {
+            resultObj.append("calibration", calibrationObj);
+        }
+        if (loadShape != null && loadShape.isEnabled())
+        {
+            resultObj.append("loadShape", loadShape.getMetrics());
+        }
+        if (nextEvent == null)
+        {
+            return new EventResult(resultObj, false);
+        }
+        return new EventResult(resultObj, Collections.singletonList(nextEvent), success);
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Pauses all person creations on a driver while Alfresco is failing most of them, rather than
+ * burning through the users and the retries during an outage.
+ * <p/>
+ * The outcome of every call is {@link #record(boolean) recorded}.  When at least
+ * {@link #setMinCalls(int) minCalls} calls were made within the current
+ * {@link #setWindow(long) window} and the share of errors among them reaches the
+ * {@link #setErrorRateThreshold(double) threshold}, the breaker <b>opens</b>: callers of
+ * {@link #acquire()} wait for {@link #setOpenInterval(long) openInterval} milliseconds.  The breaker
+ * then lets a single probe call through; if it succeeds the breaker closes again, otherwise it
+ * stays open for another interval.  Each call is made with the {@link Permit} it was given, so that
+ * the probe's outcome can be told apart from those of calls still outstanding when the breaker opened.
+ * <p/>
+ * Callers that must not block, such as those issuing non-blocking calls from a shared thread,
+ * use {@link #tryAcquire()} and try again after the time it returns.
+ *
+ * @since 3.0.1
+ */
+public class CircuitBreaker
+{
+    public static final double DEFAULT_ERROR_RATE_THRESHOLD = 0.5;
+    public static final int DEFAULT_MIN_CALLS = 20;
+    public static final long DEFAULT_WINDOW = 10000L;
+    public static final long DEFAULT_OPEN_INTERVAL = 5000L;
+
+    public static final String STATE_CLOSED = "closed";
+    public static final String STATE_OPEN = "open";
+    public static final String STATE_HALF_OPEN = "halfOpen";
+
+    private static Log logger = LogFactory.getLog(CircuitBreaker.class);
+
+    private boolean enabled = true;
+    private double errorRateThreshold = DEFAULT_ERROR_RATE_THRESHOLD;
+    private int minCalls = DEFAULT_MIN_CALLS;
+    private long window = DEFAULT_WINDOW;
+    private long openInterval = DEFAULT_OPEN_INTERVAL;
+
+    /** Guarded by this */
+    private String state = STATE_CLOSED;
+    private long windowStart = System.currentTimeMillis();
+    private int calls;
+    private int errors;
+    private long openUntil;
+    private boolean probing;
+    private long probeStart;
+    /** The number of the current probe; probes are numbered from 1 */
+    private long probeCount;
+    private long opened;
+    private long waits;
+    private long waitTime;
+
+    /**
+     * @param enabled <tt>false</tt> to never pause the calls
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param errorRateThreshold the share of failed calls (0 to 1) that opens the breaker
+     */
+    public void setErrorRateThreshold(double errorRateThreshold)
+    {
+        this.errorRateThreshold = errorRateThreshold;
+    }
+
+    /**
+     * @param minCalls the number of calls in a window required to open the breaker
+     */
+    public void setMinCalls(int minCalls)
+    {
+        this.minCalls = minCalls;
+    }
+
+    /**
+     * @param window the time over which the calls are counted (milliseconds)
+     */
+    public void setWindow(long window)
+    {
+        this.window = window;
+    }
+
+    /**
+     * @param openInterval the time calls are paused once the breaker opens (milliseconds)
+     */
+    public void setOpenInterval(long openInterval)
+    {
+        this.openInterval = openInterval;
+    }
+
+    /**
+     * Wait until a call may be made.  Returns straight away while the breaker is closed.
+     *
+     * @return the permit for the call, to be passed on when its outcome is {@link #record(boolean, Permit) recorded}
+     */
+    public Permit acquire() throws InterruptedException
+    {
+        if (!enabled)
+        {
+            return Permit.GRANTED;
+        }
+        long waitStart = 0L;
+        synchronized (this)
+        {
+            Permit permit;
+            while (true)
+            {
+                long now = System.currentTimeMillis();
+                permit = permit(now);
+                if (permit.isGranted())
+                {
+                    break;
+                }
+                if (waitStart == 0L)
+                {
+                    waitStart = now;
+                    waits++;
+                }
+                wait(permit.getDelay());
+            }
+            if (waitStart != 0L)
+            {
+                waitTime += System.currentTimeMillis() - waitStart;
+            }
+            return permit;
+        }
+    }
+
+    /**
+     * Check whether a call may be made, without waiting
+     *
+     * @return the permit for the call if it may be made now, otherwise a permit giving the time to
+     *         wait before trying again
+     */
+    public Permit tryAcquire()
+    {
+        if (!enabled)
+        {
+            return Permit.GRANTED;
+        }
+        synchronized (this)
+        {
+            Permit permit = permit(System.currentTimeMillis());
+            if (!permit.isGranted())
+            {
+                waits++;
+            }
+            return permit;
+        }
+    }
+
+    /**
+     * Let a call through if the state allows it.  Guarded by this.
+     */
+    private Permit permit(long now)
+    {
+        if (STATE_CLOSED.equals(state))
+        {
+            return Permit.GRANTED;
+        }
+        if (STATE_OPEN.equals(state) && now >= openUntil)
+        {
+            state = STATE_HALF_OPEN;
+            probing = false;
+        }
+        if (STATE_HALF_OPEN.equals(state) && (!probing || now - probeStart >= openInterval))
+        {
+            // This call is the probe, or replaces a probe whose outcome never came
+            probing = true;
+            probeStart = now;
+            probeCount++;
+            return new Permit(0L, probeCount);
+        }
+        // Half-open: wait for the probe's outcome; open: wait for the end of the interval
+        long delay = STATE_OPEN.equals(state) ? openUntil - now : probeStart + openInterval - now;
+        return new Permit(Math.max(1L, delay), 0L);
+    }
+
+    /**
+     * Record the outcome of a call made without a permit, or whose permit was not kept
+     *
+     * @param error <tt>true</tt> if the call failed for reasons attributable to the server
+     */
+    public void record(boolean error)
+    {
+        record(error, Permit.GRANTED);
+    }
+
+    /**
+     * Record the outcome of a call.  While the breaker is half-open, only the outcome of the
+     * current probe changes its state: calls made before the breaker opened, or a probe that was
+     * replaced, are ignored.
+     *
+     * @param error  <tt>true</tt> if the call failed for reasons attributable to the server
+     * @param permit the permit the call was made with
+     */
+    public synchronized void record(boolean error, Permit permit)
+    {
+        if (!enabled)
+        {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (STATE_HALF_OPEN.equals(state) && probing && permit.probe == probeCount)
+        {
+            if (error)
+            {
+                open(now);
+            }
+            else
+            {
+                logger.info("Circuit breaker closed: the probe call succeeded.");
+                close(now);
+            }
+            return;
+        }
+        if (!STATE_CLOSED.equals(state))
+        {
+            // Calls made before the breaker opened, or a stale probe
+            return;
+        }
+        if (now - windowStart >= window)
+        {
+            windowStart = now;
+            calls = 0;
+            errors = 0;
+        }
+        calls++;
+        if (error)
+        {
+            errors++;
+        }
+        if (calls >= minCalls && (double) errors / calls >= errorRateThreshold)
+        {
+            logger.warn("Circuit breaker opened: " + errors + " of the last " + calls + " calls failed.");
+            open(now);
+        }
+    }
+
+    private void open(long now)
+    {
+        state = STATE_OPEN;
+        openUntil = now + openInterval;
+        probing = false;
+        opened++;
+        notifyAll();
+    }
+
+    private void close(long now)
+    {
+        state = STATE_CLOSED;
+        probing = false;
+        windowStart = now;
+        calls = 0;
+        errors = 0;
+        notifyAll();
+    }
+
+    /**
+     * @return one of {@link #STATE_CLOSED}, {@link #STATE_OPEN} or {@link #STATE_HALF_OPEN}
+     */
+    public synchronized String getState()
+    {
+        return state;
+    }
+
+    /**
+     * @return the state of the breaker and the time calls were paused, suitable for an event result
+     */
+    public synchronized DBObject getMetrics()
+    {
+        return new BasicDBObject()
+            .append("enabled", enabled)
+            .append("state", state)
+            .append("opened", opened)
+            .append("waits", waits)
+            .append("waitTimeMs", waitTime);
+    }
+
+    /**
+     * Permission to make a call, or the time to wait before asking again
+     */
+    public static final class Permit
+    {
+        public static final Permit GRANTED = new Permit(0L, 0L);
+
+        private final long delay;
+        /** The number of the probe, or 0 if the call is not the probe */
+        private final long probe;
+
+        private Permit(long delay, long probe)
+        {
+            this.delay = delay;
+            this.probe = probe;
+        }
+
+        /**
+         * @return <tt>true</tt> if the call may be made now
+         */
+        public boolean isGranted()
+        {
+            return delay == 0L;
+        }
+
+        /**
+         * @return the time to wait before asking again (milliseconds), or 0 if the call may be made now
+         */
+        public long getDelay()
+        {
+            return delay;
+        }
+
+        /**
+         * @return <tt>true</tt> if the call is the probe deciding whether the breaker closes
+         */
+        public boolean isProbe()
+        {
+            return probe != 0L;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.driver.event.AbstractEventProcessor;
+import org.alfresco.bm.driver.event.Event;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.http.HttpStatus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event processor that adds the users to the groups recorded for them when group memberships
+ * were {@link CreateUsersWithRestV1API#setDeferGroupMemberships(boolean) deferred}.
+ * <p/>
+ * <h1>Input</h1><br/>
+ * Optionally, the group currently being processed.  The phase starts once the users are created,
+ * and also when the check of the created users fails, so that the users that were created still
+ * get their memberships.
+ * <p/>
+ * <h1>Data</h1><br/>
+ * Collection containing users. Each user's pending groups are removed as they are processed.
+ * <p/>
+ * <h1>Actions</h1><br/>
+ * Groups are processed one after the other.  For each group, a page of users still to be added is
+ * fetched and the memberships are created in parallel through a {@link PeopleRestClient}.  As when
+ * creating users, failing to add a user to a group is logged but not retried.  The pending memberships
+ * of groups that the {@link GroupResolver} (if there is one) could not resolve are dropped without any
+ * call to Alfresco.  The result of each event holds the group membership throughput.
+ * The threads and the REST client are released with the test run's context.
+ * <p/>
+ * <h1>Output</h1>
+ * {@link #EVENT_NAME_CREATE_GROUP_MEMBERSHIPS}: to process the next page<br/>
+ * {@link #EVENT_NAME_GROUP_MEMBERSHIPS_CREATED}: once no user has pending groups<br/>
+ *
+ * @since 3.0.1
+ */
+public class CreateGroupMemberships extends AbstractEventProcessor implements DisposableBean
+{
+    public static final String EVENT_NAME_CREATE_GROUP_MEMBERSHIPS = "createGroupMemberships";
+    public static final String EVENT_NAME_GROUP_MEMBERSHIPS_CREATED = "groupMembershipsCreated";
+
+    public static final String EVENT_DATA_GROUP = "group";
+
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private final UserDataBulkService userDataBulkService;
+    private final UserCreationStateWriter creationStateWriter;
+    private final PeopleRestClient peopleRestClient;
+    private final ExecutorService executor;
+    private GroupResolver groupResolver;
+    private ProvisioningLatencies latencies;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private volatile boolean indexed = false;
+
+    /**
+     * @param userDataBulkService bulk access to the users mirror
+     * @param creationStateWriter the writer that may still hold pending groups
+     * @param baseUrl             the Alfresco URL
+     * @param adminUsername       the Alfresco administrator
+     * @param adminPassword       the Alfresco administrator's password
+     * @param threadCount         the number of memberships created at the same time on each driver
+     */
+    public CreateGroupMemberships(
+        UserDataBulkService userDataBulkService, UserCreationStateWriter creationStateWriter,
+        String baseUrl, String adminUsername, String adminPassword, int threadCount)
+    {
+        this(userDataBulkService, creationStateWriter, baseUrl, PeopleRestClient.basicAuthenticator(baseUrl, adminUsername, adminPassword), threadCount);
+    }
+
+    /**
+     * @param userDataBulkService bulk access to the users mirror
+     * @param creationStateWriter the writer that may still hold pending groups
+     * @param baseUrl             the Alfresco URL
+     * @param adminAuthenticator  supplies the administrator's credentials, shared with other clients
+     * @param threadCount         the number of memberships created at the same time on each driver
+     */
+    public CreateGroupMemberships(
+        UserDataBulkService userDataBulkService, UserCreationStateWriter creationStateWriter,
+        String baseUrl, AdminAuthenticator adminAuthenticator, int threadCount)
+    {
+        this(userDataBulkService, creationStateWriter, baseUrl, adminAuthenticator, new HttpConnectionPools(), threadCount);
+    }
+
+    /**
+     * @param userDataBulkService bulk access to the users mirror
+     * @param creationStateWriter the writer that may still hold pending groups
+     * @param baseUrl             the Alfresco URL
+     * @param adminAuthenticator  supplies the administrator's credentials, shared with other clients
+     * @param connectionPools     sizes the connection pool and sets the timeouts of the REST client
+     * @param threadCount         the number of memberships created at the same time on each driver
+     */
+    public CreateGroupMemberships(
+        UserDataBulkService userDataBulkService, UserCreationStateWriter creationStateWriter,
+        String baseUrl, AdminAuthenticator adminAuthenticator, HttpConnectionPools connectionPools, int threadCount)
+    {
+        this.userDataBulkService = userDataBulkService;
+        this.creationStateWriter = creationStateWriter;
+        this.peopleRestClient = new PeopleRestClient(baseUrl, adminAuthenticator, connectionPools, "createGroupMemberships", threadCount);
+        AtomicInteger threadNumber = new AtomicInteger(1);
+        this.executor = Executors.newFixedThreadPool(threadCount, runnable ->
+        {
+            Thread thread = new Thread(runnable, "CreateGroupMemberships-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void destroy()
+    {
+        executor.shutdownNow();
+        try
+        {
+            peopleRestClient.close();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to close the REST client: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param pageSize the number of memberships created by each event
+     */
+    public void setPageSize(int pageSize)
+    {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @param groupResolver optional resolver used to skip the memberships of groups that do not exist
+     */
+    public void setGroupResolver(GroupResolver groupResolver)
+    {
+        this.groupResolver = groupResolver;
+    }
+
+    /**
+     * @param latencies optional histograms recording the latency of each membership call
+     */
+    public void setLatencies(ProvisioningLatencies latencies)
+    {
+        this.latencies = latencies;
+    }
+
+    @Override
+    protected EventResult processEvent(Event event) throws Exception
+    {
+        super.suspendTimer();
+
+        // Pending groups may still be buffered
+        creationStateWriter.flush();
+        if (!indexed)
+        {
+            // Only needed once the phase runs, which is when memberships were deferred
+            userDataBulkService.ensurePendingGroupsIndex();
+            indexed = true;
+        }
+
+        String group = null;
+        Object data = event.getData();
+        if (data instanceof DBObject)
+        {
+            group = (String) ((DBObject) data).get(EVENT_DATA_GROUP);
+        }
+        List<String> usernames = group == null ? new ArrayList<String>(0) : userDataBulkService.findUsernamesWithPendingGroup(group, pageSize);
+        if (usernames.isEmpty())
+        {
+            // Move on to the next group
+            List<String> groups = userDataBulkService.findPendingGroups();
+            if (groups.isEmpty())
+            {
+                Event doneEvent = new Event(EVENT_NAME_GROUP_MEMBERSHIPS_CREATED, System.currentTimeMillis(), null);
+                return new EventResult("No more pending group memberships.", doneEvent);
+            }
+            group = groups.get(0);
+            usernames = userDataBulkService.findUsernamesWithPendingGroup(group, pageSize);
+        }
+
+        Event nextEvent = new Event(EVENT_NAME_CREATE_GROUP_MEMBERSHIPS, System.currentTimeMillis(), new BasicDBObject(EVENT_DATA_GROUP, group));
+        if (groupResolver != null && !groupResolver.isAvailable(group))
+        {
+            // Known to be missing: drop the memberships without calling Alfresco
+            userDataBulkService.removePendingGroup(usernames, group);
+            DBObject resultObj = new BasicDBObject()
+                .append(EVENT_DATA_GROUP, group)
+                .append("skipped", usernames.size());
+            return new EventResult(resultObj, nextEvent);
+        }
+
+        // Create the memberships in parallel
+        final String groupId = "GROUP_" + group;
+        long start = System.nanoTime();
+        super.resumeTimer();
+        List<Future<Integer>> futures = new ArrayList<>(usernames.size());
+        for (final String username : usernames)
+        {
+            futures.add(executor.submit(() -> createGroupMembership(groupId, username)));
+        }
+        int added = 0;
+        int failed = 0;
+        for (int i = 0; i < futures.size(); i++)
+        {
+            int code;
+            try
+            {
+                code = futures.get(i).get();
+            }
+            catch (Exception e)
+            {
+                logger.error("error adding user to a group: " + group + " message: " + e.getMessage(), e);
+                code = -1;
+            }
+            if (code == HttpStatus.CREATED.value())
+            {
+                added++;
+            }
+            else
+            {
+                failed++;
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("FAILED to add user: " + usernames.get(i) + " to group: " + group + " (status " + code + ")");
+                }
+            }
+        }
+        super.suspendTimer();
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (failed > 0)
+        {
+            logger.warn("FAILED to add " + failed + " users to group: " + group + ". Make sure this group is created on your Alfresco system!");
+        }
+
+        // Failures are not retried
+        userDataBulkService.removePendingGroup(usernames, group);
+
+        DBObject resultObj = new BasicDBObject()
+            .append(EVENT_DATA_GROUP, group)
+            .append("added", added)
+            .append("failed", failed)
+            .append("membershipsPerSecond", elapsed == 0L ? 0.0 : usernames.size() * 1000.0 / elapsed);
+        return new EventResult(resultObj, nextEvent);
+    }
+
+    private int createGroupMembership(String groupId, String username) throws Exception
+    {
+        long callStart = System.nanoTime();
+        try
+        {
+            return peopleRestClient.createGroupMembership(groupId, username);
+        }
+        finally
+        {
+            if (latencies != null)
+            {
+                latencies.record(ProvisioningLatencies.PHASE_GROUP_MEMBERSHIP, callStart);
+            }
+        }
+    }
+}
@@ -40,12 +40,11 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.StringEntity;
 import org.json.simple.JSONObject;
 
+import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.StringTokenizer;
 
 /**
  * Event processor that creates a test-user in the alfresco-system based on the
@@ -87,15 +86,20 @@ public class CreateUser extends AuthenticatedHttpEventProcessor
     public static final String PEOPLE_JSON_NODEREF = "nodeRef";
 
     private UserDataService userDataService;
+    private UserDataCache userDataCache;
+    private UserCreationStateWriter creationStateWriter;
+    private AdminAuthenticator adminAuthenticator;
     private boolean ignoreExistingUsers = false;
-    private final Map<String, Double> userGroups;
+    private GroupSampler groupSampler;
+    private boolean deterministicGroups = false;
+    private long groupSeed = 0L;
 
     public CreateUser(HttpClientProvider httpClientProvider, AuthenticationDetailsProvider authenticationDetailsProvider, String baseUrl,
         UserDataService userDataService)
     {
         super(httpClientProvider, authenticationDetailsProvider, baseUrl);
         this.userDataService = userDataService;
-        this.userGroups = new HashMap<String, Double>(7);
+        this.groupSampler = new GroupSampler("");
     }
 
     /**
@@ -109,6 +113,32 @@ public class CreateUser extends AuthenticatedHttpEventProcessor
         this.ignoreExistingUsers = ignoreExistingUsers;
     }
 
+    /**
+     * @param userDataCache optional cache the user details are read through
+     */
+    public void setUserDataCache(UserDataCache userDataCache)
+    {
+        this.userDataCache = userDataCache;
+    }
+
+    /**
+     * @param creationStateWriter optional writer used to record the creation state of the users,
+     *                            otherwise the {@link UserDataService} is used directly
+     */
+    public void setCreationStateWriter(UserCreationStateWriter creationStateWriter)
+    {
+        this.creationStateWriter = creationStateWriter;
+    }
+
+    /**
+     * @param adminAuthenticator optional source of an administrator ticket shared by the driver; when
+     *                           present, the ticket is passed on the URL instead of authenticating every call
+     */
+    public void setAdminAuthenticator(AdminAuthenticator adminAuthenticator)
+    {
+        this.adminAuthenticator = adminAuthenticator;
+    }
+
     /**
      * A description of the groups users should be added to with percentage chances.
      * The following string:
@@ -129,62 +159,35 @@ public class CreateUser extends AuthenticatedHttpEventProcessor
      */
     public void setUserGroups(String userGroupStr)
     {
-        if (userGroupStr == null)
-        {
-            throw new IllegalArgumentException("'userGroups' may not be null.");
-        }
-        // Split by comma
-        StringTokenizer commaTokenizer = new StringTokenizer(userGroupStr, ",");
-        while (commaTokenizer.hasMoreTokens())
-        {
-            String groupAndChance = commaTokenizer.nextToken();
-            groupAndChance = groupAndChance.trim();
-            StringTokenizer colonTokenizer = new StringTokenizer(groupAndChance, ":");
-            double chance = 1.0;
-            if (colonTokenizer.countTokens() == 0)
-            {
-                // Nothing here e.g. " ,,,"
-                continue;
-            }
-            String group = colonTokenizer.nextToken().trim();
-            if (group.length() == 0)
-            {
-                // No group name present e.g. " :0.4"
-                continue;
-            }
-            if (colonTokenizer.hasMoreTokens())
-            {
-                String groupChanceStr = colonTokenizer.nextToken().trim();
-                try
-                {
-                    chance = Double.parseDouble(groupChanceStr);
-                }
-                catch (NumberFormatException e)
-                {
-                    throw new IllegalArgumentException("'userGroups' format is 'GROUP1:CHANCE1, GROUP2:CHANCE2' where the chances are values between 0 and 1.");
-                }
-            }
-            // else there is no chance specified, so we assume 1.0
-            if (chance > 1.0)
-            {
-                chance = 1.0;
-            }
-            else if (chance < 0.0)
-            {
-                chance = 0.0;
-            }
+        this.groupSampler = new GroupSampler(userGroupStr);
+    }
 
-            // Store the chance
-            userGroups.put(group, chance);
-        }
+    /**
+     * @param deterministicGroups <tt>true</tt> to derive the groups of each user from its username, so
+     *                            that every run with the same {@link #setGroupSeed(long) seed} gives the
+     *                            same group memberships
+     */
+    public void setDeterministicGroups(boolean deterministicGroups)
+    {
+        this.deterministicGroups = deterministicGroups;
+    }
+
+    /**
+     * @param groupSeed the seed combined with usernames when groups are {@link #setDeterministicGroups(boolean) deterministic}
+     */
+    public void setGroupSeed(long groupSeed)
+    {
+        this.groupSeed = groupSeed;
     }
 
     /**
      * Used for testing
+     *
+     * @return a copy of the chance of each group, keyed by group name
      */
     public Map<String, Double> getUserGroups()
     {
-        return new HashMap<String, Double>(this.userGroups);        // Copy for safety
+        return groupSampler.toMap();
     }
 
     /**
@@ -193,19 +196,17 @@ public class CreateUser extends AuthenticatedHttpEventProcessor
      */
     public List<String> getRandomGroups()
     {
-        List<String> groups = new ArrayList<String>(5);
-        for (Map.Entry<String, Double> groupChance : userGroups.entrySet())
-        {
-            String group = groupChance.getKey();
-            double chance = groupChance.getValue();     // unboxed but any NPE will be a bug in this class
-            // See if we use this group or not
-            if (Math.random() < chance)
-            {
-                // We can use it
-                groups.add(group);
-            }
-        }
-        return groups;
+        return groupSampler.randomGroups();
+    }
+
+    /**
+     * Generate the groups of a user according to the {@link #setUserGroups(String) user group chances}.
+     * When {@link #setDeterministicGroups(boolean) deterministic}, the groups only depend on the
+     * username and the {@link #setGroupSeed(long) seed}.
+     */
+    public List<String> getGroups(String username)
+    {
+        return deterministicGroups ? groupSampler.groupsOf(groupSeed, username) : groupSampler.randomGroups();
     }
 
     @Override
@@ -219,7 +220,7 @@ public class CreateUser extends AuthenticatedHttpEventProcessor
         EventResult eventResult = null;
 
         // Look up the user data
-        UserData user = userDataService.findUserByUsername(username);
+        UserData user = userDataCache != null ? userDataCache.findUserByUsername(username) : userDataService.findUserByUsername(username);
         if (user == null)
         {
             // User already existed
@@ -228,33 +229,23 @@ public class CreateUser extends AuthenticatedHttpEventProcessor
         }
 
         // Assign random groups
-        List<String> groups = getRandomGroups();
+        List<String> groups = getGroups(username);
 
         // Create request body containing user details
-        JSONObject json = new JSONObject();
-        json.put(CreateUser.PEOPLE_JSON_USERNAME, username);
-        json.put(CreateUser.PEOPLE_JSON_LASTNAME, user.getLastName());
-        json.put(CreateUser.PEOPLE_JSON_FIRSTNAME, user.getFirstName());
-        json.put(CreateUser.PEOPLE_JSON_EMAIL, user.getEmail());
-        json.put(CreateUser.PEOPLE_JSON_PASSWORD, user.getPassword());
-        if (groups.size() > 0)
-        {
-            List<String> prefixedGroups = new ArrayList<String>(groups.size());
-            for (String group : groups)
-            {
-                prefixedGroups.add("GROUP_" + group);
-            }
-            json.put(CreateUser.PEOPLE_JSON_GROUPS, prefixedGroups);
-        }
+        JSONObject json = newPersonJson(username, user, groups);
 
         // Restart timer
         super.resumeTimer();
-        HttpPost createUser = new HttpPost(getFullUrlForPath(CreateUser.PEOPLE_URL));
         StringEntity content = JSONUtil.setMessageBody(json);
-        createUser.setEntity(content);
+        String ticket = adminAuthenticator == null ? null : adminAuthenticator.getTicket();
 
         // Get the status
-        HttpResponse httpResponse = executeHttpMethodAsAdmin(createUser, SimpleHttpRequestCallback.getInstance());
+        HttpResponse httpResponse = postPerson(content, ticket);
+        if (httpResponse.getStatusLine().getStatusCode() == HttpStatus.SC_UNAUTHORIZED && adminAuthenticator != null && adminAuthenticator.rejected(ticket))
+        {
+            // The ticket has expired
+            httpResponse = postPerson(content, adminAuthenticator.getTicket());
+        }
         StatusLine httpStatus = httpResponse.getStatusLine();
         // Pause timer
         super.suspendTimer();
@@ -267,7 +258,7 @@ public class CreateUser extends AuthenticatedHttpEventProcessor
                 // User already existed
                 eventResult = new EventResult("Ignoring existing user, already present in alfresco: " + username, Collections.EMPTY_LIST);
                 // User should be OK
-                userDataService.setUserCreationState(username, DataCreationState.Created);
+                setUserCreationState(username, DataCreationState.Created);
             }
             else
             {
@@ -276,7 +267,7 @@ public class CreateUser extends AuthenticatedHttpEventProcessor
                     .format("Creating user failed, REST-call resulted in status:%d with error %s ", httpStatus.getStatusCode(), httpStatus.getReasonPhrase());
                 eventResult = new EventResult(msg, false);
                 // User is unusable
-                userDataService.setUserCreationState(username, DataCreationState.Failed);
+                setUserCreationState(username, DataCreationState.Failed);
             }
         }
         else
@@ -284,9 +275,53 @@ public class CreateUser extends AuthenticatedHttpEventProcessor
             // Event execution was successful
             eventResult = new EventResult("User created in alfresco: " + username, Collections.EMPTY_LIST);
             // User should be usable
-            userDataService.setUserCreationState(username, DataCreationState.Created);
+            setUserCreationState(username, DataCreationState.Created);
         }
 
         return eventResult;
     }
+
+    /**
+     * Build the request body containing the user details
+     */
+    @SuppressWarnings("unchecked")
+    static JSONObject newPersonJson(String username, UserData user, List<String> groups)
+    {
+        JSONObject json = new JSONObject();
+        json.put(CreateUser.PEOPLE_JSON_USERNAME, username);
+        json.put(CreateUser.PEOPLE_JSON_LASTNAME, user.getLastName());
+        json.put(CreateUser.PEOPLE_JSON_FIRSTNAME, user.getFirstName());
+        json.put(CreateUser.PEOPLE_JSON_EMAIL, user.getEmail());
+        json.put(CreateUser.PEOPLE_JSON_PASSWORD, user.getPassword());
+        if (groups.size() > 0)
+        {
+            List<String> prefixedGroups = new ArrayList<String>(groups.size());
+            for (String group : groups)
+            {
+                prefixedGroups.add("GROUP_" + group);
+            }
+            json.put(CreateUser.PEOPLE_JSON_GROUPS, prefixedGroups);
+        }
+        return json;
+    }
+
+    private HttpResponse postPerson(StringEntity content, String ticket) throws Exception
+    {
+        String path = ticket == null ? CreateUser.PEOPLE_URL : CreateUser.PEOPLE_URL + "?alf_ticket=" + URLEncoder.encode(ticket, "UTF-8");
+        HttpPost createUser = new HttpPost(getFullUrlForPath(path));
+        createUser.setEntity(content);
+        return executeHttpMethodAsAdmin(createUser, SimpleHttpRequestCallback.getInstance());
+    }
+
+    private void setUserCreationState(String username, DataCreationState creationState)
+    {
+        if (creationStateWriter != null)
+        {
+            creationStateWriter.setUserCreationState(username, creationState);
+        }
+        else
+        {
+            userDataService.setUserCreationState(username, creationState);
+        }
+    }
 }
@@ -0,0 +1,362 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.driver.event.Event;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event processor that creates several test-users in the alfresco-system in one event.
+ * <p/>
+ * <h1>Input</h1><br/>
+ * Either a list of usernames:
+ * <pre>
+ *    { "usernames" : [ "user1", "user2", ... ] }
+ * </pre>
+ * or a range of usernames, in which case users that are already created are skipped:
+ * <pre>
+ *    { "fromUsername" : "user1", "toUsername" : "user9", "count" : 100 }
+ * </pre>
+ * or, with a {@link UserSynthesizer}, a range of user indexes:
+ * <pre>
+ *    { "fromIndex" : 2000, "count" : 100 }
+ * </pre>
+ * <p/>
+ * <h1>Data</h1><br/>
+ * Collection containing users. The users will be marked as created or failed.
+ * <p/>
+ * <h1>Actions</h1><br/>
+ * The user data for the whole batch is looked up with a single query and the users are then
+ * created in alfresco through V1 REST concurrently, using a fixed number of threads per driver
+ * that share the same {@link PeopleRestClient}.
+ * Users that fail are marked as such but do not stop the rest of the batch.  The threads are
+ * stopped when the test run's context is closed.
+ * <p/>
+ * Users given by index are rebuilt from the user patterns instead of being looked up, and are
+ * only written to the mirror once created or failed, with all their details.
+ * <p/>
+ * <h1>Output</h1>
+ * No next event will be scheduled.
+ *
+ * @see CreateUsersWithRestV1API
+ * @since 3.0.1
+ */
+public class CreateUserBatch extends CreateUsersWithRestV1API
+{
+    public static final String EVENT_DATA_USERNAMES = "usernames";
+    public static final String EVENT_DATA_FROM_USERNAME = "fromUsername";
+    public static final String EVENT_DATA_TO_USERNAME = "toUsername";
+    public static final String EVENT_DATA_COUNT = "count";
+    public static final String EVENT_DATA_FROM_INDEX = "fromIndex";
+
+    public static final int DEFAULT_RANGE_COUNT = 100;
+    public static final long SHUTDOWN_TIMEOUT = 10000L;
+
+    private final UserDataBulkService userDataBulkService;
+    private final ExecutorService executor;
+    private final int threadCount;
+    private UserSynthesizer userSynthesizer;
+
+    /**
+     * @param userDataBulkService bulk access to the users mirror
+     * @param threadCount         the number of users of a batch that will be created at the same time
+     */
+    public CreateUserBatch(UserDataBulkService userDataBulkService, int threadCount)
+    {
+        if (threadCount < 1)
+        {
+            throw new IllegalArgumentException("'threadCount' must be at least 1.");
+        }
+        this.userDataBulkService = userDataBulkService;
+        this.executor = Executors.newFixedThreadPool(threadCount, new BatchThreadFactory());
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * @param userSynthesizer rebuilds the users of batches given by index
+     */
+    public void setUserSynthesizer(UserSynthesizer userSynthesizer)
+    {
+        this.userSynthesizer = userSynthesizer;
+    }
+
+    @Override
+    public void destroy()
+    {
+        executor.shutdown();
+        try
+        {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS))
+            {
+                logger.warn("User batch threads still running " + SHUTDOWN_TIMEOUT + "ms after shutdown; interrupting them.");
+                executor.shutdownNow();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        super.destroy();
+    }
+
+    @Override
+    protected int getConcurrency()
+    {
+        return threadCount;
+    }
+
+    @Override
+    protected EventResult processEvent(Event event) throws Exception
+    {
+        super.suspendTimer();
+
+        DBObject dataObj = (DBObject) event.getData();
+
+        // Look up the user data in one go
+        long lookupStart = System.nanoTime();
+        Map<String, UserData> users = findUsers(dataObj);
+        recordLatency(ProvisioningLatencies.PHASE_FIND_USER, lookupStart);
+        if (users == null)
+        {
+            return new EventResult("Batch requires either a list or a range of usernames: " + dataObj, false);
+        }
+        int missing = getMissingCount(dataObj, users);
+
+        // Create the users concurrently
+        super.resumeTimer();
+        List<String> created = new ArrayList<>(users.size());
+        List<String> failed = new ArrayList<>();
+        createAll(users.values(), created, failed);
+        super.suspendTimer();
+
+        // Record the outcome
+        if (isSynthesized(dataObj))
+        {
+            saveUsers(users.values(), failed);
+        }
+        else
+        {
+            setUserCreationStates(created, failed);
+        }
+
+        DBObject resultObj = new BasicDBObject()
+            .append("created", created.size())
+            .append("failed", failed.size())
+            .append("missing", missing);
+        return new EventResult(resultObj, Collections.EMPTY_LIST, failed.isEmpty() && missing == 0);
+    }
+
+    /**
+     * Look up the user data of a batch with a single query
+     *
+     * @param dataObj the event data holding either a list or a range of usernames
+     * @return the users found keyed by username or <tt>null</tt> if the event data is not valid
+     */
+    @SuppressWarnings("unchecked")
+    protected Map<String, UserData> findUsers(DBObject dataObj)
+    {
+        if (isSynthesized(dataObj))
+        {
+            Number count = (Number) dataObj.get(EVENT_DATA_COUNT);
+            if (userSynthesizer == null || count == null)
+            {
+                return null;
+            }
+            long fromIndex = ((Number) dataObj.get(EVENT_DATA_FROM_INDEX)).longValue();
+            return userSynthesizer.getUsers(fromIndex, count.intValue());
+        }
+        if (dataObj.containsField(EVENT_DATA_USERNAMES))
+        {
+            Collection<String> usernames = (Collection<String>) dataObj.get(EVENT_DATA_USERNAMES);
+            UserDataCache userDataCache = getUserDataCache();
+            return userDataCache != null ? userDataCache.findUsersByUsernames(usernames) : userDataBulkService.findUsersByUsernames(usernames);
+        }
+        String fromUsername = (String) dataObj.get(EVENT_DATA_FROM_USERNAME);
+        String toUsername = (String) dataObj.get(EVENT_DATA_TO_USERNAME);
+        Number count = (Number) dataObj.get(EVENT_DATA_COUNT);
+        if (fromUsername == null || toUsername == null)
+        {
+            return null;
+        }
+        return userDataBulkService.findUsersByUsernameRange(fromUsername, toUsername, count == null ? DEFAULT_RANGE_COUNT : count.intValue());
+    }
+
+    /**
+     * @return the number of usernames listed in the batch that have no user data
+     */
+    protected static int getMissingCount(DBObject dataObj, Map<String, UserData> users)
+    {
+        if (dataObj.containsField(EVENT_DATA_USERNAMES))
+        {
+            return ((Collection<?>) dataObj.get(EVENT_DATA_USERNAMES)).size() - users.size();
+        }
+        // A range only contains users that exist
+        return 0;
+    }
+
+    /**
+     * Create users concurrently on the thread pool of this processor and wait for all of them
+     *
+     * @param users   the users to create
+     * @param created receives the usernames of the users created
+     * @param failed  receives the usernames of the users that could not be created
+     */
+    protected void createAll(Collection<UserData> users, List<String> created, List<String> failed) throws Exception
+    {
+        List<Future<Boolean>> futures = new ArrayList<>(users.size());
+        for (final UserData user : users)
+        {
+            futures.add(executor.submit(() -> createUserQuietly(user)));
+        }
+        int i = 0;
+        for (UserData user : users)
+        {
+            boolean success = futures.get(i++).get();
+            (success ? created : failed).add(user.getUsername());
+        }
+    }
+
+    /**
+     * Mark users as created or failed with one update per state
+     */
+    protected void setUserCreationStates(List<String> created, List<String> failed)
+    {
+        long updateStart = System.nanoTime();
+        UserCreationStateWriter creationStateWriter = getCreationStateWriter();
+        if (creationStateWriter != null)
+        {
+            creationStateWriter.setUserCreationState(created, DataCreationState.Created);
+            creationStateWriter.setUserCreationState(failed, DataCreationState.Failed);
+        }
+        else
+        {
+            userDataBulkService.setUserCreationState(created, DataCreationState.Created);
+            userDataBulkService.setUserCreationState(failed, DataCreationState.Failed);
+        }
+        recordLatency(ProvisioningLatencies.PHASE_SET_CREATION_STATE, updateStart);
+    }
+
+    /**
+     * @return <tt>true</tt> if the batch is a range of user indexes
+     */
+    protected static boolean isSynthesized(DBObject dataObj)
+    {
+        return dataObj.containsField(EVENT_DATA_FROM_INDEX);
+    }
+
+    /**
+     * Write synthesized users to the mirror in their final state, with a single bulk write
+     *
+     * @param users  the users of the batch
+     * @param failed the usernames of the users that could not be created
+     */
+    protected void saveUsers(Collection<UserData> users, Collection<String> failed)
+    {
+        long updateStart = System.nanoTime();
+        Set<String> failedSet = new HashSet<>(failed);
+        for (UserData user : users)
+        {
+            user.setCreationState(failedSet.contains(user.getUsername()) ? DataCreationState.Failed : DataCreationState.Created);
+        }
+        UserCreationStateWriter creationStateWriter = getCreationStateWriter();
+        if (creationStateWriter != null)
+        {
+            creationStateWriter.saveUsers(users);
+        }
+        else
+        {
+            userDataBulkService.saveUsers(users);
+        }
+        recordLatency(ProvisioningLatencies.PHASE_SET_CREATION_STATE, updateStart);
+    }
+
+    /**
+     * @return bulk access to the users mirror
+     */
+    protected UserDataBulkService getUserDataBulkService()
+    {
+        return userDataBulkService;
+    }
+
+    /**
+     * @return the thread pool of this processor
+     */
+    protected ExecutorService getExecutor()
+    {
+        return executor;
+    }
+
+    /**
+     * Create a user on the current worker thread, turning any exception into a failure so that the
+     * other users of the batch are not affected.
+     */
+    private boolean createUserQuietly(UserData user)
+    {
+        try
+        {
+            return createUser(user);
+        }
+        catch (Exception e)
+        {
+            logger.error("Failed to create user: " + user.getUsername() + " message: " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Daemon threads so that an idle driver can shut down without closing the processor
+     */
+    private static class BatchThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "CreateUserBatch-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
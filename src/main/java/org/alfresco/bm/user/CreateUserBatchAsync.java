@@ -0,0 +1,344 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.driver.event.Event;
+import org.apache.http.concurrent.FutureCallback;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Event processor that creates several test-users in the alfresco-system without blocking a thread
+ * per request.
+ * <p/>
+ * <h1>Input</h1><br/>
+ * The same list or range of usernames as {@link CreateUserBatch}.  Ranges of user indexes are not
+ * accepted, since the outcome of each call only updates a user already in the mirror.
+ * <p/>
+ * <h1>Data</h1><br/>
+ * Collection containing users. The users will be marked as created or failed as the calls complete.
+ * <p/>
+ * <h1>Actions</h1><br/>
+ * The user data for the whole batch is looked up with a single query and a V1 REST call is issued
+ * for every user through an {@link AsyncPeopleRestClient}.  The event completes as soon as all calls
+ * are issued; the outcome of each call is recorded by a callback running on the processor's thread
+ * pool.  No more than {@link #setMaxInFlight(int) maxInFlight} person creations are outstanding on
+ * a driver at any time; issuing more waits for earlier calls to complete.  A creation waiting to be
+ * retried keeps its place among them.
+ * <p/>
+ * While the {@link CircuitBreaker} is open, calls are put off until it lets calls through again
+ * rather than blocking the thread issuing them.
+ * <p/>
+ * The event timer only covers issuing the calls; the users are counted by the final check.
+ * <p/>
+ * <h1>Output</h1>
+ * No next event will be scheduled.
+ *
+ * @since 3.0.1
+ */
+public class CreateUserBatchAsync extends CreateUserBatch
+{
+    public static final int DEFAULT_MAX_IN_FLIGHT = 2000;
+    public static final int DEFAULT_IO_THREADS = 2;
+
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private int ioThreads = DEFAULT_IO_THREADS;
+
+    private Semaphore inFlight;
+    private AsyncPeopleRestClient asyncPeopleRestClient;
+    private ScheduledExecutorService retryScheduler;
+
+    /**
+     * @param userDataBulkService bulk access to the users mirror
+     * @param callbackThreads     the number of threads that record the outcome of the calls
+     */
+    public CreateUserBatchAsync(UserDataBulkService userDataBulkService, int callbackThreads)
+    {
+        super(userDataBulkService, callbackThreads);
+    }
+
+    /**
+     * @param maxInFlight the maximum number of person creations outstanding on this driver
+     */
+    public void setMaxInFlight(int maxInFlight)
+    {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @param ioThreads the number of threads doing the network I/O
+     */
+    public void setIoThreads(int ioThreads)
+    {
+        this.ioThreads = ioThreads;
+    }
+
+    @Override
+    protected void initialize()
+    {
+        super.initialize();
+        if (getCreationStrategy() != UserCreationStrategy.V1)
+        {
+            logger.warn("Non-blocking user creation only uses the V1 API; ignoring the '" + getCreationStrategy() + "' creation strategy.");
+        }
+        inFlight = new Semaphore(maxInFlight);
+        asyncPeopleRestClient = new AsyncPeopleRestClient(getAlfrescoUrl(), getAdminAuthenticator(), ioThreads,
+            getConnectionPools(), getName() + ".nio", maxInFlight);
+        retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "CreateUserBatchAsync-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void destroy()
+    {
+        if (retryScheduler != null)
+        {
+            // Attempts still waiting for their turn are abandoned with the test run
+            retryScheduler.shutdownNow();
+        }
+        if (asyncPeopleRestClient != null)
+        {
+            try
+            {
+                asyncPeopleRestClient.close();
+            }
+            catch (IOException e)
+            {
+                logger.warn("Failed to close the non-blocking HTTP client: " + e.getMessage(), e);
+            }
+        }
+        super.destroy();
+    }
+
+    @Override
+    protected EventResult processEvent(Event event) throws Exception
+    {
+        super.suspendTimer();
+
+        DBObject dataObj = (DBObject) event.getData();
+        if (isSynthesized(dataObj))
+        {
+            return new EventResult("Batches of synthesized users must use 'createUserBatch': " + dataObj, false);
+        }
+
+        // Look up the user data in one go
+        long lookupStart = System.nanoTime();
+        Map<String, UserData> users = findUsers(dataObj);
+        recordLatency(ProvisioningLatencies.PHASE_FIND_USER, lookupStart);
+        if (users == null)
+        {
+            return new EventResult("Batch requires either a list or a range of usernames: " + dataObj, false);
+        }
+        int missing = getMissingCount(dataObj, users);
+
+        // Issue the calls
+        super.resumeTimer();
+        for (UserData user : users.values())
+        {
+            inFlight.acquire();
+            submitUser(user, 1);
+        }
+        super.suspendTimer();
+
+        DBObject resultObj = new BasicDBObject()
+            .append("submitted", users.size())
+            .append("missing", missing)
+            .append("inFlight", maxInFlight - inFlight.availablePermits());
+        return new EventResult(resultObj, Collections.EMPTY_LIST, missing == 0);
+    }
+
+    /**
+     * Issue a person creation.  The in-flight permit is held until the last attempt completes.
+     *
+     * @param attempt the number of this call for the user, starting at 1
+     */
+    private void submitUser(final UserData user, final int attempt)
+    {
+        final String username = user.getUsername();
+        try
+        {
+            CircuitBreaker circuitBreaker = getCircuitBreaker();
+            final CircuitBreaker.Permit permit = circuitBreaker == null ? CircuitBreaker.Permit.GRANTED : circuitBreaker.tryAcquire();
+            if (!permit.isGranted())
+            {
+                // Keep the in-flight permit and try again once the breaker may let calls through
+                retryScheduler.schedule(() -> submitUser(user, attempt), permit.getDelay(), TimeUnit.MILLISECONDS);
+                return;
+            }
+            final long start = System.nanoTime();
+            FutureCallback<Integer> callback = new FutureCallback<Integer>()
+            {
+                @Override
+                public void completed(Integer code)
+                {
+                    recordCreation(start, RetryPolicy.isServerError(code), permit);
+                    RetryPolicy retryPolicy = getRetryPolicy();
+                    if (retryPolicy != null && retryPolicy.shouldRetry(code, attempt))
+                    {
+                        logger.warn("Retrying the creation of user: " + username + " after status: " + code);
+                        retryLater(user, attempt);
+                        return;
+                    }
+                    inFlight.release();
+                    getExecutor().execute(() -> personCreated(username, code, attempt));
+                }
+
+                @Override
+                public void failed(Exception e)
+                {
+                    recordCreationFailure(start, e, permit);
+                    RetryPolicy retryPolicy = getRetryPolicy();
+                    if (retryPolicy != null && retryPolicy.shouldRetry(e, attempt))
+                    {
+                        logger.warn("Retrying the creation of user: " + username + " after: " + e.getMessage());
+                        retryLater(user, attempt);
+                        return;
+                    }
+                    inFlight.release();
+                    getExecutor().execute(() ->
+                    {
+                        logger.error("Failed to create user: " + username + " message: " + e.getMessage(), e);
+                        markAsFailure(username);
+                    });
+                }
+
+                @Override
+                public void cancelled()
+                {
+                    failed(new IllegalStateException("Request cancelled."));
+                }
+            };
+            if (isRandomPersonDetails())
+            {
+                asyncPeopleRestClient.createPerson(newPersonModel(user), callback);
+            }
+            else
+            {
+                asyncPeopleRestClient.createPerson(user, callback);
+            }
+        }
+        catch (Exception e)
+        {
+            inFlight.release();
+            logger.error("Failed to create user: " + username + " message: " + e.getMessage(), e);
+            markAsFailure(username);
+        }
+    }
+
+    /**
+     * Issue the next attempt once the backoff has passed, without blocking the I/O threads
+     */
+    private void retryLater(UserData user, int attempt)
+    {
+        long delay = getRetryPolicy().getDelay(attempt);
+        retryScheduler.schedule(() -> submitUser(user, attempt + 1), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Record the outcome of a person creation and start the group memberships
+     */
+    private void personCreated(String username, int code, int attempt)
+    {
+        boolean personCreated = isPersonCreated(code, attempt);
+        if (personCreated)
+        {
+            List<String> groups = getMembershipGroups(username);
+            if (isDeferGroupMemberships())
+            {
+                getCreationStateWriter().addPendingGroups(username, groups);
+            }
+            else
+            {
+                for (String group : groups)
+                {
+                    addToGroup(username, group);
+                }
+            }
+        }
+        boolean created = personCreated || isUserCreated(code);
+        if (getRetryPolicy() != null)
+        {
+            getRetryPolicy().recordOutcome(attempt, created);
+        }
+        if (created)
+        {
+            markAsSuccess(username);
+        }
+        else
+        {
+            markAsFailure(username);
+        }
+    }
+
+    private void addToGroup(final String username, final String group)
+    {
+        final long start = System.nanoTime();
+        try
+        {
+            asyncPeopleRestClient.createGroupMembership("GROUP_" + group, username, new FutureCallback<Integer>()
+            {
+                @Override
+                public void completed(Integer code)
+                {
+                    recordLatency(ProvisioningLatencies.PHASE_GROUP_MEMBERSHIP, start);
+                    logGroupMembership(username, group, code);
+                }
+
+                @Override
+                public void failed(Exception e)
+                {
+                    recordLatency(ProvisioningLatencies.PHASE_GROUP_MEMBERSHIP, start);
+                    logger.error("error adding user to a group: " + group + " message: " + e.getMessage(), e);
+                }
+
+                @Override
+                public void cancelled()
+                {
+                    logger.error("error adding user to a group: " + group + " message: request cancelled");
+                }
+            });
+        }
+        catch (Exception e)
+        {
+            // just log it, we don't care that much
+            logger.error("error adding user to a group: " + group + " message: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.driver.event.Event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Event processor that creates the users of one shard of the username space, page after page.
+ * <p/>
+ * <h1>Input</h1><br/>
+ * The shard, its username range and the last username processed:
+ * <pre>
+ *    { "shard" : 3, "fromUsername" : "user3000", "toUsername" : "user4000", "afterUsername" : "user3499" }
+ * </pre>
+ * The first shard has no <tt>fromUsername</tt>, the last one no <tt>toUsername</tt>, and
+ * <tt>afterUsername</tt> is absent until the first page has been processed.
+ * <p/>
+ * <h1>Data</h1><br/>
+ * Collection containing users. The users will be marked as created or failed.
+ * <p/>
+ * <h1>Actions</h1><br/>
+ * Up to {@link #setPagesPerEvent(int) pagesPerEvent} pages of {@link #setPageSize(int) pageSize}
+ * users not scheduled yet are read in username order and created as a {@link CreateUserBatch batch}
+ * would.  The next page is read while the current one is being created.  Since each shard has its
+ * own range, the drivers never read or write the same users and no user needs to be scheduled
+ * beforehand.  The progress of the shard is recorded in the {@link UserShards}, if there are any.
+ * <p/>
+ * <h1>Output</h1>
+ * {@link #EVENT_NAME_CREATE_USER_SHARD}: to process the next pages of the shard, until it has no
+ * user left to create<br/>
+ *
+ * @since 3.0.1
+ */
+public class CreateUserShard extends CreateUserBatch
+{
+    public static final String EVENT_NAME_CREATE_USER_SHARD = "createUserShard";
+
+    public static final String EVENT_DATA_SHARD = "shard";
+    public static final String EVENT_DATA_AFTER_USERNAME = "afterUsername";
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int DEFAULT_PAGES_PER_EVENT = 10;
+
+    private final ExecutorService prefetcher;
+    private UserShards userShards;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private int pagesPerEvent = DEFAULT_PAGES_PER_EVENT;
+
+    /**
+     * @param userDataBulkService bulk access to the users mirror
+     * @param threadCount         the number of users of a page that will be created at the same time
+     */
+    public CreateUserShard(UserDataBulkService userDataBulkService, int threadCount)
+    {
+        super(userDataBulkService, threadCount);
+        this.prefetcher = Executors.newCachedThreadPool(runnable ->
+        {
+            Thread thread = new Thread(runnable, "CreateUserShard-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param userShards optional record of the progress of each shard
+     */
+    public void setUserShards(UserShards userShards)
+    {
+        this.userShards = userShards;
+    }
+
+    /**
+     * @param pageSize the number of users created at once
+     */
+    public void setPageSize(int pageSize)
+    {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @param pagesPerEvent the number of pages created by each event
+     */
+    public void setPagesPerEvent(int pagesPerEvent)
+    {
+        this.pagesPerEvent = pagesPerEvent;
+    }
+
+    @Override
+    protected EventResult processEvent(Event event) throws Exception
+    {
+        super.suspendTimer();
+
+        DBObject dataObj = (DBObject) event.getData();
+        int shard = ((Number) dataObj.get(EVENT_DATA_SHARD)).intValue();
+        String fromUsername = (String) dataObj.get(EVENT_DATA_FROM_USERNAME);
+        String toUsername = (String) dataObj.get(EVENT_DATA_TO_USERNAME);
+        String afterUsername = (String) dataObj.get(EVENT_DATA_AFTER_USERNAME);
+
+        int createdCount = 0;
+        int failedCount = 0;
+        boolean done = false;
+        Future<Map<String, UserData>> nextPage = prefetch(afterUsername, fromUsername, toUsername);
+        for (int page = 0; page < pagesPerEvent; page++)
+        {
+            long lookupStart = System.nanoTime();
+            Map<String, UserData> users = nextPage.get();
+            recordLatency(ProvisioningLatencies.PHASE_FIND_USER, lookupStart);
+            if (users.isEmpty())
+            {
+                done = true;
+                break;
+            }
+            afterUsername = lastUsername(users);
+            // Read the next page while this one is created
+            nextPage = page + 1 < pagesPerEvent ? prefetch(afterUsername, fromUsername, toUsername) : null;
+
+            super.resumeTimer();
+            List<String> created = new ArrayList<>(users.size());
+            List<String> failed = new ArrayList<>();
+            createAll(users.values(), created, failed);
+            super.suspendTimer();
+
+            setUserCreationStates(created, failed);
+            if (userShards != null)
+            {
+                userShards.recordPage(shard, afterUsername, created.size(), failed.size());
+            }
+            createdCount += created.size();
+            failedCount += failed.size();
+            if (users.size() < pageSize)
+            {
+                done = true;
+                break;
+            }
+        }
+
+        DBObject resultObj = new BasicDBObject()
+            .append(EVENT_DATA_SHARD, shard)
+            .append("created", createdCount)
+            .append("failed", failedCount);
+        if (done)
+        {
+            if (userShards != null)
+            {
+                userShards.markDone(shard);
+            }
+            resultObj.put("done", true);
+            return new EventResult(resultObj, Collections.EMPTY_LIST, failedCount == 0);
+        }
+
+        DBObject nextDataObj = new BasicDBObject(EVENT_DATA_SHARD, shard)
+            .append(EVENT_DATA_FROM_USERNAME, fromUsername)
+            .append(EVENT_DATA_TO_USERNAME, toUsername)
+            .append(EVENT_DATA_AFTER_USERNAME, afterUsername);
+        Event nextEvent = new Event(EVENT_NAME_CREATE_USER_SHARD, System.currentTimeMillis(), nextDataObj);
+        return new EventResult(resultObj, Collections.singletonList(nextEvent), failedCount == 0);
+    }
+
+    private Future<Map<String, UserData>> prefetch(String afterUsername, String fromUsername, String toUsername)
+    {
+        return prefetcher.submit(() -> getUserDataBulkService().findUnscheduledUsersInRange(afterUsername, fromUsername, toUsername, pageSize));
+    }
+
+    private static String lastUsername(Map<String, UserData> users)
+    {
+        String last = null;
+        for (String username : users.keySet())
+        {
+            last = username;
+        }
+        return last;
+    }
+}
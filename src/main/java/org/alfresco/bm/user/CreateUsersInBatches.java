@@ -0,0 +1,515 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.driver.event.AbstractEventProcessor;
+import org.alfresco.bm.driver.event.Event;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Event processor that schedules the creation of the users prepared in the local mirror.
+ * <p/>
+ * <h1>Input</h1><br/>
+ * None on the first call; afterwards the number of users already scheduled by previous calls.
+ * <p/>
+ * <h1>Data</h1><br/>
+ * Collection containing users. Users that are not scheduled yet will be marked as scheduled.
+ * <p/>
+ * <h1>Actions</h1><br/>
+ * A page of unscheduled users is fetched and split into batches of {@link #setBatchSize(int) batchSize}
+ * users.  With a batch size of 1, one {@link #EVENT_NAME_CREATE_USER createUser} event is raised per
+ * user, exactly like {@link CreateUsers}; otherwise one {@link #EVENT_NAME_CREATE_USER_BATCH createUserBatch}
+ * event is raised per batch.  With {@link #setAsyncHttp(boolean) asyncHttp}, every batch, whatever its size,
+ * is raised as a {@link #EVENT_NAME_CREATE_USER_BATCH_ASYNC createUserBatchAsync} event.  The events are spaced so that, on average, one user is created every
+ * {@link #setCreationDelay(long) creationDelay} milliseconds, whatever the batch size.
+ * <p/>
+ * When an {@link AdaptiveRateController adaptive rate controller} is in use, the creation delay is
+ * replaced by the controller's current rate.  The rate is reconsidered each time this processor
+ * runs, a page covering roughly one decision interval, and each decision is recorded in the
+ * result of this event.  The controller starts again from its initial rate with the first page.
+ * <p/>
+ * Otherwise, when a {@link LoadShape load shape} is enabled, each user is scheduled at the time the
+ * shape makes it due, counted from the first page, instead of being spaced by the creation delay.
+ * Each page then covers about one sample interval, or one whole burst, and the target rate is
+ * recorded in the result of this event alongside the rate at which users were actually created
+ * since the previous page.
+ * <p/>
+ * Each page of users scheduled is loaded into the optional {@link UserDataCache} with one query.
+ * <p/>
+ * When a {@link DriverCalibration calibration} is enabled, users are scheduled without any delay
+ * and the calibration's measurements start with the first page.
+ * <p/>
+ * With a {@link #setShardCount(int) shardCount}, nothing is scheduled page by page: the username
+ * space is split into that many contiguous ranges on the first call and one
+ * {@link CreateUserShard#EVENT_NAME_CREATE_USER_SHARD createUserShard} event is raised per range.
+ * Each range is then worked through by whichever driver picks up its events, so that several
+ * drivers can provision users without contending for the same documents.  The load shape does
+ * not apply to shards.
+ * <p/>
+ * With {@link #setSynthesizeUsers(boolean) synthesizeUsers}, the mirror is neither read nor
+ * written: each page is a range of user indexes, split into
+ * {@link #EVENT_NAME_CREATE_USER_BATCH createUserBatch} events that rebuild their users from
+ * the indexes with a {@link UserSynthesizer}.  Batches of one user, non-blocking HTTP and shards
+ * all need the users in the mirror and are not used in this mode.
+ * <p/>
+ * <h1>Output</h1>
+ * {@link #EVENT_NAME_CREATE_USER}: for each user when the batch size is 1<br/>
+ * {@link #EVENT_NAME_CREATE_USER_BATCH}: for each batch of users otherwise<br/>
+ * {@link #EVENT_NAME_CREATE_USER_BATCH_ASYNC}: for each batch of users when using non-blocking HTTP<br/>
+ * {@link CreateUserShard#EVENT_NAME_CREATE_USER_SHARD}: for each shard when provisioning by shard<br/>
+ * {@link #EVENT_NAME_CREATE_USERS}: to schedule the next page of users<br/>
+ * {@link #EVENT_NAME_USERS_CREATED}: when all users have been scheduled<br/>
+ *
+ * @since 3.0.1
+ */
+public class CreateUsersInBatches extends AbstractEventProcessor
+{
+    public static final String EVENT_NAME_CREATE_USER = "createUser";
+    public static final String EVENT_NAME_CREATE_USER_BATCH = "createUserBatch";
+    public static final String EVENT_NAME_CREATE_USER_BATCH_ASYNC = "createUserBatchAsync";
+    public static final String EVENT_NAME_CREATE_USERS = "createUsers";
+    public static final String EVENT_NAME_USERS_CREATED = "usersCreated";
+
+    public static final String EVENT_DATA_SCHEDULED = "scheduled";
+    public static final String EVENT_DATA_STARTED = "started";
+
+    public static final long DEFAULT_CREATION_DELAY = 100L;
+    public static final int DEFAULT_BATCH_SIZE = 1;
+    public static final int DEFAULT_BATCHES_PER_PAGE = 100;
+
+    private final UserDataBulkService userDataBulkService;
+    private final long numberOfUsers;
+    private long creationDelay = DEFAULT_CREATION_DELAY;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int batchesPerPage = DEFAULT_BATCHES_PER_PAGE;
+    private boolean asyncHttp = false;
+    private AdaptiveRateController rateController;
+    private ProvisioningLatencies latencies;
+    private UserCreationTracker completionTracker;
+    private int shardCount = 0;
+    private boolean synthesizeUsers = false;
+    private UserDataCache userDataCache;
+    private UserShards userShards;
+    private DriverCalibration calibration;
+    private LoadShape loadShape;
+    private GroupResolver groupResolver;
+    private String userGroups = "";
+
+    /**
+     * @param userDataBulkService bulk access to the users mirror
+     * @param numberOfUsers       the maximum number of users to schedule
+     */
+    public CreateUsersInBatches(UserDataBulkService userDataBulkService, long numberOfUsers)
+    {
+        this.userDataBulkService = userDataBulkService;
+        this.numberOfUsers = numberOfUsers;
+    }
+
+    /**
+     * @param creationDelay the average time between the creation of two users (milliseconds)
+     */
+    public void setCreationDelay(long creationDelay)
+    {
+        this.creationDelay = creationDelay;
+    }
+
+    /**
+     * @param batchSize the number of users created by a single event
+     */
+    public void setBatchSize(int batchSize)
+    {
+        if (batchSize < 1)
+        {
+            throw new IllegalArgumentException("'batchSize' must be at least 1.");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param batchesPerPage the number of batches scheduled each time this processor runs
+     */
+    public void setBatchesPerPage(int batchesPerPage)
+    {
+        this.batchesPerPage = batchesPerPage;
+    }
+
+    /**
+     * @param asyncHttp <tt>true</tt> to create the users with non-blocking HTTP calls
+     */
+    public void setAsyncHttp(boolean asyncHttp)
+    {
+        this.asyncHttp = asyncHttp;
+    }
+
+    /**
+     * @param rateController optional controller setting the creation rate when adaptive
+     */
+    public void setRateController(AdaptiveRateController rateController)
+    {
+        this.rateController = rateController;
+    }
+
+    /**
+     * @param latencies optional latency histograms, cleared of earlier runs when the first page is scheduled
+     */
+    public void setLatencies(ProvisioningLatencies latencies)
+    {
+        this.latencies = latencies;
+    }
+
+    /**
+     * @param completionTracker optional tracker, restarted when the first page is scheduled
+     */
+    public void setCompletionTracker(UserCreationTracker completionTracker)
+    {
+        this.completionTracker = completionTracker;
+    }
+
+    /**
+     * @param shardCount the number of username ranges provisioned independently, or 0 to schedule
+     *                   users page by page
+     */
+    public void setShardCount(int shardCount)
+    {
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * @param userShards optional record of the progress of each shard, restarted when the shards are raised
+     */
+    public void setUserShards(UserShards userShards)
+    {
+        this.userShards = userShards;
+    }
+
+    /**
+     * @param userDataCache optional cache prefilled with each page of users scheduled, on this driver only;
+     *                      it must hold more users than a page
+     */
+    public void setUserDataCache(UserDataCache userDataCache)
+    {
+        this.userDataCache = userDataCache;
+    }
+
+    /**
+     * @param synthesizeUsers <tt>true</tt> to schedule ranges of user indexes rather than users
+     *                        read from the mirror
+     */
+    public void setSynthesizeUsers(boolean synthesizeUsers)
+    {
+        this.synthesizeUsers = synthesizeUsers;
+    }
+
+    /**
+     * @param calibration optional calibration, removing the creation delay when enabled
+     */
+    public void setCalibration(DriverCalibration calibration)
+    {
+        this.calibration = calibration;
+    }
+
+    /**
+     * @param groupResolver optional resolver told about the {@link #setUserGroups(String) userGroups}
+     *                      when the run starts; other drivers resolve the groups when they first need them
+     */
+    public void setGroupResolver(GroupResolver groupResolver)
+    {
+        this.groupResolver = groupResolver;
+    }
+
+    /**
+     * @param userGroups the groups users are added to, as given to the user creation processors
+     */
+    public void setUserGroups(String userGroups)
+    {
+        this.userGroups = userGroups;
+    }
+
+    /**
+     * @param loadShape optional shape of the load, replacing the creation delay when enabled
+     */
+    public void setLoadShape(LoadShape loadShape)
+    {
+        this.loadShape = loadShape;
+    }
+
+    @Override
+    protected EventResult processEvent(Event event) throws Exception
+    {
+        long now = System.currentTimeMillis();
+        long scheduled = 0L;
+        long started = now;
+        Object data = event.getData();
+        if (data instanceof DBObject && ((DBObject) data).containsField(EVENT_DATA_SCHEDULED))
+        {
+            scheduled = ((Number) ((DBObject) data).get(EVENT_DATA_SCHEDULED)).longValue();
+            Object startedObj = ((DBObject) data).get(EVENT_DATA_STARTED);
+            if (startedObj != null)
+            {
+                started = ((Number) startedObj).longValue();
+            }
+        }
+        else
+        {
+            // First page: nothing has been timed or counted yet
+            if (latencies != null)
+            {
+                latencies.reset();
+            }
+            if (completionTracker != null)
+            {
+                // Synthesized users are all scheduled again, including those created by earlier runs
+                completionTracker.reset(!synthesizeUsers);
+                completionTracker.recordFirstScheduled(System.currentTimeMillis());
+                Long timeToFirstCreation = completionTracker.getTimeToFirstCreation();
+                if (timeToFirstCreation != null)
+                {
+                    logger.info("First users scheduled for creation " + timeToFirstCreation + "ms after the preparation started.");
+                }
+            }
+            if (calibration != null)
+            {
+                calibration.start();
+            }
+            if (loadShape != null)
+            {
+                loadShape.reset();
+            }
+            if (rateController != null && rateController.isAdaptive())
+            {
+                rateController.reset();
+            }
+            if (groupResolver != null)
+            {
+                // Pre-flight: find out which groups users can be added to before any is created
+                groupResolver.resolveAll(GroupSampler.parse(userGroups).keySet());
+            }
+        }
+
+        if (shardCount > 0 && !synthesizeUsers)
+        {
+            return raiseShards(now);
+        }
+        long pageSize = (long) batchSize * batchesPerPage;
+        boolean calibrating = calibration != null && calibration.isEnabled();
+        double delay = calibrating ? 0.0 : creationDelay;
+        DBObject details = null;
+        Schedule schedule;
+        if (rateController != null && rateController.isAdaptive() && !calibrating)
+        {
+            details = new BasicDBObject("rate", rateController.adjust());
+            delay = rateController.getCreationDelay();
+            // Come back after about one decision interval
+            long usersPerInterval = Math.round(rateController.getRate() * rateController.getDecisionInterval() / 1000.0);
+            pageSize = Math.max(batchSize, Math.min(pageSize, usersPerInterval));
+            schedule = new Schedule(now, delay);
+        }
+        else if (loadShape != null && loadShape.isEnabled() && !calibrating)
+        {
+            long elapsed = now - started;
+            long created = completionTracker == null ? -1L : completionTracker.getCounters().getCreated();
+            details = new BasicDBObject("load", loadShape.sample(elapsed, created));
+            pageSize = loadShape.getPageSize(elapsed, batchSize);
+            schedule = new Schedule(now, started, scheduled);
+        }
+        else
+        {
+            schedule = new Schedule(now, delay);
+        }
+        pageSize = Math.min(pageSize, numberOfUsers - scheduled);
+        if (synthesizeUsers)
+        {
+            return scheduleIndexes(now, started, scheduled, (int) Math.max(0L, pageSize), schedule, details);
+        }
+        List<String> usernames = pageSize > 0
+            ? userDataBulkService.findUsernamesByCreationState(DataCreationState.NotScheduled, (int) pageSize)
+            : new ArrayList<String>(0);
+        if (usernames.isEmpty())
+        {
+            // Everything has been scheduled
+            Event doneEvent = new Event(EVENT_NAME_USERS_CREATED, now, null);
+            return new EventResult("Scheduled creation of " + scheduled + " users.", doneEvent);
+        }
+
+        userDataBulkService.setUserCreationState(usernames, DataCreationState.Scheduled);
+        if (completionTracker != null)
+        {
+            completionTracker.record(DataCreationState.Scheduled, usernames.size());
+        }
+        if (userDataCache != null)
+        {
+            // Only this driver's cache is filled: events processed here find their users in memory,
+            // other drivers load theirs on demand.  Pages larger than the cache are not prefilled.
+            userDataCache.prefill(usernames);
+        }
+
+        List<Event> nextEvents = new ArrayList<>(usernames.size() / batchSize + 2);
+        for (int from = 0; from < usernames.size(); from += batchSize)
+        {
+            long scheduledTime = schedule.getTime(from);
+            List<String> batch = usernames.subList(from, Math.min(from + batchSize, usernames.size()));
+            Event createEvent;
+            if (batchSize == 1 && !asyncHttp)
+            {
+                createEvent = new Event(EVENT_NAME_CREATE_USER, scheduledTime, batch.get(0));
+            }
+            else
+            {
+                BasicDBList batchList = new BasicDBList();
+                batchList.addAll(batch);
+                String eventName = asyncHttp ? EVENT_NAME_CREATE_USER_BATCH_ASYNC : EVENT_NAME_CREATE_USER_BATCH;
+                createEvent = new Event(eventName, scheduledTime, new BasicDBObject(CreateUserBatch.EVENT_DATA_USERNAMES, batchList));
+            }
+            nextEvents.add(createEvent);
+        }
+        long nextPageTime = schedule.getTime(usernames.size());
+        scheduled += usernames.size();
+        return nextPage(nextEvents, nextPageTime, started, scheduled, usernames.size(), details);
+    }
+
+    /**
+     * Schedule a page of users given by index, in batches
+     */
+    private EventResult scheduleIndexes(long now, long started, long scheduled, int pageSize, Schedule schedule, DBObject details)
+    {
+        if (pageSize == 0)
+        {
+            // Everything has been scheduled
+            Event doneEvent = new Event(EVENT_NAME_USERS_CREATED, now, null);
+            return new EventResult("Scheduled creation of " + scheduled + " users.", doneEvent);
+        }
+        if (completionTracker != null)
+        {
+            completionTracker.record(DataCreationState.Scheduled, pageSize);
+        }
+
+        List<Event> nextEvents = new ArrayList<>(pageSize / batchSize + 2);
+        for (int from = 0; from < pageSize; from += batchSize)
+        {
+            int count = Math.min(batchSize, pageSize - from);
+            DBObject batchObj = new BasicDBObject(CreateUserBatch.EVENT_DATA_FROM_INDEX, scheduled + from)
+                .append(CreateUserBatch.EVENT_DATA_COUNT, count);
+            nextEvents.add(new Event(EVENT_NAME_CREATE_USER_BATCH, schedule.getTime(from), batchObj));
+        }
+        return nextPage(nextEvents, schedule.getTime(pageSize), started, scheduled + pageSize, pageSize, details);
+    }
+
+    /**
+     * Add the event scheduling the next page, once this one has been fired off, and report the page
+     */
+    private EventResult nextPage(List<Event> nextEvents, long scheduledTime, long started, long scheduled, int pageSize, DBObject details)
+    {
+        DBObject selfObj = new BasicDBObject(EVENT_DATA_SCHEDULED, scheduled).append(EVENT_DATA_STARTED, started);
+        nextEvents.add(new Event(EVENT_NAME_CREATE_USERS, scheduledTime, selfObj));
+
+        String msg = "Scheduled creation of " + pageSize + " users in " + (nextEvents.size() - 1) + " events.";
+        if (details != null)
+        {
+            DBObject resultObj = new BasicDBObject("msg", msg);
+            resultObj.putAll(details);
+            return new EventResult(resultObj, nextEvents);
+        }
+        return new EventResult(msg, nextEvents);
+    }
+
+    /**
+     * Split the users into shards and raise the first event of each
+     */
+    private EventResult raiseShards(long now)
+    {
+        List<String> boundaries = userDataBulkService.findUsernameBoundaries(shardCount);
+        int shards = boundaries.size() + 1;
+        if (userShards != null)
+        {
+            userShards.reset(boundaries);
+        }
+        if (completionTracker != null)
+        {
+            completionTracker.record(DataCreationState.Scheduled, (int) userDataBulkService.countUsersByCreationState(DataCreationState.NotScheduled));
+        }
+
+        List<Event> nextEvents = new ArrayList<>(shards + 1);
+        for (int shard = 0; shard < shards; shard++)
+        {
+            DBObject shardObj = new BasicDBObject(CreateUserShard.EVENT_DATA_SHARD, shard)
+                .append(CreateUserBatch.EVENT_DATA_FROM_USERNAME, shard == 0 ? null : boundaries.get(shard - 1))
+                .append(CreateUserBatch.EVENT_DATA_TO_USERNAME, shard == shards - 1 ? null : boundaries.get(shard));
+            nextEvents.add(new Event(CreateUserShard.EVENT_NAME_CREATE_USER_SHARD, now, shardObj));
+        }
+        nextEvents.add(new Event(EVENT_NAME_USERS_CREATED, now, null));
+        return new EventResult("Raised " + shards + " user creation shards.", nextEvents);
+    }
+
+    /**
+     * When the users of a page are due, either spaced by a fixed delay or following the load shape
+     */
+    private final class Schedule
+    {
+        private final long now;
+        private final double delay;
+        private final long started;
+        private final long scheduled;
+        private final boolean shaped;
+
+        private Schedule(long now, double delay)
+        {
+            this.now = now;
+            this.delay = delay;
+            this.started = now;
+            this.scheduled = 0L;
+            this.shaped = false;
+        }
+
+        private Schedule(long now, long started, long scheduled)
+        {
+            this.now = now;
+            this.delay = 0.0;
+            this.started = started;
+            this.scheduled = scheduled;
+            this.shaped = true;
+        }
+
+        /**
+         * @param index the position of the user in the page
+         * @return the time at which the user is due; users already overdue are due straight away
+         */
+        private long getTime(long index)
+        {
+            if (shaped)
+            {
+                return Math.max(now, started + loadShape.getOffset(scheduled + index));
+            }
+            return now + Math.round(delay * index);
+        }
+    }
+}
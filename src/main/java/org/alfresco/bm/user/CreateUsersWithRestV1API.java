@@ -29,21 +29,17 @@ import org.alfresco.bm.AbstractRestApiEventProcessor;
 import org.alfresco.bm.common.EventResult;
 import org.alfresco.bm.data.DataCreationState;
 import org.alfresco.bm.driver.event.Event;
-import org.alfresco.rest.model.RestGroupMember;
 import org.alfresco.rest.model.RestPersonModel;
-import org.alfresco.utility.model.UserModel;
 import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.context.ApplicationContext;
 import org.springframework.http.HttpStatus;
 
-import javax.json.Json;
-import javax.json.JsonObject;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.StringTokenizer;
 
 /**
  * Event processor that creates a test-user in the alfresco-system based on the
@@ -56,25 +52,62 @@ import java.util.StringTokenizer;
  * Collection containing users. User* will be marked as created.
  * <p/>
  * <h1>Actions</h1><br/>
- * The user is created in alfresco through V1 REST using the TAS rest api library.
+ * The user is created in alfresco through V1 REST using a {@link PeopleRestClient} shared by all threads.
  * When user already existed in alfresco when processed and
  * 'ignoreExistingUsers' property is set to true, the event is considered
  * processed successfully instead of throwing an exception.
  * <p/>
+ * With a {@link RetryPolicy}, transient failures (server errors, timeouts, reset connections) are
+ * retried after a jittered backoff before the user is marked as failed.  With a {@link CircuitBreaker},
+ * person creations are paused while most of them fail.  Both are off by default.  The time spent
+ * waiting for either is not counted in the event's time, except in batches, whose time covers the
+ * whole batch.  The {@link HttpConnectionPools} size the
+ * connection pool of the client and set its timeouts.
+ * <p/>
+ * The {@link UserCreationStrategy creation strategy} decides, for each user, whether the person
+ * and its groups are created with V1 calls or with a single call to the legacy people Web Script.
+ * Users created with the legacy Web Script have no membership left to make or defer.
+ * <p/>
+ * The REST client and its connection pool are closed with the test run's context.
+ * <p/>
  * <h1>Output</h1>
  * No next event will be scheduled.
  */
-public class CreateUsersWithRestV1API extends AbstractRestApiEventProcessor
+public class CreateUsersWithRestV1API extends AbstractRestApiEventProcessor implements DisposableBean
 {
     private UserDataService userDataService;
+    private UserCreationStateWriter creationStateWriter;
+    private AdaptiveRateController rateController;
+    private GroupResolver groupResolver;
+    private AdminAuthenticator adminAuthenticator;
+    private ProvisioningLatencies latencies;
+    private RetryPolicy retryPolicy;
+    private CircuitBreaker circuitBreaker;
+    private HttpConnectionPools connectionPools;
+    private UserDataCache userDataCache;
+    private boolean randomPersonDetails = false;
+    private boolean deferGroupMemberships = false;
+    private UserCreationStrategy creationStrategy = UserCreationStrategy.V1;
     private boolean ignoreExistingUsers = false;
     private String userGroups;
     private Map<String, Double> userGroupsMap;
+    private GroupSampler groupSampler;
+    private boolean deterministicGroups = false;
+    private long groupSeed = 0L;
 
     private String alfrescoAdminUsername;
     private String alfrescoAdminPassword;
 
-    private UserModel adminUser;
+    private String baseUrl;
+
+    private PeopleRestClient peopleRestClient;
+
+    @Override
+    public void setBaseUrl(String baseUrl)
+    {
+        super.setBaseUrl(baseUrl);
+        this.baseUrl = baseUrl;
+    }
 
     public void setAlfrescoAdminUsername(String alfrescoAdminUsername)
     {
@@ -91,21 +124,12 @@ public class CreateUsersWithRestV1API extends AbstractRestApiEventProcessor
     {
         super.suspendTimer();
 
-        synchronized (this)
-        {
-            if (userGroupsMap == null)
-            {
-                initializeUserGroupsMap();
-            }
-            if (adminUser == null)
-            {
-                adminUser = new UserModel(alfrescoAdminUsername, alfrescoAdminPassword);
-            }
-        }
         String username = (String) event.getData();
 
         // Look up the user data
-        UserData user = userDataService.findUserByUsername(username);
+        long lookupStart = System.nanoTime();
+        UserData user = userDataCache != null ? userDataCache.findUserByUsername(username) : userDataService.findUserByUsername(username);
+        recordLatency(ProvisioningLatencies.PHASE_FIND_USER, lookupStart);
         if (user == null)
         {
             // User already existed
@@ -115,61 +139,299 @@ public class CreateUsersWithRestV1API extends AbstractRestApiEventProcessor
 
         try
         {
-            RestPersonModel personModel = RestPersonModel.getRandomPersonModel();
-            personModel.setEmail(user.getEmail());
-            personModel.setFirstName(user.getFirstName());
-            personModel.setLastName(user.getLastName());
-            personModel.setPassword(user.getPassword());
-            personModel.setId(username);
-            personModel.setAvatarId(null);
-            personModel.setStatusUpdatedAt(null);
-            personModel.setAspectNames(null);
-
             super.resumeTimer();
-            RestPersonModel createdPersonModel = getRestWrapper().authenticateUser(adminUser).withCoreAPI().usingAuthUser().createPerson(personModel);
+            boolean created = createUser(user, true);
             super.suspendTimer();
 
-            final String code = getRestWrapper().getStatusCode();
+            return created ? markAsSuccess(username) : markAsFailure(username);
+        }
+        catch (Exception e)
+        {
+            logger.error(e.getMessage(), e);
+            throw e;
+        }
+    }
 
-            if (HttpStatus.CREATED.toString().equals(code))
-            {
-                // Assign random groups
-                List<String> groups = getRandomGroups();
-                //associate user with some groups.
-                handleGroupsAssociation(username, groups);
+    /**
+     * Set up the group chances and the REST client and resolve the groups.  This is done once, when the
+     * bean is started, so that events can be processed concurrently without any locking.
+     *
+     * @throws IllegalArgumentException if the userGroups string is not well-formed
+     */
+    protected void initialize()
+    {
+        if (deferGroupMemberships && creationStateWriter == null)
+        {
+            throw new IllegalStateException("A 'creationStateWriter' is required to defer group memberships.");
+        }
+        initializeUserGroupsMap();
+        if (adminAuthenticator == null)
+        {
+            adminAuthenticator = PeopleRestClient.basicAuthenticator(baseUrl, alfrescoAdminUsername, alfrescoAdminPassword);
+        }
+        if (connectionPools == null)
+        {
+            connectionPools = new HttpConnectionPools();
+        }
+        peopleRestClient = new PeopleRestClient(baseUrl, adminAuthenticator, connectionPools, getName(), getConcurrency());
+    }
 
-                //success, created the user
-                return markAsSuccess(username);
+    /**
+     * Create the user in Alfresco and associate it with some random groups.
+     * <p/>
+     * This only talks to Alfresco; neither the timer nor the local user data are touched, so it
+     * may be called from any thread.
+     *
+     * @param user the details of the user to create
+     * @return <tt>true</tt> if the user can be considered as created
+     * @throws Exception if the REST call could not be made
+     */
+    protected boolean createUser(UserData user) throws Exception
+    {
+        return createUser(user, false);
+    }
+
+    /**
+     * Create the user in Alfresco and associate it with some random groups
+     *
+     * @param user  the details of the user to create
+     * @param timed <tt>true</tt> if this thread is processing the event and its timer is running: the
+     *              timer is then suspended while waiting to retry or for the circuit breaker, so
+     *              that the waits are not counted as creation latency
+     * @return <tt>true</tt> if the user can be considered as created
+     * @throws Exception if the REST call could not be made
+     */
+    protected boolean createUser(UserData user, boolean timed) throws Exception
+    {
+        String username = user.getUsername();
+        // Assign random groups
+        List<String> groups = getMembershipGroups(username);
+        boolean legacy = creationStrategy.isLegacy(groups.size());
+
+        int attempt = 0;
+        int code;
+        while (true)
+        {
+            attempt++;
+            CircuitBreaker.Permit permit = CircuitBreaker.Permit.GRANTED;
+            if (circuitBreaker != null)
+            {
+                suspendTimerIf(timed);
+                permit = circuitBreaker.acquire();
+                resumeTimerIf(timed);
             }
-            else if (HttpStatus.CONFLICT.toString().equals(code))
+            long start = System.nanoTime();
+            try
             {
-                if (isIgnoreExistingUsers())
+                if (legacy)
                 {
-                    // user already exists, but we don't care, so... success
-                    return markAsSuccess(username);
+                    code = createPersonWithGroups(user, groups);
                 }
                 else
                 {
-                    // user already exists and we consider this a problem, failed
-                    return markAsFailure(username);
+                    code = randomPersonDetails ? peopleRestClient.createPerson(newPersonModel(user)) : peopleRestClient.createPerson(user);
                 }
             }
+            catch (IOException e)
+            {
+                recordCreationFailure(start, e, permit);
+                if (retryPolicy != null && retryPolicy.shouldRetry(e, attempt))
+                {
+                    logger.warn("Retrying the creation of user: " + username + " after: " + e.getMessage());
+                    suspendTimerIf(timed);
+                    retryPolicy.backOff(attempt);
+                    resumeTimerIf(timed);
+                    continue;
+                }
+                throw e;
+            }
+            recordCreation(start, RetryPolicy.isServerError(code), permit);
+            if (retryPolicy == null || !retryPolicy.shouldRetry(code, attempt))
+            {
+                break;
+            }
+            logger.warn("Retrying the creation of user: " + username + " after status: " + code);
+            suspendTimerIf(timed);
+            retryPolicy.backOff(attempt);
+            resumeTimerIf(timed);
+        }
+
+        boolean personCreated = isPersonCreated(code, attempt);
+        if (personCreated && !legacy)
+        {
+            if (deferGroupMemberships)
+            {
+                // the group membership phase will associate the user
+                creationStateWriter.addPendingGroups(username, groups);
+            }
             else
             {
-                // failed
-                return markAsFailure(username);
+                //associate user with some groups.
+                handleGroupsAssociation(username, groups);
             }
         }
-        catch (Exception e)
+        boolean created = personCreated || isUserCreated(code);
+        if (retryPolicy != null)
         {
-            logger.error(e.getMessage(), e);
-            throw e;
+            retryPolicy.recordOutcome(attempt, created);
         }
+        return created;
+    }
+
+    private void suspendTimerIf(boolean timed)
+    {
+        if (timed)
+        {
+            super.suspendTimer();
+        }
+    }
+
+    private void resumeTimerIf(boolean timed)
+    {
+        if (timed)
+        {
+            super.resumeTimer();
+        }
+    }
+
+    /**
+     * Create a person and add it to its groups with a single call to the legacy people Web Script
+     *
+     * @return the HTTP status of the call, with the Web Script's <tt>200</tt> turned into the
+     *         <tt>201</tt> of the V1 API
+     */
+    private int createPersonWithGroups(UserData user, List<String> groups) throws IOException
+    {
+        List<String> groupIds = new ArrayList<>(groups.size());
+        for (String group : groups)
+        {
+            groupIds.add("GROUP_" + group);
+        }
+        int code = peopleRestClient.createPersonLegacy(user, groupIds);
+        return code == HttpStatus.OK.value() ? HttpStatus.CREATED.value() : code;
+    }
+
+    /**
+     * Feed the latency and outcome of a person creation to the latency histograms and the rate
+     * controller, if there are any
+     *
+     * @param startNanos the {@link System#nanoTime()} at which the call was made
+     * @param error      <tt>true</tt> if the call failed on the server or could not be made
+     * @param permit     the circuit breaker's permit the call was made with
+     */
+    protected void recordCreation(long startNanos, boolean error, CircuitBreaker.Permit permit)
+    {
+        recordLatency(ProvisioningLatencies.PHASE_CREATE_PERSON, startNanos);
+        if (circuitBreaker != null)
+        {
+            circuitBreaker.record(error, permit);
+        }
+        if (rateController != null)
+        {
+            rateController.recordSince(startNanos, error);
+        }
+    }
+
+    /**
+     * Feed a person creation that could not be made to the histograms, the circuit breaker and the rate
+     * controller, unless it never reached the server because the driver's connection pool was exhausted
+     *
+     * @param startNanos the {@link System#nanoTime()} at which the call was made
+     * @param e          the failure
+     * @param permit     the circuit breaker's permit the call was made with
+     */
+    protected void recordCreationFailure(long startNanos, Throwable e, CircuitBreaker.Permit permit)
+    {
+        if (RetryPolicy.isServerError(e))
+        {
+            recordCreation(startNanos, true, permit);
+        }
+    }
+
+    /**
+     * Record the latency of a phase of the user creation, if {@link #setLatencies(ProvisioningLatencies) latencies are recorded}
+     *
+     * @param phase      one of the {@link ProvisioningLatencies} phases
+     * @param startNanos the {@link System#nanoTime()} at which the phase started
+     */
+    protected void recordLatency(String phase, long startNanos)
+    {
+        if (latencies != null)
+        {
+            latencies.record(phase, startNanos);
+        }
+    }
+
+    /**
+     * Build the model of the person to create in Alfresco, with random details (job title, company, ...)
+     * besides those of the user.  Only used when {@link #setRandomPersonDetails(boolean) random person details}
+     * are wanted; otherwise the body is written straight from the {@link UserData}.
+     */
+    protected RestPersonModel newPersonModel(UserData user)
+    {
+        RestPersonModel personModel = RestPersonModel.getRandomPersonModel();
+        personModel.setEmail(user.getEmail());
+        personModel.setFirstName(user.getFirstName());
+        personModel.setLastName(user.getLastName());
+        personModel.setPassword(user.getPassword());
+        personModel.setId(user.getUsername());
+        personModel.setAvatarId(null);
+        personModel.setStatusUpdatedAt(null);
+        personModel.setAspectNames(null);
+        return personModel;
+    }
+
+    /**
+     * @param code    the HTTP status of the last person creation call
+     * @param attempt the number of calls made for the person
+     * @return <tt>true</tt> if the person was created by this processor.  A conflict after a retry is
+     *         taken as an earlier attempt having got through after all.
+     */
+    protected boolean isPersonCreated(int code, int attempt)
+    {
+        return code == HttpStatus.CREATED.value() || (attempt > 1 && code == HttpStatus.CONFLICT.value());
+    }
+
+    /**
+     * @param code the HTTP status of the person creation call
+     * @return <tt>true</tt> if the user can be considered as created
+     */
+    protected boolean isUserCreated(int code)
+    {
+        if (code == HttpStatus.CREATED.value())
+        {
+            //success, created the user
+            return true;
+        }
+        else if (code == HttpStatus.CONFLICT.value())
+        {
+            // user already exists; only a problem if we don't ignore existing users
+            return isIgnoreExistingUsers();
+        }
+        else
+        {
+            // failed
+            return false;
+        }
+    }
+
+    /**
+     * Pick the groups of a new user, leaving out the groups that the {@link GroupResolver}
+     * (if there is one) could not resolve
+     */
+    protected List<String> getMembershipGroups(String username)
+    {
+        List<String> groups = getGroups(username);
+        if (groupResolver != null)
+        {
+            groups.removeIf(group -> !groupResolver.acceptMembership(group));
+        }
+        return groups;
     }
 
     private void handleGroupsAssociation(String username, List<String> groups)
     {
-        // NOTE that this code currently does not create the missing groups. It assumes they are present on the Alfresco system
+        // Missing groups are only created when the GroupResolver is told to; otherwise they are assumed to be present
         // failing to associate the user with a group is not considered a problem
         for (String group : groups)
         {
@@ -187,17 +449,18 @@ public class CreateUsersWithRestV1API extends AbstractRestApiEventProcessor
 
     private void createUserMembership(String username, String group) throws Exception
     {
-        JsonObject groupMembershipBody = Json.createObjectBuilder().add("id", username).add("memberType", "PERSON").build();
-        String groupMembershipBodyCreate = groupMembershipBody.toString();
-
-        super.resumeTimer();
-        final RestGroupMember createdGroupMembership = getRestWrapper().withCoreAPI().usingGroups()
-            .createGroupMembership("GROUP_" + group, groupMembershipBodyCreate);
-        super.suspendTimer();
-
-        final String createGroupCode = getRestWrapper().getStatusCode();
+        long start = System.nanoTime();
+        final int createGroupCode = peopleRestClient.createGroupMembership("GROUP_" + group, username);
+        recordLatency(ProvisioningLatencies.PHASE_GROUP_MEMBERSHIP, start);
+        logGroupMembership(username, group, createGroupCode);
+    }
 
-        if (HttpStatus.CREATED.toString().equals(createGroupCode))
+    /**
+     * Log the outcome of adding a user to a group
+     */
+    protected void logGroupMembership(String username, String group, int createGroupCode)
+    {
+        if (createGroupCode == HttpStatus.CREATED.value())
         {
             //log this as success
             logger.info("User: " + username + " added to group: " + group);
@@ -209,18 +472,32 @@ public class CreateUsersWithRestV1API extends AbstractRestApiEventProcessor
         }
     }
 
-    private EventResult markAsSuccess(String username)
+    protected EventResult markAsSuccess(String username)
     {
-        userDataService.setUserCreationState(username, DataCreationState.Created);
+        setUserCreationState(username, DataCreationState.Created);
         return new EventResult("User created in Alfresco:" + username, Collections.EMPTY_LIST, true);
     }
 
-    private EventResult markAsFailure(String username)
+    protected EventResult markAsFailure(String username)
     {
-        userDataService.setUserCreationState(username, DataCreationState.Failed);
+        setUserCreationState(username, DataCreationState.Failed);
         return new EventResult("Failed to create user:" + username, false);
     }
 
+    private void setUserCreationState(String username, DataCreationState creationState)
+    {
+        long start = System.nanoTime();
+        if (creationStateWriter != null)
+        {
+            creationStateWriter.setUserCreationState(username, creationState);
+        }
+        else
+        {
+            userDataService.setUserCreationState(username, creationState);
+        }
+        recordLatency(ProvisioningLatencies.PHASE_SET_CREATION_STATE, start);
+    }
+
     /**
      * A description of the groups users should be added to with percentage chances.
      * The following string:
@@ -236,60 +513,8 @@ public class CreateUsersWithRestV1API extends AbstractRestApiEventProcessor
      */
     void initializeUserGroupsMap()
     {
-        if (userGroups == null)
-        {
-            throw new IllegalArgumentException("'userGroups' may not be null.");
-        }
-
-        if (userGroupsMap == null)
-        {
-            userGroupsMap = new HashMap<>();
-        }
-
-        // Split by comma
-        StringTokenizer commaTokenizer = new StringTokenizer(userGroups, ",");
-        while (commaTokenizer.hasMoreTokens())
-        {
-            String groupAndChance = commaTokenizer.nextToken();
-            groupAndChance = groupAndChance.trim();
-            StringTokenizer colonTokenizer = new StringTokenizer(groupAndChance, ":");
-            double chance = 1.0;
-            if (colonTokenizer.countTokens() == 0)
-            {
-                // Nothing here e.g. " ,,,"
-                continue;
-            }
-            String group = colonTokenizer.nextToken().trim();
-            if (group.length() == 0)
-            {
-                // No group name present e.g. " :0.4"
-                continue;
-            }
-            if (colonTokenizer.hasMoreTokens())
-            {
-                String groupChanceStr = colonTokenizer.nextToken().trim();
-                try
-                {
-                    chance = Double.parseDouble(groupChanceStr);
-                }
-                catch (NumberFormatException e)
-                {
-                    throw new IllegalArgumentException("'userGroups' format is 'GROUP1:CHANCE1, GROUP2:CHANCE2' where the chances are values between 0 and 1.");
-                }
-            }
-            // else there is no chance specified, so we assume 1.0
-            if (chance > 1.0)
-            {
-                chance = 1.0;
-            }
-            else if (chance < 0.0)
-            {
-                chance = 0.0;
-            }
-
-            // Store the chance
-            userGroupsMap.put(group, chance);
-        }
+        groupSampler = new GroupSampler(userGroups);
+        userGroupsMap = groupSampler.toMap();
     }
 
     /**
@@ -298,19 +523,17 @@ public class CreateUsersWithRestV1API extends AbstractRestApiEventProcessor
      */
     public List<String> getRandomGroups()
     {
-        List<String> groups = new ArrayList<String>(5);
-        for (Map.Entry<String, Double> groupChance : userGroupsMap.entrySet())
-        {
-            String group = groupChance.getKey();
-            double chance = groupChance.getValue();     // unboxed but any NPE will be a bug in this class
-            // See if we use this group or not
-            if (Math.random() < chance)
-            {
-                // We can use it
-                groups.add(group);
-            }
-        }
-        return groups;
+        return groupSampler.randomGroups();
+    }
+
+    /**
+     * Generate the groups of a user according to the {@link #setUserGroups(String) user group chances}.
+     * When {@link #setDeterministicGroups(boolean) deterministic}, the groups only depend on the
+     * username and the {@link #setGroupSeed(long) seed}.
+     */
+    public List<String> getGroups(String username)
+    {
+        return deterministicGroups ? groupSampler.groupsOf(groupSeed, username) : groupSampler.randomGroups();
     }
 
     public UserDataService getUserDataService()
@@ -323,6 +546,177 @@ public class CreateUsersWithRestV1API extends AbstractRestApiEventProcessor
         this.userDataService = userDataService;
     }
 
+    protected String getAlfrescoUrl()
+    {
+        return baseUrl;
+    }
+
+    protected String getAlfrescoAdminUsername()
+    {
+        return alfrescoAdminUsername;
+    }
+
+    protected String getAlfrescoAdminPassword()
+    {
+        return alfrescoAdminPassword;
+    }
+
+    public UserCreationStateWriter getCreationStateWriter()
+    {
+        return creationStateWriter;
+    }
+
+    /**
+     * @param creationStateWriter optional writer used to record the creation state of the users,
+     *                            otherwise the {@link UserDataService} is used directly
+     */
+    public void setCreationStateWriter(UserCreationStateWriter creationStateWriter)
+    {
+        this.creationStateWriter = creationStateWriter;
+    }
+
+    /**
+     * @param rateController optional controller that is told about the latency of each person creation
+     */
+    public void setRateController(AdaptiveRateController rateController)
+    {
+        this.rateController = rateController;
+    }
+
+    /**
+     * @param adminAuthenticator optional source of the administrator's credentials shared by the driver,
+     *                           otherwise the administrator's password is sent with every call
+     */
+    public void setAdminAuthenticator(AdminAuthenticator adminAuthenticator)
+    {
+        this.adminAuthenticator = adminAuthenticator;
+    }
+
+    protected AdminAuthenticator getAdminAuthenticator()
+    {
+        return adminAuthenticator;
+    }
+
+    /**
+     * @param retryPolicy optional policy deciding which failed person creations are made again
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy)
+    {
+        this.retryPolicy = retryPolicy;
+    }
+
+    protected RetryPolicy getRetryPolicy()
+    {
+        return retryPolicy;
+    }
+
+    /**
+     * @param circuitBreaker optional breaker pausing person creations while most of them fail,
+     *                       shared by all creation processors
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker)
+    {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    protected CircuitBreaker getCircuitBreaker()
+    {
+        return circuitBreaker;
+    }
+
+    /**
+     * @param connectionPools optional sizing and timeouts of the connection pools, shared by all processors
+     */
+    public void setConnectionPools(HttpConnectionPools connectionPools)
+    {
+        this.connectionPools = connectionPools;
+    }
+
+    protected HttpConnectionPools getConnectionPools()
+    {
+        return connectionPools;
+    }
+
+    /**
+     * @param userDataCache optional cache the user details are read through
+     */
+    public void setUserDataCache(UserDataCache userDataCache)
+    {
+        this.userDataCache = userDataCache;
+    }
+
+    protected UserDataCache getUserDataCache()
+    {
+        return userDataCache;
+    }
+
+    /**
+     * @return the number of persons created at the same time by this processor, or 0 if it depends
+     *         on the number of events processed at the same time
+     */
+    protected int getConcurrency()
+    {
+        return 0;
+    }
+
+    protected boolean isRandomPersonDetails()
+    {
+        return randomPersonDetails;
+    }
+
+    /**
+     * @param randomPersonDetails <tt>true</tt> to give people random details on top of those of the user,
+     *                            as {@link RestPersonModel#getRandomPersonModel()} does, at the cost of
+     *                            building and serializing a full person model for each user
+     */
+    public void setRandomPersonDetails(boolean randomPersonDetails)
+    {
+        this.randomPersonDetails = randomPersonDetails;
+    }
+
+    /**
+     * @param latencies optional histograms recording the latency of each phase of the user creation
+     */
+    public void setLatencies(ProvisioningLatencies latencies)
+    {
+        this.latencies = latencies;
+    }
+
+    /**
+     * @param groupResolver optional resolver used to skip the memberships of groups that do not exist
+     */
+    public void setGroupResolver(GroupResolver groupResolver)
+    {
+        this.groupResolver = groupResolver;
+    }
+
+    public UserCreationStrategy getCreationStrategy()
+    {
+        return creationStrategy;
+    }
+
+    /**
+     * @param creationStrategy how each person and its groups are created
+     */
+    public void setCreationStrategy(UserCreationStrategy creationStrategy)
+    {
+        this.creationStrategy = creationStrategy;
+    }
+
+    public boolean isDeferGroupMemberships()
+    {
+        return deferGroupMemberships;
+    }
+
+    /**
+     * @param deferGroupMemberships <tt>true</tt> to only record the groups of each user, leaving the
+     *                              memberships to the {@link CreateGroupMemberships group membership phase}
+     */
+    public void setDeferGroupMemberships(boolean deferGroupMemberships)
+    {
+        this.deferGroupMemberships = deferGroupMemberships;
+    }
+
     public boolean isIgnoreExistingUsers()
     {
         return ignoreExistingUsers;
@@ -343,14 +737,51 @@ public class CreateUsersWithRestV1API extends AbstractRestApiEventProcessor
         this.userGroups = userGroups;
     }
 
+    /**
+     * @param deterministicGroups <tt>true</tt> to derive the groups of each user from its username, so
+     *                            that every run with the same {@link #setGroupSeed(long) seed} gives the
+     *                            same group memberships
+     */
+    public void setDeterministicGroups(boolean deterministicGroups)
+    {
+        this.deterministicGroups = deterministicGroups;
+    }
+
+    /**
+     * @param groupSeed the seed combined with usernames when groups are {@link #setDeterministicGroups(boolean) deterministic}
+     */
+    public void setGroupSeed(long groupSeed)
+    {
+        this.groupSeed = groupSeed;
+    }
+
     public Map<String, Double> getUserGroupsMap()
     {
         return userGroupsMap;
     }
 
+    @Override
+    public void destroy()
+    {
+        if (peopleRestClient == null)
+        {
+            return;
+        }
+        try
+        {
+            peopleRestClient.close();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to close the REST client: " + e.getMessage(), e);
+        }
+    }
+
     @Override
     public void setApplicationContext(ApplicationContext applicationContext) throws BeansException
     {
         this.context = applicationContext;
+        // All properties are set by now
+        initialize();
     }
 }
@@ -0,0 +1,231 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Calibration (dry-run) mode, measuring how many users per second the driver itself can create
+ * when Alfresco is not the limit.
+ * <p/>
+ * When {@link #setEnabled(boolean) enabled}, an {@link AlfrescoStandInServer} is started in the
+ * driver process and its URL {@link #getBaseUrl() replaces} the Alfresco URL for every REST client,
+ * so that the whole <tt>start &rarr; createUsers &rarr; createUser &rarr; checkUsers</tt> pipeline runs
+ * unchanged against it.  Calls are answered straight away or after the
+ * {@link #setResponseLatency(String) response latency}, and users are scheduled as fast as they can
+ * be processed.
+ * <p/>
+ * Once {@link #start() started}, the CPU time and the memory allocated by every thread of the
+ * driver except those of the stand-in are added up, so that the {@link #getMetrics(long) metrics}
+ * give the rate of user creation and its cost per user.  Run calibrations with a single driver:
+ * each driver measures its own threads only.
+ *
+ * @since 3.0.1
+ */
+public class DriverCalibration implements InitializingBean, DisposableBean
+{
+    private static Log logger = LogFactory.getLog(DriverCalibration.class);
+
+    private final String baseUrl;
+    private boolean enabled = false;
+    private String responseLatency = "none";
+    private int responderThreads = 200;
+
+    private AlfrescoStandInServer standIn;
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    /** Measurement state; guarded by this */
+    private long startTime = -1L;
+    private long lastSampleTime;
+    private long lastSampleCreated;
+    private double usersPerSecondMax;
+    private long cpuTimeTotal;
+    private long allocatedTotal;
+    private Map<Long, long[]> lastThreadCosts = new HashMap<>();
+
+    /**
+     * @param baseUrl the Alfresco URL, used when calibration is disabled
+     */
+    public DriverCalibration(String baseUrl)
+    {
+        this.baseUrl = baseUrl;
+    }
+
+    /**
+     * @param enabled <tt>true</tt> to create users against an in-process stand-in for Alfresco
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * @param responseLatency the {@link LatencyDistribution distribution} of the stand-in's response
+     *                        times, e.g. <tt>none</tt> or <tt>fixed:5</tt>
+     */
+    public void setResponseLatency(String responseLatency)
+    {
+        LatencyDistribution.parse(responseLatency);
+        this.responseLatency = responseLatency;
+    }
+
+    /**
+     * @param responderThreads the number of stand-in threads answering calls
+     */
+    public void setResponderThreads(int responderThreads)
+    {
+        this.responderThreads = responderThreads;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception
+    {
+        if (!enabled)
+        {
+            return;
+        }
+        standIn = new AlfrescoStandInServer();
+        standIn.setThreads(responderThreads);
+        standIn.setPersonLatency(responseLatency);
+        standIn.setMembershipLatency(responseLatency);
+        standIn.start();
+        logger.warn("Calibration mode: users are created against " + standIn.getBaseUrl() + " instead of " + baseUrl + ".");
+    }
+
+    @Override
+    public void destroy()
+    {
+        if (standIn != null)
+        {
+            standIn.stop();
+        }
+    }
+
+    /**
+     * @return the URL of the stand-in when calibrating, otherwise the Alfresco URL
+     */
+    public String getBaseUrl()
+    {
+        return standIn == null ? baseUrl : standIn.getBaseUrl();
+    }
+
+    /**
+     * Start measuring, as the first users are scheduled
+     */
+    public synchronized void start()
+    {
+        if (!enabled)
+        {
+            return;
+        }
+        lastThreadCosts = new HashMap<>();
+        sampleThreadCosts();
+        cpuTimeTotal = 0L;
+        allocatedTotal = 0L;
+        startTime = System.currentTimeMillis();
+        lastSampleTime = startTime;
+        lastSampleCreated = 0L;
+        usersPerSecondMax = 0.0;
+    }
+
+    /**
+     * @param created the users created since the measurement {@link #start() started}
+     * @return the creation rate and cost per user so far, suitable for an event result, or <tt>null</tt>
+     *         when not calibrating
+     */
+    public synchronized DBObject getMetrics(long created)
+    {
+        if (!enabled || startTime < 0L)
+        {
+            return null;
+        }
+        sampleThreadCosts();
+        long now = System.currentTimeMillis();
+        if (now > lastSampleTime)
+        {
+            double intervalRate = (created - lastSampleCreated) * 1000.0 / (now - lastSampleTime);
+            usersPerSecondMax = Math.max(usersPerSecondMax, intervalRate);
+        }
+        lastSampleTime = now;
+        lastSampleCreated = created;
+
+        long elapsed = now - startTime;
+        DBObject metricsObj = new BasicDBObject()
+            .append("responseLatency", responseLatency)
+            .append("created", created)
+            .append("elapsedMs", elapsed)
+            .append("usersPerSecond", elapsed == 0L ? 0.0 : created * 1000.0 / elapsed)
+            .append("usersPerSecondMax", usersPerSecondMax)
+            .append("cpuMsPerUser", created == 0L ? 0.0 : cpuTimeTotal / 1000000.0 / created)
+            .append("cpuUtilization", elapsed == 0L ? 0.0 : cpuTimeTotal / 1000000.0 / elapsed / Runtime.getRuntime().availableProcessors())
+            .append("allocatedBytesPerUser", created == 0L ? 0.0 : (double) allocatedTotal / created);
+        metricsObj.put("standIn", standIn.getMetrics());
+        return metricsObj;
+    }
+
+    /**
+     * Add the CPU time and allocations of every driver thread since the previous sample.  Threads
+     * that ended between two samples lose their last share.
+     */
+    private void sampleThreadCosts()
+    {
+        com.sun.management.ThreadMXBean allocationMXBean = threadMXBean instanceof com.sun.management.ThreadMXBean
+            ? (com.sun.management.ThreadMXBean) threadMXBean
+            : null;
+        Map<Long, long[]> threadCosts = new HashMap<>(lastThreadCosts.size() * 2 + 16);
+        for (ThreadInfo threadInfo : threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds()))
+        {
+            if (threadInfo == null || AlfrescoStandInServer.isStandInThread(threadInfo.getThreadName()))
+            {
+                continue;
+            }
+            long threadId = threadInfo.getThreadId();
+            long cpuTime = threadMXBean.isThreadCpuTimeEnabled() ? Math.max(0L, threadMXBean.getThreadCpuTime(threadId)) : 0L;
+            long allocated = allocationMXBean != null ? Math.max(0L, allocationMXBean.getThreadAllocatedBytes(threadId)) : 0L;
+            long[] last = lastThreadCosts.get(threadId);
+            cpuTimeTotal += cpuTime - (last == null ? 0L : last[0]);
+            allocatedTotal += allocated - (last == null ? 0L : last[1]);
+            threadCosts.put(threadId, new long[] {cpuTime, allocated});
+        }
+        lastThreadCosts = threadCosts;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.http.HttpStatus;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds out, once per driver, whether the groups users are assigned to exist in Alfresco.
+ * <p/>
+ * The first time a group is asked for, it is looked up and, if {@link #setAutoCreate(boolean) enabled},
+ * created when missing.  The outcome is cached so that memberships of groups that cannot be
+ * resolved are skipped without going back to Alfresco.  A group is only taken as unavailable when
+ * Alfresco answers that it does not exist and it is not, or cannot be, created.  Any other answer,
+ * such as a 401 or a 503 while Alfresco is starting, and calls that get no answer at all are not
+ * cached: the group is looked up again next time.
+ *
+ * @since 3.0.1
+ */
+public class GroupResolver implements DisposableBean
+{
+    private static Log logger = LogFactory.getLog(GroupResolver.class);
+
+    private final PeopleRestClient peopleRestClient;
+    private boolean autoCreate = false;
+
+    private final Map<String, Boolean> resolvedGroups = new ConcurrentHashMap<>();
+    private final AtomicLong skippedMemberships = new AtomicLong();
+
+    /**
+     * @param baseUrl            the Alfresco URL
+     * @param adminAuthenticator supplies the administrator's credentials, shared with other clients
+     * @param connectionPools    sizes the connection pool and sets the timeouts of the REST client
+     */
+    public GroupResolver(String baseUrl, AdminAuthenticator adminAuthenticator, HttpConnectionPools connectionPools)
+    {
+        this.peopleRestClient = new PeopleRestClient(baseUrl, adminAuthenticator, connectionPools, "groupResolver", 1);
+    }
+
+    @Override
+    public void destroy()
+    {
+        try
+        {
+            peopleRestClient.close();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to close the REST client: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param autoCreate <tt>true</tt> to create the groups that do not exist
+     */
+    public void setAutoCreate(boolean autoCreate)
+    {
+        this.autoCreate = autoCreate;
+    }
+
+    /**
+     * Resolve a set of groups up front, at the start of a run
+     *
+     * @param groups the group names (without the <b>GROUP_</b> prefix)
+     */
+    public void resolveAll(Iterable<String> groups)
+    {
+        for (String group : groups)
+        {
+            isAvailable(group);
+        }
+    }
+
+    /**
+     * @param group the group name (without the <b>GROUP_</b> prefix)
+     * @return <tt>true</tt> if users can be added to the group
+     */
+    public boolean isAvailable(String group)
+    {
+        try
+        {
+            return resolvedGroups.computeIfAbsent(group, this::resolve);
+        }
+        catch (UncheckedIOException e)
+        {
+            logger.error("Failed to look up group: " + group + " message: " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Check that users can be added to a group, counting the memberships skipped
+     *
+     * @param group the group name (without the <b>GROUP_</b> prefix)
+     * @return <tt>true</tt> if the membership should be created
+     */
+    public boolean acceptMembership(String group)
+    {
+        if (isAvailable(group))
+        {
+            return true;
+        }
+        skippedMemberships.incrementAndGet();
+        return false;
+    }
+
+    private Boolean resolve(String group)
+    {
+        String groupId = "GROUP_" + group;
+        try
+        {
+            int code = peopleRestClient.getGroup(groupId);
+            if (code == HttpStatus.OK.value())
+            {
+                return true;
+            }
+            if (code != HttpStatus.NOT_FOUND.value())
+            {
+                // Not an answer about the group itself: ask again next time
+                throw new IOException("Unexpected status " + code + " looking up group " + groupId);
+            }
+            if (autoCreate)
+            {
+                code = peopleRestClient.createGroup(groupId, group);
+                if (code == HttpStatus.CREATED.value() || code == HttpStatus.CONFLICT.value())
+                {
+                    logger.info("Created missing group: " + group);
+                    return true;
+                }
+            }
+            logger.warn("Group: " + group + " is not available (status " + code + "); users will not be added to it.");
+            return false;
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the resolved groups and the memberships skipped, suitable for an event result
+     */
+    public DBObject getMetrics()
+    {
+        return new BasicDBObject()
+            .append("groups", new BasicDBObject(resolvedGroups))
+            .append("skippedMemberships", skippedMemberships.get());
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks the groups of a user according to a description such as:
+ * <pre>
+ *    SITE_ADMINISTRATORS:0.05, DATA_ANALYSTS:0.25
+ * </pre>
+ * which gives users a 5% chance of being assigned to the 'SITE_ADMINISTRATORS' group and a 25%
+ * chance of being assigned to the 'DATA_ANALYSTS' group.  The group assignments are always
+ * considered separately i.e. being assigned to one group does not change the chances of being
+ * assigned to another group.  A group without a chance is always assigned.
+ * <p/>
+ * The description is parsed once into arrays.  Groups are either drawn from the calling thread's
+ * random source or derived from a seed and the username, in which case a user gets the same groups
+ * in every run with the same seed.  Apart from the list returned when groups are picked, sampling
+ * does not allocate.
+ * <p/>
+ * Instances are immutable and can be shared between threads.
+ *
+ * @since 3.0.1
+ */
+public final class GroupSampler
+{
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+    private static final double DOUBLE_UNIT = 0x1.0p-53;
+
+    private final String[] groups;
+    private final double[] chances;
+    private final ThreadLocal<int[]> selectedBuffer;
+
+    /**
+     * @param userGroups a string description of groups to assign users to
+     * @throws IllegalArgumentException if the input string is not well-formed
+     */
+    public GroupSampler(String userGroups)
+    {
+        Map<String, Double> groupChances = parse(userGroups);
+        this.groups = new String[groupChances.size()];
+        this.chances = new double[groupChances.size()];
+        int i = 0;
+        for (Map.Entry<String, Double> groupChance : groupChances.entrySet())
+        {
+            groups[i] = groupChance.getKey();
+            chances[i] = groupChance.getValue();
+            i++;
+        }
+        final int size = groups.length;
+        this.selectedBuffer = ThreadLocal.withInitial(() -> new int[size]);
+    }
+
+    /**
+     * @return the chance of each group, keyed by group name
+     * @throws IllegalArgumentException if the input string is not well-formed
+     */
+    static Map<String, Double> parse(String userGroups)
+    {
+        if (userGroups == null)
+        {
+            throw new IllegalArgumentException("'userGroups' may not be null.");
+        }
+        Map<String, Double> groupChances = new LinkedHashMap<>();
+        // Split by comma
+        StringTokenizer commaTokenizer = new StringTokenizer(userGroups, ",");
+        while (commaTokenizer.hasMoreTokens())
+        {
+            String groupAndChance = commaTokenizer.nextToken();
+            groupAndChance = groupAndChance.trim();
+            StringTokenizer colonTokenizer = new StringTokenizer(groupAndChance, ":");
+            double chance = 1.0;
+            if (colonTokenizer.countTokens() == 0)
+            {
+                // Nothing here e.g. " ,,,"
+                continue;
+            }
+            String group = colonTokenizer.nextToken().trim();
+            if (group.length() == 0)
+            {
+                // No group name present e.g. " :0.4"
+                continue;
+            }
+            if (colonTokenizer.hasMoreTokens())
+            {
+                String groupChanceStr = colonTokenizer.nextToken().trim();
+                try
+                {
+                    chance = Double.parseDouble(groupChanceStr);
+                }
+                catch (NumberFormatException e)
+                {
+                    throw new IllegalArgumentException("'userGroups' format is 'GROUP1:CHANCE1, GROUP2:CHANCE2' where the chances are values between 0 and 1.");
+                }
+            }
+            // else there is no chance specified, so we assume 1.0
+            if (chance > 1.0)
+            {
+                chance = 1.0;
+            }
+            else if (chance < 0.0)
+            {
+                chance = 0.0;
+            }
+
+            // Store the chance
+            groupChances.put(group, chance);
+        }
+        return groupChances;
+    }
+
+    /**
+     * @return the number of groups
+     */
+    public int size()
+    {
+        return groups.length;
+    }
+
+    public String getGroup(int index)
+    {
+        return groups[index];
+    }
+
+    public double getChance(int index)
+    {
+        return chances[index];
+    }
+
+    /**
+     * @return a copy of the chance of each group, keyed by group name
+     */
+    public Map<String, Double> toMap()
+    {
+        Map<String, Double> groupChances = new LinkedHashMap<>(groups.length * 2);
+        for (int i = 0; i < groups.length; i++)
+        {
+            groupChances.put(groups[i], chances[i]);
+        }
+        return groupChances;
+    }
+
+    /**
+     * Pick groups using the calling thread's random source
+     *
+     * @param selected receives the indexes of the groups picked; must hold at least {@link #size()} values
+     * @return the number of groups picked
+     */
+    public int sample(int[] selected)
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int count = 0;
+        for (int i = 0; i < groups.length; i++)
+        {
+            if (random.nextDouble() < chances[i])
+            {
+                selected[count++] = i;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Pick groups as a function of a seed and a username only
+     *
+     * @param seed     the seed of the run
+     * @param username the user to pick groups for
+     * @param selected receives the indexes of the groups picked; must hold at least {@link #size()} values
+     * @return the number of groups picked
+     */
+    public int sample(long seed, String username, int[] selected)
+    {
+        long state = seed ^ hash(username);
+        int count = 0;
+        for (int i = 0; i < groups.length; i++)
+        {
+            state += GOLDEN_GAMMA;
+            if ((mix(state) >>> 11) * DOUBLE_UNIT < chances[i])
+            {
+                selected[count++] = i;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return groups picked using the calling thread's random source
+     */
+    public List<String> randomGroups()
+    {
+        int[] selected = selectedBuffer.get();
+        return toGroups(selected, sample(selected));
+    }
+
+    /**
+     * @return groups picked as a function of the seed and the username only
+     */
+    public List<String> groupsOf(long seed, String username)
+    {
+        int[] selected = selectedBuffer.get();
+        return toGroups(selected, sample(seed, username, selected));
+    }
+
+    private List<String> toGroups(int[] selected, int count)
+    {
+        if (count == 0)
+        {
+            return Collections.emptyList();
+        }
+        List<String> picked = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            picked.add(groups[selected[i]]);
+        }
+        return picked;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the characters of a string
+     */
+    private static long hash(String value)
+    {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < value.length(); i++)
+        {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    /**
+     * SplitMix64 finalizer
+     */
+    private static long mix(long z)
+    {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
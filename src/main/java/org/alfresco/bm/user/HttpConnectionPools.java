@@ -0,0 +1,383 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.nio.reactor.ConnectingIOReactor;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.pool.PoolStats;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sizes and times out the HTTP connection pools of the REST clients, and measures how they are used.
+ * <p/>
+ * Every client asks for its pool here, saying how many calls it makes at the same time.  With
+ * {@link #setAutoSize(boolean) autoSize}, a client that knows its concurrency gets exactly that
+ * many connections, so that no call ever queues for a connection and no connection sits idle;
+ * otherwise, or when the concurrency is not known, the pool gets
+ * {@link #setMaxConnections(int) maxConnections}.  All calls go to the one Alfresco route, so
+ * the per-route limit defaults to the total.
+ * <p/>
+ * Each pool counts the connections leased and records how long callers waited for one.  A long
+ * lease wait means that calls queued inside the driver and that their response times overstate
+ * the latency of Alfresco.  For the non-blocking client, the wait includes opening a new connection.
+ *
+ * @since 3.0.1
+ */
+public class HttpConnectionPools
+{
+    public static final int DEFAULT_MAX_CONNECTIONS = 200;
+
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int maxConnectionsPerRoute = 0;
+    private boolean autoSize = false;
+    private long keepAlive = 0L;
+    private int connectTimeout = -1;
+    private int socketTimeout = -1;
+    private int leaseTimeout = -1;
+
+    private final List<Pool> pools = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param maxConnections the connections of a pool when it is not sized from its concurrency
+     */
+    public void setMaxConnections(int maxConnections)
+    {
+        if (maxConnections < 1)
+        {
+            throw new IllegalArgumentException("'maxConnections' must be at least 1.");
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * @param maxConnectionsPerRoute the connections of a pool to any one host, or 0 for the pool's total
+     */
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute)
+    {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    /**
+     * @param autoSize <tt>true</tt> to give each client as many connections as the calls it makes at the same time
+     */
+    public void setAutoSize(boolean autoSize)
+    {
+        this.autoSize = autoSize;
+    }
+
+    /**
+     * @param keepAlive the longest time (milliseconds) an idle connection is kept, or 0 to keep it for as
+     *                  long as the server allows
+     */
+    public void setKeepAlive(long keepAlive)
+    {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * @param connectTimeout the time (milliseconds) allowed to open a connection, 0 for no limit or -1 for the client's default
+     */
+    public void setConnectTimeout(int connectTimeout)
+    {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * @param socketTimeout the longest silence (milliseconds) allowed while waiting for a response, 0 for no limit or -1
+     *                      for the client's default
+     */
+    public void setSocketTimeout(int socketTimeout)
+    {
+        this.socketTimeout = socketTimeout;
+    }
+
+    /**
+     * @param leaseTimeout the time (milliseconds) allowed to wait for a connection from the pool, 0 for no limit or -1
+     *                     for the client's default
+     */
+    public void setLeaseTimeout(int leaseTimeout)
+    {
+        this.leaseTimeout = leaseTimeout;
+    }
+
+    /**
+     * @param concurrency the number of calls the client makes at the same time, or 0 if not known
+     * @return the total number of connections of the client's pool
+     */
+    public int getMaxTotal(int concurrency)
+    {
+        return autoSize && concurrency > 0 ? concurrency : maxConnections;
+    }
+
+    /**
+     * @param concurrency the number of calls the client makes at the same time, or 0 if not known
+     * @return the number of connections of the client's pool to any one host
+     */
+    public int getMaxPerRoute(int concurrency)
+    {
+        int maxTotal = getMaxTotal(concurrency);
+        return maxConnectionsPerRoute > 0 ? Math.min(maxConnectionsPerRoute, maxTotal) : maxTotal;
+    }
+
+    /**
+     * @return the timeouts of every call
+     */
+    public RequestConfig getRequestConfig()
+    {
+        return RequestConfig.custom()
+            .setConnectTimeout(connectTimeout)
+            .setSocketTimeout(socketTimeout)
+            .setConnectionRequestTimeout(leaseTimeout)
+            .build();
+    }
+
+    /**
+     * @return keeps connections for as long as the server allows, but no longer than the keep-alive, if any
+     */
+    public ConnectionKeepAliveStrategy getKeepAliveStrategy()
+    {
+        return (response, context) ->
+        {
+            long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            if (keepAlive <= 0L)
+            {
+                return serverKeepAlive;
+            }
+            return serverKeepAlive > 0L ? Math.min(serverKeepAlive, keepAlive) : keepAlive;
+        };
+    }
+
+    /**
+     * Create the connection pool of a blocking client
+     *
+     * @param name        the name under which the pool is reported
+     * @param concurrency the number of calls the client makes at the same time, or 0 if not known
+     */
+    public PoolingHttpClientConnectionManager newConnectionManager(String name, int concurrency)
+    {
+        final Pool pool = new Pool(name);
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager()
+        {
+            @Override
+            public ConnectionRequest requestConnection(HttpRoute route, Object state)
+            {
+                final ConnectionRequest request = super.requestConnection(route, state);
+                return new ConnectionRequest()
+                {
+                    @Override
+                    public HttpClientConnection get(long timeout, TimeUnit tunit)
+                        throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException
+                    {
+                        long start = System.nanoTime();
+                        try
+                        {
+                            HttpClientConnection connection = request.get(timeout, tunit);
+                            pool.leased(start);
+                            return connection;
+                        }
+                        catch (ConnectionPoolTimeoutException e)
+                        {
+                            pool.leaseTimeouts.increment();
+                            throw e;
+                        }
+                    }
+
+                    @Override
+                    public boolean cancel()
+                    {
+                        return request.cancel();
+                    }
+                };
+            }
+
+            @Override
+            public void releaseConnection(HttpClientConnection connection, Object state, long keepAlive, TimeUnit tunit)
+            {
+                pool.released();
+                super.releaseConnection(connection, state, keepAlive, tunit);
+            }
+        };
+        connectionManager.setMaxTotal(getMaxTotal(concurrency));
+        connectionManager.setDefaultMaxPerRoute(getMaxPerRoute(concurrency));
+        pool.control = connectionManager;
+        pools.add(pool);
+        return connectionManager;
+    }
+
+    /**
+     * Create the connection pool of a non-blocking client
+     *
+     * @param name        the name under which the pool is reported
+     * @param ioReactor   the I/O reactor of the client
+     * @param concurrency the number of calls the client makes at the same time, or 0 if not known
+     */
+    public PoolingNHttpClientConnectionManager newAsyncConnectionManager(String name, ConnectingIOReactor ioReactor, int concurrency)
+    {
+        final Pool pool = new Pool(name);
+        PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(ioReactor)
+        {
+            @Override
+            public Future<NHttpClientConnection> requestConnection(HttpRoute route, Object state, long connectTimeout,
+                long leaseTimeout, TimeUnit tunit, final FutureCallback<NHttpClientConnection> callback)
+            {
+                final long start = System.nanoTime();
+                return super.requestConnection(route, state, connectTimeout, leaseTimeout, tunit, new FutureCallback<NHttpClientConnection>()
+                {
+                    @Override
+                    public void completed(NHttpClientConnection connection)
+                    {
+                        pool.leased(start);
+                        if (callback != null)
+                        {
+                            callback.completed(connection);
+                        }
+                    }
+
+                    @Override
+                    public void failed(Exception e)
+                    {
+                        if (e instanceof ConnectionPoolTimeoutException || e instanceof TimeoutException)
+                        {
+                            pool.leaseTimeouts.increment();
+                        }
+                        if (callback != null)
+                        {
+                            callback.failed(e);
+                        }
+                    }
+
+                    @Override
+                    public void cancelled()
+                    {
+                        if (callback != null)
+                        {
+                            callback.cancelled();
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void releaseConnection(NHttpClientConnection connection, Object state, long keepAlive, TimeUnit tunit)
+            {
+                pool.released();
+                super.releaseConnection(connection, state, keepAlive, tunit);
+            }
+        };
+        connectionManager.setMaxTotal(getMaxTotal(concurrency));
+        connectionManager.setDefaultMaxPerRoute(getMaxPerRoute(concurrency));
+        pool.control = connectionManager;
+        pools.add(pool);
+        return connectionManager;
+    }
+
+    /**
+     * @return the size, use and lease waits of every pool, suitable for an event result
+     */
+    public DBObject getMetrics()
+    {
+        BasicDBList poolList = new BasicDBList();
+        for (Pool pool : pools)
+        {
+            poolList.add(pool.getMetrics());
+        }
+        return new BasicDBObject()
+            .append("autoSize", autoSize)
+            .append("keepAliveMs", keepAlive)
+            .append("connectTimeoutMs", connectTimeout)
+            .append("socketTimeoutMs", socketTimeout)
+            .append("leaseTimeoutMs", leaseTimeout)
+            .append("pools", poolList);
+    }
+
+    /**
+     * The use of one connection pool
+     */
+    private static final class Pool
+    {
+        private final String name;
+        private ConnPoolControl<HttpRoute> control;
+        private final AtomicInteger leased = new AtomicInteger();
+        private final AtomicInteger leasedMax = new AtomicInteger();
+        private final LatencyHistogram leaseWait = new LatencyHistogram();
+        private final LongAdder leaseTimeouts = new LongAdder();
+
+        private Pool(String name)
+        {
+            this.name = name;
+        }
+
+        private void leased(long startNanos)
+        {
+            leaseWait.recordSince(startNanos);
+            leasedMax.accumulateAndGet(leased.incrementAndGet(), Math::max);
+        }
+
+        private void released()
+        {
+            leased.decrementAndGet();
+        }
+
+        private DBObject getMetrics()
+        {
+            PoolStats stats = control.getTotalStats();
+            int max = Math.max(1, stats.getMax());
+            return new BasicDBObject()
+                .append("name", name)
+                .append("max", stats.getMax())
+                .append("leased", stats.getLeased())
+                .append("available", stats.getAvailable())
+                .append("pending", stats.getPending())
+                .append("utilisation", (double) stats.getLeased() / max)
+                .append("leasedMax", leasedMax.get())
+                .append("utilisationMax", (double) leasedMax.get() / max)
+                .append("leaseTimeouts", leaseTimeouts.sum())
+                .append("leaseWait", leaseWait.toReport());
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A distribution of response times in milliseconds, described by a string:
+ * <ul>
+ *     <li><tt>none</tt>: no delay</li>
+ *     <li><tt>fixed:10</tt>: always 10ms</li>
+ *     <li><tt>uniform:5-50</tt>: between 5ms and 50ms, all values equally likely</li>
+ *     <li><tt>exponential:20</tt>: exponential with a mean of 20ms</li>
+ *     <li><tt>lognormal:20,0.5</tt>: log-normal with a median of 20ms and a shape (sigma) of 0.5, giving a long tail</li>
+ * </ul>
+ *
+ * @since 3.0.1
+ */
+public final class LatencyDistribution
+{
+    public static final LatencyDistribution NONE = new LatencyDistribution("none", 0, 0.0, 0.0);
+
+    private static final int FIXED = 1;
+    private static final int UNIFORM = 2;
+    private static final int EXPONENTIAL = 3;
+    private static final int LOGNORMAL = 4;
+
+    private final String description;
+    private final int type;
+    private final double a;
+    private final double b;
+
+    private LatencyDistribution(String description, int type, double a, double b)
+    {
+        this.description = description;
+        this.type = type;
+        this.a = a;
+        this.b = b;
+    }
+
+    /**
+     * @param description the distribution e.g. <tt>uniform:5-50</tt>
+     * @throws IllegalArgumentException if the description is not well-formed
+     */
+    public static LatencyDistribution parse(String description)
+    {
+        if (description == null)
+        {
+            throw new IllegalArgumentException("The latency distribution may not be null.");
+        }
+        String trimmed = description.trim();
+        if (trimmed.isEmpty() || trimmed.equals("none"))
+        {
+            return NONE;
+        }
+        int colon = trimmed.indexOf(':');
+        String kind = colon < 0 ? trimmed : trimmed.substring(0, colon).trim();
+        String args = colon < 0 ? "" : trimmed.substring(colon + 1).trim();
+        try
+        {
+            switch (kind)
+            {
+                case "fixed":
+                    return new LatencyDistribution(trimmed, FIXED, nonNegative(Double.parseDouble(args)), 0.0);
+                case "uniform":
+                {
+                    String[] range = args.split("-");
+                    double min = nonNegative(Double.parseDouble(range[0].trim()));
+                    double max = nonNegative(Double.parseDouble(range[1].trim()));
+                    if (max < min)
+                    {
+                        throw new IllegalArgumentException("The maximum latency is less than the minimum: " + description);
+                    }
+                    return new LatencyDistribution(trimmed, UNIFORM, min, max);
+                }
+                case "exponential":
+                    return new LatencyDistribution(trimmed, EXPONENTIAL, nonNegative(Double.parseDouble(args)), 0.0);
+                case "lognormal":
+                {
+                    String[] params = args.split(",");
+                    double median = nonNegative(Double.parseDouble(params[0].trim()));
+                    double sigma = nonNegative(Double.parseDouble(params[1].trim()));
+                    return new LatencyDistribution(trimmed, LOGNORMAL, median, sigma);
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown latency distribution: " + description);
+            }
+        }
+        catch (NumberFormatException | ArrayIndexOutOfBoundsException e)
+        {
+            throw new IllegalArgumentException("Latency distribution format is 'fixed:MS', 'uniform:MIN-MAX', 'exponential:MEAN' or 'lognormal:MEDIAN,SIGMA': " + description);
+        }
+    }
+
+    private static double nonNegative(double value)
+    {
+        if (value < 0.0)
+        {
+            throw new IllegalArgumentException("Latencies may not be negative.");
+        }
+        return value;
+    }
+
+    /**
+     * @return the next latency in milliseconds, drawn from the calling thread's random source
+     */
+    public long nextMillis()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        switch (type)
+        {
+            case FIXED:
+                return (long) a;
+            case UNIFORM:
+                return (long) (a + random.nextDouble() * (b - a));
+            case EXPONENTIAL:
+                return (long) (-a * Math.log(1.0 - random.nextDouble()));
+            case LOGNORMAL:
+                return (long) (a * Math.exp(b * random.nextGaussian()));
+            default:
+                return 0L;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return description;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in microseconds, in the style of HdrHistogram.
+ * <p/>
+ * Values below 256µs are counted exactly.  Above that, each power of two is split into 128 buckets,
+ * so that the value reported for a percentile is never more than 1% above the true value.  Values
+ * above one hour are counted as one hour.  Histograms with the same layout can be merged by adding
+ * their {@link #getCounts() counts}.
+ *
+ * @since 3.0.1
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+    public static final long MAX_VALUE = TimeUnit.HOURS.toMicros(1);
+    public static final int BUCKET_COUNT = indexOf(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * @return the bucket of a value
+     */
+    static int indexOf(long value)
+    {
+        if (value < SUB_BUCKET_COUNT)
+        {
+            return (int) Math.max(0L, value);
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int mantissa = (int) (value >>> shift);
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (mantissa - SUB_BUCKET_HALF);
+    }
+
+    /**
+     * @return the highest value counted in a bucket
+     */
+    static long highestValueOf(int index)
+    {
+        if (index < SUB_BUCKET_COUNT)
+        {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+        long mantissa = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * @param micros the latency in microseconds
+     */
+    public void record(long micros)
+    {
+        long value = Math.min(Math.max(micros, 0L), MAX_VALUE);
+        counts.incrementAndGet(indexOf(value));
+        totalCount.incrementAndGet();
+        maxValue.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * @param startNanos the {@link System#nanoTime()} at which the timed operation started
+     */
+    public void recordSince(long startNanos)
+    {
+        record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Add the counts of another histogram
+     *
+     * @param otherCounts the counts, by bucket, of a histogram with the same layout
+     */
+    public void add(long[] otherCounts)
+    {
+        for (int i = 0; i < otherCounts.length && i < BUCKET_COUNT; i++)
+        {
+            long count = otherCounts[i];
+            if (count != 0L)
+            {
+                counts.addAndGet(i, count);
+                totalCount.addAndGet(count);
+                maxValue.accumulateAndGet(highestValueOf(i), Math::max);
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the counts, by bucket
+     */
+    public long[] getCounts()
+    {
+        long[] copy = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    public long getTotalCount()
+    {
+        return totalCount.get();
+    }
+
+    /**
+     * @param percentile the percentile, from 0.0 to 100.0
+     * @return the value (microseconds) below which the given percentage of the values lie
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long[] snapshot = getCounts();
+        long total = 0L;
+        for (long count : snapshot)
+        {
+            total += count;
+        }
+        if (total == 0L)
+        {
+            return 0L;
+        }
+        long target = Math.max(1L, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0L;
+        for (int i = 0; i < snapshot.length; i++)
+        {
+            seen += snapshot[i];
+            if (seen >= target)
+            {
+                return Math.min(highestValueOf(i), maxValue.get());
+            }
+        }
+        return maxValue.get();
+    }
+
+    /**
+     * @return the count and the p50, p95, p99, p99.9 and maximum latencies in milliseconds, suitable for an event result
+     */
+    public DBObject toReport()
+    {
+        return new BasicDBObject()
+            .append("count", getTotalCount())
+            .append("p50Ms", getValueAtPercentile(50.0) / 1000.0)
+            .append("p95Ms", getValueAtPercentile(95.0) / 1000.0)
+            .append("p99Ms", getValueAtPercentile(99.0) / 1000.0)
+            .append("p999Ms", getValueAtPercentile(99.9) / 1000.0)
+            .append("maxMs", maxValue.get() / 1000.0);
+    }
+}
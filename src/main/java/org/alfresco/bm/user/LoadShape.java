@@ -0,0 +1,349 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Declarative shape of the user creation load, chosen per test with <tt>user.loadProfile</tt>.
+ * <p/>
+ * The shape gives the time, relative to the start of the run, at which each user is
+ * {@link #getOffset(long) due}:
+ * <ul>
+ *   <li><b>STEADY</b>: {@link #setTargetRate(double) targetRate} users per second throughout</li>
+ *   <li><b>RAMP</b>: a rate growing linearly from {@link #setStartRate(double) startRate} to the target rate over
+ *       {@link #setRampDuration(long) rampDuration} milliseconds, then held</li>
+ *   <li><b>BURST</b>: {@link #setBurstSize(int) burstSize} users at once every
+ *       {@link #setBurstInterval(long) burstInterval} milliseconds, as a directory synchronization would</li>
+ *   <li><b>STEP</b>: the start rate, raised by {@link #setStepIncrement(double) stepIncrement} users per second
+ *       every {@link #setStepDuration(long) stepDuration} milliseconds until it reaches the target rate</li>
+ * </ul>
+ * With <b>NONE</b>, the default, the shape is not used and users are spaced by the signup delay.
+ * <p/>
+ * Each time a page of users is scheduled, the target rate is {@link #sample(long, long) sampled}
+ * together with the rate at which users were actually created since the previous page.  Samples
+ * are kept by the driver running the scheduler.
+ *
+ * @since 3.0.1
+ */
+public class LoadShape
+{
+    public enum Profile
+    {
+        NONE, STEADY, RAMP, BURST, STEP
+    }
+
+    public static final double DEFAULT_TARGET_RATE = 20.0;
+    public static final double DEFAULT_START_RATE = 1.0;
+    public static final long DEFAULT_RAMP_DURATION = 60000L;
+    public static final int DEFAULT_BURST_SIZE = 500;
+    public static final long DEFAULT_BURST_INTERVAL = 60000L;
+    public static final double DEFAULT_STEP_INCREMENT = 5.0;
+    public static final long DEFAULT_STEP_DURATION = 30000L;
+    public static final long DEFAULT_SAMPLE_INTERVAL = 5000L;
+
+    private Profile profile = Profile.NONE;
+    private double targetRate = DEFAULT_TARGET_RATE;
+    private double startRate = DEFAULT_START_RATE;
+    private long rampDuration = DEFAULT_RAMP_DURATION;
+    private int burstSize = DEFAULT_BURST_SIZE;
+    private long burstInterval = DEFAULT_BURST_INTERVAL;
+    private double stepIncrement = DEFAULT_STEP_INCREMENT;
+    private long stepDuration = DEFAULT_STEP_DURATION;
+    private long sampleInterval = DEFAULT_SAMPLE_INTERVAL;
+
+    /** Guarded by this */
+    private int sampleCount;
+    private long lastElapsed = -1L;
+    private long lastCreated = -1L;
+    private double lastTargetRate;
+    private long sampledTime;
+    private double targetUsers;
+    private long actualUsers;
+
+    /**
+     * @param profile the shape of the load
+     */
+    public void setProfile(Profile profile)
+    {
+        this.profile = profile;
+    }
+
+    public Profile getProfile()
+    {
+        return profile;
+    }
+
+    /**
+     * @return <tt>true</tt> if the shape replaces the signup delay
+     */
+    public boolean isEnabled()
+    {
+        return profile != Profile.NONE;
+    }
+
+    /**
+     * @param targetRate the steady creation rate and the rate reached by a ramp or steps (users per second)
+     */
+    public void setTargetRate(double targetRate)
+    {
+        if (targetRate <= 0.0)
+        {
+            throw new IllegalArgumentException("'targetRate' must be greater than 0.");
+        }
+        this.targetRate = targetRate;
+    }
+
+    /**
+     * @param startRate the rate a ramp or steps start from (users per second)
+     */
+    public void setStartRate(double startRate)
+    {
+        if (startRate < 0.0)
+        {
+            throw new IllegalArgumentException("'startRate' may not be negative.");
+        }
+        this.startRate = startRate;
+    }
+
+    /**
+     * @param rampDuration the time taken to ramp up to the target rate (milliseconds)
+     */
+    public void setRampDuration(long rampDuration)
+    {
+        if (rampDuration < 0L)
+        {
+            throw new IllegalArgumentException("'rampDuration' may not be negative.");
+        }
+        this.rampDuration = rampDuration;
+    }
+
+    /**
+     * @param burstSize the number of users due at once in each burst
+     */
+    public void setBurstSize(int burstSize)
+    {
+        if (burstSize < 1)
+        {
+            throw new IllegalArgumentException("'burstSize' must be at least 1.");
+        }
+        this.burstSize = burstSize;
+    }
+
+    /**
+     * @param burstInterval the time between two bursts (milliseconds)
+     */
+    public void setBurstInterval(long burstInterval)
+    {
+        if (burstInterval < 1L)
+        {
+            throw new IllegalArgumentException("'burstInterval' must be at least 1.");
+        }
+        this.burstInterval = burstInterval;
+    }
+
+    /**
+     * @param stepIncrement the users per second added at each step
+     */
+    public void setStepIncrement(double stepIncrement)
+    {
+        if (stepIncrement <= 0.0)
+        {
+            throw new IllegalArgumentException("'stepIncrement' must be greater than 0.");
+        }
+        this.stepIncrement = stepIncrement;
+    }
+
+    /**
+     * @param stepDuration the time each step is held (milliseconds)
+     */
+    public void setStepDuration(long stepDuration)
+    {
+        if (stepDuration < 1L)
+        {
+            throw new IllegalArgumentException("'stepDuration' must be at least 1.");
+        }
+        this.stepDuration = stepDuration;
+    }
+
+    /**
+     * @param sampleInterval the approximate time between two samples, which bounds the users scheduled in one page (milliseconds)
+     */
+    public void setSampleInterval(long sampleInterval)
+    {
+        this.sampleInterval = sampleInterval;
+    }
+
+    /**
+     * @param elapsed the time since the start of the run (milliseconds)
+     * @param batchSize the number of users created by a single event
+     * @return the number of users to schedule in the next page so that pages come back about once per
+     *         sample interval, and a burst is never split across pages
+     */
+    public long getPageSize(long elapsed, int batchSize)
+    {
+        if (profile == Profile.BURST)
+        {
+            return Math.max(batchSize, burstSize);
+        }
+        long usersPerInterval = Math.round(getTargetRate(elapsed) * sampleInterval / 1000.0);
+        return Math.max(batchSize, usersPerInterval);
+    }
+
+    /**
+     * @param elapsed the time since the start of the run (milliseconds)
+     * @return the target creation rate at that time (users per second); bursts give their average rate
+     */
+    public double getTargetRate(long elapsed)
+    {
+        switch (profile)
+        {
+            case RAMP:
+                return elapsed >= rampDuration ? targetRate : startRate + (targetRate - startRate) * elapsed / rampDuration;
+            case BURST:
+                return burstSize * 1000.0 / burstInterval;
+            case STEP:
+                return Math.min(targetRate, startRate + (elapsed / stepDuration) * stepIncrement);
+            default:
+                return targetRate;
+        }
+    }
+
+    /**
+     * @param index the position of the user in the run, starting at 0
+     * @return the time, since the start of the run, at which the user is due (milliseconds)
+     */
+    public long getOffset(long index)
+    {
+        switch (profile)
+        {
+            case RAMP:
+                return Math.round(getRampOffset(index));
+            case BURST:
+                return (index / burstSize) * burstInterval;
+            case STEP:
+                return Math.round(getStepOffset(index));
+            default:
+                return Math.round(index * 1000.0 / targetRate);
+        }
+    }
+
+    private double getRampOffset(long index)
+    {
+        double duration = rampDuration / 1000.0;
+        double rampUsers = (startRate + targetRate) / 2.0 * duration;
+        if (index >= rampUsers)
+        {
+            return (duration + (index - rampUsers) / targetRate) * 1000.0;
+        }
+        if (index == 0L)
+        {
+            return 0.0;
+        }
+        // Users due by t: startRate * t + acceleration * t^2 / 2, solved for t in a form that stays
+        // stable when the rate does not change
+        double acceleration = (targetRate - startRate) / duration;
+        double discriminant = startRate * startRate + 2.0 * acceleration * index;
+        return 2.0 * index / (startRate + Math.sqrt(discriminant)) * 1000.0;
+    }
+
+    private double getStepOffset(long index)
+    {
+        double usersBefore = 0.0;
+        for (long step = 0L; ; step++)
+        {
+            double rate = Math.min(targetRate, startRate + step * stepIncrement);
+            double stepUsers = rate * stepDuration / 1000.0;
+            if (rate >= targetRate || index < usersBefore + stepUsers)
+            {
+                return step * stepDuration + (index - usersBefore) * 1000.0 / rate;
+            }
+            usersBefore += stepUsers;
+        }
+    }
+
+    /**
+     * Forget the samples of earlier runs
+     */
+    public synchronized void reset()
+    {
+        sampleCount = 0;
+        lastElapsed = -1L;
+        lastCreated = -1L;
+        lastTargetRate = 0.0;
+        sampledTime = 0L;
+        targetUsers = 0.0;
+        actualUsers = 0L;
+    }
+
+    /**
+     * Record the target rate and the actual creation rate since the previous sample
+     *
+     * @param elapsed the time since the start of the run (milliseconds)
+     * @param created the users created so far during the run, or -1 if unknown
+     * @return the sample, suitable for an event result
+     */
+    public synchronized DBObject sample(long elapsed, long created)
+    {
+        double rate = getTargetRate(elapsed);
+        DBObject sampleObj = new BasicDBObject()
+            .append("profile", profile.name())
+            .append("elapsedMs", elapsed)
+            .append("targetRate", rate);
+        if (created >= 0L && lastCreated >= 0L && elapsed > lastElapsed)
+        {
+            long interval = elapsed - lastElapsed;
+            long intervalCreated = created - lastCreated;
+            sampleObj.put("actualRate", intervalCreated * 1000.0 / interval);
+            // The target rate is taken as changing linearly between two samples
+            sampledTime += interval;
+            targetUsers += (lastTargetRate + rate) / 2.0 * interval / 1000.0;
+            actualUsers += intervalCreated;
+        }
+        sampleCount++;
+        lastElapsed = elapsed;
+        lastCreated = created;
+        lastTargetRate = rate;
+        return sampleObj;
+    }
+
+    /**
+     * @return the target and actual rates averaged over the samples, suitable for an event result
+     */
+    public synchronized DBObject getMetrics()
+    {
+        double seconds = sampledTime / 1000.0;
+        return new BasicDBObject()
+            .append("profile", profile.name())
+            .append("samples", sampleCount)
+            .append("sampledMs", sampledTime)
+            .append("targetRateAvg", seconds == 0.0 ? 0.0 : targetUsers / seconds)
+            .append("actualRateAvg", seconds == 0.0 ? 0.0 : actualUsers / seconds)
+            .append("targetUsers", Math.round(targetUsers))
+            .append("actualUsers", actualUsers);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.alfresco.rest.model.RestPersonModel;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObjectBuilder;
+import java.util.Collection;
+
+/**
+ * The JSON bodies sent by the REST clients when provisioning users
+ *
+ * @since 3.0.1
+ */
+final class PeopleJson
+{
+    /** Person models are serialized with Jackson, as the TAS library does */
+    private static final ObjectMapper PERSON_MAPPER = new ObjectMapper();
+
+    private PeopleJson()
+    {
+    }
+
+    /**
+     * @return the body to create a person
+     */
+    static String person(RestPersonModel person) throws JsonProcessingException
+    {
+        return PERSON_MAPPER.writeValueAsString(person);
+    }
+
+    /**
+     * @param groupIds the full IDs of the groups to add the person to, including the <b>GROUP_</b> prefix
+     * @return the body to create a person with the legacy people Web Script, as the deprecated
+     *         {@link CreateUser} does
+     */
+    static String legacyPerson(UserData user, Collection<String> groupIds)
+    {
+        JsonObjectBuilder person = Json.createObjectBuilder()
+            .add(CreateUser.PEOPLE_JSON_USERNAME, user.getUsername())
+            .add(CreateUser.PEOPLE_JSON_FIRSTNAME, user.getFirstName())
+            .add(CreateUser.PEOPLE_JSON_LASTNAME, user.getLastName())
+            .add(CreateUser.PEOPLE_JSON_EMAIL, user.getEmail())
+            .add(CreateUser.PEOPLE_JSON_PASSWORD, user.getPassword());
+        if (!groupIds.isEmpty())
+        {
+            JsonArrayBuilder groups = Json.createArrayBuilder();
+            for (String groupId : groupIds)
+            {
+                groups.add(groupId);
+            }
+            person.add(CreateUser.PEOPLE_JSON_GROUPS, groups);
+        }
+        return person.build().toString();
+    }
+
+    /**
+     * @return the body to create a group
+     */
+    static String group(String groupId, String displayName)
+    {
+        return Json.createObjectBuilder().add("id", groupId).add("displayName", displayName).build().toString();
+    }
+
+    /**
+     * @return the body to add a person to a group
+     */
+    static String groupMember(String username)
+    {
+        return Json.createObjectBuilder().add("id", username).add("memberType", "PERSON").build().toString();
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import org.alfresco.rest.model.RestPersonModel;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collection;
+
+/**
+ * Thread-safe client for the Alfresco V1 REST calls made when provisioning users, and for the
+ * legacy people Web Script that creates a person with its groups in one call.
+ * <p/>
+ * All threads share one pooled HTTP client and every call returns its own HTTP status, so there is
+ * no per-call state kept between the request and the reading of its outcome.  The TAS
+ * <tt>RestWrapper</tt> holds the status code of the last call and therefore cannot be shared.
+ *
+ * @since 3.0.1
+ */
+public class PeopleRestClient implements Closeable
+{
+    public static final String V1_API_PATH = "alfresco/api/-default-/public/alfresco/versions/1";
+    public static final String PEOPLE_PATH = V1_API_PATH + "/people";
+    public static final String PEOPLE_PAGE_PATH = PEOPLE_PATH + "?skipCount=%d&maxItems=%d&fields=id";
+    public static final String GROUPS_PATH = V1_API_PATH + "/groups";
+    public static final String GROUP_PATH = V1_API_PATH + "/groups/%s";
+    public static final String GROUP_MEMBERS_PATH = V1_API_PATH + "/groups/%s/members";
+    /** The deprecated people Web Script, which takes the groups of the person with it */
+    public static final String LEGACY_PEOPLE_PATH = "alfresco/service/api/people";
+
+    private final String baseUrl;
+    private final AdminAuthenticator adminAuthenticator;
+    private final CloseableHttpClient httpClient;
+
+    /**
+     * Create a client that sends the administrator's password with every call
+     *
+     * @param baseUrl       the Alfresco URL e.g. <tt>http://localhost:8080/</tt>
+     * @param adminUsername the Alfresco administrator
+     * @param adminPassword the Alfresco administrator's password
+     */
+    public PeopleRestClient(String baseUrl, String adminUsername, String adminPassword)
+    {
+        this(baseUrl, basicAuthenticator(baseUrl, adminUsername, adminPassword));
+    }
+
+    /**
+     * Create a client with a pool of {@link HttpConnectionPools#DEFAULT_MAX_CONNECTIONS} connections
+     *
+     * @param baseUrl            the Alfresco URL e.g. <tt>http://localhost:8080/</tt>
+     * @param adminAuthenticator supplies the administrator's credentials, shared with other clients
+     */
+    public PeopleRestClient(String baseUrl, AdminAuthenticator adminAuthenticator)
+    {
+        this(baseUrl, adminAuthenticator, new HttpConnectionPools(), "people", 0);
+    }
+
+    /**
+     * @param baseUrl            the Alfresco URL e.g. <tt>http://localhost:8080/</tt>
+     * @param adminAuthenticator supplies the administrator's credentials, shared with other clients
+     * @param connectionPools    sizes the connection pool and sets the timeouts of this client
+     * @param poolName           the name under which the connection pool is reported
+     * @param concurrency        the number of calls made at the same time, or 0 if not known
+     */
+    public PeopleRestClient(String baseUrl, AdminAuthenticator adminAuthenticator, HttpConnectionPools connectionPools,
+        String poolName, int concurrency)
+    {
+        this.baseUrl = normalizeBaseUrl(baseUrl);
+        this.adminAuthenticator = adminAuthenticator;
+
+        PoolingHttpClientConnectionManager connectionManager = connectionPools.newConnectionManager(poolName, concurrency);
+        this.httpClient = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(connectionPools.getRequestConfig())
+            .setKeepAliveStrategy(connectionPools.getKeepAliveStrategy())
+            .build();
+    }
+
+    /**
+     * Create a person as the administrator
+     *
+     * @return the HTTP status of the call
+     */
+    public int createPerson(RestPersonModel person) throws IOException
+    {
+        return post(PEOPLE_PATH, PeopleJson.person(person));
+    }
+
+    /**
+     * Create a person as the administrator, writing the body straight from the user data
+     *
+     * @return the HTTP status of the call
+     */
+    public int createPerson(UserData user) throws IOException
+    {
+        return post(PEOPLE_PATH, new ByteArrayEntity(PersonJsonWriter.person(user), ContentType.APPLICATION_JSON));
+    }
+
+    /**
+     * Create a person and add it to its groups in a single call to the legacy people Web Script, as
+     * the administrator.  The ticket, if any, is passed as the <tt>alf_ticket</tt> parameter.
+     *
+     * @param groupIds the full IDs of the groups, including the <b>GROUP_</b> prefix
+     * @return the HTTP status of the call; the Web Script answers <tt>200</tt> when the person is created
+     */
+    public int createPersonLegacy(UserData user, Collection<String> groupIds) throws IOException
+    {
+        StringEntity entity = new StringEntity(PeopleJson.legacyPerson(user, groupIds), ContentType.APPLICATION_JSON);
+        String ticket = adminAuthenticator.getTicket();
+        int code = postLegacy(entity, ticket);
+        if (code == HttpStatus.SC_UNAUTHORIZED && adminAuthenticator.rejected(ticket))
+        {
+            // The ticket has expired
+            code = postLegacy(entity, adminAuthenticator.getTicket());
+        }
+        return code;
+    }
+
+    /**
+     * Add a person to a group as the administrator
+     *
+     * @param groupId  the full group ID, including the <b>GROUP_</b> prefix
+     * @param username the person to add
+     * @return the HTTP status of the call
+     */
+    public int createGroupMembership(String groupId, String username) throws IOException
+    {
+        return post(groupMembersPath(groupId), PeopleJson.groupMember(username));
+    }
+
+    /**
+     * Check that a group exists
+     *
+     * @param groupId the full group ID, including the <b>GROUP_</b> prefix
+     * @return the HTTP status of the call
+     */
+    public int getGroup(String groupId) throws IOException
+    {
+        HttpGet get = new HttpGet(baseUrl + String.format(GROUP_PATH, URLEncoder.encode(groupId, "UTF-8")));
+        return execute(get);
+    }
+
+    /**
+     * Create a root group as the administrator
+     *
+     * @param groupId     the full group ID, including the <b>GROUP_</b> prefix
+     * @param displayName the name shown for the group
+     * @return the HTTP status of the call
+     */
+    public int createGroup(String groupId, String displayName) throws IOException
+    {
+        return post(GROUPS_PATH, PeopleJson.group(groupId, displayName));
+    }
+
+    /**
+     * Read a page of the people known to Alfresco, fetching only their IDs
+     *
+     * @param skipCount the number of people to skip
+     * @param maxItems  the maximum number of people to read
+     * @param ids       receives the ID of each person read
+     * @return <tt>true</tt> if there are more people after this page
+     * @throws IOException if the call fails or does not return 200
+     */
+    public boolean listPeople(int skipCount, int maxItems, Collection<String> ids) throws IOException
+    {
+        HttpGet get = new HttpGet(baseUrl + String.format(PEOPLE_PAGE_PATH, skipCount, maxItems));
+        boolean[] hasMoreItems = new boolean[1];
+        int code = execute(get, entity ->
+        {
+            try (InputStream is = entity.getContent(); JsonReader reader = Json.createReader(is))
+            {
+                JsonObject list = reader.readObject().getJsonObject("list");
+                for (JsonObject entry : list.getJsonArray("entries").getValuesAs(JsonObject.class))
+                {
+                    ids.add(entry.getJsonObject("entry").getString("id"));
+                }
+                JsonObject pagination = list.getJsonObject("pagination");
+                hasMoreItems[0] = pagination != null && pagination.getBoolean("hasMoreItems", false);
+            }
+        });
+        if (code != HttpStatus.SC_OK)
+        {
+            throw new IOException("Listing people returned status " + code);
+        }
+        return hasMoreItems[0];
+    }
+
+    /**
+     * @return the base URL with a trailing slash
+     */
+    static String normalizeBaseUrl(String baseUrl)
+    {
+        return baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+    }
+
+    /**
+     * @return the value of an <tt>Authorization</tt> header for HTTP basic authentication
+     */
+    static String basicAuthorization(String username, String password)
+    {
+        String credentials = username + ":" + password;
+        return "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return an authenticator that never asks for a ticket
+     */
+    static AdminAuthenticator basicAuthenticator(String baseUrl, String adminUsername, String adminPassword)
+    {
+        AdminAuthenticator adminAuthenticator = new AdminAuthenticator(baseUrl, adminUsername, adminPassword);
+        adminAuthenticator.setUseTicket(false);
+        return adminAuthenticator;
+    }
+
+    /**
+     * @return the path of the members of a group
+     */
+    static String groupMembersPath(String groupId) throws UnsupportedEncodingException
+    {
+        return String.format(GROUP_MEMBERS_PATH, URLEncoder.encode(groupId, "UTF-8"));
+    }
+
+    private int post(String path, String body) throws IOException
+    {
+        return post(path, new StringEntity(body, ContentType.APPLICATION_JSON));
+    }
+
+    private int post(String path, HttpEntity entity) throws IOException
+    {
+        HttpPost post = new HttpPost(baseUrl + path);
+        post.setEntity(entity);
+        return execute(post);
+    }
+
+    private int postLegacy(HttpEntity entity, String ticket) throws IOException
+    {
+        String path = ticket == null ? LEGACY_PEOPLE_PATH : LEGACY_PEOPLE_PATH + "?alf_ticket=" + URLEncoder.encode(ticket, "UTF-8");
+        HttpPost post = new HttpPost(baseUrl + path);
+        post.setEntity(entity);
+        return execute(post, ticket == null ? adminAuthenticator.getBasicAuthorization() : null, null);
+    }
+
+    private int execute(HttpRequestBase request) throws IOException
+    {
+        return execute(request, (EntityReader) null);
+    }
+
+    /**
+     * @param entityReader optional reader of the body of a 200 response
+     */
+    private int execute(HttpRequestBase request, EntityReader entityReader) throws IOException
+    {
+        String authorization = adminAuthenticator.getAuthorization();
+        int code = execute(request, authorization, entityReader);
+        if (code == HttpStatus.SC_UNAUTHORIZED && adminAuthenticator.rejected(authorization))
+        {
+            // The ticket has expired
+            code = execute(request, adminAuthenticator.getAuthorization(), entityReader);
+        }
+        return code;
+    }
+
+    /**
+     * @param authorization the <tt>Authorization</tt> header, or <tt>null</tt> for none
+     */
+    private int execute(HttpRequestBase request, String authorization, EntityReader entityReader) throws IOException
+    {
+        if (authorization != null)
+        {
+            request.setHeader(HttpHeaders.AUTHORIZATION, authorization);
+        }
+        try (CloseableHttpResponse response = httpClient.execute(request))
+        {
+            int code = response.getStatusLine().getStatusCode();
+            if (code == HttpStatus.SC_OK && entityReader != null && response.getEntity() != null)
+            {
+                entityReader.read(response.getEntity());
+            }
+            // Consume the body so that the connection goes back to the pool
+            EntityUtils.consume(response.getEntity());
+            return code;
+        }
+    }
+
+    /**
+     * Reads the body of a response before the connection goes back to the pool
+     */
+    private interface EntityReader
+    {
+        void read(HttpEntity entity) throws IOException;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        httpClient.close();
+    }
+}
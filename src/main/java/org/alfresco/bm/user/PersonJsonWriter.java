@@ -0,0 +1,187 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import java.util.Arrays;
+
+/**
+ * Writes the body to create a person straight from the {@link UserData}, as UTF-8 JSON.
+ * <p/>
+ * Only the fields that describe the user are written: <tt>id</tt>, <tt>firstName</tt>,
+ * <tt>lastName</tt>, <tt>email</tt> and <tt>password</tt>.  Strings are escaped exactly as Jackson
+ * does by default, so the bytes are those of a Jackson serialization of the same fields.  Each
+ * thread writes into its own buffer, which is reused, so that the only allocation per person is
+ * the returned array.
+ *
+ * @since 3.0.1
+ */
+final class PersonJsonWriter
+{
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+    private static final int INITIAL_CAPACITY = 512;
+
+    private static final ThreadLocal<PersonJsonWriter> WRITERS = ThreadLocal.withInitial(PersonJsonWriter::new);
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int length;
+
+    private PersonJsonWriter()
+    {
+    }
+
+    /**
+     * @return the body to create the person, encoded in UTF-8
+     */
+    static byte[] person(UserData user)
+    {
+        PersonJsonWriter writer = WRITERS.get();
+        writer.length = 0;
+        writer.writeField('{', "id", user.getUsername());
+        writer.writeField(',', "firstName", user.getFirstName());
+        writer.writeField(',', "lastName", user.getLastName());
+        writer.writeField(',', "email", user.getEmail());
+        writer.writeField(',', "password", user.getPassword());
+        writer.writeByte('}');
+        return Arrays.copyOf(writer.buffer, writer.length);
+    }
+
+    private void writeField(char separator, String name, String value)
+    {
+        writeByte(separator);
+        writeString(name);
+        writeByte(':');
+        if (value == null)
+        {
+            writeByte('n');
+            writeByte('u');
+            writeByte('l');
+            writeByte('l');
+        }
+        else
+        {
+            writeString(value);
+        }
+    }
+
+    private void writeString(String value)
+    {
+        // Worst case: every char takes 6 bytes, plus the quotes
+        ensureCapacity(value.length() * 6 + 2);
+        byte[] buf = buffer;
+        int pos = length;
+        buf[pos++] = '"';
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c < 0x80)
+            {
+                if (c == '"' || c == '\\')
+                {
+                    buf[pos++] = '\\';
+                    buf[pos++] = (byte) c;
+                }
+                else if (c < 0x20)
+                {
+                    pos = writeControl(buf, pos, c);
+                }
+                else
+                {
+                    buf[pos++] = (byte) c;
+                }
+            }
+            else if (c < 0x800)
+            {
+                buf[pos++] = (byte) (0xC0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1)))
+            {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buf[pos++] = (byte) (0xF0 | (codePoint >> 18));
+                buf[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buf[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+            }
+            else if (Character.isSurrogate(c))
+            {
+                // Unpaired surrogate: replaced, as String.getBytes does
+                buf[pos++] = '?';
+            }
+            else
+            {
+                buf[pos++] = (byte) (0xE0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        buf[pos++] = '"';
+        length = pos;
+    }
+
+    private static int writeControl(byte[] buf, int pos, char c)
+    {
+        buf[pos++] = '\\';
+        switch (c)
+        {
+            case '\b':
+                buf[pos++] = 'b';
+                break;
+            case '\t':
+                buf[pos++] = 't';
+                break;
+            case '\n':
+                buf[pos++] = 'n';
+                break;
+            case '\f':
+                buf[pos++] = 'f';
+                break;
+            case '\r':
+                buf[pos++] = 'r';
+                break;
+            default:
+                buf[pos++] = 'u';
+                buf[pos++] = '0';
+                buf[pos++] = '0';
+                buf[pos++] = HEX[c >> 4];
+                buf[pos++] = HEX[c & 0xF];
+        }
+        return pos;
+    }
+
+    private void writeByte(char c)
+    {
+        ensureCapacity(1);
+        buffer[length++] = (byte) c;
+    }
+
+    private void ensureCapacity(int extra)
+    {
+        if (length + extra > buffer.length)
+        {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+}
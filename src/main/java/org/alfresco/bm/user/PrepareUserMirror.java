@@ -0,0 +1,244 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.driver.event.AbstractEventProcessor;
+import org.alfresco.bm.driver.event.Event;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Event processor that fills the users mirror with the users to create, replacing {@link PrepareUsers}.
+ * <p/>
+ * <h1>Input</h1><br/>
+ * None on the first call; afterwards how far the preparation has got:
+ * <pre>
+ *    { "prepared" : 200000, "added" : 200000, "insertOnly" : true, "started" : 1500000000000 }
+ * </pre>
+ * <p/>
+ * <h1>Data</h1><br/>
+ * Collection containing users. Users not in the mirror yet are added, not scheduled or, when
+ * they are {@link #setAssumeCreated(boolean) assumed to exist}, created.
+ * <p/>
+ * <h1>Actions</h1><br/>
+ * Users are rebuilt from their index by a {@link UserSynthesizer}, whose patterns are compiled
+ * once, and written {@link #setInsertBatchSize(int) insertBatchSize} at a time with unordered bulk
+ * writes, the next batch being generated while one is written.  When the mirror is empty on the
+ * first call the batches are plain inserts; otherwise users already in the mirror are left as
+ * they are.  Each event prepares up to {@link #setUsersPerEvent(int) usersPerEvent} users.
+ * <p/>
+ * When users are {@link #setSynthesizeUsers(boolean) synthesized}, they are only written once
+ * created and nothing is prepared.  In every case the start of the preparation is recorded by the
+ * {@link UserCreationTracker}, if any, so that the time to the first user creation can be reported.
+ * <p/>
+ * <h1>Output</h1>
+ * {@link #EVENT_NAME_PREPARE_USERS}: to prepare the next users<br/>
+ * {@link #EVENT_NAME_USERS_PREPARED}: once all users are in the mirror<br/>
+ *
+ * @since 3.0.1
+ */
+public class PrepareUserMirror extends AbstractEventProcessor
+{
+    public static final String EVENT_NAME_PREPARE_USERS = "start";
+    public static final String EVENT_NAME_USERS_PREPARED = "usersPrepared";
+
+    public static final String EVENT_DATA_PREPARED = "prepared";
+    public static final String EVENT_DATA_ADDED = "added";
+    public static final String EVENT_DATA_INSERT_ONLY = "insertOnly";
+    public static final String EVENT_DATA_STARTED = "started";
+
+    public static final int DEFAULT_INSERT_BATCH_SIZE = 5000;
+    public static final int DEFAULT_USERS_PER_EVENT = 200000;
+
+    private final UserDataBulkService userDataBulkService;
+    private final UserSynthesizer userSynthesizer;
+    private final long numberOfUsers;
+    private final ExecutorService generator;
+    private boolean assumeCreated = false;
+    private boolean synthesizeUsers = false;
+    private int insertBatchSize = DEFAULT_INSERT_BATCH_SIZE;
+    private int usersPerEvent = DEFAULT_USERS_PER_EVENT;
+    private UserCreationTracker completionTracker;
+
+    /**
+     * @param userDataBulkService bulk access to the users mirror
+     * @param userSynthesizer     rebuilds each user from its index
+     * @param numberOfUsers       the number of users to prepare
+     */
+    public PrepareUserMirror(UserDataBulkService userDataBulkService, UserSynthesizer userSynthesizer, long numberOfUsers)
+    {
+        this.userDataBulkService = userDataBulkService;
+        this.userSynthesizer = userSynthesizer;
+        this.numberOfUsers = numberOfUsers;
+        this.generator = Executors.newSingleThreadExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "PrepareUserMirror-generator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param assumeCreated <tt>true</tt> if the users already exist in Alfresco and only the mirror is wanted
+     */
+    public void setAssumeCreated(boolean assumeCreated)
+    {
+        this.assumeCreated = assumeCreated;
+    }
+
+    /**
+     * @param synthesizeUsers <tt>true</tt> to leave the mirror as it is
+     */
+    public void setSynthesizeUsers(boolean synthesizeUsers)
+    {
+        this.synthesizeUsers = synthesizeUsers;
+    }
+
+    /**
+     * @param insertBatchSize the number of users written with each bulk write
+     */
+    public void setInsertBatchSize(int insertBatchSize)
+    {
+        if (insertBatchSize < 1)
+        {
+            throw new IllegalArgumentException("'insertBatchSize' must be at least 1.");
+        }
+        this.insertBatchSize = insertBatchSize;
+    }
+
+    /**
+     * @param usersPerEvent the number of users prepared by each event
+     */
+    public void setUsersPerEvent(int usersPerEvent)
+    {
+        this.usersPerEvent = usersPerEvent;
+    }
+
+    /**
+     * @param completionTracker optional tracker recording when the preparation started
+     */
+    public void setCompletionTracker(UserCreationTracker completionTracker)
+    {
+        this.completionTracker = completionTracker;
+    }
+
+    @Override
+    protected EventResult processEvent(Event event) throws Exception
+    {
+        long now = System.currentTimeMillis();
+        Object data = event.getData();
+        boolean firstCall = !(data instanceof DBObject && ((DBObject) data).containsField(EVENT_DATA_PREPARED));
+        if (firstCall && completionTracker != null)
+        {
+            completionTracker.recordPreparationStarted(now);
+        }
+        if (synthesizeUsers)
+        {
+            Event nextEvent = new Event(EVENT_NAME_USERS_PREPARED, now, null);
+            return new EventResult("Users are synthesized from their index; the mirror is not prepared.", nextEvent);
+        }
+
+        long prepared = 0L;
+        long added = 0L;
+        long started = now;
+        boolean insertOnly;
+        if (firstCall)
+        {
+            insertOnly = userDataBulkService.isEmpty();
+        }
+        else
+        {
+            DBObject dataObj = (DBObject) data;
+            prepared = ((Number) dataObj.get(EVENT_DATA_PREPARED)).longValue();
+            added = ((Number) dataObj.get(EVENT_DATA_ADDED)).longValue();
+            insertOnly = (Boolean) dataObj.get(EVENT_DATA_INSERT_ONLY);
+            started = ((Number) dataObj.get(EVENT_DATA_STARTED)).longValue();
+        }
+
+        long end = Math.min(numberOfUsers, prepared + usersPerEvent);
+        Future<List<UserData>> nextBatch = generate(prepared, end);
+        while (nextBatch != null)
+        {
+            List<UserData> users = nextBatch.get();
+            prepared += users.size();
+            // Generate the next batch while this one is written
+            nextBatch = prepared < end ? generate(prepared, end) : null;
+            if (insertOnly)
+            {
+                userDataBulkService.insertUsers(users);
+                added += users.size();
+            }
+            else
+            {
+                added += userDataBulkService.addMissingUsers(users);
+            }
+        }
+
+        long elapsed = System.currentTimeMillis() - started;
+        DBObject progressObj = new BasicDBObject()
+            .append(EVENT_DATA_PREPARED, prepared)
+            .append(EVENT_DATA_ADDED, added)
+            .append(EVENT_DATA_INSERT_ONLY, insertOnly)
+            .append(EVENT_DATA_STARTED, started);
+        DBObject resultObj = new BasicDBObject()
+            .append(EVENT_DATA_PREPARED, prepared)
+            .append(EVENT_DATA_ADDED, added)
+            .append("elapsedMs", elapsed)
+            .append("usersPerSecond", elapsed == 0L ? 0.0 : prepared * 1000.0 / elapsed);
+        if (prepared < numberOfUsers)
+        {
+            resultObj.put("msg", "Prepared " + prepared + " users so far.");
+            return new EventResult(resultObj, new Event(EVENT_NAME_PREPARE_USERS, System.currentTimeMillis(), progressObj));
+        }
+        resultObj.put("msg", "Prepared " + prepared + " users, " + added + " of them new, in " + elapsed + "ms.");
+        return new EventResult(resultObj, new Event(EVENT_NAME_USERS_PREPARED, System.currentTimeMillis(), null));
+    }
+
+    private Future<List<UserData>> generate(long fromIndex, long end)
+    {
+        int count = (int) Math.min(insertBatchSize, end - fromIndex);
+        DataCreationState creationState = assumeCreated ? DataCreationState.Created : DataCreationState.NotScheduled;
+        return generator.submit(() ->
+        {
+            List<UserData> users = new ArrayList<>(count);
+            for (long index = fromIndex; index < fromIndex + count; index++)
+            {
+                UserData user = userSynthesizer.getUser(index);
+                user.setCreationState(creationState);
+                users.add(user);
+            }
+            return users;
+        });
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency histograms of each phase of user provisioning, so that a slow run can be put down to
+ * Alfresco, group handling or MongoDB.
+ * <p/>
+ * Each driver records into its own {@link LatencyHistogram histograms} and publishes them to a
+ * collection every {@link #setPublishInterval(long) publishInterval} milliseconds.  The
+ * {@link #getMergedReport() merged report} adds up the histograms of all drivers; it is as recent
+ * as the last publication of each driver.
+ * <p/>
+ * The histograms are published under the id of the current run, which is recorded in the collection
+ * when the run {@link #reset() starts}; the merged report only covers that run.
+ *
+ * @since 3.0.1
+ */
+public class ProvisioningLatencies implements InitializingBean, DisposableBean
+{
+    public static final String PHASE_CREATE_PERSON = "createPerson";
+    public static final String PHASE_GROUP_MEMBERSHIP = "createGroupMembership";
+    public static final String PHASE_FIND_USER = "findUserByUsername";
+    public static final String PHASE_SET_CREATION_STATE = "setUserCreationState";
+
+    public static final long DEFAULT_PUBLISH_INTERVAL = 5000L;
+
+    private static final String RUN_ID = "run";
+    private static final String FIELD_RUN_ID = "runId";
+    private static final String FIELD_RUN = "run";
+    private static final String FIELD_DRIVER = "driver";
+    private static final String FIELD_PHASE = "phase";
+    private static final String FIELD_INDEXES = "indexes";
+    private static final String FIELD_COUNTS = "counts";
+
+    private static Log logger = LogFactory.getLog(ProvisioningLatencies.class);
+
+    private final DBCollection collection;
+    private final String driverId;
+    private long publishInterval = DEFAULT_PUBLISH_INTERVAL;
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private ScheduledExecutorService publishScheduler;
+
+    /**
+     * @param db         the database holding the latencies
+     * @param collection the name of the collection shared by the drivers
+     */
+    public ProvisioningLatencies(DB db, String collection)
+    {
+        this.collection = db.getCollection(collection);
+        this.driverId = ManagementFactory.getRuntimeMXBean().getName() + "-" + UUID.randomUUID();
+    }
+
+    /**
+     * @param publishInterval the milliseconds between publications of this driver's histograms
+     */
+    public void setPublishInterval(long publishInterval)
+    {
+        this.publishInterval = publishInterval;
+    }
+
+    @Override
+    public void afterPropertiesSet()
+    {
+        collection.createIndex(new BasicDBObject(FIELD_RUN, 1));
+        publishScheduler = Executors.newSingleThreadScheduledExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "ProvisioningLatencies");
+            thread.setDaemon(true);
+            return thread;
+        });
+        publishScheduler.scheduleWithFixedDelay(this::publishQuietly, publishInterval, publishInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy()
+    {
+        if (publishScheduler != null)
+        {
+            publishScheduler.shutdownNow();
+        }
+        publishQuietly();
+    }
+
+    /**
+     * @return this driver's histogram of a phase
+     */
+    public LatencyHistogram get(String phase)
+    {
+        return histograms.computeIfAbsent(phase, key -> new LatencyHistogram());
+    }
+
+    /**
+     * @param phase      the phase timed
+     * @param startNanos the {@link System#nanoTime()} at which the phase started
+     */
+    public void record(String phase, long startNanos)
+    {
+        get(phase).recordSince(startNanos);
+    }
+
+    /**
+     * Start a new run, which every driver publishes to from its next publication, and forget the
+     * histograms of earlier runs, this driver's own included
+     */
+    public void reset()
+    {
+        histograms.clear();
+        String runId = UUID.randomUUID().toString();
+        collection.update(new BasicDBObject("_id", RUN_ID), new BasicDBObject(FIELD_RUN_ID, runId), true, false);
+        collection.remove(new BasicDBObject()
+            .append("_id", new BasicDBObject("$ne", RUN_ID))
+            .append(FIELD_RUN, new BasicDBObject("$ne", runId)));
+    }
+
+    /**
+     * @return the id of the current run or <tt>null</tt> if no run was started
+     */
+    private String getRunId()
+    {
+        DBObject runObj = collection.findOne(new BasicDBObject("_id", RUN_ID));
+        return runObj == null ? null : (String) runObj.get(FIELD_RUN_ID);
+    }
+
+    /**
+     * Write this driver's histograms for the current run, replacing the ones it published before
+     */
+    public void publish()
+    {
+        String runId = getRunId();
+        for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet())
+        {
+            long[] counts = histogram.getValue().getCounts();
+            BasicDBList indexList = new BasicDBList();
+            BasicDBList countList = new BasicDBList();
+            for (int i = 0; i < counts.length; i++)
+            {
+                if (counts[i] != 0L)
+                {
+                    indexList.add(i);
+                    countList.add(counts[i]);
+                }
+            }
+            DBObject doc = new BasicDBObject()
+                .append(FIELD_RUN, runId)
+                .append(FIELD_DRIVER, driverId)
+                .append(FIELD_PHASE, histogram.getKey())
+                .append(FIELD_INDEXES, indexList)
+                .append(FIELD_COUNTS, countList);
+            collection.update(new BasicDBObject("_id", runId + "." + driverId + "." + histogram.getKey()), doc, true, false);
+        }
+    }
+
+    private void publishQuietly()
+    {
+        try
+        {
+            publish();
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Failed to publish latency histograms: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return this driver's percentiles, by phase
+     */
+    public DBObject getReport()
+    {
+        BasicDBObject report = new BasicDBObject();
+        for (Map.Entry<String, LatencyHistogram> histogram : new TreeMap<>(histograms).entrySet())
+        {
+            report.append(histogram.getKey(), histogram.getValue().toReport());
+        }
+        return report;
+    }
+
+    /**
+     * Publish this driver's histograms and add up those of all drivers in the current run
+     *
+     * @return the percentiles of all drivers, by phase, and the number of drivers
+     */
+    public DBObject getMergedReport()
+    {
+        publish();
+        Map<String, LatencyHistogram> merged = new TreeMap<>();
+        Set<String> drivers = new HashSet<>();
+        try (DBCursor cursor = collection.find(new BasicDBObject(FIELD_RUN, getRunId())))
+        {
+            while (cursor.hasNext())
+            {
+                DBObject doc = cursor.next();
+                drivers.add((String) doc.get(FIELD_DRIVER));
+                List<?> indexes = (List<?>) doc.get(FIELD_INDEXES);
+                List<?> counts = (List<?>) doc.get(FIELD_COUNTS);
+                long[] bucketCounts = new long[LatencyHistogram.BUCKET_COUNT];
+                for (int i = 0; i < indexes.size(); i++)
+                {
+                    bucketCounts[((Number) indexes.get(i)).intValue()] = ((Number) counts.get(i)).longValue();
+                }
+                merged.computeIfAbsent((String) doc.get(FIELD_PHASE), key -> new LatencyHistogram()).add(bucketCounts);
+            }
+        }
+        BasicDBObject report = new BasicDBObject("drivers", drivers.size());
+        for (Map.Entry<String, LatencyHistogram> histogram : merged.entrySet())
+        {
+            report.append(histogram.getKey(), histogram.getValue().toReport());
+        }
+        return report;
+    }
+}
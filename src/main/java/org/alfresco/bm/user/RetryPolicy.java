@@ -0,0 +1,234 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which failed person creations are worth another attempt and how long to wait before it.
+ * <p/>
+ * Only transient failures are retried: server errors (5xx), 429, timeouts and connections that were
+ * refused, reset or closed without a response.  Anything else, a 4xx in particular, fails straight
+ * away.  A timeout waiting for one of the driver's own pooled connections is not a failure of the
+ * server: it is neither retried nor {@link #isServerError(Throwable) counted against the server}.  The wait before attempt <i>n</i> + 1 is drawn uniformly between 0 and
+ * <tt>min(maxDelay, baseDelay * 2<sup>n - 1</sup>)</tt> ("full jitter"), so that the drivers do not
+ * all come back at the same time after a blip.
+ *
+ * @since 3.0.1
+ */
+public class RetryPolicy
+{
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_BASE_DELAY = 200L;
+    public static final long DEFAULT_MAX_DELAY = 5000L;
+
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long baseDelay = DEFAULT_BASE_DELAY;
+    private long maxDelay = DEFAULT_MAX_DELAY;
+
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder recovered = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+
+    /**
+     * @param maxAttempts the number of calls made for a user, including the first one; <tt>1</tt> disables retries
+     */
+    public void setMaxAttempts(int maxAttempts)
+    {
+        if (maxAttempts < 1)
+        {
+            throw new IllegalArgumentException("'maxAttempts' must be at least 1.");
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @param baseDelay the upper bound of the wait before the first retry (milliseconds)
+     */
+    public void setBaseDelay(long baseDelay)
+    {
+        this.baseDelay = baseDelay;
+    }
+
+    /**
+     * @param maxDelay the upper bound of the wait before any retry (milliseconds)
+     */
+    public void setMaxDelay(long maxDelay)
+    {
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * @return <tt>true</tt> if a call answered with this status may succeed when made again
+     */
+    public static boolean isTransient(int code)
+    {
+        return isServerError(code);
+    }
+
+    /**
+     * @return <tt>true</tt> if a call that failed with this exception may succeed when made again
+     */
+    public static boolean isTransient(Throwable e)
+    {
+        if (isDriverSide(e))
+        {
+            return false;
+        }
+        // Timeouts (connect and read), refused or reset connections, and dropped responses
+        return e instanceof InterruptedIOException || e instanceof SocketException || e instanceof NoHttpResponseException;
+    }
+
+    /**
+     * @return <tt>true</tt> if this status tells that the server failed or is overloaded (5xx and 429),
+     *         as the circuit breaker and the rate controller should count it
+     */
+    public static boolean isServerError(int code)
+    {
+        return code >= 500 || code == SC_TOO_MANY_REQUESTS;
+    }
+
+    /**
+     * @return <tt>true</tt> unless the call was never made because no pooled connection was free
+     */
+    public static boolean isServerError(Throwable e)
+    {
+        return !isDriverSide(e);
+    }
+
+    /**
+     * @return <tt>true</tt> if the call timed out waiting for a connection from the driver's own pool
+     *         (a lease timeout, <tt>TimeoutException</tt> for the non-blocking client)
+     */
+    private static boolean isDriverSide(Throwable e)
+    {
+        return e instanceof ConnectionPoolTimeoutException || e instanceof TimeoutException;
+    }
+
+    /**
+     * Decide whether to retry a call that returned a status
+     *
+     * @param code    the HTTP status of the call
+     * @param attempt the number of calls made so far, starting at 1
+     * @return <tt>true</tt> if the call should be made again
+     */
+    public boolean shouldRetry(int code, int attempt)
+    {
+        return shouldRetry(isTransient(code), attempt);
+    }
+
+    /**
+     * Decide whether to retry a call that could not be made
+     *
+     * @param e       the failure
+     * @param attempt the number of calls made so far, starting at 1
+     * @return <tt>true</tt> if the call should be made again
+     */
+    public boolean shouldRetry(Throwable e, int attempt)
+    {
+        return shouldRetry(isTransient(e), attempt);
+    }
+
+    private boolean shouldRetry(boolean isTransient, int attempt)
+    {
+        if (!isTransient)
+        {
+            return false;
+        }
+        if (attempt >= maxAttempts)
+        {
+            if (maxAttempts > 1)
+            {
+                exhausted.increment();
+            }
+            return false;
+        }
+        retries.increment();
+        return true;
+    }
+
+    /**
+     * @param attempt the number of calls made so far, starting at 1
+     * @return the time to wait before the next call (milliseconds)
+     */
+    public long getDelay(int attempt)
+    {
+        long bound = baseDelay << Math.min(attempt - 1, 30);
+        bound = Math.min(maxDelay, bound < 0 ? maxDelay : bound);
+        return bound <= 0L ? 0L : ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    /**
+     * Wait before the next call
+     *
+     * @param attempt the number of calls made so far, starting at 1
+     */
+    public void backOff(int attempt) throws InterruptedException
+    {
+        long delay = getDelay(attempt);
+        if (delay > 0L)
+        {
+            Thread.sleep(delay);
+        }
+    }
+
+    /**
+     * Record the final outcome of a call, once no more attempts will be made
+     *
+     * @param attempt the number of calls made
+     * @param success <tt>true</tt> if the last call succeeded
+     */
+    public void recordOutcome(int attempt, boolean success)
+    {
+        if (attempt > 1 && success)
+        {
+            recovered.increment();
+        }
+    }
+
+    /**
+     * @return the retry figures, suitable for an event result
+     */
+    public DBObject getMetrics()
+    {
+        return new BasicDBObject()
+            .append("maxAttempts", maxAttempts)
+            .append("retries", retries.sum())
+            .append("recovered", recovered.sum())
+            .append("exhausted", exhausted.sum());
+    }
+}
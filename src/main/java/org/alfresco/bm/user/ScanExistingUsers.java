@@ -0,0 +1,182 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.driver.event.AbstractEventProcessor;
+import org.alfresco.bm.driver.event.Event;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Event processor that marks the users already present in Alfresco as created before any user is
+ * scheduled, so that a rerun does not send every user to Alfresco only to be told that it exists.
+ * <p/>
+ * <h1>Input</h1><br/>
+ * None on the first call; afterwards the number of people already read and of users marked.
+ * <p/>
+ * <h1>Data</h1><br/>
+ * Collection containing users. Users found in Alfresco are marked as created.
+ * <p/>
+ * <h1>Actions</h1><br/>
+ * Alfresco's people are read, IDs only, {@link #setPageSize(int) pageSize} at a time and
+ * {@link #setPagesPerEvent(int) pagesPerEvent} pages per event.  The users of each page are marked
+ * as created in the mirror with a single update, so nothing but the page itself is held in memory.
+ * Only users that are not scheduled yet are marked.  Users marked this way are never sent to
+ * Alfresco, so they are not added to any group either: the scan assumes that existing people
+ * already have their groups.
+ * <p/>
+ * The scan is off by default; when it is {@link #setEnabled(boolean) disabled}, the users are
+ * scheduled straight away.
+ * <p/>
+ * <h1>Output</h1>
+ * {@link #EVENT_NAME_SCAN_EXISTING_USERS}: to read the next pages<br/>
+ * {@link #EVENT_NAME_CREATE_USERS}: once all people have been read<br/>
+ *
+ * @since 3.0.1
+ */
+public class ScanExistingUsers extends AbstractEventProcessor implements DisposableBean
+{
+    public static final String EVENT_NAME_SCAN_EXISTING_USERS = "scanExistingUsers";
+    public static final String EVENT_NAME_CREATE_USERS = CreateUsersInBatches.EVENT_NAME_CREATE_USERS;
+
+    public static final String EVENT_DATA_SKIP_COUNT = "skipCount";
+    public static final String EVENT_DATA_MARKED = "marked";
+
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+    public static final int DEFAULT_PAGES_PER_EVENT = 10;
+
+    private final UserDataBulkService userDataBulkService;
+    private final PeopleRestClient peopleRestClient;
+    private boolean enabled = false;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private int pagesPerEvent = DEFAULT_PAGES_PER_EVENT;
+
+    /**
+     * @param userDataBulkService bulk access to the users mirror
+     * @param baseUrl             the Alfresco URL
+     * @param adminAuthenticator  supplies the administrator's credentials, shared with other clients
+     */
+    public ScanExistingUsers(UserDataBulkService userDataBulkService, String baseUrl, AdminAuthenticator adminAuthenticator)
+    {
+        this(userDataBulkService, baseUrl, adminAuthenticator, new HttpConnectionPools());
+    }
+
+    /**
+     * @param userDataBulkService bulk access to the users mirror
+     * @param baseUrl             the Alfresco URL
+     * @param adminAuthenticator  supplies the administrator's credentials, shared with other clients
+     * @param connectionPools     sizes the connection pool and sets the timeouts of the REST client
+     */
+    public ScanExistingUsers(UserDataBulkService userDataBulkService, String baseUrl, AdminAuthenticator adminAuthenticator,
+        HttpConnectionPools connectionPools)
+    {
+        this.userDataBulkService = userDataBulkService;
+        this.peopleRestClient = new PeopleRestClient(baseUrl, adminAuthenticator, connectionPools, "scanExistingUsers", 1);
+    }
+
+    @Override
+    public void destroy()
+    {
+        try
+        {
+            peopleRestClient.close();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to close the REST client: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param enabled <tt>true</tt> to mark the users already in Alfresco as created before scheduling any user
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param pageSize the number of people read with each call
+     */
+    public void setPageSize(int pageSize)
+    {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @param pagesPerEvent the number of pages read by each event
+     */
+    public void setPagesPerEvent(int pagesPerEvent)
+    {
+        this.pagesPerEvent = pagesPerEvent;
+    }
+
+    @Override
+    protected EventResult processEvent(Event event) throws Exception
+    {
+        long now = System.currentTimeMillis();
+        if (!enabled)
+        {
+            return new EventResult("Existing users are not looked for.", new Event(EVENT_NAME_CREATE_USERS, now, null));
+        }
+
+        int skipCount = 0;
+        long marked = 0L;
+        Object data = event.getData();
+        if (data instanceof DBObject && ((DBObject) data).containsField(EVENT_DATA_SKIP_COUNT))
+        {
+            skipCount = ((Number) ((DBObject) data).get(EVENT_DATA_SKIP_COUNT)).intValue();
+            marked = ((Number) ((DBObject) data).get(EVENT_DATA_MARKED)).longValue();
+        }
+
+        boolean hasMoreItems = true;
+        List<String> ids = new ArrayList<>(pageSize);
+        for (int page = 0; page < pagesPerEvent && hasMoreItems; page++)
+        {
+            ids.clear();
+            hasMoreItems = peopleRestClient.listPeople(skipCount, pageSize, ids) && !ids.isEmpty();
+            skipCount += ids.size();
+            marked += userDataBulkService.markCreated(ids);
+        }
+
+        DBObject resultObj = new BasicDBObject()
+            .append(EVENT_DATA_SKIP_COUNT, skipCount)
+            .append(EVENT_DATA_MARKED, marked);
+        if (hasMoreItems)
+        {
+            Event selfEvent = new Event(EVENT_NAME_SCAN_EXISTING_USERS, now, resultObj);
+            return new EventResult(new BasicDBObject("msg", "Read " + skipCount + " people so far.").append("marked", marked), selfEvent);
+        }
+        String msg = "Read " + skipCount + " people; " + marked + " users were already created.";
+        return new EventResult(new BasicDBObject("msg", msg).append("marked", marked), new Event(EVENT_NAME_CREATE_USERS, now, null));
+    }
+}
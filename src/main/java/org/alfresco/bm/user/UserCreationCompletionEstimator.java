@@ -0,0 +1,74 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import org.alfresco.bm.common.ResultService;
+import org.alfresco.bm.driver.event.EventService;
+import org.alfresco.bm.driver.test.EventCountCompletionEstimator;
+
+/**
+ * Estimates the completion of the run from the {@link UserCreationTracker}'s totals rather than from
+ * the number of <b>createUser</b> results, which neither counts the users created in batches nor the
+ * users that already existed.
+ * <p/>
+ * Users that failed count as done since they will not be created by this run.  The results
+ * themselves are still counted by the {@link EventCountCompletionEstimator}.
+ *
+ * @since 3.0.1
+ */
+public class UserCreationCompletionEstimator extends EventCountCompletionEstimator
+{
+    private final UserCreationTracker completionTracker;
+    private final long userCount;
+
+    /**
+     * @param eventService      the event service
+     * @param resultService     the result service
+     * @param eventName         the name of the event counted by the results
+     * @param eventCount        the expected number of users
+     * @param completionTracker the tracker giving the number of created and failed users
+     */
+    public UserCreationCompletionEstimator(
+        EventService eventService, ResultService resultService, String eventName, long eventCount,
+        UserCreationTracker completionTracker)
+    {
+        super(eventService, resultService, eventName, eventCount);
+        this.completionTracker = completionTracker;
+        this.userCount = eventCount;
+    }
+
+    @Override
+    protected double getCompletionImpl()
+    {
+        if (userCount <= 0L)
+        {
+            return 1.0;
+        }
+        UserCreationTracker.Counters counters = completionTracker.getCounters();
+        long done = counters.getTotalCreated() + counters.getFailed();
+        return Math.min(1.0, (double) done / userCount);
+    }
+}
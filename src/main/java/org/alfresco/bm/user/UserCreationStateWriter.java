@@ -0,0 +1,374 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.alfresco.bm.data.DataCreationState;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records user creation state transitions in the users mirror.
+ * <p/>
+ * By default every transition is written straight through the {@link UserDataService}.  In
+ * <b>write-behind</b> mode the transitions are collected in memory and written as unordered bulk
+ * updates once {@link #setFlushSize(int) flushSize} transitions are pending or every
+ * {@link #setFlushInterval(long) flushInterval} milliseconds, whichever comes first.  When the same
+ * user changes state several times between flushes, only the last state is written.
+ * <p/>
+ * The writer also records the groups that users must be added to once the group membership
+ * phase runs, buffering them in the same way.
+ * <p/>
+ * Transitions are counted by the optional {@link UserCreationTracker} once they are in the mirror.
+ * <p/>
+ * Anything that reads creation states from the mirror must call {@link #flush()} first.  A flush
+ * only covers this driver's writer; the tracker publishes the number of transitions each driver
+ * still holds, so that a check can wait until every driver has written its own.
+ * <p/>
+ * Only an explicit {@link #flush()} fails when the mirror cannot be written.  The flushes triggered
+ * by the {@link #setFlushSize(int) flushSize} or the {@link #setFlushInterval(long) flushInterval}
+ * log the error and keep the transitions for the next attempt.
+ *
+ * @since 3.0.1
+ */
+public class UserCreationStateWriter implements InitializingBean, DisposableBean
+{
+    public static final int DEFAULT_FLUSH_SIZE = 500;
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000L;
+
+    private static Log logger = LogFactory.getLog(UserCreationStateWriter.class);
+
+    private final UserDataService userDataService;
+    private final UserDataBulkService userDataBulkService;
+    private boolean writeBehind = false;
+    private int flushSize = DEFAULT_FLUSH_SIZE;
+    private long flushInterval = DEFAULT_FLUSH_INTERVAL;
+    private UserCreationTracker completionTracker;
+
+    /** Transitions and groups not written yet; guarded by the pending lock */
+    private Map<String, DataCreationState> pending = new HashMap<>();
+    private Map<String, List<String>> pendingGroups = new HashMap<>();
+    /** Transitions and groups taken by a flush that are not written and tracked yet; guarded by the pending lock */
+    private int inFlight = 0;
+    private final Object pendingLock = new Object();
+    /** Serializes the writes so that a later flush can never overtake an earlier one */
+    private final Object flushLock = new Object();
+    private ScheduledExecutorService flushScheduler;
+
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong flushedCount = new AtomicLong();
+    private final AtomicLong flushTimeTotal = new AtomicLong();
+    private final AtomicLong flushTimeMax = new AtomicLong();
+    private final AtomicLong queueDepthMax = new AtomicLong();
+
+    /**
+     * @param userDataService     used to write transitions one by one
+     * @param userDataBulkService used to write transitions in bulk
+     */
+    public UserCreationStateWriter(UserDataService userDataService, UserDataBulkService userDataBulkService)
+    {
+        this.userDataService = userDataService;
+        this.userDataBulkService = userDataBulkService;
+    }
+
+    /**
+     * @param writeBehind <tt>true</tt> to buffer transitions and write them in bulk
+     */
+    public void setWriteBehind(boolean writeBehind)
+    {
+        this.writeBehind = writeBehind;
+    }
+
+    /**
+     * @param flushSize the number of pending transitions that triggers a flush
+     */
+    public void setFlushSize(int flushSize)
+    {
+        this.flushSize = flushSize;
+    }
+
+    /**
+     * @param flushInterval the maximum time (milliseconds) a transition stays in memory
+     */
+    public void setFlushInterval(long flushInterval)
+    {
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * @param completionTracker optional tracker counting the transitions once they are written
+     */
+    public void setCompletionTracker(UserCreationTracker completionTracker)
+    {
+        this.completionTracker = completionTracker;
+    }
+
+    @Override
+    public void afterPropertiesSet()
+    {
+        if (!writeBehind)
+        {
+            return;
+        }
+        flushScheduler = Executors.newSingleThreadScheduledExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "UserCreationStateWriter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flushScheduler.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy()
+    {
+        if (flushScheduler != null)
+        {
+            flushScheduler.shutdown();
+        }
+        flush();
+    }
+
+    /**
+     * Record a new creation state for a user
+     */
+    public void setUserCreationState(String username, DataCreationState creationState)
+    {
+        if (!writeBehind)
+        {
+            userDataService.setUserCreationState(username, creationState);
+            track(creationState, 1);
+            return;
+        }
+        int queueDepth;
+        synchronized (pendingLock)
+        {
+            pending.put(username, creationState);
+            queueDepth = pending.size() + pendingGroups.size();
+        }
+        queueDepthMax.accumulateAndGet(queueDepth, Math::max);
+        if (queueDepth >= flushSize)
+        {
+            // A failed write stays queued for the next flush rather than failing the caller
+            flushQuietly();
+        }
+    }
+
+    /**
+     * Record the same new creation state for several users.  The users are changed straight away
+     * with a single update, since they arrive as a batch already.
+     */
+    public void setUserCreationState(Collection<String> usernames, DataCreationState creationState)
+    {
+        userDataBulkService.setUserCreationState(usernames, creationState);
+        track(creationState, usernames.size());
+    }
+
+    /**
+     * Record the final state of users that are not necessarily in the mirror yet, such as
+     * {@link UserSynthesizer synthesized} users.  The users are written straight away, with all
+     * their details, in a single bulk write.
+     */
+    public void saveUsers(Collection<UserData> users)
+    {
+        userDataBulkService.saveUsers(users);
+        for (UserData user : users)
+        {
+            track(user.getCreationState(), 1);
+        }
+    }
+
+    /**
+     * Record the groups a user must be added to by the group membership phase
+     *
+     * @see UserDataBulkService#addPendingGroups(Map)
+     */
+    public void addPendingGroups(String username, List<String> groups)
+    {
+        if (groups.isEmpty())
+        {
+            return;
+        }
+        if (!writeBehind)
+        {
+            userDataBulkService.addPendingGroups(Collections.singletonMap(username, groups));
+            return;
+        }
+        int queueDepth;
+        synchronized (pendingLock)
+        {
+            pendingGroups.computeIfAbsent(username, k -> new ArrayList<>(groups.size())).addAll(groups);
+            queueDepth = pending.size() + pendingGroups.size();
+        }
+        queueDepthMax.accumulateAndGet(queueDepth, Math::max);
+        if (queueDepth >= flushSize)
+        {
+            // A failed write stays queued for the next flush rather than failing the caller
+            flushQuietly();
+        }
+    }
+
+    /**
+     * Write all pending transitions to the users mirror.  When this returns, every transition
+     * recorded before the call by this driver is visible in the mirror; those of other drivers may not be.
+     */
+    public void flush()
+    {
+        synchronized (flushLock)
+        {
+            Map<String, DataCreationState> toWrite;
+            Map<String, List<String>> groupsToWrite;
+            synchronized (pendingLock)
+            {
+                if (pending.isEmpty() && pendingGroups.isEmpty())
+                {
+                    return;
+                }
+                toWrite = pending;
+                groupsToWrite = pendingGroups;
+                pending = new HashMap<>(toWrite.size() * 2);
+                pendingGroups = new HashMap<>(groupsToWrite.size() * 2);
+                inFlight = toWrite.size() + groupsToWrite.size();
+            }
+            int flushed = toWrite.size() + groupsToWrite.size();
+            long start = System.nanoTime();
+            try
+            {
+                userDataBulkService.addPendingGroups(groupsToWrite);
+                groupsToWrite = Collections.emptyMap();
+                userDataBulkService.setUserCreationStates(toWrite);
+            }
+            catch (RuntimeException e)
+            {
+                // Keep the transitions for the next attempt unless the user has moved on since
+                synchronized (pendingLock)
+                {
+                    for (Map.Entry<String, DataCreationState> entry : toWrite.entrySet())
+                    {
+                        pending.putIfAbsent(entry.getKey(), entry.getValue());
+                    }
+                    for (Map.Entry<String, List<String>> entry : groupsToWrite.entrySet())
+                    {
+                        pendingGroups.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).addAll(entry.getValue());
+                    }
+                    inFlight = 0;
+                }
+                throw e;
+            }
+            long flushTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            for (DataCreationState creationState : toWrite.values())
+            {
+                track(creationState, 1);
+            }
+            synchronized (pendingLock)
+            {
+                inFlight = 0;
+            }
+
+            flushCount.incrementAndGet();
+            flushedCount.addAndGet(flushed);
+            flushTimeTotal.addAndGet(flushTime);
+            flushTimeMax.accumulateAndGet(flushTime, Math::max);
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Flushed " + flushed + " user creation states and group lists in " + flushTime + "ms.");
+            }
+        }
+    }
+
+    private void track(DataCreationState creationState, int count)
+    {
+        if (completionTracker != null)
+        {
+            completionTracker.record(creationState, count);
+        }
+    }
+
+    private void flushQuietly()
+    {
+        try
+        {
+            flush();
+        }
+        catch (Exception e)
+        {
+            logger.error("Failed to flush user creation states: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the number of transitions and group lists not written or not counted by the tracker yet,
+     *         including those being flushed
+     */
+    public int getUnwrittenCount()
+    {
+        synchronized (pendingLock)
+        {
+            return pending.size() + pendingGroups.size() + inFlight;
+        }
+    }
+
+    /**
+     * @return the number of transitions and group lists waiting to be written
+     */
+    public int getQueueDepth()
+    {
+        synchronized (pendingLock)
+        {
+            return pending.size() + pendingGroups.size();
+        }
+    }
+
+    /**
+     * @return the flush latency and queue depth figures, suitable for an event result
+     */
+    public DBObject getMetrics()
+    {
+        long flushes = flushCount.get();
+        return new BasicDBObject()
+            .append("writeBehind", writeBehind)
+            .append("queueDepth", getQueueDepth())
+            .append("queueDepthMax", queueDepthMax.get())
+            .append("flushes", flushes)
+            .append("flushed", flushedCount.get())
+            .append("flushTimeAvgMs", flushes == 0 ? 0.0 : (double) flushTimeTotal.get() / flushes)
+            .append("flushTimeMaxMs", flushTimeMax.get());
+    }
+}
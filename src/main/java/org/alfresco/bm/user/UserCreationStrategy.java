@@ -0,0 +1,80 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+/**
+ * How a user and its group memberships are created in Alfresco, chosen per test with
+ * <tt>user.creationStrategy</tt>.
+ * <p/>
+ * The V1 API needs one call for the person and one more for each group, while the deprecated
+ * <tt>/alfresco/service/api/people</tt> Web Script takes the groups with the person and creates
+ * everything in a single call.
+ *
+ * @since 3.0.1
+ */
+public enum UserCreationStrategy
+{
+    /** V1 person creation followed by one V1 membership call per group */
+    V1,
+    /** A single call to the legacy people Web Script, with the groups inline */
+    LEGACY,
+    /** Whichever of the above takes fewer calls for the groups of each user; V1 when they are equal */
+    FEWEST_ROUND_TRIPS;
+
+    /**
+     * @param groupCount the number of groups the user is added to
+     * @return <tt>true</tt> if the user must be created with the legacy Web Script
+     */
+    public boolean isLegacy(int groupCount)
+    {
+        switch (this)
+        {
+            case LEGACY:
+                return true;
+            case FEWEST_ROUND_TRIPS:
+                return LEGACY.getRoundTrips(groupCount) < V1.getRoundTrips(groupCount);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param groupCount the number of groups the user is added to
+     * @return the number of calls made to create the user, when none fails
+     */
+    public int getRoundTrips(int groupCount)
+    {
+        switch (this)
+        {
+            case V1:
+                return 1 + groupCount;
+            case LEGACY:
+                return 1;
+            default:
+                return isLegacy(groupCount) ? LEGACY.getRoundTrips(groupCount) : V1.getRoundTrips(groupCount);
+        }
+    }
+}
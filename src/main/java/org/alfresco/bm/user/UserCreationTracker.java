@@ -0,0 +1,480 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import org.alfresco.bm.data.DataCreationState;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps count of the users scheduled, created and failed during a run, so that completion can be
+ * checked without counting the users mirror.
+ * <p/>
+ * Transitions are counted locally as they are written and added to a single counter document,
+ * shared by the drivers, every {@link #setPublishInterval(long) publishInterval} milliseconds or
+ * whenever the totals are asked for.  The users already created before the run are counted once,
+ * when the run {@link #reset() starts}.
+ * <p/>
+ * Each publication carrying scheduled users counts as a scheduling page, and each driver stamps the
+ * counter document with the number of pages it had seen when it last published.  The run is only
+ * {@link Counters#isSettled() settled} once every driver has published after the last page, so that
+ * no driver can still hold transitions that the totals miss.
+ * <p/>
+ * With a {@link #setCreationStateWriter(UserCreationStateWriter) creation state writer}, each driver
+ * also publishes the number of creation states it has not written to the mirror yet, so that a check
+ * can wait until every driver has {@link Counters#isFlushed() flushed}.
+ * <p/>
+ * The time the users mirror started to be prepared and the time the first users were scheduled
+ * are kept alongside, so that the time taken to get to the first user creation can be reported.
+ *
+ * @since 3.0.1
+ */
+public class UserCreationTracker implements InitializingBean, DisposableBean
+{
+    public static final long DEFAULT_PUBLISH_INTERVAL = 250L;
+
+    private static final String COUNTERS_ID = "userCreation";
+    private static final String FIELD_EXISTING = "existing";
+    private static final String FIELD_SCHEDULED = "scheduled";
+    private static final String FIELD_CREATED = "created";
+    private static final String FIELD_FAILED = "failed";
+    private static final String FIELD_PAGES = "pages";
+    private static final String FIELD_DRIVERS = "drivers";
+    private static final String FIELD_UNWRITTEN = "unwritten";
+    private static final String TIMELINE_ID = "timeline";
+    private static final String FIELD_PREPARATION_STARTED = "preparationStarted";
+    private static final String FIELD_FIRST_SCHEDULED = "firstScheduled";
+
+    private static Log logger = LogFactory.getLog(UserCreationTracker.class);
+
+    private final DBCollection collection;
+    private final UserDataBulkService userDataBulkService;
+    /** Key of this driver in the counter document; a UUID, as field names cannot hold dots */
+    private final String driverKey = UUID.randomUUID().toString();
+    private long publishInterval = DEFAULT_PUBLISH_INTERVAL;
+    private UserCreationStateWriter creationStateWriter;
+    private ScheduledExecutorService publishScheduler;
+
+    /** Transitions not added to the counter document yet */
+    private final LongAdder scheduledDelta = new LongAdder();
+    private final LongAdder createdDelta = new LongAdder();
+    private final LongAdder failedDelta = new LongAdder();
+    /** Serializes the publications so that a delta is never added twice */
+    private final Object publishLock = new Object();
+    /** The scheduling pages seen by the last publication and the number this driver last stamped; guarded by publishLock */
+    private long pagesSeen = 0L;
+    private long pagesStamped = -1L;
+    /** The number of unwritten creation states this driver last published; guarded by publishLock */
+    private long unwrittenPublished = -1L;
+    /** Totals of all drivers, as of the last publication */
+    private volatile Counters counters = new Counters(0L, 0L, 0L, 0L, true, 0L);
+
+    /**
+     * @param db                  the database holding the counters
+     * @param collection          the name of the collection shared by the drivers
+     * @param userDataBulkService used to count the users created before the run
+     */
+    public UserCreationTracker(DB db, String collection, UserDataBulkService userDataBulkService)
+    {
+        this.collection = db.getCollection(collection);
+        this.userDataBulkService = userDataBulkService;
+    }
+
+    /**
+     * @param publishInterval the maximum time (milliseconds) a transition is only known to this driver
+     */
+    public void setPublishInterval(long publishInterval)
+    {
+        this.publishInterval = publishInterval;
+    }
+
+    /**
+     * @param creationStateWriter optional writer whose unwritten creation states are published with the counters
+     */
+    public void setCreationStateWriter(UserCreationStateWriter creationStateWriter)
+    {
+        this.creationStateWriter = creationStateWriter;
+    }
+
+    @Override
+    public void afterPropertiesSet()
+    {
+        publishScheduler = Executors.newSingleThreadScheduledExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "UserCreationTracker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        publishScheduler.scheduleWithFixedDelay(this::publishQuietly, publishInterval, publishInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy()
+    {
+        if (publishScheduler != null)
+        {
+            publishScheduler.shutdownNow();
+        }
+        publishQuietly();
+    }
+
+    /**
+     * Start counting a new run.  The users already created are counted once, here.
+     */
+    public void reset()
+    {
+        reset(true);
+    }
+
+    /**
+     * Start counting a new run
+     *
+     * @param countExisting <tt>true</tt> to count the users already created, once, here; <tt>false</tt>
+     *                      when every user is scheduled again whatever its state
+     */
+    public void reset(boolean countExisting)
+    {
+        synchronized (publishLock)
+        {
+            scheduledDelta.reset();
+            createdDelta.reset();
+            failedDelta.reset();
+            long existing = countExisting ? userDataBulkService.countUsersByCreationState(DataCreationState.Created) : 0L;
+            DBObject doc = new BasicDBObject()
+                .append(FIELD_EXISTING, existing)
+                .append(FIELD_SCHEDULED, 0L)
+                .append(FIELD_CREATED, 0L)
+                .append(FIELD_FAILED, 0L)
+                .append(FIELD_PAGES, 0L)
+                .append(FIELD_DRIVERS, new BasicDBObject(driverKey, 0L))
+                .append(FIELD_UNWRITTEN, new BasicDBObject());
+            collection.update(new BasicDBObject("_id", COUNTERS_ID), doc, true, false);
+            pagesSeen = 0L;
+            pagesStamped = 0L;
+            unwrittenPublished = -1L;
+            counters = new Counters(existing, 0L, 0L, 0L, true, 0L);
+        }
+    }
+
+    /**
+     * Count users moved to a new creation state.  Only the scheduled, created and failed states
+     * are counted.
+     *
+     * @param creationState the new creation state
+     * @param count         the number of users
+     */
+    public void record(DataCreationState creationState, int count)
+    {
+        switch (creationState)
+        {
+            case Scheduled:
+                scheduledDelta.add(count);
+                break;
+            case Created:
+                createdDelta.add(count);
+                break;
+            case Failed:
+                failedDelta.add(count);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Add this driver's transitions to the counter document and read back the totals of all drivers
+     *
+     * @return the totals of all drivers
+     */
+    public Counters publish()
+    {
+        synchronized (publishLock)
+        {
+            // Read before the deltas: a state that is no longer unwritten has been counted in them
+            long unwritten = creationStateWriter == null ? 0L : creationStateWriter.getUnwrittenCount();
+            long scheduled = scheduledDelta.sumThenReset();
+            long created = createdDelta.sumThenReset();
+            long failed = failedDelta.sumThenReset();
+            DBObject queryObj = new BasicDBObject("_id", COUNTERS_ID);
+            DBObject doc;
+            try
+            {
+                if (scheduled == 0L && created == 0L && failed == 0L && pagesStamped >= pagesSeen && unwritten == unwrittenPublished)
+                {
+                    doc = collection.findOne(queryObj);
+                }
+                else
+                {
+                    DBObject incObj = new BasicDBObject()
+                        .append(FIELD_SCHEDULED, scheduled)
+                        .append(FIELD_CREATED, created)
+                        .append(FIELD_FAILED, failed)
+                        .append(FIELD_PAGES, scheduled > 0L ? 1L : 0L);
+                    DBObject updateObj = new BasicDBObject()
+                        .append("$inc", incObj)
+                        .append("$max", new BasicDBObject(FIELD_DRIVERS + "." + driverKey, pagesSeen))
+                        .append("$set", new BasicDBObject(FIELD_UNWRITTEN + "." + driverKey, unwritten));
+                    doc = collection.findAndModify(queryObj, null, null, false, updateObj, true, true);
+                }
+            }
+            catch (RuntimeException e)
+            {
+                // Keep the transitions for the next attempt
+                scheduledDelta.add(scheduled);
+                createdDelta.add(created);
+                failedDelta.add(failed);
+                throw e;
+            }
+            if (doc != null)
+            {
+                long pages = getLong(doc, FIELD_PAGES);
+                DBObject driversObj = (DBObject) doc.get(FIELD_DRIVERS);
+                boolean allPublished = true;
+                for (String key : driversObj == null ? Collections.<String>emptySet() : driversObj.keySet())
+                {
+                    allPublished &= getLong(driversObj, key) >= pages;
+                }
+                // This publication came after every page counted so far; say so with the next one
+                pagesSeen = pages;
+                pagesStamped = driversObj == null || driversObj.get(driverKey) == null ? -1L : getLong(driversObj, driverKey);
+                DBObject unwrittenObj = (DBObject) doc.get(FIELD_UNWRITTEN);
+                long unwrittenTotal = 0L;
+                for (String key : unwrittenObj == null ? Collections.<String>emptySet() : unwrittenObj.keySet())
+                {
+                    unwrittenTotal += getLong(unwrittenObj, key);
+                }
+                unwrittenPublished = unwrittenObj == null || unwrittenObj.get(driverKey) == null ? -1L : getLong(unwrittenObj, driverKey);
+                counters = new Counters(
+                    getLong(doc, FIELD_EXISTING), getLong(doc, FIELD_SCHEDULED),
+                    getLong(doc, FIELD_CREATED), getLong(doc, FIELD_FAILED), allPublished, unwrittenTotal);
+            }
+            return counters;
+        }
+    }
+
+    private void publishQuietly()
+    {
+        try
+        {
+            publish();
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Failed to publish user creation counters: " + e.getMessage(), e);
+        }
+    }
+
+    private static long getLong(DBObject doc, String field)
+    {
+        Object value = doc.get(field);
+        return value == null ? 0L : ((Number) value).longValue();
+    }
+
+    /**
+     * @return the totals of all drivers as of the last publication, without any call to the database
+     */
+    public Counters getCounters()
+    {
+        return counters;
+    }
+
+    /**
+     * Record the time at which the preparation of the users started
+     */
+    public void recordPreparationStarted(long time)
+    {
+        DBObject updateObj = new BasicDBObject("$set", new BasicDBObject(FIELD_PREPARATION_STARTED, time));
+        collection.update(new BasicDBObject("_id", TIMELINE_ID), updateObj, true, false);
+    }
+
+    /**
+     * Record the time at which the first users were scheduled for creation
+     */
+    public void recordFirstScheduled(long time)
+    {
+        DBObject updateObj = new BasicDBObject("$set", new BasicDBObject(FIELD_FIRST_SCHEDULED, time));
+        collection.update(new BasicDBObject("_id", TIMELINE_ID), updateObj, true, false);
+    }
+
+    /**
+     * @return the time (milliseconds) from the start of the preparation of the users to the first
+     *         users scheduled for creation or <tt>null</tt> if either is not recorded
+     */
+    public Long getTimeToFirstCreation()
+    {
+        DBObject doc = collection.findOne(new BasicDBObject("_id", TIMELINE_ID));
+        Object started = doc == null ? null : doc.get(FIELD_PREPARATION_STARTED);
+        Object firstScheduled = doc == null ? null : doc.get(FIELD_FIRST_SCHEDULED);
+        if (!(started instanceof Number) || !(firstScheduled instanceof Number))
+        {
+            return null;
+        }
+        return ((Number) firstScheduled).longValue() - ((Number) started).longValue();
+    }
+
+    /**
+     * @return the totals of all drivers, suitable for an event result
+     */
+    public DBObject getMetrics()
+    {
+        DBObject metricsObj = counters.toDBObject();
+        Long timeToFirstCreation = getTimeToFirstCreation();
+        if (timeToFirstCreation != null)
+        {
+            metricsObj.put("timeToFirstCreationMs", timeToFirstCreation);
+        }
+        return metricsObj;
+    }
+
+    /**
+     * Totals of all drivers
+     */
+    public static final class Counters
+    {
+        private final long existing;
+        private final long scheduled;
+        private final long created;
+        private final long failed;
+        private final boolean allPublished;
+        private final long unwritten;
+
+        private Counters(long existing, long scheduled, long created, long failed, boolean allPublished, long unwritten)
+        {
+            this.unwritten = unwritten;
+            this.existing = existing;
+            this.scheduled = scheduled;
+            this.created = created;
+            this.failed = failed;
+            this.allPublished = allPublished;
+        }
+
+        /**
+         * @return the users created before the run
+         */
+        public long getExisting()
+        {
+            return existing;
+        }
+
+        /**
+         * @return the users scheduled for creation during the run
+         */
+        public long getScheduled()
+        {
+            return scheduled;
+        }
+
+        /**
+         * @return the users created during the run
+         */
+        public long getCreated()
+        {
+            return created;
+        }
+
+        /**
+         * @return the users that could not be created during the run
+         */
+        public long getFailed()
+        {
+            return failed;
+        }
+
+        /**
+         * @return the users scheduled but neither created nor failed yet
+         */
+        public long getPending()
+        {
+            return Math.max(0L, scheduled - created - failed);
+        }
+
+        /**
+         * @return the users created, before or during the run
+         */
+        public long getTotalCreated()
+        {
+            return existing + created;
+        }
+
+        /**
+         * @return <tt>true</tt> if every driver has published since the last scheduling page
+         */
+        public boolean isAllPublished()
+        {
+            return allPublished;
+        }
+
+        /**
+         * @return the creation states that the drivers hold and have not written to the mirror yet
+         */
+        public long getUnwritten()
+        {
+            return unwritten;
+        }
+
+        /**
+         * @return <tt>true</tt> if no driver holds creation states that are not written to the mirror
+         */
+        public boolean isFlushed()
+        {
+            return unwritten == 0L;
+        }
+
+        /**
+         * @return <tt>true</tt> if some users failed, no other user is waiting to be created,
+         *         every driver has published since the last scheduling page and none holds unwritten states
+         */
+        public boolean isSettled()
+        {
+            return failed > 0L && getPending() == 0L && allPublished && isFlushed();
+        }
+
+        DBObject toDBObject()
+        {
+            return new BasicDBObject()
+                .append(FIELD_EXISTING, existing)
+                .append(FIELD_SCHEDULED, scheduled)
+                .append(FIELD_CREATED, created)
+                .append(FIELD_FAILED, failed)
+                .append("pending", getPending())
+                .append("allPublished", allPublished)
+                .append("unwritten", unwritten);
+        }
+    }
+}
@@ -0,0 +1,709 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.Cursor;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import org.alfresco.bm.data.DataCreationState;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Multi-document access to the users mirror collection.
+ * <p/>
+ * The {@link UserDataService} works one user at a time, which is fine for tests that pick random
+ * users but means one MongoDB round trip per user on the provisioning path.  This service reads and
+ * writes the same documents in bulk so that a single query can serve a whole batch of users.
+ * <p/>
+ * Users are read with a projection of the fields needed to create them, leaving out anything
+ * else the documents hold.  On startup, compound indexes on the creation state and the username
+ * are {@link #ensureIndexes() ensured} so that lookups, pages and counts stay as cheap on tens of
+ * millions of users as on a few thousands.  Queries taking longer than
+ * {@link #setSlowQueryThreshold(long) slowQueryThreshold} milliseconds are logged as warnings and
+ * counted in the {@link #getMetrics() metrics}.
+ *
+ * @since 3.0.1
+ */
+public class UserDataBulkService implements InitializingBean
+{
+    public static final String FIELD_USERNAME = "username";
+    public static final String FIELD_PASSWORD = "password";
+    public static final String FIELD_FIRST_NAME = "firstName";
+    public static final String FIELD_LAST_NAME = "lastName";
+    public static final String FIELD_EMAIL = "email";
+    public static final String FIELD_DOMAIN = "domain";
+    public static final String FIELD_CREATION_STATE = "creationState";
+    public static final String FIELD_RANDOMIZER = "randomizer";
+    /** The groups a user still has to be added to; only present while the membership phase is pending */
+    public static final String FIELD_PENDING_GROUPS = "pendingGroups";
+
+    public static final long DEFAULT_SLOW_QUERY_THRESHOLD = 500L;
+    /** The number of usernames sampled per range when splitting a large collection into username ranges */
+    public static final int BOUNDARY_SAMPLES_PER_RANGE = 100;
+
+    /** The fields read to create a user */
+    private static final DBObject USER_FIELDS = BasicDBObjectBuilder.start()
+        .add("_id", false)
+        .add(FIELD_USERNAME, true)
+        .add(FIELD_PASSWORD, true)
+        .add(FIELD_FIRST_NAME, true)
+        .add(FIELD_LAST_NAME, true)
+        .add(FIELD_EMAIL, true)
+        .add(FIELD_DOMAIN, true)
+        .add(FIELD_CREATION_STATE, true)
+        .add(FIELD_RANDOMIZER, true)
+        .get();
+    private static final DBObject USERNAME_FIELDS = BasicDBObjectBuilder.start()
+        .add("_id", false)
+        .add(FIELD_USERNAME, true)
+        .get();
+
+    private static Log logger = LogFactory.getLog(UserDataBulkService.class);
+
+    private final DBCollection collection;
+    private boolean ensureIndexes = true;
+    private long slowQueryThreshold = DEFAULT_SLOW_QUERY_THRESHOLD;
+
+    private final LongAdder queryCount = new LongAdder();
+    private final LongAdder slowQueryCount = new LongAdder();
+    private final AtomicLong slowestQuery = new AtomicLong();
+
+    /**
+     * @param db         the database holding the users mirror
+     * @param collection the name of the users mirror collection
+     */
+    public UserDataBulkService(DB db, String collection)
+    {
+        this.collection = db.getCollection(collection);
+    }
+
+    /**
+     * @param ensureIndexes <tt>true</tt> (the default) to create the indexes needed on startup
+     */
+    public void setEnsureIndexes(boolean ensureIndexes)
+    {
+        this.ensureIndexes = ensureIndexes;
+    }
+
+    /**
+     * @param slowQueryThreshold the time (milliseconds) above which a query is reported as slow
+     */
+    public void setSlowQueryThreshold(long slowQueryThreshold)
+    {
+        this.slowQueryThreshold = slowQueryThreshold;
+    }
+
+    @Override
+    public void afterPropertiesSet()
+    {
+        if (ensureIndexes)
+        {
+            ensureIndexes();
+        }
+    }
+
+    /**
+     * Make sure the users can be found efficiently by creation state and by username.  The indexes
+     * are built in the background so that a large mirror remains usable while they are built.
+     * <ul>
+     *     <li><tt>creationState, username</tt>: pages of users in a state, in username order, and counts by state</li>
+     *     <li><tt>username, creationState</tt>: users looked up by username or username range</li>
+     * </ul>
+     */
+    public void ensureIndexes()
+    {
+        createIndex(new BasicDBObject(FIELD_CREATION_STATE, 1).append(FIELD_USERNAME, 1), "idx_creationState_username");
+        createIndex(new BasicDBObject(FIELD_USERNAME, 1).append(FIELD_CREATION_STATE, 1), "idx_username_creationState");
+    }
+
+    private void createIndex(DBObject idxKeys, String name)
+    {
+        DBObject optsObj = BasicDBObjectBuilder.start()
+            .add("name", name)
+            .add("background", Boolean.TRUE)
+            .get();
+        try
+        {
+            collection.createIndex(idxKeys, optsObj);
+        }
+        catch (MongoException e)
+        {
+            // An equivalent index under another name does the job as well
+            logger.warn("Unable to create index " + name + " on " + collection.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Look up a user, reading only the fields needed to create it
+     *
+     * @return the user or <tt>null</tt> if it is not in the mirror
+     */
+    public UserData findUserByUsername(String username)
+    {
+        DBObject queryObj = new BasicDBObject(FIELD_USERNAME, username);
+        long start = System.nanoTime();
+        DBObject userDataObj = collection.findOne(queryObj, USER_FIELDS);
+        recordQuery("findUserByUsername", queryObj, start);
+        return userDataObj == null ? null : fromDBObject(userDataObj);
+    }
+
+    /**
+     * Look up several users with a single query
+     *
+     * @param usernames the usernames to look for
+     * @return the users found keyed by username; usernames without mirror data are absent
+     */
+    public Map<String, UserData> findUsersByUsernames(Collection<String> usernames)
+    {
+        Map<String, UserData> users = new HashMap<>(usernames.size() * 2);
+        if (usernames.isEmpty())
+        {
+            return users;
+        }
+        DBObject queryObj = in(FIELD_USERNAME, usernames);
+        long start = System.nanoTime();
+        try (DBCursor cursor = collection.find(queryObj, USER_FIELDS))
+        {
+            while (cursor.hasNext())
+            {
+                UserData user = fromDBObject(cursor.next());
+                users.put(user.getUsername(), user);
+            }
+        }
+        recordQuery("findUsersByUsernames", usernames.size() + " usernames", start);
+        return users;
+    }
+
+    /**
+     * Look up all users whose usernames fall into a range, skipping users that are already created
+     *
+     * @param fromUsername the first username of the range (inclusive)
+     * @param toUsername   the end of the range (exclusive)
+     * @param count        the maximum number of users to return
+     * @return the users found keyed by username
+     */
+    public Map<String, UserData> findUsersByUsernameRange(String fromUsername, String toUsername, int count)
+    {
+        DBObject queryObj = BasicDBObjectBuilder.start()
+            .push(FIELD_USERNAME)
+                .add("$gte", fromUsername)
+                .add("$lt", toUsername)
+            .pop()
+            .push(FIELD_CREATION_STATE)
+                .add("$ne", DataCreationState.Created.toString())
+            .pop()
+            .get();
+        Map<String, UserData> users = new HashMap<>(count * 2);
+        long start = System.nanoTime();
+        try (DBCursor cursor = collection.find(queryObj, USER_FIELDS).limit(count))
+        {
+            while (cursor.hasNext())
+            {
+                UserData user = fromDBObject(cursor.next());
+                users.put(user.getUsername(), user);
+            }
+        }
+        recordQuery("findUsersByUsernameRange", queryObj, start);
+        return users;
+    }
+
+    /**
+     * Look up the next users of a range that are not scheduled yet, in username order
+     *
+     * @param afterUsername the last username already processed (exclusive) or <tt>null</tt> to start the range
+     * @param fromUsername  the first username of the range (inclusive) or <tt>null</tt> for no lower bound
+     * @param toUsername    the end of the range (exclusive) or <tt>null</tt> for no upper bound
+     * @param count         the maximum number of users to return
+     * @return the users found keyed by username, in username order
+     */
+    public Map<String, UserData> findUnscheduledUsersInRange(String afterUsername, String fromUsername, String toUsername, int count)
+    {
+        BasicDBObject usernameObj = new BasicDBObject();
+        if (afterUsername != null)
+        {
+            usernameObj.append("$gt", afterUsername);
+        }
+        else if (fromUsername != null)
+        {
+            usernameObj.append("$gte", fromUsername);
+        }
+        if (toUsername != null)
+        {
+            usernameObj.append("$lt", toUsername);
+        }
+        DBObject queryObj = new BasicDBObject(FIELD_CREATION_STATE, DataCreationState.NotScheduled.toString());
+        if (!usernameObj.isEmpty())
+        {
+            queryObj.put(FIELD_USERNAME, usernameObj);
+        }
+        Map<String, UserData> users = new LinkedHashMap<>(count * 2);
+        long start = System.nanoTime();
+        try (DBCursor cursor = collection.find(queryObj, USER_FIELDS).sort(new BasicDBObject(FIELD_USERNAME, 1)).limit(count))
+        {
+            while (cursor.hasNext())
+            {
+                UserData user = fromDBObject(cursor.next());
+                users.put(user.getUsername(), user);
+            }
+        }
+        recordQuery("findUnscheduledUsersInRange", queryObj, start);
+        return users;
+    }
+
+    /**
+     * Split the users into contiguous username ranges of about the same size.
+     * <p/>
+     * Large collections are not walked: the boundaries are picked from a <tt>$sample</tt> of
+     * {@link #BOUNDARY_SAMPLES_PER_RANGE} usernames per range, so range sizes are only approximately
+     * equal.  Collections no larger than the sample are read once, in username order, and split exactly.
+     *
+     * @param rangeCount the number of ranges wanted
+     * @return the usernames that start the second and following ranges, in order; fewer than
+     *         <tt>rangeCount - 1</tt> when there are too few users
+     */
+    public List<String> findUsernameBoundaries(int rangeCount)
+    {
+        List<String> boundaries = new ArrayList<>(Math.max(0, rangeCount - 1));
+        if (rangeCount < 2)
+        {
+            return boundaries;
+        }
+        long start = System.nanoTime();
+        long userCount = collection.count();
+        int sampleSize = rangeCount * BOUNDARY_SAMPLES_PER_RANGE;
+        List<String> usernames = (userCount <= sampleSize) ? findSortedUsernames() : sampleSortedUsernames(sampleSize);
+        for (int i = 1; i < rangeCount; i++)
+        {
+            int index = (int) ((long) usernames.size() * i / rangeCount);
+            if (index >= usernames.size())
+            {
+                break;
+            }
+            String username = usernames.get(index);
+            if (boundaries.isEmpty() || !boundaries.get(boundaries.size() - 1).equals(username))
+            {
+                boundaries.add(username);
+            }
+        }
+        recordQuery("findUsernameBoundaries", rangeCount + " ranges from " + usernames.size() + " usernames", start);
+        return boundaries;
+    }
+
+    /**
+     * @return every username, in order, read with a single cursor over the username index
+     */
+    private List<String> findSortedUsernames()
+    {
+        List<String> usernames = new ArrayList<>();
+        try (DBCursor cursor = collection.find(new BasicDBObject(), USERNAME_FIELDS).sort(new BasicDBObject(FIELD_USERNAME, 1)))
+        {
+            while (cursor.hasNext())
+            {
+                usernames.add((String) cursor.next().get(FIELD_USERNAME));
+            }
+        }
+        return usernames;
+    }
+
+    /**
+     * @param sampleSize the number of users to sample
+     * @return the usernames of a random sample of users, in order (a user may be sampled more than once)
+     */
+    private List<String> sampleSortedUsernames(int sampleSize)
+    {
+        List<DBObject> pipeline = Arrays.<DBObject>asList(
+            new BasicDBObject("$sample", new BasicDBObject("size", sampleSize)),
+            new BasicDBObject("$project", USERNAME_FIELDS),
+            new BasicDBObject("$sort", new BasicDBObject(FIELD_USERNAME, 1)));
+        AggregationOptions options = AggregationOptions.builder()
+            .allowDiskUse(true)
+            .outputMode(AggregationOptions.OutputMode.CURSOR)
+            .build();
+        List<String> usernames = new ArrayList<>(sampleSize);
+        try (Cursor cursor = collection.aggregate(pipeline, options))
+        {
+            while (cursor.hasNext())
+            {
+                usernames.add((String) cursor.next().get(FIELD_USERNAME));
+            }
+        }
+        return usernames;
+    }
+
+    /**
+     * Find the usernames of users in a given creation state
+     *
+     * @param creationState the creation state to look for
+     * @param count         the maximum number of usernames to return
+     * @return the usernames (only the username is fetched from the collection)
+     */
+    public List<String> findUsernamesByCreationState(DataCreationState creationState, int count)
+    {
+        DBObject queryObj = new BasicDBObject(FIELD_CREATION_STATE, creationState.toString());
+        List<String> usernames = new ArrayList<>(count);
+        long start = System.nanoTime();
+        try (DBCursor cursor = collection.find(queryObj, USERNAME_FIELDS).limit(count))
+        {
+            while (cursor.hasNext())
+            {
+                usernames.add((String) cursor.next().get(FIELD_USERNAME));
+            }
+        }
+        recordQuery("findUsernamesByCreationState", queryObj, start);
+        return usernames;
+    }
+
+    /**
+     * @param creationState the creation state to look for
+     * @return the number of users in that creation state
+     */
+    public long countUsersByCreationState(DataCreationState creationState)
+    {
+        DBObject queryObj = new BasicDBObject(FIELD_CREATION_STATE, creationState.toString());
+        long start = System.nanoTime();
+        long count = collection.count(queryObj);
+        recordQuery("countUsersByCreationState", queryObj, start);
+        return count;
+    }
+
+    /**
+     * Change the creation state of several users with a single update
+     *
+     * @param usernames     the users to change
+     * @param creationState the new creation state
+     * @return the number of users modified
+     */
+    public int setUserCreationState(Collection<String> usernames, DataCreationState creationState)
+    {
+        if (usernames.isEmpty())
+        {
+            return 0;
+        }
+        DBObject queryObj = in(FIELD_USERNAME, usernames);
+        DBObject updateObj = new BasicDBObject("$set", new BasicDBObject(FIELD_CREATION_STATE, creationState.toString()));
+        return collection.updateMulti(queryObj, updateObj).getN();
+    }
+
+    /**
+     * Mark users that already exist in Alfresco as created, with a single update.  Only users that
+     * are not scheduled yet are changed: users that are scheduled or have failed are left to the run,
+     * and usernames that are not in the mirror are ignored.
+     *
+     * @param usernames the users found in Alfresco
+     * @return the number of users marked as created
+     */
+    public int markCreated(Collection<String> usernames)
+    {
+        if (usernames.isEmpty())
+        {
+            return 0;
+        }
+        DBObject queryObj = in(FIELD_USERNAME, usernames);
+        queryObj.put(FIELD_CREATION_STATE, DataCreationState.NotScheduled.toString());
+        DBObject updateObj = new BasicDBObject("$set", new BasicDBObject(FIELD_CREATION_STATE, DataCreationState.Created.toString()));
+        return collection.updateMulti(queryObj, updateObj).getN();
+    }
+
+    /**
+     * Apply individual creation states to several users as one unordered bulk write
+     *
+     * @param creationStates the new creation state of each user
+     * @return the number of users matched
+     */
+    public int setUserCreationStates(Map<String, DataCreationState> creationStates)
+    {
+        if (creationStates.isEmpty())
+        {
+            return 0;
+        }
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        for (Map.Entry<String, DataCreationState> entry : creationStates.entrySet())
+        {
+            DBObject queryObj = new BasicDBObject(FIELD_USERNAME, entry.getKey());
+            DBObject updateObj = new BasicDBObject("$set", new BasicDBObject(FIELD_CREATION_STATE, entry.getValue().toString()));
+            bulk.find(queryObj).updateOne(updateObj);
+        }
+        return bulk.execute().getMatchedCount();
+    }
+
+    /**
+     * Write the details and creation state of several users as one unordered bulk write, adding
+     * the users that are not in the mirror yet
+     *
+     * @param users the users to write
+     */
+    public void saveUsers(Collection<UserData> users)
+    {
+        if (users.isEmpty())
+        {
+            return;
+        }
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        for (UserData user : users)
+        {
+            DBObject queryObj = new BasicDBObject(FIELD_USERNAME, user.getUsername());
+            bulk.find(queryObj).upsert().updateOne(new BasicDBObject("$set", toDBObject(user)));
+        }
+        bulk.execute();
+    }
+
+    /**
+     * Insert new users as one unordered bulk write.  Only use this when none of the users can be
+     * in the mirror already.
+     *
+     * @param users the users to insert
+     */
+    public void insertUsers(Collection<UserData> users)
+    {
+        if (users.isEmpty())
+        {
+            return;
+        }
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        for (UserData user : users)
+        {
+            bulk.insert(toDBObject(user));
+        }
+        bulk.execute();
+    }
+
+    /**
+     * Add the users that are not in the mirror yet as one unordered bulk write.  Users already in
+     * the mirror are left exactly as they are.
+     *
+     * @param users the users to add
+     * @return the number of users added
+     */
+    public int addMissingUsers(Collection<UserData> users)
+    {
+        if (users.isEmpty())
+        {
+            return 0;
+        }
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        for (UserData user : users)
+        {
+            DBObject queryObj = new BasicDBObject(FIELD_USERNAME, user.getUsername());
+            bulk.find(queryObj).upsert().updateOne(new BasicDBObject("$setOnInsert", toDBObject(user)));
+        }
+        return bulk.execute().getUpserts().size();
+    }
+
+    /**
+     * @return <tt>true</tt> if the mirror holds no user at all
+     */
+    public boolean isEmpty()
+    {
+        return collection.findOne() == null;
+    }
+
+    /**
+     * Record the groups that users must be added to, as one unordered bulk write.  Users that are
+     * not in the mirror yet are added with only their username, to be completed once created.
+     *
+     * @param pendingGroups the group names (without the <b>GROUP_</b> prefix) for each user
+     */
+    public void addPendingGroups(Map<String, List<String>> pendingGroups)
+    {
+        if (pendingGroups.isEmpty())
+        {
+            return;
+        }
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        for (Map.Entry<String, List<String>> entry : pendingGroups.entrySet())
+        {
+            BasicDBList groupsList = new BasicDBList();
+            groupsList.addAll(entry.getValue());
+            DBObject queryObj = new BasicDBObject(FIELD_USERNAME, entry.getKey());
+            DBObject updateObj = new BasicDBObject("$addToSet", new BasicDBObject(FIELD_PENDING_GROUPS, new BasicDBObject("$each", groupsList)));
+            bulk.find(queryObj).upsert().updateOne(updateObj);
+        }
+        bulk.execute();
+    }
+
+    /**
+     * Make sure the users can be found efficiently by their pending groups
+     */
+    public void ensurePendingGroupsIndex()
+    {
+        DBObject idxKeys = new BasicDBObject(FIELD_PENDING_GROUPS, 1);
+        DBObject optsObj = BasicDBObjectBuilder.start()
+            .add("name", "idx_pendingGroups")
+            .add("sparse", Boolean.TRUE)
+            .get();
+        collection.createIndex(idxKeys, optsObj);
+    }
+
+    /**
+     * @return all the groups that some users still have to be added to
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> findPendingGroups()
+    {
+        return (List<String>) collection.distinct(FIELD_PENDING_GROUPS);
+    }
+
+    /**
+     * @param group the group name (without the <b>GROUP_</b> prefix)
+     * @param count the maximum number of usernames to return
+     * @return the usernames of users still to be added to the group
+     */
+    public List<String> findUsernamesWithPendingGroup(String group, int count)
+    {
+        DBObject queryObj = new BasicDBObject(FIELD_PENDING_GROUPS, group);
+        List<String> usernames = new ArrayList<>(count);
+        long start = System.nanoTime();
+        try (DBCursor cursor = collection.find(queryObj, USERNAME_FIELDS).limit(count))
+        {
+            while (cursor.hasNext())
+            {
+                usernames.add((String) cursor.next().get(FIELD_USERNAME));
+            }
+        }
+        recordQuery("findUsernamesWithPendingGroup", queryObj, start);
+        return usernames;
+    }
+
+    /**
+     * Remove a group from the pending groups of several users
+     */
+    public void removePendingGroup(Collection<String> usernames, String group)
+    {
+        if (usernames.isEmpty())
+        {
+            return;
+        }
+        DBObject queryObj = in(FIELD_USERNAME, usernames);
+        DBObject updateObj = new BasicDBObject("$pull", new BasicDBObject(FIELD_PENDING_GROUPS, group));
+        collection.updateMulti(queryObj, updateObj);
+    }
+
+    /**
+     * Count a query and warn if it was slow
+     *
+     * @param operation  the method running the query
+     * @param query      the query or a description of it, only used when it is slow
+     * @param startNanos when the query started, from {@link System#nanoTime()}
+     */
+    private void recordQuery(String operation, Object query, long startNanos)
+    {
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        queryCount.increment();
+        if (elapsed < slowQueryThreshold)
+        {
+            return;
+        }
+        slowQueryCount.increment();
+        slowestQuery.accumulateAndGet(elapsed, Math::max);
+        logger.warn("Slow query on " + collection.getName() + ": " + operation + " took " + elapsed + "ms for " + query +
+            ".  Check that the indexes on the users mirror are in place.");
+    }
+
+    /**
+     * @return the number of queries and slow queries, suitable for an event result
+     */
+    public DBObject getMetrics()
+    {
+        return new BasicDBObject()
+            .append("queries", queryCount.sum())
+            .append("slowQueries", slowQueryCount.sum())
+            .append("slowQueryThresholdMs", slowQueryThreshold)
+            .append("slowestQueryMs", slowestQuery.get());
+    }
+
+    /**
+     * Convert a document from the users mirror into a {@link UserData} instance
+     */
+    static UserData fromDBObject(DBObject userDataObj)
+    {
+        UserData user = new UserData();
+        user.setUsername((String) userDataObj.get(FIELD_USERNAME));
+        user.setPassword((String) userDataObj.get(FIELD_PASSWORD));
+        user.setFirstName((String) userDataObj.get(FIELD_FIRST_NAME));
+        user.setLastName((String) userDataObj.get(FIELD_LAST_NAME));
+        user.setEmail((String) userDataObj.get(FIELD_EMAIL));
+        user.setDomain((String) userDataObj.get(FIELD_DOMAIN));
+        String creationState = (String) userDataObj.get(FIELD_CREATION_STATE);
+        if (creationState != null)
+        {
+            user.setCreationState(DataCreationState.valueOf(creationState));
+        }
+        Object randomizer = userDataObj.get(FIELD_RANDOMIZER);
+        if (randomizer instanceof Number)
+        {
+            user.setRandomizer(((Number) randomizer).intValue());
+        }
+        return user;
+    }
+
+    /**
+     * Convert a {@link UserData} instance into the fields of its document in the users mirror
+     */
+    static DBObject toDBObject(UserData user)
+    {
+        DBObject userDataObj = new BasicDBObject()
+            .append(FIELD_USERNAME, user.getUsername())
+            .append(FIELD_PASSWORD, user.getPassword())
+            .append(FIELD_FIRST_NAME, user.getFirstName())
+            .append(FIELD_LAST_NAME, user.getLastName())
+            .append(FIELD_EMAIL, user.getEmail())
+            .append(FIELD_DOMAIN, user.getDomain())
+            .append(FIELD_RANDOMIZER, user.getRandomizer());
+        if (user.getCreationState() != null)
+        {
+            userDataObj.put(FIELD_CREATION_STATE, user.getCreationState().toString());
+        }
+        return userDataObj;
+    }
+
+    private static DBObject in(String field, Collection<String> values)
+    {
+        BasicDBList valuesList = new BasicDBList();
+        valuesList.addAll(values);
+        return new BasicDBObject(field, new BasicDBObject("$in", valuesList));
+    }
+}
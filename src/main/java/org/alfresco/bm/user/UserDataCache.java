@@ -0,0 +1,295 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, read-through cache of user details in front of the users mirror.
+ * <p/>
+ * Users are looked up in the mirror on a miss and kept until either {@link #setMaxSize(int) maxSize}
+ * users are cached, in which case the least recently used one is evicted, or they are older than
+ * {@link #setTimeToLive(long) timeToLive}.  The cache can be {@link #prefill(Collection) prefilled}
+ * with a single query for users about to be created, so that creation events find them in memory.
+ * A prefill larger than {@link #setMaxSize(int) maxSize} is refused: loading it would evict the
+ * start of the page before its events run.
+ * <p/>
+ * Only the details of the users are meant to be read from the cache: their creation state is the
+ * one they had when they were loaded.  A maximum size of 0 turns the cache off; every lookup then
+ * goes to the mirror.
+ *
+ * @since 3.0.1
+ */
+public class UserDataCache
+{
+    private static Log logger = LogFactory.getLog(UserDataCache.class);
+
+    public static final int DEFAULT_MAX_SIZE = 10000;
+    public static final long DEFAULT_TIME_TO_LIVE = 300000L;
+
+    private final UserDataBulkService userDataBulkService;
+    private int maxSize = DEFAULT_MAX_SIZE;
+    private long timeToLive = DEFAULT_TIME_TO_LIVE;
+
+    /** Cached users in access order; guarded by itself */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(256, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+        {
+            if (size() > maxSize)
+            {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder prefilled = new LongAdder();
+    private final LongAdder prefillsRefused = new LongAdder();
+    private final AtomicBoolean prefillRefusalLogged = new AtomicBoolean(false);
+
+    /**
+     * @param userDataBulkService used to load users, reading only the fields needed to create them
+     */
+    public UserDataCache(UserDataBulkService userDataBulkService)
+    {
+        this.userDataBulkService = userDataBulkService;
+    }
+
+    /**
+     * @param maxSize the maximum number of users cached, or 0 to turn the cache off
+     */
+    public void setMaxSize(int maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param timeToLive the time (milliseconds) a user is kept after it was loaded
+     */
+    public void setTimeToLive(long timeToLive)
+    {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Find a user, loading it from the mirror on a miss
+     *
+     * @return the user or <tt>null</tt> if it is not in the mirror
+     */
+    public UserData findUserByUsername(String username)
+    {
+        if (maxSize <= 0)
+        {
+            return userDataBulkService.findUserByUsername(username);
+        }
+        UserData user = getCached(username, System.currentTimeMillis());
+        if (user != null)
+        {
+            hits.increment();
+            return user;
+        }
+        misses.increment();
+        user = userDataBulkService.findUserByUsername(username);
+        if (user != null)
+        {
+            put(user, System.currentTimeMillis());
+        }
+        return user;
+    }
+
+    /**
+     * Find several users, loading the ones not cached from the mirror with a single query
+     *
+     * @return the users found keyed by username; usernames without mirror data are absent
+     */
+    public Map<String, UserData> findUsersByUsernames(Collection<String> usernames)
+    {
+        if (maxSize <= 0)
+        {
+            return userDataBulkService.findUsersByUsernames(usernames);
+        }
+        long now = System.currentTimeMillis();
+        Map<String, UserData> users = new LinkedHashMap<>(usernames.size() * 2);
+        List<String> missing = new ArrayList<>();
+        for (String username : usernames)
+        {
+            UserData user = getCached(username, now);
+            if (user != null)
+            {
+                users.put(username, user);
+            }
+            else
+            {
+                missing.add(username);
+            }
+        }
+        hits.add(users.size());
+        misses.add(missing.size());
+        if (!missing.isEmpty())
+        {
+            Map<String, UserData> loaded = userDataBulkService.findUsersByUsernames(missing);
+            putAll(loaded.values(), System.currentTimeMillis());
+            users.putAll(loaded);
+        }
+        return users;
+    }
+
+    /**
+     * Load users that are about to be needed, with a single query
+     *
+     * @param usernames the users to load; refused when there are more than {@link #setMaxSize(int) maxSize}
+     * @return <tt>true</tt> if the users were loaded
+     */
+    public boolean prefill(Collection<String> usernames)
+    {
+        if (maxSize <= 0 || usernames.isEmpty())
+        {
+            return false;
+        }
+        if (usernames.size() > maxSize)
+        {
+            prefillsRefused.increment();
+            if (prefillRefusalLogged.compareAndSet(false, true))
+            {
+                logger.warn("Not prefilling " + usernames.size() + " users into a cache of " + maxSize + " users; " +
+                        "raise the cache size above the page size to keep the page in memory.");
+            }
+            return false;
+        }
+        Map<String, UserData> loaded = userDataBulkService.findUsersByUsernames(usernames);
+        putAll(loaded.values(), System.currentTimeMillis());
+        prefilled.add(loaded.size());
+        return true;
+    }
+
+    /**
+     * Forget all users
+     */
+    public void clear()
+    {
+        synchronized (entries)
+        {
+            entries.clear();
+        }
+    }
+
+    public int size()
+    {
+        synchronized (entries)
+        {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return the hit, miss, eviction and prefill figures, suitable for an event result
+     */
+    public DBObject getMetrics()
+    {
+        long hitCount = hits.sum();
+        long lookups = hitCount + misses.sum();
+        return new BasicDBObject()
+            .append("maxSize", maxSize)
+            .append("size", size())
+            .append("hits", hitCount)
+            .append("misses", misses.sum())
+            .append("hitRatio", lookups == 0L ? 0.0 : (double) hitCount / lookups)
+            .append("evictions", evictions.sum())
+            .append("expirations", expirations.sum())
+            .append("prefilled", prefilled.sum())
+            .append("prefillsRefused", prefillsRefused.sum());
+    }
+
+    private UserData getCached(String username, long now)
+    {
+        synchronized (entries)
+        {
+            Entry entry = entries.get(username);
+            if (entry == null)
+            {
+                return null;
+            }
+            if (now - entry.loadedAt > timeToLive)
+            {
+                entries.remove(username);
+                expirations.increment();
+                return null;
+            }
+            return entry.user;
+        }
+    }
+
+    private void put(UserData user, long now)
+    {
+        synchronized (entries)
+        {
+            entries.put(user.getUsername(), new Entry(user, now));
+        }
+    }
+
+    private void putAll(Collection<UserData> users, long now)
+    {
+        synchronized (entries)
+        {
+            for (UserData user : users)
+            {
+                entries.put(user.getUsername(), new Entry(user, now));
+            }
+        }
+    }
+
+    private static final class Entry
+    {
+        private final UserData user;
+        private final long loadedAt;
+
+        private Entry(UserData user, long loadedAt)
+        {
+            this.user = user;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Progress of each shard of the username space when users are
+ * {@link CreateUsersInBatches#setShardCount(int) provisioned by shard}.
+ * <p/>
+ * Each shard is a contiguous username range with one document in a collection shared by the
+ * drivers, holding how far the shard has got, how many users it created or failed and which driver
+ * processed its last page.
+ *
+ * @since 3.0.1
+ */
+public class UserShards
+{
+    public static final String FIELD_FROM_USERNAME = "fromUsername";
+    public static final String FIELD_TO_USERNAME = "toUsername";
+    public static final String FIELD_AFTER_USERNAME = "afterUsername";
+    public static final String FIELD_CREATED = "created";
+    public static final String FIELD_FAILED = "failed";
+    public static final String FIELD_PAGES = "pages";
+    public static final String FIELD_DRIVER = "driver";
+    public static final String FIELD_DONE = "done";
+
+    private final DBCollection collection;
+    private final String driverId;
+
+    /**
+     * @param db         the database holding the shards
+     * @param collection the name of the collection shared by the drivers
+     */
+    public UserShards(DB db, String collection)
+    {
+        this.collection = db.getCollection(collection);
+        this.driverId = ManagementFactory.getRuntimeMXBean().getName();
+    }
+
+    /**
+     * Forget the shards of earlier runs and record new ones
+     *
+     * @param boundaries the usernames that start the second and following shards, in order
+     * @return the number of shards
+     */
+    public int reset(List<String> boundaries)
+    {
+        collection.remove(new BasicDBObject());
+        int shardCount = boundaries.size() + 1;
+        for (int shard = 0; shard < shardCount; shard++)
+        {
+            DBObject doc = new BasicDBObject("_id", shard)
+                .append(FIELD_FROM_USERNAME, shard == 0 ? null : boundaries.get(shard - 1))
+                .append(FIELD_TO_USERNAME, shard == shardCount - 1 ? null : boundaries.get(shard))
+                .append(FIELD_CREATED, 0)
+                .append(FIELD_FAILED, 0)
+                .append(FIELD_PAGES, 0)
+                .append(FIELD_DONE, false);
+            collection.insert(doc);
+        }
+        return shardCount;
+    }
+
+    /**
+     * Record the outcome of a page of a shard
+     *
+     * @param shard         the shard
+     * @param afterUsername the last username of the page
+     * @param created       the users created
+     * @param failed        the users that could not be created
+     */
+    public void recordPage(int shard, String afterUsername, int created, int failed)
+    {
+        DBObject updateObj = new BasicDBObject()
+            .append("$set", new BasicDBObject(FIELD_AFTER_USERNAME, afterUsername).append(FIELD_DRIVER, driverId))
+            .append("$inc", new BasicDBObject(FIELD_CREATED, created).append(FIELD_FAILED, failed).append(FIELD_PAGES, 1));
+        collection.update(new BasicDBObject("_id", shard), updateObj);
+    }
+
+    /**
+     * Record that a shard has no user left to create
+     */
+    public void markDone(int shard)
+    {
+        collection.update(new BasicDBObject("_id", shard), new BasicDBObject("$set", new BasicDBObject(FIELD_DONE, true)));
+    }
+
+    /**
+     * @return the progress of every shard and the totals, suitable for an event result
+     */
+    public DBObject getReport()
+    {
+        BasicDBList shardList = new BasicDBList();
+        Set<String> drivers = new HashSet<>();
+        long created = 0L;
+        long failed = 0L;
+        int done = 0;
+        try (DBCursor cursor = collection.find().sort(new BasicDBObject("_id", 1)))
+        {
+            while (cursor.hasNext())
+            {
+                DBObject doc = cursor.next();
+                created += ((Number) doc.get(FIELD_CREATED)).longValue();
+                failed += ((Number) doc.get(FIELD_FAILED)).longValue();
+                if (Boolean.TRUE.equals(doc.get(FIELD_DONE)))
+                {
+                    done++;
+                }
+                if (doc.get(FIELD_DRIVER) != null)
+                {
+                    drivers.add((String) doc.get(FIELD_DRIVER));
+                }
+                shardList.add(new BasicDBObject()
+                    .append("shard", doc.get("_id"))
+                    .append(FIELD_CREATED, doc.get(FIELD_CREATED))
+                    .append(FIELD_FAILED, doc.get(FIELD_FAILED))
+                    .append(FIELD_PAGES, doc.get(FIELD_PAGES))
+                    .append(FIELD_DONE, doc.get(FIELD_DONE))
+                    .append(FIELD_DRIVER, doc.get(FIELD_DRIVER)));
+            }
+        }
+        return new BasicDBObject()
+            .append("shards", shardList.size())
+            .append(FIELD_DONE, done)
+            .append(FIELD_CREATED, created)
+            .append(FIELD_FAILED, failed)
+            .append("drivers", drivers.size())
+            .append("byShard", shardList);
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import org.alfresco.bm.data.DataCreationState;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rebuilds the details of a test user from its index and the user patterns alone.
+ * <p/>
+ * The user with index <i>i</i> (starting at 0) is user number <i>i</i> + 1 and belongs to email
+ * domain number <i>i</i> / <tt>usersPerDomain</tt> + 1, so that with the default patterns the first
+ * user is <tt>0000001.Test@00001.example.com</tt>:
+ * <ul>
+ *     <li>the first and last names are the user number formatted with their patterns, e.g. <tt>%07d</tt></li>
+ *     <li>the email domain is the domain number formatted with its pattern, e.g. <tt>%05d.example.com</tt></li>
+ *     <li>the email address, username, password and domain substitute <tt>[firstName]</tt>,
+ *         <tt>[lastName]</tt>, <tt>[emailDomain]</tt> and, except for the email address,
+ *         <tt>[emailAddress]</tt> into their patterns</li>
+ * </ul>
+ * Nothing is looked up, so every driver rebuilds the same user from the same index without the
+ * users mirror.  The patterns are {@link UserTemplate compiled} when they are set.  Instances are
+ * safe to share between threads once configured.
+ *
+ * @since 3.0.1
+ */
+public class UserSynthesizer
+{
+    public static final String PATTERN_FIRST_NAME = "[firstName]";
+    public static final String PATTERN_LAST_NAME = "[lastName]";
+    public static final String PATTERN_EMAIL_DOMAIN = "[emailDomain]";
+    public static final String PATTERN_EMAIL_ADDRESS = "[emailAddress]";
+
+    public static final int DEFAULT_USERS_PER_DOMAIN = 100;
+
+    private static final int RANDOMIZER_RANGE = 1000000;
+
+    private int usersPerDomain = DEFAULT_USERS_PER_DOMAIN;
+    private UserTemplate domainTemplate = UserTemplate.compileSubstitution("default", true);
+    private UserTemplate emailDomainTemplate = UserTemplate.compileNumber("%05d.example.com");
+    private UserTemplate firstNameTemplate = UserTemplate.compileNumber("%07d");
+    private UserTemplate lastNameTemplate = UserTemplate.compileNumber("Test");
+    private UserTemplate emailAddressTemplate = UserTemplate.compileSubstitution(
+        PATTERN_FIRST_NAME + "." + PATTERN_LAST_NAME + "@" + PATTERN_EMAIL_DOMAIN, false);
+    private UserTemplate usernameTemplate = UserTemplate.compileSubstitution(PATTERN_EMAIL_ADDRESS, true);
+    private UserTemplate passwordTemplate = UserTemplate.compileSubstitution(PATTERN_EMAIL_ADDRESS, true);
+
+    public void setUsersPerDomain(int usersPerDomain)
+    {
+        if (usersPerDomain < 1)
+        {
+            throw new IllegalArgumentException("'usersPerDomain' must be at least 1.");
+        }
+        this.usersPerDomain = usersPerDomain;
+    }
+
+    public void setDomainPattern(String domainPattern)
+    {
+        this.domainTemplate = UserTemplate.compileSubstitution(domainPattern, true);
+    }
+
+    public void setEmailDomainPattern(String emailDomainPattern)
+    {
+        this.emailDomainTemplate = UserTemplate.compileNumber(emailDomainPattern);
+    }
+
+    public void setFirstNamePattern(String firstNamePattern)
+    {
+        this.firstNameTemplate = UserTemplate.compileNumber(firstNamePattern);
+    }
+
+    public void setLastNamePattern(String lastNamePattern)
+    {
+        this.lastNameTemplate = UserTemplate.compileNumber(lastNamePattern);
+    }
+
+    public void setEmailAddressPattern(String emailAddressPattern)
+    {
+        this.emailAddressTemplate = UserTemplate.compileSubstitution(emailAddressPattern, false);
+    }
+
+    public void setUsernamePattern(String usernamePattern)
+    {
+        this.usernameTemplate = UserTemplate.compileSubstitution(usernamePattern, true);
+    }
+
+    public void setPasswordPattern(String passwordPattern)
+    {
+        this.passwordTemplate = UserTemplate.compileSubstitution(passwordPattern, true);
+    }
+
+    /**
+     * @param index the index of the user, starting at 0
+     * @return the details of the user, not scheduled for creation yet
+     */
+    public UserData getUser(long index)
+    {
+        long userNumber = index + 1;
+        String emailDomain = emailDomainTemplate.render(index / usersPerDomain + 1);
+        String firstName = firstNameTemplate.render(userNumber);
+        String lastName = lastNameTemplate.render(userNumber);
+        String emailAddress = emailAddressTemplate.render(firstName, lastName, emailDomain, null);
+
+        UserData user = new UserData();
+        user.setUsername(usernameTemplate.render(firstName, lastName, emailDomain, emailAddress));
+        user.setPassword(passwordTemplate.render(firstName, lastName, emailDomain, emailAddress));
+        user.setFirstName(firstName);
+        user.setLastName(lastName);
+        user.setEmail(emailAddress);
+        user.setDomain(domainTemplate.render(firstName, lastName, emailDomain, emailAddress));
+        user.setCreationState(DataCreationState.NotScheduled);
+        user.setRandomizer(randomizer(index));
+        return user;
+    }
+
+    /**
+     * @param fromIndex the index of the first user
+     * @param count     the number of users
+     * @return the users keyed by username, in index order
+     */
+    public Map<String, UserData> getUsers(long fromIndex, int count)
+    {
+        Map<String, UserData> users = new LinkedHashMap<>(count * 2);
+        for (long index = fromIndex; index < fromIndex + count; index++)
+        {
+            UserData user = getUser(index);
+            users.put(user.getUsername(), user);
+        }
+        return users;
+    }
+
+    /**
+     * @return a number spread evenly over the users but always the same for a given index
+     */
+    static int randomizer(long index)
+    {
+        // SplitMix64 finaliser
+        long z = index + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        return (int) Math.floorMod(z, (long) RANDOMIZER_RANGE);
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A user-detail pattern compiled once, so that rendering it for a user only appends its parts.
+ * <p/>
+ * Number patterns such as <tt>%07d</tt> and substitution patterns such as
+ * <tt>[firstName].[lastName]@[emailDomain]</tt> are split into literal text, the user or domain
+ * number and the substituted values.  Rendering gives the same result as
+ * <tt>String.format(pattern, number)</tt> for number patterns and as successive
+ * <tt>String.replace</tt> calls for substitution patterns, without parsing the pattern again.
+ * Number patterns holding anything but <tt>%d</tt>, <tt>%<i>n</i>d</tt>, <tt>%0<i>n</i>d</tt> and
+ * <tt>%%</tt> fall back to <tt>String.format</tt>.
+ * <p/>
+ * Templates are immutable and safe to share between threads.
+ *
+ * @since 3.0.1
+ */
+public final class UserTemplate
+{
+    private static final int LITERAL = 0;
+    private static final int NUMBER = 1;
+    private static final int FIRST_NAME = 2;
+    private static final int LAST_NAME = 3;
+    private static final int EMAIL_DOMAIN = 4;
+    private static final int EMAIL_ADDRESS = 5;
+
+    private static final String[] TOKENS = {
+        null, null,
+        UserSynthesizer.PATTERN_FIRST_NAME,
+        UserSynthesizer.PATTERN_LAST_NAME,
+        UserSynthesizer.PATTERN_EMAIL_DOMAIN,
+        UserSynthesizer.PATTERN_EMAIL_ADDRESS};
+
+    private final String pattern;
+    private final int[] kinds;
+    private final String[] literals;
+    private final int[] widths;
+    private final boolean[] zeroPadded;
+    private final boolean formatted;
+    private final int estimatedLength;
+
+    private UserTemplate(String pattern, List<Object[]> parts, boolean formatted)
+    {
+        this.pattern = pattern;
+        this.formatted = formatted;
+        this.kinds = new int[parts.size()];
+        this.literals = new String[parts.size()];
+        this.widths = new int[parts.size()];
+        this.zeroPadded = new boolean[parts.size()];
+        int length = 0;
+        for (int i = 0; i < parts.size(); i++)
+        {
+            Object[] part = parts.get(i);
+            kinds[i] = (Integer) part[0];
+            literals[i] = (String) part[1];
+            widths[i] = (Integer) part[2];
+            zeroPadded[i] = (Boolean) part[3];
+            length += kinds[i] == LITERAL ? literals[i].length() : Math.max(widths[i], 16);
+        }
+        this.estimatedLength = length;
+    }
+
+    /**
+     * Compile a pattern holding <tt>String.format</tt> specifiers for a single number
+     */
+    public static UserTemplate compileNumber(String pattern)
+    {
+        List<Object[]> parts = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < pattern.length())
+        {
+            char c = pattern.charAt(i);
+            if (c != '%')
+            {
+                literal.append(c);
+                i++;
+                continue;
+            }
+            if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '%')
+            {
+                literal.append('%');
+                i += 2;
+                continue;
+            }
+            // %[0][width]d
+            int j = i + 1;
+            boolean zero = j < pattern.length() && pattern.charAt(j) == '0';
+            if (zero)
+            {
+                j++;
+            }
+            int widthStart = j;
+            while (j < pattern.length() && Character.isDigit(pattern.charAt(j)))
+            {
+                j++;
+            }
+            if (j >= pattern.length() || pattern.charAt(j) != 'd' || (zero && widthStart == j))
+            {
+                // Anything else is left to String.format
+                return new UserTemplate(pattern, new ArrayList<Object[]>(), true);
+            }
+            int width = widthStart == j ? 0 : Integer.parseInt(pattern.substring(widthStart, j));
+            addLiteral(parts, literal);
+            parts.add(new Object[] {NUMBER, null, width, zero});
+            i = j + 1;
+        }
+        addLiteral(parts, literal);
+        return new UserTemplate(pattern, parts, false);
+    }
+
+    /**
+     * Compile a pattern holding <tt>[firstName]</tt>, <tt>[lastName]</tt>, <tt>[emailDomain]</tt>
+     * and <tt>[emailAddress]</tt> substitutions
+     *
+     * @param withEmailAddress <tt>false</tt> to leave <tt>[emailAddress]</tt> as it is, as in the
+     *                         email address pattern itself
+     */
+    public static UserTemplate compileSubstitution(String pattern, boolean withEmailAddress)
+    {
+        List<Object[]> parts = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int lastKind = withEmailAddress ? EMAIL_ADDRESS : EMAIL_DOMAIN;
+        int i = 0;
+        next:
+        while (i < pattern.length())
+        {
+            if (pattern.charAt(i) == '[')
+            {
+                for (int kind = FIRST_NAME; kind <= lastKind; kind++)
+                {
+                    if (pattern.startsWith(TOKENS[kind], i))
+                    {
+                        addLiteral(parts, literal);
+                        parts.add(new Object[] {kind, null, 0, false});
+                        i += TOKENS[kind].length();
+                        continue next;
+                    }
+                }
+            }
+            literal.append(pattern.charAt(i));
+            i++;
+        }
+        addLiteral(parts, literal);
+        return new UserTemplate(pattern, parts, false);
+    }
+
+    private static void addLiteral(List<Object[]> parts, StringBuilder literal)
+    {
+        if (literal.length() > 0)
+        {
+            parts.add(new Object[] {LITERAL, literal.toString(), 0, false});
+            literal.setLength(0);
+        }
+    }
+
+    /**
+     * Render a number pattern
+     */
+    public String render(long number)
+    {
+        return render(number, null, null, null, null);
+    }
+
+    /**
+     * Render a substitution pattern
+     */
+    public String render(String firstName, String lastName, String emailDomain, String emailAddress)
+    {
+        return render(0L, firstName, lastName, emailDomain, emailAddress);
+    }
+
+    private String render(long number, String firstName, String lastName, String emailDomain, String emailAddress)
+    {
+        if (formatted || number < 0L)
+        {
+            return String.format(pattern, number);
+        }
+        if (kinds.length == 1 && kinds[0] == LITERAL)
+        {
+            return literals[0];
+        }
+        StringBuilder sb = new StringBuilder(estimatedLength);
+        for (int i = 0; i < kinds.length; i++)
+        {
+            switch (kinds[i])
+            {
+                case LITERAL:
+                    sb.append(literals[i]);
+                    break;
+                case NUMBER:
+                    appendNumber(sb, number, widths[i], zeroPadded[i]);
+                    break;
+                case FIRST_NAME:
+                    sb.append(firstName);
+                    break;
+                case LAST_NAME:
+                    sb.append(lastName);
+                    break;
+                case EMAIL_DOMAIN:
+                    sb.append(emailDomain);
+                    break;
+                default:
+                    sb.append(emailAddress);
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void appendNumber(StringBuilder sb, long number, int width, boolean zeroPadded)
+    {
+        char pad = zeroPadded ? '0' : ' ';
+        for (int i = stringSize(number); i < width; i++)
+        {
+            sb.append(pad);
+        }
+        sb.append(number);
+    }
+
+    /**
+     * @return the number of digits of a positive number
+     */
+    private static int stringSize(long x)
+    {
+        long p = 10L;
+        for (int i = 1; i < 19; i++)
+        {
+            if (x < p)
+            {
+                return i;
+            }
+            p = 10L * p;
+        }
+        return 19;
+    }
+
+    @Override
+    public String toString()
+    {
+        return pattern;
+    }
+}
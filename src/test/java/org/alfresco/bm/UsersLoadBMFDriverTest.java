@@ -32,6 +32,7 @@ import org.alfresco.bm.common.util.junit.tools.BMTestRunner;
 import org.alfresco.bm.common.util.junit.tools.BMTestRunnerListenerAdaptor;
 import org.alfresco.bm.common.util.junit.tools.MongoDBForTestsFactory;
 import org.alfresco.bm.driver.event.Event;
+import org.alfresco.bm.user.AlfrescoStandInServer;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -71,6 +72,43 @@ public class UsersLoadBMFDriverTest
         runner.run(null, null, testProperties);
     }
 
+    /**
+     * Run the signup against a local {@link AlfrescoStandInServer} rather than a live Alfresco, to
+     * measure the driver's own throughput.  The number of users can be raised with
+     * <tt>-Dstandin.users=100000</tt>.
+     */
+    @Test
+    public void runSignupAgainstStandIn() throws Exception
+    {
+        final int users = Integer.getInteger("standin.users", 1000);
+        final AlfrescoStandInServer standIn = new AlfrescoStandInServer();
+        standIn.setPersonLatency("lognormal:5,0.5");
+        standIn.start();
+        try
+        {
+            testProperties.setProperty("alfresco.server", "localhost");
+            testProperties.setProperty("alfresco.port", String.valueOf(standIn.getPort()));
+            testProperties.setProperty("user.numberOfUsers", String.valueOf(users));
+            testProperties.setProperty("user.signupDelay", "1");
+            testProperties.setProperty("user.batchSize", "100");
+
+            BMTestRunner runner = new BMTestRunner(300000L);        // Should be done in 5 minutes, even at 100k users
+            runner.addListener(new BMTestRunnerListenerAdaptor()
+            {
+                @Override
+                public void testRunFinished(ApplicationContext testCtx, String test, String run)
+                {
+                    Assert.assertEquals(users, standIn.getPeopleCount());
+                }
+            });
+            runner.run(null, null, testProperties);
+        }
+        finally
+        {
+            standIn.stop();
+        }
+    }
+
     /**
      * The Alfresco server will already contain all the default users, so modify the test to
      * generate non-default names.  The test is run twice and the results checked to ensure that,
@@ -0,0 +1,158 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Check the decisions of the {@link AdaptiveRateController}
+ *
+ * @since 3.0.1
+ */
+@RunWith(JUnit4.class)
+public class AdaptiveRateControllerTest
+{
+    private AdaptiveRateController controller;
+
+    @Before
+    public void setUp()
+    {
+        controller = new AdaptiveRateController();
+        controller.setAdaptive(true);
+        controller.setInitialRate(10.0);
+        controller.setMinRate(2.0);
+        controller.setMaxRate(17.0);
+        controller.setRateIncrease(5.0);
+        controller.setRateDecreaseFactor(0.5);
+        controller.setTargetP95Latency(100L);
+        controller.setTargetErrorRate(0.1);
+        controller.setMinSamples(10);
+    }
+
+    private void record(int count, long latencyMs, boolean error)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            controller.record(TimeUnit.MILLISECONDS.toMicros(latencyMs), error);
+        }
+    }
+
+    @Test
+    public void testHoldWithoutSamples()
+    {
+        record(9, 10L, false);
+        DBObject decision = controller.adjust();
+        assertEquals(AdaptiveRateController.DECISION_HOLD, decision.get("decision"));
+        assertEquals(10.0, controller.getRate(), 0.001);
+        // The samples are kept for the next decision
+        record(1, 10L, false);
+        assertEquals(AdaptiveRateController.DECISION_INCREASE, controller.adjust().get("decision"));
+    }
+
+    @Test
+    public void testAdditiveIncreaseUpToMax()
+    {
+        record(20, 50L, false);
+        controller.adjust();
+        assertEquals(15.0, controller.getRate(), 0.001);
+        assertEquals(1000.0 / 15.0, controller.getCreationDelay(), 0.001);
+        record(20, 50L, false);
+        controller.adjust();
+        assertEquals(17.0, controller.getRate(), 0.001);
+    }
+
+    @Test
+    public void testDecreaseOnLatency()
+    {
+        // 10% of the calls are slow, so the 95th percentile is slow
+        record(18, 50L, false);
+        record(2, 500L, false);
+        DBObject decision = controller.adjust();
+        assertEquals(AdaptiveRateController.DECISION_DECREASE, decision.get("decision"));
+        assertEquals(500.0, (Double) decision.get("p95LatencyMs"), 0.001);
+        assertEquals(5.0, controller.getRate(), 0.001);
+        record(20, 500L, false);
+        controller.adjust();
+        assertEquals(2.5, controller.getRate(), 0.001);
+        record(20, 500L, false);
+        controller.adjust();
+        assertEquals(2.0, controller.getRate(), 0.001);
+    }
+
+    @Test
+    public void testDecreaseOnErrors()
+    {
+        record(17, 10L, false);
+        record(3, 10L, true);
+        DBObject decision = controller.adjust();
+        assertEquals(AdaptiveRateController.DECISION_DECREASE, decision.get("decision"));
+        assertEquals(0.15, (Double) decision.get("errorRate"), 0.001);
+    }
+
+    @Test
+    public void testSharedAcrossDrivers()
+    {
+        DB db = mock(DB.class);
+        DBCollection collection = mock(DBCollection.class);
+        when(db.getCollection("rate")).thenReturn(collection);
+        // Another driver decided on 30 users per second and published 20 fast calls since
+        when(collection.findOne(new BasicDBObject("_id", "state"))).thenReturn(
+            new BasicDBObject("_id", "state").append("rate", 30.0).append("epoch", 3L));
+        when(collection.findOne(new BasicDBObject("_id", "samples-3"))).thenReturn(
+            new BasicDBObject("_id", "samples-3").append("calls", 20L).append("errors", 0L)
+                .append("buckets", new BasicDBObject("50", 20L)));
+
+        AdaptiveRateController shared = new AdaptiveRateController(db, "rate");
+        shared.setAdaptive(true);
+        shared.setInitialRate(10.0);
+        shared.setRateIncrease(5.0);
+        shared.setMinSamples(10);
+
+        DBObject decision = shared.adjust();
+        assertEquals(AdaptiveRateController.DECISION_INCREASE, decision.get("decision"));
+        assertEquals(30.0, (Double) decision.get("previousRate"), 0.001);
+        assertEquals(35.0, shared.getRate(), 0.001);
+        // The decision is shared and later samples go to the next one
+        verify(collection).update(
+            new BasicDBObject("_id", "state").append("epoch", 3L),
+            new BasicDBObject("$set", new BasicDBObject("rate", 35.0)).append("$inc", new BasicDBObject("epoch", 1L)),
+            false, false);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Make calls against a local server that issues tickets and only accepts the latest one, and check
+ * that tickets are requested once and replaced when rejected.
+ *
+ * @since 3.0.1
+ */
+@RunWith(JUnit4.class)
+public class AdminAuthenticatorTest
+{
+    private HttpServer server;
+    private String baseUrl;
+    private volatile boolean ticketsEnabled = true;
+    private volatile long ticketDelay = 0L;
+    private final AtomicInteger ticketsIssued = new AtomicInteger();
+    private final AtomicInteger basicCalls = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/" + AdminAuthenticator.TICKETS_PATH, exchange ->
+        {
+            if (!ticketsEnabled)
+            {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+            if (ticketDelay > 0L)
+            {
+                try
+                {
+                    Thread.sleep(ticketDelay);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            byte[] body = ("{\"entry\":{\"id\":\"TICKET_" + ticketsIssued.incrementAndGet() + "\",\"userId\":\"admin\"}}")
+                .getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(201, body.length);
+            try (OutputStream os = exchange.getResponseBody())
+            {
+                os.write(body);
+            }
+        });
+        server.createContext("/" + PeopleRestClient.V1_API_PATH, exchange ->
+        {
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            String credentials = new String(Base64.getDecoder().decode(authorization.substring("Basic ".length())), StandardCharsets.UTF_8);
+            int status;
+            if (credentials.equals("admin:admin"))
+            {
+                basicCalls.incrementAndGet();
+                status = 201;
+            }
+            else
+            {
+                // Only the latest ticket is valid
+                status = credentials.equals("TICKET_" + ticketsIssued.get()) ? 201 : 401;
+            }
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        });
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown()
+    {
+        server.stop(0);
+    }
+
+    @Test
+    public void testTicketIsReused() throws Exception
+    {
+        AdminAuthenticator authenticator = new AdminAuthenticator(baseUrl, "admin", "admin");
+        try (PeopleRestClient client = new PeopleRestClient(baseUrl, authenticator))
+        {
+            for (int i = 0; i < 20; i++)
+            {
+                assertEquals(201, client.createGroupMembership("GROUP_A", "user-" + i));
+            }
+        }
+        assertEquals(1, ticketsIssued.get());
+        assertEquals(0, basicCalls.get());
+        assertEquals(20L, authenticator.getMetrics().get("ticketRequests"));
+    }
+
+    @Test
+    public void testRejectedTicketIsReplaced() throws Exception
+    {
+        AdminAuthenticator authenticator = new AdminAuthenticator(baseUrl, "admin", "admin");
+        try (PeopleRestClient client = new PeopleRestClient(baseUrl, authenticator))
+        {
+            assertEquals(201, client.createGroupMembership("GROUP_A", "user-0"));
+            // Expire the ticket behind the client's back
+            ticketsIssued.incrementAndGet();
+            assertEquals(201, client.createGroupMembership("GROUP_A", "user-1"));
+            assertEquals(201, client.createGroupMembership("GROUP_A", "user-2"));
+        }
+        assertEquals(3, ticketsIssued.get());
+        assertEquals(1L, authenticator.getMetrics().get("rejections"));
+    }
+
+    @Test
+    public void testFallBackToBasicAuthentication() throws Exception
+    {
+        ticketsEnabled = false;
+        AdminAuthenticator authenticator = new AdminAuthenticator(baseUrl, "admin", "admin");
+        try (PeopleRestClient client = new PeopleRestClient(baseUrl, authenticator))
+        {
+            for (int i = 0; i < 5; i++)
+            {
+                assertEquals(201, client.createGroupMembership("GROUP_A", "user-" + i));
+            }
+        }
+        assertEquals(5, basicCalls.get());
+        assertEquals(1L, authenticator.getMetrics().get("ticketFailures"));
+    }
+
+    @Test
+    public void testSlowTicketRequestTimesOut() throws Exception
+    {
+        ticketDelay = 5000L;
+        HttpConnectionPools connectionPools = new HttpConnectionPools();
+        connectionPools.setSocketTimeout(200);
+        AdminAuthenticator authenticator = new AdminAuthenticator(baseUrl, "admin", "admin");
+        authenticator.setConnectionPools(connectionPools);
+        try
+        {
+            long start = System.currentTimeMillis();
+            assertEquals(authenticator.getBasicAuthorization(), authenticator.getAuthorization());
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue("Waited " + elapsed + "ms for a ticket", elapsed < ticketDelay);
+            assertEquals(1L, authenticator.getMetrics().get("ticketFailures"));
+        }
+        finally
+        {
+            authenticator.destroy();
+        }
+    }
+}
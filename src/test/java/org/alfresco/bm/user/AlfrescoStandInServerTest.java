@@ -0,0 +1,194 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.alfresco.rest.model.RestPersonModel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Check the answers of the Alfresco stand-in server to the calls made by the REST clients.
+ *
+ * @since 3.0.1
+ */
+@RunWith(JUnit4.class)
+public class AlfrescoStandInServerTest
+{
+    private AlfrescoStandInServer standIn;
+
+    @Before
+    public void setUp()
+    {
+        standIn = new AlfrescoStandInServer();
+    }
+
+    @After
+    public void tearDown()
+    {
+        standIn.stop();
+    }
+
+    private static RestPersonModel person(String username)
+    {
+        RestPersonModel person = new RestPersonModel();
+        person.setId(username);
+        person.setFirstName("First");
+        person.setLastName("Last");
+        person.setEmail(username + "@example.com");
+        person.setPassword("password");
+        return person;
+    }
+
+    @Test
+    public void testPeopleAndMemberships() throws Exception
+    {
+        standIn.setMissingGroups(Collections.singleton("MISSING"));
+        standIn.start();
+        try (PeopleRestClient client = new PeopleRestClient(standIn.getBaseUrl(), "admin", "admin"))
+        {
+            assertEquals(201, client.createPerson(person("user-1")));
+            assertEquals(409, client.createPerson(person("user-1")));
+            assertEquals(201, client.createGroupMembership("GROUP_SITE_ADMINISTRATORS", "user-1"));
+            assertEquals(404, client.createGroupMembership("GROUP_SITE_ADMINISTRATORS", "user-2"));
+            assertEquals(200, client.getGroup("GROUP_SITE_ADMINISTRATORS"));
+            assertEquals(404, client.getGroup("GROUP_MISSING"));
+            assertEquals(201, client.createGroup("GROUP_MISSING", "MISSING"));
+            assertEquals(200, client.getGroup("GROUP_MISSING"));
+        }
+        assertEquals(1, standIn.getPeopleCount());
+    }
+
+    @Test
+    public void testListPeople() throws Exception
+    {
+        standIn.start();
+        try (PeopleRestClient client = new PeopleRestClient(standIn.getBaseUrl(), "admin", "admin"))
+        {
+            for (int i = 0; i < 5; i++)
+            {
+                assertEquals(201, client.createPerson(person("user-" + i)));
+            }
+            List<String> ids = new ArrayList<>();
+            assertTrue(client.listPeople(0, 3, ids));
+            assertEquals(Arrays.asList("user-0", "user-1", "user-2"), ids);
+            assertFalse(client.listPeople(3, 3, ids));
+            assertEquals(5, ids.size());
+            assertEquals("user-4", ids.get(4));
+        }
+    }
+
+    @Test
+    public void testLegacyPeopleWithGroups() throws Exception
+    {
+        standIn.start();
+        UserData user = new UserData();
+        user.setUsername("user-1");
+        user.setFirstName("First");
+        user.setLastName("Last");
+        user.setEmail("user-1@example.com");
+        user.setPassword("password");
+        try (PeopleRestClient client = new PeopleRestClient(standIn.getBaseUrl(), "admin", "admin"))
+        {
+            assertEquals(200, client.createPersonLegacy(user, Arrays.asList("GROUP_SITE_ADMINISTRATORS", "GROUP_DATA_ANALYSTS")));
+            assertEquals(409, client.createPersonLegacy(user, Collections.<String>emptyList()));
+        }
+        assertEquals(1, standIn.getPeopleCount());
+        // The person and its groups take a single call
+        assertEquals(2L, standIn.getMetrics().get("requests"));
+    }
+
+    @Test
+    public void testInjectedErrors() throws Exception
+    {
+        standIn.setErrorRatio(1.0);
+        standIn.start();
+        try (PeopleRestClient client = new PeopleRestClient(standIn.getBaseUrl(), "admin", "admin"))
+        {
+            for (int i = 0; i < 10; i++)
+            {
+                assertEquals(500, client.createPerson(person("user-" + i)));
+            }
+        }
+        assertEquals(0, standIn.getPeopleCount());
+        assertEquals(10L, standIn.getStatusCount(500));
+    }
+
+    @Test
+    public void testCapacityLimit() throws Exception
+    {
+        standIn.setMaxConcurrentRequests(1);
+        standIn.setPersonLatency("fixed:500");
+        standIn.start();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (PeopleRestClient client = new PeopleRestClient(standIn.getBaseUrl(), "admin", "admin"))
+        {
+            Future<Integer> first = executor.submit(() -> client.createPerson(person("user-1")));
+            Thread.sleep(100L);
+            Future<Integer> second = executor.submit(() -> client.createPerson(person("user-2")));
+            assertEquals(503, second.get().intValue());
+            assertEquals(201, first.get().intValue());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLatencyDistributions()
+    {
+        assertEquals(0L, LatencyDistribution.parse("none").nextMillis());
+        assertEquals(7L, LatencyDistribution.parse("fixed:7").nextMillis());
+        for (int i = 0; i < 1000; i++)
+        {
+            long uniform = LatencyDistribution.parse("uniform:5-10").nextMillis();
+            assertTrue(uniform >= 5L && uniform <= 10L);
+            assertTrue(LatencyDistribution.parse("exponential:10").nextMillis() >= 0L);
+            assertTrue(LatencyDistribution.parse("lognormal:10,0.5").nextMillis() >= 0L);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadLatencyDistribution()
+    {
+        LatencyDistribution.parse("uniform:10");
+    }
+}
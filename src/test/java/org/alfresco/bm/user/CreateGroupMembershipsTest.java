@@ -0,0 +1,178 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.mongodb.DBObject;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.driver.event.Event;
+import org.alfresco.rest.model.RestPersonModel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Run {@link CreateGroupMemberships} against the {@link AlfrescoStandInServer}, with the pending groups
+ * of the users held in memory, and check that each group is processed page by page.
+ *
+ * @since 3.0.1
+ */
+@RunWith(JUnit4.class)
+public class CreateGroupMembershipsTest
+{
+    private static final String GROUP_EXISTING = "SITE_ADMINISTRATORS";
+    private static final String GROUP_MISSING = "MISSING";
+    private static final List<String> USERNAMES = Arrays.asList("user-0", "user-1", "user-2", "user-3", "user-4");
+
+    private AlfrescoStandInServer standIn;
+    /** The users still to be added to each group, in the order they are found */
+    private final Map<String, List<String>> pendingGroups = new TreeMap<>();
+    private final List<String> removed = new ArrayList<>();
+    private CreateGroupMemberships createGroupMemberships;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        standIn = new AlfrescoStandInServer();
+        standIn.setMissingGroups(Collections.singleton(GROUP_MISSING));
+        standIn.start();
+        String baseUrl = standIn.getBaseUrl();
+        try (PeopleRestClient client = new PeopleRestClient(baseUrl, "admin", "admin"))
+        {
+            for (String username : USERNAMES)
+            {
+                assertEquals(201, client.createPerson(person(username)));
+            }
+        }
+
+        pendingGroups.put(GROUP_EXISTING, new ArrayList<>(USERNAMES));
+        pendingGroups.put(GROUP_MISSING, new ArrayList<>(USERNAMES.subList(0, 2)));
+        UserDataBulkService userDataBulkService = mock(UserDataBulkService.class);
+        when(userDataBulkService.findPendingGroups()).thenAnswer(invocation -> new ArrayList<>(pendingGroups.keySet()));
+        when(userDataBulkService.findUsernamesWithPendingGroup(anyString(), anyInt())).thenAnswer(invocation ->
+        {
+            List<String> usernames = pendingGroups.getOrDefault(invocation.getArguments()[0], Collections.emptyList());
+            int count = (Integer) invocation.getArguments()[1];
+            return new ArrayList<>(usernames.subList(0, Math.min(count, usernames.size())));
+        });
+        doAnswer(invocation ->
+        {
+            @SuppressWarnings("unchecked")
+            Collection<String> usernames = (Collection<String>) invocation.getArguments()[0];
+            String group = (String) invocation.getArguments()[1];
+            removed.add(group + ":" + usernames.size());
+            List<String> pending = pendingGroups.get(group);
+            pending.removeAll(usernames);
+            if (pending.isEmpty())
+            {
+                pendingGroups.remove(group);
+            }
+            return null;
+        }).when(userDataBulkService).removePendingGroup(anyCollectionOf(String.class), anyString());
+
+        AdminAuthenticator adminAuthenticator = PeopleRestClient.basicAuthenticator(baseUrl, "admin", "admin");
+        createGroupMemberships = new CreateGroupMemberships(
+            userDataBulkService, mock(UserCreationStateWriter.class), baseUrl, adminAuthenticator, new HttpConnectionPools(), 2);
+        createGroupMemberships.setGroupResolver(new GroupResolver(baseUrl, adminAuthenticator, new HttpConnectionPools()));
+        createGroupMemberships.setPageSize(2);
+    }
+
+    @After
+    public void tearDown()
+    {
+        if (createGroupMemberships != null)
+        {
+            createGroupMemberships.destroy();
+        }
+        standIn.stop();
+    }
+
+    private static RestPersonModel person(String username)
+    {
+        RestPersonModel person = new RestPersonModel();
+        person.setId(username);
+        person.setFirstName("First");
+        person.setLastName("Last");
+        person.setEmail(username + "@example.com");
+        person.setPassword("password");
+        return person;
+    }
+
+    @Test
+    public void testGroupsArePagedAndMissingGroupsSkipped() throws Exception
+    {
+        List<DBObject> results = new ArrayList<>();
+        Event event = new Event(CreateGroupMemberships.EVENT_NAME_CREATE_GROUP_MEMBERSHIPS, 0L, null);
+        while (results.size() < 10)
+        {
+            EventResult result = createGroupMemberships.processEvent(event);
+            event = result.getNextEvents().get(0);
+            if (event.getName().equals(CreateGroupMemberships.EVENT_NAME_GROUP_MEMBERSHIPS_CREATED))
+            {
+                break;
+            }
+            results.add((DBObject) result.getData());
+        }
+        assertEquals(CreateGroupMemberships.EVENT_NAME_GROUP_MEMBERSHIPS_CREATED, event.getName());
+
+        // The missing group is dropped in a single page, then the other group takes three pages
+        assertEquals(4, results.size());
+        assertEquals(GROUP_MISSING, results.get(0).get(CreateGroupMemberships.EVENT_DATA_GROUP));
+        assertEquals(2, results.get(0).get("skipped"));
+        int[] pageSizes = {2, 2, 1};
+        for (int i = 0; i < pageSizes.length; i++)
+        {
+            DBObject page = results.get(i + 1);
+            assertEquals(GROUP_EXISTING, page.get(CreateGroupMemberships.EVENT_DATA_GROUP));
+            assertEquals(pageSizes[i], page.get("added"));
+            assertEquals(0, page.get("failed"));
+        }
+
+        // Every pending group is removed, whether the memberships were created or skipped
+        assertEquals(Arrays.asList(GROUP_MISSING + ":2", GROUP_EXISTING + ":2", GROUP_EXISTING + ":2", GROUP_EXISTING + ":1"), removed);
+        assertTrue(pendingGroups.isEmpty());
+        // The only 404 is the lookup of the missing group: no membership call was made for it
+        assertEquals(1L, standIn.getStatusCount(404));
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.driver.event.Event;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Create users with {@link CreateUserBatchAsync} against the {@link AlfrescoStandInServer}, with a
+ * latency profile and failing calls that are retried, and check the number of calls outstanding.
+ *
+ * @since 3.0.1
+ */
+@RunWith(JUnit4.class)
+public class CreateUserBatchAsyncTest
+{
+    private static final int USER_COUNT = 200;
+    private static final int MAX_IN_FLIGHT = 8;
+    private static final long TIMEOUT = 30000L;
+
+    private AlfrescoStandInServer standIn;
+    private final Map<String, UserData> users = new LinkedHashMap<>();
+    private final Map<String, DataCreationState> creationStates = new ConcurrentHashMap<>();
+    private final AtomicInteger duplicates = new AtomicInteger();
+    private CreateUserBatchAsync createUsers;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        standIn = new AlfrescoStandInServer();
+        standIn.setPersonLatency("uniform:1-10");
+        standIn.setErrorRatio(0.2);
+        // Many more threads than calls allowed, so that only the driver limits them
+        standIn.setThreads(MAX_IN_FLIGHT * 4);
+        standIn.start();
+
+        for (int i = 0; i < USER_COUNT; i++)
+        {
+            UserData user = new UserData();
+            user.setUsername("user-" + i);
+            user.setFirstName("first" + i);
+            user.setLastName("last" + i);
+            user.setEmail("user" + i + "@example.com");
+            user.setPassword("password" + i);
+            users.put(user.getUsername(), user);
+        }
+        UserDataBulkService userDataBulkService = mock(UserDataBulkService.class);
+        when(userDataBulkService.findUsersByUsernames(anyCollectionOf(String.class))).thenAnswer(invocation ->
+        {
+            Map<String, UserData> found = new LinkedHashMap<>();
+            for (Object username : (Collection<?>) invocation.getArguments()[0])
+            {
+                found.put((String) username, users.get(username));
+            }
+            return found;
+        });
+        UserCreationStateWriter creationStateWriter = mock(UserCreationStateWriter.class);
+        doAnswer(invocation ->
+        {
+            if (creationStates.put((String) invocation.getArguments()[0], (DataCreationState) invocation.getArguments()[1]) != null)
+            {
+                duplicates.incrementAndGet();
+            }
+            return null;
+        }).when(creationStateWriter).setUserCreationState(anyString(), any(DataCreationState.class));
+
+        RetryPolicy retryPolicy = new RetryPolicy();
+        retryPolicy.setBaseDelay(5L);
+        retryPolicy.setMaxDelay(20L);
+
+        createUsers = new CreateUserBatchAsync(userDataBulkService, 2);
+        createUsers.setBaseUrl(standIn.getBaseUrl());
+        createUsers.setAlfrescoAdminUsername("admin");
+        createUsers.setAlfrescoAdminPassword("admin");
+        createUsers.setUserGroups("");
+        createUsers.setCreationStateWriter(creationStateWriter);
+        createUsers.setRetryPolicy(retryPolicy);
+        createUsers.setMaxInFlight(MAX_IN_FLIGHT);
+        createUsers.initialize();
+    }
+
+    @After
+    public void tearDown()
+    {
+        if (createUsers != null)
+        {
+            createUsers.destroy();
+        }
+        standIn.stop();
+    }
+
+    private EventResult createBatch(List<String> usernames) throws Exception
+    {
+        DBObject dataObj = new BasicDBObject(CreateUserBatch.EVENT_DATA_USERNAMES, usernames);
+        return createUsers.processEvent(new Event(CreateUsersInBatches.EVENT_NAME_CREATE_USER_BATCH, 0L, dataObj));
+    }
+
+    @Test
+    public void testInFlightCallsAreLimited() throws Exception
+    {
+        List<String> usernames = new ArrayList<>(users.keySet());
+        for (int i = 0; i < USER_COUNT; i += 50)
+        {
+            EventResult result = createBatch(usernames.subList(i, i + 50));
+            assertEquals(50, ((DBObject) result.getData()).get("submitted"));
+        }
+
+        // Every user ends up created or failed
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (creationStates.size() < USER_COUNT && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(20L);
+        }
+        assertEquals(USER_COUNT, creationStates.size());
+        assertEquals(0, duplicates.get());
+        assertTrue("Some calls should have been retried", standIn.getStatusCount(500) > 0);
+        assertEquals(standIn.getStatusCount(201), (long) Collections.frequency(creationStates.values(), DataCreationState.Created));
+
+        // The server never saw more calls at once than the driver allows
+        int concurrentRequestsMax = (Integer) standIn.getMetrics().get("concurrentRequestsMax");
+        assertTrue("Up to " + concurrentRequestsMax + " calls at once", concurrentRequestsMax <= MAX_IN_FLIGHT);
+
+        // All the permits are back once the last attempts are recorded
+        EventResult result = createBatch(Collections.<String>emptyList());
+        assertEquals(0, ((DBObject) result.getData()).get("inFlight"));
+    }
+}
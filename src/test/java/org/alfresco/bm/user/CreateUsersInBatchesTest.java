@@ -0,0 +1,178 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.driver.event.Event;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Check the events scheduled by {@link CreateUsersInBatches}
+ *
+ * @since 3.0.1
+ */
+@RunWith(JUnit4.class)
+public class CreateUsersInBatchesTest
+{
+    private static final List<String> USERNAMES = Arrays.asList("u1", "u2", "u3", "u4", "u5");
+
+    private UserDataBulkService userDataBulkService;
+    private CreateUsersInBatches createUsers;
+
+    @Before
+    public void setUp()
+    {
+        userDataBulkService = mock(UserDataBulkService.class);
+        when(userDataBulkService.findUsernamesByCreationState(eq(DataCreationState.NotScheduled), anyInt())).thenReturn(USERNAMES);
+        createUsers = new CreateUsersInBatches(userDataBulkService, 100L);
+        createUsers.setCreationDelay(10L);
+    }
+
+    @Test
+    public void testOneEventPerUser() throws Exception
+    {
+        EventResult result = createUsers.processEvent(new Event(CreateUsersInBatches.EVENT_NAME_CREATE_USERS, 0L, null));
+
+        List<Event> nextEvents = result.getNextEvents();
+        assertEquals(6, nextEvents.size());
+        assertEquals(CreateUsersInBatches.EVENT_NAME_CREATE_USER, nextEvents.get(0).getName());
+        assertEquals("u1", nextEvents.get(0).getData());
+        assertEquals(40L, nextEvents.get(4).getScheduledTime() - nextEvents.get(0).getScheduledTime());
+        verify(userDataBulkService).setUserCreationState(USERNAMES, DataCreationState.Scheduled);
+    }
+
+    @Test
+    public void testBatches() throws Exception
+    {
+        createUsers.setBatchSize(2);
+        EventResult result = createUsers.processEvent(new Event(CreateUsersInBatches.EVENT_NAME_CREATE_USERS, 0L, null));
+
+        List<Event> nextEvents = result.getNextEvents();
+        // 3 batches and the next page
+        assertEquals(4, nextEvents.size());
+        assertEquals(CreateUsersInBatches.EVENT_NAME_CREATE_USER_BATCH, nextEvents.get(0).getName());
+        DBObject lastBatch = (DBObject) nextEvents.get(2).getData();
+        assertEquals(Collections.singletonList("u5"), lastBatch.get(CreateUserBatch.EVENT_DATA_USERNAMES));
+        // Users are still spaced by the creation delay
+        assertEquals(20L, nextEvents.get(1).getScheduledTime() - nextEvents.get(0).getScheduledTime());
+
+        Event selfEvent = nextEvents.get(3);
+        assertEquals(CreateUsersInBatches.EVENT_NAME_CREATE_USERS, selfEvent.getName());
+        assertEquals(5L, ((DBObject) selfEvent.getData()).get(CreateUsersInBatches.EVENT_DATA_SCHEDULED));
+    }
+
+    @Test
+    public void testAllScheduled() throws Exception
+    {
+        EventResult result = createUsers.processEvent(
+            new Event(CreateUsersInBatches.EVENT_NAME_CREATE_USERS, 0L, new BasicDBObject(CreateUsersInBatches.EVENT_DATA_SCHEDULED, 100L)));
+
+        List<Event> nextEvents = result.getNextEvents();
+        assertEquals(1, nextEvents.size());
+        assertEquals(CreateUsersInBatches.EVENT_NAME_USERS_CREATED, nextEvents.get(0).getName());
+    }
+
+    @Test
+    public void testShards() throws Exception
+    {
+        when(userDataBulkService.findUsernameBoundaries(3)).thenReturn(Arrays.asList("u2", "u4"));
+        createUsers.setShardCount(3);
+        EventResult result = createUsers.processEvent(new Event(CreateUsersInBatches.EVENT_NAME_CREATE_USERS, 0L, null));
+
+        List<Event> nextEvents = result.getNextEvents();
+        // 3 shards and the check
+        assertEquals(4, nextEvents.size());
+        DBObject firstShard = (DBObject) nextEvents.get(0).getData();
+        assertEquals(CreateUserShard.EVENT_NAME_CREATE_USER_SHARD, nextEvents.get(0).getName());
+        assertEquals(null, firstShard.get(CreateUserBatch.EVENT_DATA_FROM_USERNAME));
+        assertEquals("u2", firstShard.get(CreateUserBatch.EVENT_DATA_TO_USERNAME));
+        DBObject lastShard = (DBObject) nextEvents.get(2).getData();
+        assertEquals(2, lastShard.get(CreateUserShard.EVENT_DATA_SHARD));
+        assertEquals("u4", lastShard.get(CreateUserBatch.EVENT_DATA_FROM_USERNAME));
+        assertEquals(null, lastShard.get(CreateUserBatch.EVENT_DATA_TO_USERNAME));
+        assertEquals(CreateUsersInBatches.EVENT_NAME_USERS_CREATED, nextEvents.get(3).getName());
+    }
+
+    @Test
+    public void testSynthesizedUsers() throws Exception
+    {
+        createUsers.setSynthesizeUsers(true);
+        createUsers.setBatchSize(40);
+        EventResult result = createUsers.processEvent(
+            new Event(CreateUsersInBatches.EVENT_NAME_CREATE_USERS, 0L, new BasicDBObject(CreateUsersInBatches.EVENT_DATA_SCHEDULED, 20L)));
+
+        // 80 users left: 2 batches and the next page
+        List<Event> nextEvents = result.getNextEvents();
+        assertEquals(3, nextEvents.size());
+        assertEquals(CreateUsersInBatches.EVENT_NAME_CREATE_USER_BATCH, nextEvents.get(0).getName());
+        DBObject secondBatch = (DBObject) nextEvents.get(1).getData();
+        assertEquals(60L, secondBatch.get(CreateUserBatch.EVENT_DATA_FROM_INDEX));
+        assertEquals(40, secondBatch.get(CreateUserBatch.EVENT_DATA_COUNT));
+        assertEquals(100L, ((DBObject) nextEvents.get(2).getData()).get(CreateUsersInBatches.EVENT_DATA_SCHEDULED));
+        // The mirror is not read
+        verify(userDataBulkService, never()).findUsernamesByCreationState(eq(DataCreationState.NotScheduled), anyInt());
+    }
+
+    @Test
+    public void testLoadShape() throws Exception
+    {
+        LoadShape loadShape = new LoadShape();
+        loadShape.setProfile(LoadShape.Profile.BURST);
+        loadShape.setBurstSize(2);
+        loadShape.setBurstInterval(60000L);
+        createUsers.setLoadShape(loadShape);
+        long started = System.currentTimeMillis();
+        EventResult result = createUsers.processEvent(
+            new Event(CreateUsersInBatches.EVENT_NAME_CREATE_USERS, 0L, new BasicDBObject(CreateUsersInBatches.EVENT_DATA_SCHEDULED, 3L)
+                .append(CreateUsersInBatches.EVENT_DATA_STARTED, started)));
+
+        List<Event> nextEvents = result.getNextEvents();
+        // The 4th user is due with the 3rd, in the second burst; the 5th is due with the third burst
+        assertEquals(started + 60000L, nextEvents.get(0).getScheduledTime());
+        assertEquals(started + 120000L, nextEvents.get(1).getScheduledTime());
+        assertEquals(started, ((DBObject) nextEvents.get(5).getData()).get(CreateUsersInBatches.EVENT_DATA_STARTED));
+        DBObject sample = (DBObject) ((DBObject) result.getData()).get("load");
+        assertEquals("BURST", sample.get("profile"));
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Create users from many threads at once against a local server that answers each request with a
+ * status derived from the username, and check that every thread sees the status of its own call.
+ *
+ * @since 3.0.1
+ */
+@RunWith(JUnit4.class)
+public class CreateUsersWithRestV1APIConcurrencyTest
+{
+    private static final int THREADS = 64;
+    private static final int USERS_PER_THREAD = 50;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private ExecutorService clientExecutor;
+    private CreateUsersWithRestV1API createUser;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange ->
+        {
+            String username;
+            try (InputStream is = exchange.getRequestBody(); JsonReader reader = Json.createReader(is))
+            {
+                JsonObject body = reader.readObject();
+                username = body.getString("id");
+            }
+            // Let the requests overlap
+            try
+            {
+                Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(expectedStatus(username), -1);
+            exchange.close();
+        });
+        serverExecutor = Executors.newFixedThreadPool(THREADS);
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        createUser = new CreateUsersWithRestV1API();
+        createUser.setUserGroups("");
+        createUser.setIgnoreExistingUsers(false);
+        createUser.setBaseUrl("http://localhost:" + server.getAddress().getPort() + "/");
+        createUser.setAlfrescoAdminUsername("admin");
+        createUser.setAlfrescoAdminPassword("admin");
+        createUser.initialize();
+
+        clientExecutor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown()
+    {
+        clientExecutor.shutdownNow();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    /**
+     * One user in three already exists, one in seven is broken and the others are created
+     */
+    private static int expectedStatus(String username)
+    {
+        int index = Integer.parseInt(username.substring(username.lastIndexOf('-') + 1));
+        if (index % 3 == 0)
+        {
+            return 409;
+        }
+        else if (index % 7 == 0)
+        {
+            return 500;
+        }
+        return 201;
+    }
+
+    private static UserData newUser(int index)
+    {
+        UserData user = new UserData();
+        user.setUsername("user-" + index);
+        user.setFirstName("first" + index);
+        user.setLastName("last" + index);
+        user.setEmail("user" + index + "@example.com");
+        user.setPassword("password" + index);
+        return user;
+    }
+
+    @Test
+    public void testStatusPerThread() throws Exception
+    {
+        List<Future<Integer>> mismatches = new ArrayList<>(THREADS);
+        for (int t = 0; t < THREADS; t++)
+        {
+            final int firstIndex = t * USERS_PER_THREAD;
+            Callable<Integer> work = () ->
+            {
+                int mismatchCount = 0;
+                for (int i = firstIndex; i < firstIndex + USERS_PER_THREAD; i++)
+                {
+                    UserData user = newUser(i);
+                    boolean created = createUser.createUser(user);
+                    if (created != (expectedStatus(user.getUsername()) == 201))
+                    {
+                        mismatchCount++;
+                    }
+                }
+                return mismatchCount;
+            };
+            mismatches.add(clientExecutor.submit(work));
+        }
+        for (Future<Integer> mismatch : mismatches)
+        {
+            assertEquals(0, mismatch.get().intValue());
+        }
+    }
+
+    @Test
+    public void testClientStatusPerThread() throws Exception
+    {
+        try (PeopleRestClient client = new PeopleRestClient("http://localhost:" + server.getAddress().getPort(), "admin", "admin"))
+        {
+            List<Future<Integer>> mismatches = new ArrayList<>(THREADS);
+            for (int t = 0; t < THREADS; t++)
+            {
+                final int firstIndex = t * USERS_PER_THREAD;
+                Callable<Integer> work = () ->
+                {
+                    int mismatchCount = 0;
+                    for (int i = firstIndex; i < firstIndex + USERS_PER_THREAD; i++)
+                    {
+                        String username = "user-" + i;
+                        if (client.createGroupMembership("GROUP_A", username) != expectedStatus(username))
+                        {
+                            mismatchCount++;
+                        }
+                    }
+                    return mismatchCount;
+                };
+                mismatches.add(clientExecutor.submit(work));
+            }
+            for (Future<Integer> mismatch : mismatches)
+            {
+                assertEquals(0, mismatch.get().intValue());
+            }
+        }
+    }
+}
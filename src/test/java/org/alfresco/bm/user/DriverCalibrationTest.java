@@ -0,0 +1,116 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.mongodb.DBObject;
+import org.alfresco.rest.model.RestPersonModel;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Check that a {@link DriverCalibration} redirects the REST clients and measures the driver's threads
+ *
+ * @since 3.0.1
+ */
+@RunWith(JUnit4.class)
+public class DriverCalibrationTest
+{
+    private static final String BASE_URL = "http://alfresco.example.com:8080/";
+
+    private DriverCalibration calibration;
+
+    @After
+    public void tearDown()
+    {
+        if (calibration != null)
+        {
+            calibration.destroy();
+        }
+    }
+
+    @Test
+    public void testDisabled() throws Exception
+    {
+        calibration = new DriverCalibration(BASE_URL);
+        calibration.afterPropertiesSet();
+        calibration.start();
+        assertFalse(calibration.isEnabled());
+        assertEquals(BASE_URL, calibration.getBaseUrl());
+        assertNull(calibration.getMetrics(10L));
+    }
+
+    @Test
+    public void testCalibration() throws Exception
+    {
+        calibration = new DriverCalibration(BASE_URL);
+        calibration.setEnabled(true);
+        calibration.setResponderThreads(4);
+        calibration.afterPropertiesSet();
+        assertNotEquals(BASE_URL, calibration.getBaseUrl());
+        // Nothing is measured before the first users are scheduled
+        assertNull(calibration.getMetrics(0L));
+
+        calibration.start();
+        int created = 0;
+        try (PeopleRestClient client = new PeopleRestClient(calibration.getBaseUrl(), "admin", "admin"))
+        {
+            for (int i = 0; i < 50; i++)
+            {
+                RestPersonModel person = new RestPersonModel();
+                person.setId("user-" + i);
+                person.setFirstName("First");
+                person.setLastName("Last");
+                person.setEmail("user-" + i + "@example.com");
+                person.setPassword("password");
+                if (client.createPerson(person) == 201)
+                {
+                    created++;
+                }
+            }
+        }
+        assertEquals(50, created);
+
+        DBObject metricsObj = calibration.getMetrics(created);
+        assertEquals(50L, metricsObj.get("created"));
+        assertTrue(((Number) metricsObj.get("cpuMsPerUser")).doubleValue() >= 0.0);
+        assertTrue(((Number) metricsObj.get("allocatedBytesPerUser")).doubleValue() > 0.0);
+        assertEquals(50L, ((Number) ((DBObject) metricsObj.get("standIn")).get("people")).longValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadResponseLatency()
+    {
+        new DriverCalibration(BASE_URL).setResponseLatency("sometimes");
+    }
+}
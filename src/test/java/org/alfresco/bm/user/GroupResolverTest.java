@@ -0,0 +1,155 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mongodb.DBObject;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Resolve groups against a local server that knows a single group, and check that each group
+ * is only looked up once.
+ *
+ * @since 3.0.1
+ */
+@RunWith(JUnit4.class)
+public class GroupResolverTest
+{
+    private HttpServer server;
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+    private String baseUrl;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange ->
+        {
+            String request = exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath();
+            calls.computeIfAbsent(request, key -> new AtomicInteger()).incrementAndGet();
+            int status;
+            if (request.startsWith("POST"))
+            {
+                status = 201;
+            }
+            else if (request.endsWith("/GROUP_STARTING"))
+            {
+                status = 503;
+            }
+            else
+            {
+                status = request.endsWith("/GROUP_EXISTING") ? 200 : 404;
+            }
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        });
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown()
+    {
+        server.stop(0);
+    }
+
+    private GroupResolver newResolver()
+    {
+        return new GroupResolver(baseUrl, PeopleRestClient.basicAuthenticator(baseUrl, "admin", "admin"), new HttpConnectionPools());
+    }
+
+    private int callCount(String request)
+    {
+        AtomicInteger count = calls.get(request);
+        return count == null ? 0 : count.get();
+    }
+
+    @Test
+    public void testMissingGroupsAreCachedAndSkipped()
+    {
+        GroupResolver resolver = newResolver();
+        resolver.resolveAll(Arrays.asList("EXISTING", "MISSING"));
+        for (int i = 0; i < 10; i++)
+        {
+            assertTrue(resolver.acceptMembership("EXISTING"));
+            assertFalse(resolver.acceptMembership("MISSING"));
+        }
+
+        String groupsPath = "/" + PeopleRestClient.GROUPS_PATH;
+        assertEquals(1, callCount("GET " + groupsPath + "/GROUP_EXISTING"));
+        assertEquals(1, callCount("GET " + groupsPath + "/GROUP_MISSING"));
+        assertEquals(0, callCount("POST " + groupsPath));
+        assertEquals(10L, resolver.getMetrics().get("skippedMemberships"));
+    }
+
+    @Test
+    public void testMissingGroupsAreCreated()
+    {
+        GroupResolver resolver = newResolver();
+        resolver.setAutoCreate(true);
+        resolver.resolveAll(Arrays.asList("EXISTING", "MISSING"));
+
+        assertTrue(resolver.acceptMembership("MISSING"));
+        assertEquals(1, callCount("POST /" + PeopleRestClient.GROUPS_PATH));
+    }
+
+    @Test
+    public void testUnavailableServerIsNotCached()
+    {
+        GroupResolver resolver = newResolver();
+        resolver.setAutoCreate(true);
+        assertFalse(resolver.isAvailable("STARTING"));
+        assertFalse(resolver.isAvailable("STARTING"));
+
+        // Looked up again, and never taken as missing
+        assertEquals(2, callCount("GET /" + PeopleRestClient.GROUPS_PATH + "/GROUP_STARTING"));
+        assertEquals(0, callCount("POST /" + PeopleRestClient.GROUPS_PATH));
+        assertTrue(((DBObject) resolver.getMetrics().get("groups")).keySet().isEmpty());
+    }
+
+    @Test
+    public void testUnreachableServerIsNotCached()
+    {
+        server.stop(0);
+        GroupResolver resolver = newResolver();
+        assertFalse(resolver.isAvailable("EXISTING"));
+        assertTrue(((DBObject) resolver.getMetrics().get("groups")).keySet().isEmpty());
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Check the parsing of group descriptions and the distribution and repeatability of the groups picked.
+ *
+ * @since 3.0.1
+ */
+@RunWith(JUnit4.class)
+public class GroupSamplerTest
+{
+    private static final int USERS = 20000;
+
+    @Test
+    public void testParseKeepsOrder()
+    {
+        GroupSampler sampler = new GroupSampler("C:0.5, A, B:0.25");
+        assertEquals(3, sampler.size());
+        assertEquals("C", sampler.getGroup(0));
+        assertEquals("A", sampler.getGroup(1));
+        assertEquals("B", sampler.getGroup(2));
+        assertEquals(1.0, sampler.getChance(1), 0.0);
+    }
+
+    @Test
+    public void testRandomDistribution()
+    {
+        GroupSampler sampler = new GroupSampler("A:0.1, B:0.5, C:1.0, D:0.0");
+        int[] counts = new int[sampler.size()];
+        int[] selected = new int[sampler.size()];
+        for (int i = 0; i < USERS; i++)
+        {
+            int count = sampler.sample(selected);
+            for (int j = 0; j < count; j++)
+            {
+                counts[selected[j]]++;
+            }
+        }
+        assertEquals(0.1, counts[0] / (double) USERS, 0.02);
+        assertEquals(0.5, counts[1] / (double) USERS, 0.02);
+        assertEquals(USERS, counts[2]);
+        assertEquals(0, counts[3]);
+    }
+
+    @Test
+    public void testDeterministicDistribution()
+    {
+        GroupSampler sampler = new GroupSampler("A:0.1, B:0.5, C:1.0, D:0.0");
+        int[] counts = new int[sampler.size()];
+        int[] selected = new int[sampler.size()];
+        for (int i = 0; i < USERS; i++)
+        {
+            int count = sampler.sample(42L, "user-" + i, selected);
+            for (int j = 0; j < count; j++)
+            {
+                counts[selected[j]]++;
+            }
+        }
+        assertEquals(0.1, counts[0] / (double) USERS, 0.02);
+        assertEquals(0.5, counts[1] / (double) USERS, 0.02);
+        assertEquals(USERS, counts[2]);
+        assertEquals(0, counts[3]);
+    }
+
+    @Test
+    public void testDeterministicRepeatable()
+    {
+        GroupSampler sampler = new GroupSampler("A:0.3, B:0.3, C:0.3");
+        GroupSampler rerun = new GroupSampler("A:0.3, B:0.3, C:0.3");
+        List<List<String>> firstRun = new ArrayList<>(1000);
+        List<List<String>> otherSeed = new ArrayList<>(1000);
+        for (int i = 0; i < 1000; i++)
+        {
+            firstRun.add(sampler.groupsOf(7L, "user-" + i));
+            otherSeed.add(sampler.groupsOf(8L, "user-" + i));
+        }
+        for (int i = 0; i < 1000; i++)
+        {
+            assertEquals(firstRun.get(i), rerun.groupsOf(7L, "user-" + i));
+        }
+        assertNotEquals(firstRun, otherSeed);
+    }
+
+    @Test
+    public void testNoGroups()
+    {
+        GroupSampler sampler = new GroupSampler(" , :0.4");
+        assertEquals(0, sampler.size());
+        assertTrue(sampler.randomGroups().isEmpty());
+        assertTrue(sampler.groupsOf(1L, "user").isEmpty());
+    }
+}
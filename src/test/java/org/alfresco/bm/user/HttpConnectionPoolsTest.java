@@ -0,0 +1,92 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.DBObject;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Check the sizing and the metrics of the {@link HttpConnectionPools}
+ *
+ * @since 3.0.1
+ */
+@RunWith(JUnit4.class)
+public class HttpConnectionPoolsTest
+{
+    @Test
+    public void testSizing()
+    {
+        HttpConnectionPools connectionPools = new HttpConnectionPools();
+        connectionPools.setMaxConnections(50);
+        assertEquals(50, connectionPools.getMaxTotal(8));
+        assertEquals(50, connectionPools.getMaxPerRoute(8));
+
+        connectionPools.setAutoSize(true);
+        assertEquals(8, connectionPools.getMaxTotal(8));
+        // Concurrency not known
+        assertEquals(50, connectionPools.getMaxTotal(0));
+
+        connectionPools.setMaxConnectionsPerRoute(4);
+        assertEquals(4, connectionPools.getMaxPerRoute(8));
+        assertEquals(2, connectionPools.getMaxPerRoute(2));
+    }
+
+    @Test
+    public void testLeaseMetrics() throws Exception
+    {
+        HttpConnectionPools connectionPools = new HttpConnectionPools();
+        connectionPools.setAutoSize(true);
+        PoolingHttpClientConnectionManager connectionManager = connectionPools.newConnectionManager("test", 2);
+        HttpRoute route = new HttpRoute(new HttpHost("localhost", 8080));
+
+        HttpClientConnection first = connectionManager.requestConnection(route, null).get(1L, TimeUnit.SECONDS);
+        HttpClientConnection second = connectionManager.requestConnection(route, null).get(1L, TimeUnit.SECONDS);
+        connectionManager.releaseConnection(first, null, 0L, TimeUnit.MILLISECONDS);
+        connectionManager.releaseConnection(second, null, 0L, TimeUnit.MILLISECONDS);
+
+        List<?> pools = (List<?>) connectionPools.getMetrics().get("pools");
+        assertEquals(1, pools.size());
+        DBObject pool = (DBObject) pools.get(0);
+        assertEquals("test", pool.get("name"));
+        assertEquals(2, pool.get("max"));
+        assertEquals(0, pool.get("leased"));
+        assertEquals(2, pool.get("leasedMax"));
+        assertEquals(1.0, (Double) pool.get("utilisationMax"), 0.001);
+        assertEquals(2L, ((DBObject) pool.get("leaseWait")).get("count"));
+        connectionManager.shutdown();
+    }
+}
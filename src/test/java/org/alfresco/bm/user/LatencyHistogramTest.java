@@ -0,0 +1,102 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Check the precision of the latency histogram percentiles and the merging of histograms.
+ *
+ * @since 3.0.1
+ */
+@RunWith(JUnit4.class)
+public class LatencyHistogramTest
+{
+    @Test
+    public void testBucketsCoverValues()
+    {
+        for (long value = 0L; value < 1000000L; value += 7L)
+        {
+            int index = LatencyHistogram.indexOf(value);
+            long highest = LatencyHistogram.highestValueOf(index);
+            assertTrue(highest >= value);
+            assertTrue(highest <= value * 1.01 + 1);
+            assertTrue(index == 0 || LatencyHistogram.highestValueOf(index - 1) < value);
+        }
+    }
+
+    @Test
+    public void testPercentiles()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1L; micros <= 100000L; micros++)
+        {
+            histogram.record(micros);
+        }
+        assertEquals(100000L, histogram.getTotalCount());
+        assertEquals(50000.0, histogram.getValueAtPercentile(50.0), 500.0);
+        assertEquals(95000.0, histogram.getValueAtPercentile(95.0), 950.0);
+        assertEquals(99000.0, histogram.getValueAtPercentile(99.0), 990.0);
+        assertEquals(99900.0, histogram.getValueAtPercentile(99.9), 999.0);
+        assertEquals(100000L, histogram.getValueAtPercentile(100.0));
+    }
+
+    @Test
+    public void testMerge()
+    {
+        LatencyHistogram fast = new LatencyHistogram();
+        LatencyHistogram slow = new LatencyHistogram();
+        for (int i = 0; i < 900; i++)
+        {
+            fast.record(1000L);
+        }
+        for (int i = 0; i < 100; i++)
+        {
+            slow.record(500000L);
+        }
+        LatencyHistogram merged = new LatencyHistogram();
+        merged.add(fast.getCounts());
+        merged.add(slow.getCounts());
+        assertEquals(1000L, merged.getTotalCount());
+        assertEquals(1000.0, merged.getValueAtPercentile(50.0), 10.0);
+        assertEquals(500000.0, merged.getValueAtPercentile(95.0), 5000.0);
+    }
+
+    @Test
+    public void testOutOfRangeValues()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5L);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0L, histogram.getValueAtPercentile(50.0));
+        assertEquals(LatencyHistogram.MAX_VALUE, histogram.getValueAtPercentile(100.0));
+    }
+}
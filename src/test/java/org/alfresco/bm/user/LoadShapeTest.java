@@ -0,0 +1,148 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.mongodb.DBObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Check the times at which a {@link LoadShape} makes users due
+ *
+ * @since 3.0.1
+ */
+@RunWith(JUnit4.class)
+public class LoadShapeTest
+{
+    private LoadShape loadShape;
+
+    @Before
+    public void setUp()
+    {
+        loadShape = new LoadShape();
+        loadShape.setTargetRate(10.0);
+    }
+
+    @Test
+    public void testDisabledByDefault()
+    {
+        assertFalse(loadShape.isEnabled());
+        loadShape.setProfile(LoadShape.Profile.STEADY);
+        assertTrue(loadShape.isEnabled());
+    }
+
+    @Test
+    public void testSteady()
+    {
+        loadShape.setProfile(LoadShape.Profile.STEADY);
+        assertEquals(0L, loadShape.getOffset(0L));
+        assertEquals(2500L, loadShape.getOffset(25L));
+        assertEquals(10.0, loadShape.getTargetRate(60000L), 0.001);
+    }
+
+    @Test
+    public void testRamp()
+    {
+        loadShape.setProfile(LoadShape.Profile.RAMP);
+        loadShape.setStartRate(0.0);
+        loadShape.setRampDuration(10000L);
+        // 50 users are due during the ramp, half of them in the last 30% of it
+        assertEquals(0L, loadShape.getOffset(0L));
+        assertEquals(Math.round(Math.sqrt(10.0) * 1000.0), loadShape.getOffset(5L));
+        assertEquals(10000L, loadShape.getOffset(50L));
+        assertEquals(11000L, loadShape.getOffset(60L));
+        assertEquals(5.0, loadShape.getTargetRate(5000L), 0.001);
+        assertEquals(10.0, loadShape.getTargetRate(20000L), 0.001);
+    }
+
+    @Test
+    public void testRampAtConstantRate()
+    {
+        loadShape.setProfile(LoadShape.Profile.RAMP);
+        loadShape.setStartRate(10.0);
+        loadShape.setRampDuration(10000L);
+        assertEquals(3000L, loadShape.getOffset(30L));
+        assertEquals(12000L, loadShape.getOffset(120L));
+    }
+
+    @Test
+    public void testBurst()
+    {
+        loadShape.setProfile(LoadShape.Profile.BURST);
+        loadShape.setBurstSize(100);
+        loadShape.setBurstInterval(20000L);
+        assertEquals(0L, loadShape.getOffset(99L));
+        assertEquals(20000L, loadShape.getOffset(100L));
+        assertEquals(40000L, loadShape.getOffset(250L));
+        assertEquals(5.0, loadShape.getTargetRate(0L), 0.001);
+        // A burst is never split across pages
+        assertEquals(100L, loadShape.getPageSize(0L, 10));
+    }
+
+    @Test
+    public void testStep()
+    {
+        loadShape.setProfile(LoadShape.Profile.STEP);
+        loadShape.setTargetRate(3.0);
+        loadShape.setStartRate(1.0);
+        loadShape.setStepIncrement(1.0);
+        loadShape.setStepDuration(1000L);
+        // 1 user in the first step, 2 in the second, then 3 per second
+        assertEquals(0L, loadShape.getOffset(0L));
+        assertEquals(1000L, loadShape.getOffset(1L));
+        assertEquals(1500L, loadShape.getOffset(2L));
+        assertEquals(2000L, loadShape.getOffset(3L));
+        assertEquals(3000L, loadShape.getOffset(6L));
+        assertEquals(2.0, loadShape.getTargetRate(1999L), 0.001);
+        assertEquals(3.0, loadShape.getTargetRate(60000L), 0.001);
+    }
+
+    @Test
+    public void testSamples()
+    {
+        loadShape.setProfile(LoadShape.Profile.STEADY);
+        DBObject first = loadShape.sample(0L, 0L);
+        assertEquals(10.0, first.get("targetRate"));
+        assertFalse(first.containsField("actualRate"));
+        DBObject second = loadShape.sample(2000L, 16L);
+        assertEquals(8.0, second.get("actualRate"));
+
+        DBObject metrics = loadShape.getMetrics();
+        assertEquals(2, metrics.get("samples"));
+        assertEquals(20L, metrics.get("targetUsers"));
+        assertEquals(16L, metrics.get("actualUsers"));
+        assertEquals(8.0, metrics.get("actualRateAvg"));
+
+        loadShape.reset();
+        assertEquals(0, loadShape.getMetrics().get("samples"));
+    }
+}
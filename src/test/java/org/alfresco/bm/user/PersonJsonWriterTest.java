@@ -0,0 +1,157 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.alfresco.rest.model.RestPersonModel;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Check that the person body written from the user data has the bytes of a Jackson serialization
+ * of the same fields, and the content of the {@link RestPersonModel} body sent before it.
+ *
+ * @since 3.0.1
+ */
+@RunWith(JUnit4.class)
+public class PersonJsonWriterTest
+{
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static void assertSameAsJackson(UserData user) throws Exception
+    {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("id", user.getUsername());
+        fields.put("firstName", user.getFirstName());
+        fields.put("lastName", user.getLastName());
+        fields.put("email", user.getEmail());
+        fields.put("password", user.getPassword());
+        assertArrayEquals(MAPPER.writeValueAsBytes(fields), PersonJsonWriter.person(user));
+        assertSameAsPersonModel(user);
+    }
+
+    /**
+     * Compare with the body of a person model holding the same details, as serialized by {@link PeopleJson}
+     * and encoded by the string entity it was posted with.  Only the fields written from the user data are
+     * compared, and null ones are taken as left out.
+     */
+    private static void assertSameAsPersonModel(UserData user) throws Exception
+    {
+        RestPersonModel personModel = new RestPersonModel();
+        personModel.setId(user.getUsername());
+        personModel.setFirstName(user.getFirstName());
+        personModel.setLastName(user.getLastName());
+        personModel.setEmail(user.getEmail());
+        personModel.setPassword(user.getPassword());
+        byte[] modelBody = PeopleJson.person(personModel).getBytes(StandardCharsets.UTF_8);
+        ObjectNode modelNode = (ObjectNode) MAPPER.readTree(modelBody);
+        modelNode.retain("id", "firstName", "lastName", "email", "password");
+        assertEquals(withoutNulls(modelNode), withoutNulls(MAPPER.readTree(PersonJsonWriter.person(user))));
+    }
+
+    private static JsonNode withoutNulls(JsonNode node)
+    {
+        ObjectNode objectNode = (ObjectNode) node;
+        for (Iterator<JsonNode> fields = objectNode.elements(); fields.hasNext(); )
+        {
+            if (fields.next().isNull())
+            {
+                fields.remove();
+            }
+        }
+        return objectNode;
+    }
+
+    private static UserData user(String username, String firstName, String lastName)
+    {
+        UserData user = new UserData();
+        user.setUsername(username);
+        user.setFirstName(firstName);
+        user.setLastName(lastName);
+        user.setEmail(username + "@00001.example.com");
+        user.setPassword(username);
+        return user;
+    }
+
+    @Test
+    public void testPlainUser() throws Exception
+    {
+        assertSameAsJackson(user("firstname.lastname", "Firstname", "Lastname"));
+    }
+
+    @Test
+    public void testEscapedCharacters() throws Exception
+    {
+        assertSameAsJackson(user("quote\"back\\slash/", "tab\tnew\nline\r", "\b\f\u0001\u001f"));
+    }
+
+    @Test
+    public void testNonAsciiCharacters() throws Exception
+    {
+        assertSameAsJackson(user("j\u00f6rg.m\u00fcller", "\u4e2d\u6587", "emoji \ud83d\ude00 \u00e9"));
+    }
+
+    @Test
+    public void testUnpairedSurrogates() throws Exception
+    {
+        UserData user = user("lone\ud83d", "x\ude00y", "\ude00\ud83d");
+        String body = new String(PersonJsonWriter.person(user), StandardCharsets.UTF_8);
+        assertEquals(
+            "{\"id\":\"lone?\",\"firstName\":\"x?y\",\"lastName\":\"??\"," +
+                "\"email\":\"lone?@00001.example.com\",\"password\":\"lone?\"}",
+            body);
+    }
+
+    @Test
+    public void testMissingValues() throws Exception
+    {
+        assertSameAsJackson(user("nobody", null, null));
+    }
+
+    @Test
+    public void testLongValues() throws Exception
+    {
+        StringBuilder longName = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+        {
+            longName.append("\u00e9\"");
+        }
+        assertSameAsJackson(user("long", longName.toString(), longName.toString()));
+        // The buffer grown for the long values is reused
+        assertSameAsJackson(user("short", "a", "b"));
+    }
+}
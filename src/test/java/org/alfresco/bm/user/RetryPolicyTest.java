@@ -0,0 +1,175 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Check the classification and backoff of the {@link RetryPolicy} and the {@link CircuitBreaker}
+ *
+ * @since 3.0.1
+ */
+@RunWith(JUnit4.class)
+public class RetryPolicyTest
+{
+    @Test
+    public void testClassification()
+    {
+        assertTrue(RetryPolicy.isTransient(500));
+        assertTrue(RetryPolicy.isTransient(503));
+        assertTrue(RetryPolicy.isTransient(429));
+        assertFalse(RetryPolicy.isTransient(400));
+        assertFalse(RetryPolicy.isTransient(409));
+        assertTrue(RetryPolicy.isTransient(new SocketTimeoutException("Read timed out")));
+        assertTrue(RetryPolicy.isTransient(new SocketException("Connection reset")));
+        assertFalse(RetryPolicy.isTransient(new IOException("Bad request body")));
+        // The driver's own pool is exhausted: Alfresco is not to blame
+        assertFalse(RetryPolicy.isTransient(new ConnectionPoolTimeoutException("Timeout waiting for connection from pool")));
+        assertFalse(RetryPolicy.isServerError(new ConnectionPoolTimeoutException("Timeout waiting for connection from pool")));
+        assertTrue(RetryPolicy.isServerError(new SocketTimeoutException("Read timed out")));
+        assertTrue(RetryPolicy.isServerError(429));
+        assertTrue(RetryPolicy.isServerError(503));
+        assertFalse(RetryPolicy.isServerError(409));
+    }
+
+    @Test
+    public void testAttempts()
+    {
+        RetryPolicy retryPolicy = new RetryPolicy();
+        retryPolicy.setMaxAttempts(3);
+        assertTrue(retryPolicy.shouldRetry(503, 1));
+        assertTrue(retryPolicy.shouldRetry(503, 2));
+        assertFalse(retryPolicy.shouldRetry(503, 3));
+        assertFalse(retryPolicy.shouldRetry(400, 1));
+        retryPolicy.recordOutcome(2, true);
+
+        assertEquals(2L, retryPolicy.getMetrics().get("retries"));
+        assertEquals(1L, retryPolicy.getMetrics().get("recovered"));
+        assertEquals(1L, retryPolicy.getMetrics().get("exhausted"));
+    }
+
+    @Test
+    public void testBoundedBackoff()
+    {
+        RetryPolicy retryPolicy = new RetryPolicy();
+        retryPolicy.setBaseDelay(100L);
+        retryPolicy.setMaxDelay(1000L);
+        for (int i = 0; i < 1000; i++)
+        {
+            assertTrue(retryPolicy.getDelay(1) <= 100L);
+            assertTrue(retryPolicy.getDelay(3) <= 400L);
+            assertTrue(retryPolicy.getDelay(40) <= 1000L);
+            assertTrue(retryPolicy.getDelay(40) >= 0L);
+        }
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception
+    {
+        CircuitBreaker circuitBreaker = new CircuitBreaker();
+        circuitBreaker.setMinCalls(10);
+        circuitBreaker.setErrorRateThreshold(0.5);
+        circuitBreaker.setOpenInterval(200L);
+
+        for (int i = 0; i < 9; i++)
+        {
+            circuitBreaker.acquire();
+            circuitBreaker.record(true);
+        }
+        // Too few calls to judge
+        assertEquals(CircuitBreaker.STATE_CLOSED, circuitBreaker.getState());
+        circuitBreaker.record(true);
+        assertEquals(CircuitBreaker.STATE_OPEN, circuitBreaker.getState());
+
+        // The next call waits for the pause, then probes
+        long start = System.currentTimeMillis();
+        CircuitBreaker.Permit probe = circuitBreaker.acquire();
+        assertTrue(System.currentTimeMillis() - start >= 150L);
+        assertTrue(probe.isProbe());
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, circuitBreaker.getState());
+        circuitBreaker.record(false, probe);
+        assertEquals(CircuitBreaker.STATE_CLOSED, circuitBreaker.getState());
+        assertEquals(1L, circuitBreaker.getMetrics().get("opened"));
+    }
+
+    @Test
+    public void testCircuitBreakerWithoutWaiting() throws Exception
+    {
+        CircuitBreaker circuitBreaker = new CircuitBreaker();
+        circuitBreaker.setMinCalls(2);
+        circuitBreaker.setOpenInterval(200L);
+
+        assertEquals(0L, circuitBreaker.tryAcquire());
+        circuitBreaker.record(true);
+        circuitBreaker.record(true);
+        assertEquals(CircuitBreaker.STATE_OPEN, circuitBreaker.getState());
+
+        // Calls are put off until the end of the pause rather than blocked
+        CircuitBreaker.Permit waiting = circuitBreaker.tryAcquire();
+        assertFalse(waiting.isGranted());
+        assertTrue(waiting.getDelay() > 0L && waiting.getDelay() <= 200L);
+        Thread.sleep(waiting.getDelay());
+        // The first call after the pause is the probe; the others wait for its outcome
+        CircuitBreaker.Permit probe = circuitBreaker.tryAcquire();
+        assertTrue(probe.isGranted());
+        assertTrue(probe.isProbe());
+        assertFalse(circuitBreaker.tryAcquire().isGranted());
+        circuitBreaker.record(false, probe);
+        assertTrue(circuitBreaker.tryAcquire().isGranted());
+    }
+
+    @Test
+    public void testCircuitBreakerIgnoresCallsBeforeTheProbe() throws Exception
+    {
+        CircuitBreaker circuitBreaker = new CircuitBreaker();
+        circuitBreaker.setMinCalls(2);
+        circuitBreaker.setOpenInterval(50L);
+
+        CircuitBreaker.Permit early = circuitBreaker.acquire();
+        circuitBreaker.record(true);
+        circuitBreaker.record(true);
+        CircuitBreaker.Permit probe = circuitBreaker.acquire();
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, circuitBreaker.getState());
+
+        // A call made before the breaker opened succeeds: it does not decide anything
+        circuitBreaker.record(false, early);
+        circuitBreaker.record(false);
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, circuitBreaker.getState());
+        circuitBreaker.record(true, probe);
+        assertEquals(CircuitBreaker.STATE_OPEN, circuitBreaker.getState());
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+import org.alfresco.bm.common.EventResult;
+import org.alfresco.bm.common.util.junit.tools.MongoDBForTestsFactory;
+import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.driver.event.Event;
+import org.alfresco.rest.model.RestPersonModel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Scan the people of the {@link AlfrescoStandInServer} into a users mirror where some users are
+ * already scheduled, and check which users are marked as created.
+ *
+ * @since 3.0.1
+ */
+@RunWith(JUnit4.class)
+public class ScanExistingUsersTest
+{
+    private MongoDBForTestsFactory mongoFactory;
+    private UserDataBulkService userDataBulkService;
+    private AlfrescoStandInServer standIn;
+    private ScanExistingUsers scan;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        mongoFactory = new MongoDBForTestsFactory();
+        DB db = mongoFactory.getObject();
+        userDataBulkService = new UserDataBulkService(db, "mirroredUsers");
+        userDataBulkService.afterPropertiesSet();
+
+        // user-6 and user-7 are already scheduled; user-8 and user-9 are not in Alfresco
+        List<UserData> users = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+        {
+            UserData user = new UserData();
+            user.setUsername("user-" + i);
+            user.setFirstName("first" + i);
+            user.setLastName("last" + i);
+            user.setEmail("user" + i + "@example.com");
+            user.setPassword("password" + i);
+            user.setCreationState(i == 6 || i == 7 ? DataCreationState.Scheduled : DataCreationState.NotScheduled);
+            users.add(user);
+        }
+        userDataBulkService.insertUsers(users);
+
+        // Alfresco also has a person that is not in the mirror
+        standIn = new AlfrescoStandInServer();
+        standIn.start();
+        try (PeopleRestClient client = new PeopleRestClient(standIn.getBaseUrl(), "admin", "admin"))
+        {
+            for (int i = 0; i < 8; i++)
+            {
+                assertEquals(201, client.createPerson(person("user-" + i)));
+            }
+            assertEquals(201, client.createPerson(person("guest")));
+        }
+
+        scan = new ScanExistingUsers(userDataBulkService, standIn.getBaseUrl(),
+            PeopleRestClient.basicAuthenticator(standIn.getBaseUrl(), "admin", "admin"));
+        scan.setPageSize(2);
+        scan.setPagesPerEvent(2);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (scan != null)
+        {
+            scan.destroy();
+        }
+        standIn.stop();
+        mongoFactory.destroy();
+    }
+
+    private static RestPersonModel person(String username)
+    {
+        RestPersonModel person = new RestPersonModel();
+        person.setId(username);
+        person.setFirstName("First");
+        person.setLastName("Last");
+        person.setEmail(username + "@example.com");
+        person.setPassword("password");
+        return person;
+    }
+
+    @Test
+    public void testDisabled() throws Exception
+    {
+        long requests = standIn.getRequestCount();
+        EventResult result = scan.processEvent(new Event(ScanExistingUsers.EVENT_NAME_SCAN_EXISTING_USERS, 0L, null));
+
+        assertEquals(ScanExistingUsers.EVENT_NAME_CREATE_USERS, result.getNextEvents().get(0).getName());
+        assertEquals(requests, standIn.getRequestCount());
+        assertEquals(8L, userDataBulkService.countUsersByCreationState(DataCreationState.NotScheduled));
+        assertEquals(0L, userDataBulkService.countUsersByCreationState(DataCreationState.Created));
+    }
+
+    @Test
+    public void testPagedAcrossEvents() throws Exception
+    {
+        scan.setEnabled(true);
+        List<Integer> skipCounts = new ArrayList<>();
+        Event event = new Event(ScanExistingUsers.EVENT_NAME_SCAN_EXISTING_USERS, 0L, null);
+        EventResult result = scan.processEvent(event);
+        while (result.getNextEvents().get(0).getName().equals(ScanExistingUsers.EVENT_NAME_SCAN_EXISTING_USERS) && skipCounts.size() < 10)
+        {
+            event = result.getNextEvents().get(0);
+            skipCounts.add((Integer) ((DBObject) event.getData()).get(ScanExistingUsers.EVENT_DATA_SKIP_COUNT));
+            result = scan.processEvent(event);
+        }
+
+        // Two pages of two people per event, then the last person
+        assertEquals(ScanExistingUsers.EVENT_NAME_CREATE_USERS, result.getNextEvents().get(0).getName());
+        assertEquals(Arrays.asList(4, 8), skipCounts);
+        assertEquals(6L, ((DBObject) result.getData()).get(ScanExistingUsers.EVENT_DATA_MARKED));
+
+        // Only the users that were not scheduled yet are marked
+        assertEquals(6L, userDataBulkService.countUsersByCreationState(DataCreationState.Created));
+        assertEquals(2L, userDataBulkService.countUsersByCreationState(DataCreationState.Scheduled));
+        assertEquals(2L, userDataBulkService.countUsersByCreationState(DataCreationState.NotScheduled));
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.anyMapOf;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.mongodb.MongoException;
+import org.alfresco.bm.data.DataCreationState;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Check the buffering done by the {@link UserCreationStateWriter}
+ *
+ * @since 3.0.1
+ */
+@RunWith(JUnit4.class)
+public class UserCreationStateWriterTest
+{
+    private UserDataService userDataService;
+    private UserDataBulkService userDataBulkService;
+    private UserCreationStateWriter writer;
+
+    @Before
+    public void setUp()
+    {
+        userDataService = mock(UserDataService.class);
+        userDataBulkService = mock(UserDataBulkService.class);
+        writer = new UserCreationStateWriter(userDataService, userDataBulkService);
+    }
+
+    @After
+    public void tearDown()
+    {
+        writer.destroy();
+    }
+
+    @Test
+    public void testWriteThrough()
+    {
+        writer.afterPropertiesSet();
+        writer.setUserCreationState("u1", DataCreationState.Created);
+
+        verify(userDataService).setUserCreationState("u1", DataCreationState.Created);
+        verifyZeroInteractions(userDataBulkService);
+    }
+
+    @Test
+    public void testWriteBehindFlushOnSize()
+    {
+        writer.setWriteBehind(true);
+        writer.setFlushSize(3);
+        writer.setFlushInterval(60000L);
+        writer.afterPropertiesSet();
+
+        writer.setUserCreationState("u1", DataCreationState.Failed);
+        writer.setUserCreationState("u2", DataCreationState.Created);
+        // Last state wins
+        writer.setUserCreationState("u1", DataCreationState.Created);
+        assertEquals(2, writer.getQueueDepth());
+        verify(userDataBulkService, never()).setUserCreationStates(anyMapOf(String.class, DataCreationState.class));
+
+        writer.setUserCreationState("u3", DataCreationState.Failed);
+        assertEquals(0, writer.getQueueDepth());
+
+        Map<String, DataCreationState> expected = new HashMap<>();
+        expected.put("u1", DataCreationState.Created);
+        expected.put("u2", DataCreationState.Created);
+        expected.put("u3", DataCreationState.Failed);
+        verify(userDataBulkService).setUserCreationStates(expected);
+        verifyZeroInteractions(userDataService);
+        assertEquals(1L, writer.getMetrics().get("flushes"));
+    }
+
+    @Test
+    public void testFailedFlushOnSizeKeepsTheStates()
+    {
+        writer.setWriteBehind(true);
+        writer.setFlushSize(2);
+        writer.setFlushInterval(60000L);
+        writer.afterPropertiesSet();
+        doThrow(new MongoException("Unavailable")).when(userDataBulkService).setUserCreationStates(anyMapOf(String.class, DataCreationState.class));
+
+        writer.setUserCreationState("u1", DataCreationState.Created);
+        // The caller is not told about the failed write; the states wait for the next flush
+        writer.setUserCreationState("u2", DataCreationState.Created);
+        assertEquals(2, writer.getQueueDepth());
+        assertEquals(2, writer.getUnwrittenCount());
+
+        try
+        {
+            writer.flush();
+            fail("An explicit flush reports the failed write");
+        }
+        catch (MongoException e)
+        {
+            // Expected
+        }
+        assertEquals(2, writer.getUnwrittenCount());
+        // Let the writer be destroyed
+        doNothing().when(userDataBulkService).setUserCreationStates(anyMapOf(String.class, DataCreationState.class));
+    }
+
+    @Test
+    public void testExplicitFlush()
+    {
+        writer.setWriteBehind(true);
+        writer.setFlushInterval(60000L);
+        writer.afterPropertiesSet();
+
+        writer.setUserCreationState("u1", DataCreationState.Created);
+        writer.flush();
+
+        Map<String, DataCreationState> expected = new HashMap<>();
+        expected.put("u1", DataCreationState.Created);
+        verify(userDataBulkService).setUserCreationStates(expected);
+        assertEquals(0, writer.getQueueDepth());
+    }
+
+    @Test
+    public void testTrackedOnceWritten()
+    {
+        UserCreationTracker tracker = mock(UserCreationTracker.class);
+        writer.setWriteBehind(true);
+        writer.setFlushInterval(60000L);
+        writer.setCompletionTracker(tracker);
+        writer.afterPropertiesSet();
+
+        writer.setUserCreationState("u1", DataCreationState.Scheduled);
+        writer.setUserCreationState("u1", DataCreationState.Created);
+        writer.setUserCreationState("u2", DataCreationState.Failed);
+        verifyZeroInteractions(tracker);
+
+        writer.flush();
+        verify(tracker).record(DataCreationState.Created, 1);
+        verify(tracker).record(DataCreationState.Failed, 1);
+        verify(tracker, never()).record(DataCreationState.Scheduled, 1);
+
+        writer.setUserCreationState(Arrays.asList("u3", "u4"), DataCreationState.Created);
+        verify(userDataBulkService).setUserCreationState(Arrays.asList("u3", "u4"), DataCreationState.Created);
+        verify(tracker).record(DataCreationState.Created, 2);
+    }
+}
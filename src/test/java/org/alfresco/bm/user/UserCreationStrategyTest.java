@@ -0,0 +1,64 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Check the endpoints picked by each {@link UserCreationStrategy}
+ *
+ * @since 3.0.1
+ */
+@RunWith(JUnit4.class)
+public class UserCreationStrategyTest
+{
+    @Test
+    public void testRoundTrips()
+    {
+        assertEquals(1, UserCreationStrategy.V1.getRoundTrips(0));
+        assertEquals(3, UserCreationStrategy.V1.getRoundTrips(2));
+        assertEquals(1, UserCreationStrategy.LEGACY.getRoundTrips(0));
+        assertEquals(1, UserCreationStrategy.LEGACY.getRoundTrips(2));
+        assertEquals(1, UserCreationStrategy.FEWEST_ROUND_TRIPS.getRoundTrips(0));
+        assertEquals(1, UserCreationStrategy.FEWEST_ROUND_TRIPS.getRoundTrips(2));
+    }
+
+    @Test
+    public void testFewestRoundTrips()
+    {
+        // Users without groups stay on the V1 API
+        assertFalse(UserCreationStrategy.FEWEST_ROUND_TRIPS.isLegacy(0));
+        assertTrue(UserCreationStrategy.FEWEST_ROUND_TRIPS.isLegacy(1));
+        assertTrue(UserCreationStrategy.LEGACY.isLegacy(0));
+        assertFalse(UserCreationStrategy.V1.isLegacy(3));
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import org.alfresco.bm.data.DataCreationState;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Check when the {@link UserCreationTracker} considers a run settled
+ *
+ * @since 3.0.1
+ */
+@RunWith(JUnit4.class)
+public class UserCreationTrackerTest
+{
+    private static BasicDBObject counters(long scheduled, long created, long failed, long pages, DBObject drivers)
+    {
+        return new BasicDBObject("_id", "userCreation")
+            .append("existing", 0L)
+            .append("scheduled", scheduled)
+            .append("created", created)
+            .append("failed", failed)
+            .append("pages", pages)
+            .append("drivers", drivers);
+    }
+
+    @Test
+    public void testSettledOnceEveryDriverPublishedAfterTheLastPage()
+    {
+        DB db = mock(DB.class);
+        DBCollection collection = mock(DBCollection.class);
+        when(db.getCollection("progress")).thenReturn(collection);
+        // Driver 'b' has not published since the second page was scheduled, then it has
+        when(collection.findAndModify(any(DBObject.class), any(DBObject.class), any(DBObject.class), anyBoolean(),
+                any(DBObject.class), anyBoolean(), anyBoolean())).thenReturn(
+            counters(10L, 8L, 2L, 2L, new BasicDBObject("a", 2L).append("b", 1L)),
+            counters(10L, 8L, 2L, 2L, new BasicDBObject("a", 2L).append("b", 2L)));
+        UserCreationTracker tracker = new UserCreationTracker(db, "progress", mock(UserDataBulkService.class));
+
+        tracker.record(DataCreationState.Failed, 2);
+        UserCreationTracker.Counters counters = tracker.publish();
+        assertEquals(0L, counters.getPending());
+        assertFalse(counters.isAllPublished());
+        assertFalse("A driver may still hold scheduled users", counters.isSettled());
+
+        counters = tracker.publish();
+        assertTrue(counters.isAllPublished());
+        assertTrue(counters.isSettled());
+    }
+
+    @Test
+    public void testNotSettledWhileADriverHoldsUnwrittenStates()
+    {
+        DB db = mock(DB.class);
+        DBCollection collection = mock(DBCollection.class);
+        when(db.getCollection("progress")).thenReturn(collection);
+        when(collection.findAndModify(any(DBObject.class), any(DBObject.class), any(DBObject.class), anyBoolean(),
+                any(DBObject.class), anyBoolean(), anyBoolean())).thenReturn(
+            counters(10L, 8L, 2L, 1L, new BasicDBObject("a", 1L)).append("unwritten", new BasicDBObject("a", 0L).append("b", 3L)));
+        UserCreationStateWriter writer = mock(UserCreationStateWriter.class);
+        when(writer.getUnwrittenCount()).thenReturn(4);
+        UserCreationTracker tracker = new UserCreationTracker(db, "progress", mock(UserDataBulkService.class));
+        tracker.setCreationStateWriter(writer);
+
+        UserCreationTracker.Counters counters = tracker.publish();
+        assertEquals(3L, counters.getUnwritten());
+        assertFalse(counters.isFlushed());
+        assertFalse("Driver 'b' has not written all its states", counters.isSettled());
+
+        // This driver's own queue depth is published with its counters
+        ArgumentCaptor<DBObject> updateCaptor = ArgumentCaptor.forClass(DBObject.class);
+        verify(collection).findAndModify(any(DBObject.class), any(DBObject.class), any(DBObject.class), anyBoolean(),
+                updateCaptor.capture(), anyBoolean(), anyBoolean());
+        DBObject setObj = (DBObject) updateCaptor.getValue().get("$set");
+        assertEquals(1, setObj.keySet().size());
+        assertEquals(4L, setObj.get(setObj.keySet().iterator().next()));
+    }
+}
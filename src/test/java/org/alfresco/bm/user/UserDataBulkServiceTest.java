@@ -0,0 +1,153 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import org.alfresco.bm.common.util.junit.tools.MongoDBForTestsFactory;
+import org.alfresco.bm.data.DataCreationState;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Check the indexes, projections and query metrics of the {@link UserDataBulkService} against a
+ * test database.
+ *
+ * @since 3.0.1
+ */
+@RunWith(JUnit4.class)
+public class UserDataBulkServiceTest
+{
+    private static final String COLLECTION = "mirroredUsers";
+
+    private MongoDBForTestsFactory mongoFactory;
+    private DBCollection collection;
+    private UserDataBulkService userDataBulkService;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        mongoFactory = new MongoDBForTestsFactory();
+        collection = spy(mongoFactory.getObject().getCollection(COLLECTION));
+        DB db = mock(DB.class);
+        when(db.getCollection(COLLECTION)).thenReturn(collection);
+        userDataBulkService = new UserDataBulkService(db, COLLECTION);
+        userDataBulkService.afterPropertiesSet();
+
+        // Mirror documents may carry more than what is needed to create a user
+        collection.insert(new BasicDBObject()
+            .append(UserDataBulkService.FIELD_USERNAME, "user-1")
+            .append(UserDataBulkService.FIELD_PASSWORD, "password1")
+            .append(UserDataBulkService.FIELD_FIRST_NAME, "first1")
+            .append(UserDataBulkService.FIELD_LAST_NAME, "last1")
+            .append(UserDataBulkService.FIELD_EMAIL, "user1@example.com")
+            .append(UserDataBulkService.FIELD_DOMAIN, "default")
+            .append(UserDataBulkService.FIELD_CREATION_STATE, DataCreationState.NotScheduled.toString())
+            .append(UserDataBulkService.FIELD_RANDOMIZER, 42)
+            .append(UserDataBulkService.FIELD_PENDING_GROUPS, Arrays.asList("SITE_ADMINISTRATORS"))
+            .append("nodeId", "workspace://SpacesStore/1"));
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        mongoFactory.destroy();
+    }
+
+    @Test
+    public void testIndexesEnsured()
+    {
+        Set<String> indexNames = new HashSet<>();
+        for (DBObject indexInfo : collection.getIndexInfo())
+        {
+            indexNames.add((String) indexInfo.get("name"));
+        }
+        assertTrue(indexNames.toString(), indexNames.contains("idx_creationState_username"));
+        assertTrue(indexNames.toString(), indexNames.contains("idx_username_creationState"));
+    }
+
+    @Test
+    public void testUsersAreReadWithTheirFieldsOnly()
+    {
+        Map<String, UserData> users = userDataBulkService.findUsersByUsernames(Collections.singletonList("user-1"));
+        assertEquals(1, users.size());
+        UserData user = users.get("user-1");
+        assertEquals("user1@example.com", user.getEmail());
+        assertEquals(DataCreationState.NotScheduled, user.getCreationState());
+        assertEquals(42, user.getRandomizer());
+
+        // The documents are read through the projection
+        ArgumentCaptor<DBObject> fieldsCaptor = ArgumentCaptor.forClass(DBObject.class);
+        verify(collection).find(any(DBObject.class), fieldsCaptor.capture());
+        DBObject userDataObj = collection.findOne(new BasicDBObject(UserDataBulkService.FIELD_USERNAME, "user-1"), fieldsCaptor.getValue());
+        Set<String> expectedFields = new HashSet<>(Arrays.asList(
+            UserDataBulkService.FIELD_USERNAME, UserDataBulkService.FIELD_PASSWORD, UserDataBulkService.FIELD_FIRST_NAME,
+            UserDataBulkService.FIELD_LAST_NAME, UserDataBulkService.FIELD_EMAIL, UserDataBulkService.FIELD_DOMAIN,
+            UserDataBulkService.FIELD_CREATION_STATE, UserDataBulkService.FIELD_RANDOMIZER));
+        assertEquals(expectedFields, userDataObj.keySet());
+    }
+
+    @Test
+    public void testSlowQueriesAreCounted()
+    {
+        userDataBulkService.setSlowQueryThreshold(200L);
+        assertEquals(1L, userDataBulkService.countUsersByCreationState(DataCreationState.NotScheduled));
+        assertEquals(0L, userDataBulkService.getMetrics().get("slowQueries"));
+
+        doAnswer(invocation ->
+        {
+            Thread.sleep(300L);
+            return invocation.callRealMethod();
+        }).when(collection).count(any(DBObject.class));
+        assertEquals(1L, userDataBulkService.countUsersByCreationState(DataCreationState.NotScheduled));
+
+        DBObject metrics = userDataBulkService.getMetrics();
+        assertEquals(2L, metrics.get("queries"));
+        assertEquals(1L, metrics.get("slowQueries"));
+        assertTrue(metrics.toString(), (Long) metrics.get("slowestQueryMs") >= 300L);
+    }
+}
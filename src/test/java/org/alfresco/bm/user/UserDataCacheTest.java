@@ -0,0 +1,156 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.mongodb.DBObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Check the lookups and evictions of the {@link UserDataCache}
+ *
+ * @since 3.0.1
+ */
+@RunWith(JUnit4.class)
+public class UserDataCacheTest
+{
+    private UserDataBulkService userDataBulkService;
+    private UserDataCache userDataCache;
+
+    @Before
+    public void setUp()
+    {
+        userDataBulkService = mock(UserDataBulkService.class);
+        userDataCache = new UserDataCache(userDataBulkService);
+    }
+
+    private static UserData user(String username)
+    {
+        UserData user = new UserData();
+        user.setUsername(username);
+        return user;
+    }
+
+    @Test
+    public void testReadThrough()
+    {
+        UserData u1 = user("u1");
+        when(userDataBulkService.findUserByUsername("u1")).thenReturn(u1);
+
+        assertSame(u1, userDataCache.findUserByUsername("u1"));
+        assertSame(u1, userDataCache.findUserByUsername("u1"));
+        verify(userDataBulkService, times(1)).findUserByUsername("u1");
+
+        DBObject metrics = userDataCache.getMetrics();
+        assertEquals(1L, metrics.get("hits"));
+        assertEquals(1L, metrics.get("misses"));
+    }
+
+    @Test
+    public void testPrefill()
+    {
+        Map<String, UserData> users = new LinkedHashMap<>();
+        users.put("u1", user("u1"));
+        users.put("u2", user("u2"));
+        when(userDataBulkService.findUsersByUsernames(Arrays.asList("u1", "u2"))).thenReturn(users);
+        when(userDataBulkService.findUsersByUsernames(Collections.singletonList("u3"))).thenReturn(Collections.singletonMap("u3", user("u3")));
+
+        userDataCache.prefill(Arrays.asList("u1", "u2"));
+        Map<String, UserData> found = userDataCache.findUsersByUsernames(Arrays.asList("u1", "u2", "u3"));
+        assertEquals(3, found.size());
+        // Only the user that was not prefilled is looked up
+        verify(userDataBulkService).findUsersByUsernames(Collections.singletonList("u3"));
+        assertEquals(2L, userDataCache.getMetrics().get("prefilled"));
+        assertEquals(2L, userDataCache.getMetrics().get("hits"));
+    }
+
+    @Test
+    public void testPrefillLargerThanCacheIsRefused()
+    {
+        userDataCache.setMaxSize(2);
+        assertFalse(userDataCache.prefill(Arrays.asList("u1", "u2", "u3")));
+        // Loading the page would only have evicted its first users
+        verify(userDataBulkService, never()).findUsersByUsernames(anyCollectionOf(String.class));
+        assertEquals(0, userDataCache.size());
+        assertEquals(1L, userDataCache.getMetrics().get("prefillsRefused"));
+    }
+
+    @Test
+    public void testEviction()
+    {
+        userDataCache.setMaxSize(2);
+        for (String username : Arrays.asList("u1", "u2", "u3"))
+        {
+            when(userDataBulkService.findUserByUsername(username)).thenReturn(user(username));
+            userDataCache.findUserByUsername(username);
+        }
+        assertEquals(2, userDataCache.size());
+        assertEquals(1L, userDataCache.getMetrics().get("evictions"));
+
+        // The least recently used user was evicted
+        userDataCache.findUserByUsername("u1");
+        verify(userDataBulkService, times(2)).findUserByUsername("u1");
+    }
+
+    @Test
+    public void testExpiry() throws Exception
+    {
+        userDataCache.setTimeToLive(0L);
+        when(userDataBulkService.findUserByUsername("u1")).thenReturn(user("u1"));
+        userDataCache.findUserByUsername("u1");
+        Thread.sleep(5L);
+        userDataCache.findUserByUsername("u1");
+        verify(userDataBulkService, times(2)).findUserByUsername("u1");
+        assertEquals(1L, userDataCache.getMetrics().get("expirations"));
+    }
+
+    @Test
+    public void testDisabled()
+    {
+        userDataCache.setMaxSize(0);
+        userDataCache.findUserByUsername("u1");
+        userDataCache.findUserByUsername("u1");
+        verify(userDataBulkService, times(2)).findUserByUsername("u1");
+        assertEquals(0, userDataCache.size());
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Check the users rebuilt by the {@link UserSynthesizer}
+ *
+ * @since 3.0.1
+ */
+@RunWith(JUnit4.class)
+public class UserSynthesizerTest
+{
+    @Test
+    public void testDefaultPatterns()
+    {
+        UserSynthesizer userSynthesizer = new UserSynthesizer();
+        UserData first = userSynthesizer.getUser(0L);
+        assertEquals("0000001", first.getFirstName());
+        assertEquals("Test", first.getLastName());
+        assertEquals("0000001.Test@00001.example.com", first.getEmail());
+        assertEquals(first.getEmail(), first.getUsername());
+        assertEquals(first.getEmail(), first.getPassword());
+        assertEquals("default", first.getDomain());
+
+        // The 101st user is in the second domain
+        assertEquals("0000101.Test@00002.example.com", userSynthesizer.getUser(100L).getEmail());
+    }
+
+    @Test
+    public void testCustomPatterns()
+    {
+        UserSynthesizer userSynthesizer = new UserSynthesizer();
+        userSynthesizer.setUsersPerDomain(10);
+        userSynthesizer.setDomainPattern("[emailDomain]");
+        userSynthesizer.setEmailDomainPattern("d%d.test");
+        userSynthesizer.setLastNamePattern("User%d");
+        userSynthesizer.setUsernamePattern("[firstName]-[lastName]");
+        userSynthesizer.setPasswordPattern("pw-[emailAddress]");
+
+        UserData user = userSynthesizer.getUser(10L);
+        assertEquals("0000011-User11", user.getUsername());
+        assertEquals("pw-0000011.User11@d2.test", user.getPassword());
+        assertEquals("d2.test", user.getDomain());
+    }
+
+    @Test
+    public void testDeterministic()
+    {
+        UserSynthesizer userSynthesizer = new UserSynthesizer();
+        Map<String, UserData> users = userSynthesizer.getUsers(500L, 20);
+        assertEquals(20, users.size());
+        assertEquals(userSynthesizer.getUser(500L).getUsername(), new ArrayList<>(users.keySet()).get(0));
+        for (UserData user : users.values())
+        {
+            assertTrue(user.getRandomizer() >= 0 && user.getRandomizer() < 1000000);
+        }
+        assertEquals(userSynthesizer.getUser(7L).getRandomizer(), new UserSynthesizer().getUser(7L).getRandomizer());
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * #%L
+ * Alfresco Benchmark Load Users
+ * %%
+ * Copyright (C) 2005 - 2018 Alfresco Software Limited
+ * %%
+ * This file is part of the Alfresco software.
+ * If the software was purchased under a paid Alfresco license, the terms of
+ * the paid license agreement will prevail.  Otherwise, the software is
+ * provided under the following open source license terms:
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+package org.alfresco.bm.user;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Check that compiled {@link UserTemplate templates} render like the patterns they replace
+ *
+ * @since 3.0.1
+ */
+@RunWith(JUnit4.class)
+public class UserTemplateTest
+{
+    private static final String[] NUMBER_PATTERNS = new String[]
+        {
+            "%07d", "%05d.example.com", "Test", "%d", "user-%3d-x", "100%% %08d", "%x", "%,d", ""
+        };
+    private static final long[] NUMBERS = new long[] {0L, 1L, 7L, 99L, 12345L, 1234567L, 123456789012L, -42L};
+
+    @Test
+    public void testNumberPatterns()
+    {
+        for (String pattern : NUMBER_PATTERNS)
+        {
+            UserTemplate template = UserTemplate.compileNumber(pattern);
+            for (long number : NUMBERS)
+            {
+                assertEquals("Pattern '" + pattern + "' for " + number, String.format(pattern, number), template.render(number));
+            }
+        }
+    }
+
+    @Test
+    public void testSubstitutionPatterns()
+    {
+        String[] patterns = new String[]
+            {
+                "[firstName].[lastName]@[emailDomain]", "[emailAddress]", "default", "[firstName][firstName]",
+                "x[lastName]-[emailAddress]y", "[unknown][firstName", ""
+            };
+        for (String pattern : patterns)
+        {
+            String expected = pattern
+                .replace("[firstName]", "0000001")
+                .replace("[lastName]", "Test")
+                .replace("[emailDomain]", "00001.example.com")
+                .replace("[emailAddress]", "0000001.Test@00001.example.com");
+            UserTemplate template = UserTemplate.compileSubstitution(pattern, true);
+            assertEquals(pattern, expected, template.render("0000001", "Test", "00001.example.com", "0000001.Test@00001.example.com"));
+        }
+    }
+
+    @Test
+    public void testEmailAddressLeftInEmailAddressPattern()
+    {
+        UserTemplate template = UserTemplate.compileSubstitution("[firstName]+[emailAddress]", false);
+        assertEquals("0000001+[emailAddress]", template.render("0000001", "Test", "00001.example.com", null));
+    }
+}